@@ -64,6 +64,7 @@ import com.android.settings.wfd.WifiDisplaySettings;
 import com.android.settings.widget.SwitchBar;
 import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.SettingsDrawerActivity;
+import com.android.settingslib.drawer.SettingsDrawerActivity.CategoryListener;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -198,6 +199,10 @@ public class SettingsActivity extends SettingsDrawerActivity
     private ArrayList<DashboardCategory> mCategories = new ArrayList<>();
 
     private DashboardFeatureProvider mDashboardFeatureProvider;
+
+    private final CategoryListener mSiteMapCategoryListener = () ->
+            FeatureFactory.getFactory(this).getSearchFeatureProvider().getSiteMapManager()
+                    .onCategoriesChanged(this);
     private ComponentName mCurrentSuggestion;
 
     public SwitchBar getSwitchBar() {
@@ -530,6 +535,7 @@ public class SettingsActivity extends SettingsDrawerActivity
                 mDevelopmentPreferencesListener);
 
         registerReceiver(mBatteryInfoReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        addCategoryListener(mSiteMapCategoryListener);
 
         updateTilesList();
     }
@@ -541,6 +547,7 @@ public class SettingsActivity extends SettingsDrawerActivity
                 mDevelopmentPreferencesListener);
         mDevelopmentPreferencesListener = null;
         unregisterReceiver(mBatteryInfoReceiver);
+        remCategoryListener(mSiteMapCategoryListener);
     }
 
     @Override
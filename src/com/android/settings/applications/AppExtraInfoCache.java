@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide cache of the extra info the {@link AppStateBaseBridge}s load for each app, keyed
+ * by bridge type, user and package. It lets special access screens be entered again without
+ * loading the info of every app again.
+ *
+ * An entry is dropped when its package is added, removed or changed, and when one of the app
+ * ops watched for its bridge type changes for the package. Each drop bumps the version, values
+ * loaded against an older version are not stored as they may predate the change.
+ */
+public class AppExtraInfoCache {
+
+    /**
+     * Returned by {@link #get} when there is no entry, as null is a valid extra info.
+     */
+    public static final Object NOT_CACHED = new Object();
+
+    private static AppExtraInfoCache sInstance;
+
+    // Values by package, by user, by bridge type.
+    private final Map<String, SparseArray<ArrayMap<String, Object>>> mValues = new ArrayMap<>();
+    // Bridge types to drop when an app op changes, by app op.
+    private final SparseArray<Set<String>> mTypesByOp = new SparseArray<>();
+
+    private Context mContext;
+    private long mVersion;
+
+    public static synchronized AppExtraInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppExtraInfoCache();
+            sInstance.registerReceiver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    AppExtraInfoCache() {
+    }
+
+    /**
+     * Drops the entries of the bridge type whenever the app op changes for their package.
+     */
+    public void watchOp(String type, int op) {
+        final boolean startWatching;
+        synchronized (this) {
+            Set<String> types = mTypesByOp.get(op);
+            startWatching = types == null;
+            if (startWatching) {
+                types = new ArraySet<>();
+                mTypesByOp.put(op, types);
+            }
+            types.add(type);
+        }
+        if (startWatching && mContext != null) {
+            mContext.getSystemService(AppOpsManager.class).startWatchingMode(op, null,
+                    (opName, packageName) -> onOpChanged(op, packageName));
+        }
+    }
+
+    /**
+     * @return the version to pass to {@link #put} for values loaded from now on.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the cached extra info, possibly null, or {@link #NOT_CACHED}.
+     */
+    public synchronized Object get(String type, int userId, String packageName) {
+        final SparseArray<ArrayMap<String, Object>> valuesByUser = mValues.get(type);
+        final ArrayMap<String, Object> values = valuesByUser != null
+                ? valuesByUser.get(userId) : null;
+        if (values == null) {
+            return NOT_CACHED;
+        }
+        final int index = values.indexOfKey(packageName);
+        return index >= 0 ? values.valueAt(index) : NOT_CACHED;
+    }
+
+    /**
+     * Stores the extra info, unless an entry was dropped since the version it was loaded at.
+     */
+    public synchronized void put(String type, int userId, String packageName, Object value,
+            long version) {
+        if (version != mVersion) {
+            return;
+        }
+        SparseArray<ArrayMap<String, Object>> valuesByUser = mValues.get(type);
+        if (valuesByUser == null) {
+            valuesByUser = new SparseArray<>();
+            mValues.put(type, valuesByUser);
+        }
+        ArrayMap<String, Object> values = valuesByUser.get(userId);
+        if (values == null) {
+            values = new ArrayMap<>();
+            valuesByUser.put(userId, values);
+        }
+        values.put(packageName, value);
+    }
+
+    /**
+     * Drops the entries of the package for the user, of all bridge types.
+     */
+    public synchronized void invalidate(int userId, String packageName) {
+        mVersion++;
+        for (SparseArray<ArrayMap<String, Object>> valuesByUser : mValues.values()) {
+            final ArrayMap<String, Object> values = valuesByUser.get(userId);
+            if (values != null) {
+                values.remove(packageName);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    synchronized void onOpChanged(int op, String packageName) {
+        final Set<String> types = mTypesByOp.get(op);
+        if (types == null) {
+            return;
+        }
+        mVersion++;
+        // The change doesn't tell which user it is for.
+        for (String type : types) {
+            final SparseArray<ArrayMap<String, Object>> valuesByUser = mValues.get(type);
+            if (valuesByUser == null) {
+                continue;
+            }
+            for (int i = 0; i < valuesByUser.size(); i++) {
+                valuesByUser.valueAt(i).remove(packageName);
+            }
+        }
+    }
+
+    private void registerReceiver(Context context) {
+        mContext = context;
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            final String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (!TextUtils.isEmpty(packageName)) {
+                invalidate(getSendingUserId(), packageName);
+            }
+        }
+    };
+}
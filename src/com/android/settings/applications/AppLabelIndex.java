@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Sorted index of the words of the app labels, to filter a list of apps by prefix with binary
+ * searches instead of scanning every label.
+ *
+ * An app matches a prefix when its normalized label, see
+ * {@link com.android.settingslib.applications.ApplicationsState#normalize}, starts with it or
+ * has it right after a space. The index holds the rest of the label from each of these
+ * positions. Normalized labels are case and accent folded, so the keys are ordered by their
+ * chars, which keeps the keys starting with a prefix next to each other.
+ */
+class AppLabelIndex {
+
+    private final ArrayList<AppEntry> mEntries;
+    // Rest of the normalized labels from each word, sorted.
+    private final String[] mKeys;
+    // Position in mEntries of the app of each key.
+    private final int[] mPositions;
+
+    AppLabelIndex(ArrayList<AppEntry> entries) {
+        mEntries = entries;
+        final ArrayList<Key> keys = new ArrayList<>(entries.size() * 2);
+        final int N = entries.size();
+        for (int pos = 0; pos < N; pos++) {
+            final String label = entries.get(pos).getNormalizedLabel();
+            if (label == null) {
+                continue;
+            }
+            keys.add(new Key(label, pos));
+            for (int i = label.indexOf(' '); i >= 0; i = label.indexOf(' ', i + 1)) {
+                if (i + 1 < label.length()) {
+                    keys.add(new Key(label.substring(i + 1), pos));
+                }
+            }
+        }
+        final Key[] sorted = keys.toArray(new Key[keys.size()]);
+        Arrays.sort(sorted, (lhs, rhs) -> lhs.key.compareTo(rhs.key));
+        mKeys = new String[sorted.length];
+        mPositions = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            mKeys[i] = sorted[i].key;
+            mPositions[i] = sorted[i].position;
+        }
+    }
+
+    /**
+     * @return the entries the index was built for.
+     */
+    ArrayList<AppEntry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return the entries matching the normalized prefix, in the order of the indexed entries.
+     */
+    ArrayList<AppEntry> filter(String prefix) {
+        final int start = lowerBound(prefix);
+        // All keys from start on are not less than the prefix, those starting with it come first.
+        int lo = start;
+        int hi = mKeys.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mKeys[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        final int[] positions = Arrays.copyOfRange(mPositions, start, lo);
+        Arrays.sort(positions);
+        final ArrayList<AppEntry> result = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            // An app matches once even if several of its words do.
+            if (i == 0 || positions[i] != positions[i - 1]) {
+                result.add(mEntries.get(positions[i]));
+            }
+        }
+        return result;
+    }
+
+    private int lowerBound(String prefix) {
+        int lo = 0;
+        int hi = mKeys.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mKeys[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static class Key {
+        final String key;
+        final int position;
+
+        Key(String key, int position) {
+            this.key = key;
+            this.position = position;
+        }
+    }
+}
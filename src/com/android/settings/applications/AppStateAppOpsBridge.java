@@ -32,6 +32,7 @@ import android.util.SparseArray;
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -54,10 +55,16 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
     private final int[] mAppOpsOpCodes;
     private final String[] mPermissions;
 
+    // What the last loadAllExtraInfo fetched in bulk, by the first batch needing it. Kept
+    // after the call, since its batches are still loading then. Guarded by this.
+    private LoadState mLoadState;
+    private boolean mLoadStateFetched;
+
     public AppStateAppOpsBridge(Context context, ApplicationsState appState, Callback callback,
             int appOpsOpCode, String[] permissions) {
         this(context, appState, callback, appOpsOpCode, permissions,
             new IPackageManagerWrapperImpl(AppGlobals.getPackageManager()));
+        useExtraInfoCache(AppExtraInfoCache.getInstance(context), appOpsOpCode);
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -131,21 +138,124 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
 
     @Override
     protected void loadAllExtraInfo() {
-        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries();
-
-        // Load state info.
-        loadPermissionsStates(entries);
-        loadAppOpsStates(entries);
+        // The packages requesting the permission, the ones holding it and the app ops are
+        // fetched in bulk, once per user, and only if some app isn't cached. Only the
+        // availability of each package is checked per app, in parallel batches.
+        synchronized (this) {
+            mLoadState = null;
+            mLoadStateFetched = false;
+        }
+        loadAllExtraInfoInBatches(mContext, mAppSession.getAllApps());
+    }
 
-        // Map states to application info.
-        List<AppEntry> apps = mAppSession.getAllApps();
+    @Override
+    protected List<Object> loadExtraInfoBatch(int userId, List<AppEntry> apps) {
+        final LoadState loadState = getLoadStateForBatch();
+        final ArrayMap<String, PackageInfo> grantedPackages = loadState != null
+                ? loadState.grantedPackages.get(userId) : null;
+        final ArrayMap<String, Integer> appOpModes = loadState != null
+                ? loadState.appOpModes.get(userId) : null;
         final int N = apps.size();
+        final List<Object> extraInfos = new ArrayList<>(N);
         for (int i = 0; i < N; i++) {
             AppEntry app = apps.get(i);
-            int userId = UserHandle.getUserId(app.info.uid);
-            ArrayMap<String, PermissionState> userMap = entries.get(userId);
-            app.extraInfo = userMap != null ? userMap.get(app.info.packageName) : null;
+            extraInfos.add(grantedPackages != null
+                    ? getPermissionState(loadState, grantedPackages, appOpModes,
+                            app.info.packageName, userId)
+                    : null);
+        }
+        return extraInfos;
+    }
+
+    private PermissionState getPermissionState(LoadState loadState,
+            ArrayMap<String, PackageInfo> grantedPackages, ArrayMap<String, Integer> appOpModes,
+            String packageName, int userId) {
+        if (!loadState.requestedPackages.contains(packageName)
+                || shouldIgnorePackage(packageName)) {
+            return null;
+        }
+        try {
+            if (!mIPackageManager.isPackageAvailable(packageName, userId)) {
+                return null;
+            }
+        } catch (RemoteException e) {
+            Log.w(TAG, "PackageManager is dead. Can't get availability of " + packageName, e);
+            return null;
+        }
+        final PermissionState state = new PermissionState(packageName, UserHandle.of(userId));
+        final PackageInfo packageInfo = grantedPackages.get(packageName);
+        if (packageInfo != null) {
+            state.packageInfo = packageInfo;
+            state.staticPermissionGranted = true;
+        }
+        final Integer appOpMode = appOpModes != null ? appOpModes.get(packageName) : null;
+        if (appOpMode != null) {
+            state.appOpMode = appOpMode;
+        }
+        return state;
+    }
+
+    private synchronized LoadState getLoadStateForBatch() {
+        if (!mLoadStateFetched) {
+            mLoadState = getLoadState();
+            mLoadStateFetched = true;
+        }
+        return mLoadState;
+    }
+
+    /*
+     * Fetches what is needed to build the PermissionState of every package, or returns null if
+     * no package requests the permission.
+     */
+    private LoadState getLoadState() {
+        final LoadState loadState = new LoadState();
+        try {
+            for (String permission : mPermissions) {
+                String[] pkgs = mIPackageManager.getAppOpPermissionPackages(permission);
+                if (pkgs != null) {
+                    loadState.requestedPackages.addAll(Arrays.asList(pkgs));
+                }
+            }
+            if (loadState.requestedPackages.isEmpty()) {
+                return null;
+            }
+
+            for (final UserHandle profile : mProfiles) {
+                final int profileId = profile.getIdentifier();
+                final ArrayMap<String, PackageInfo> grantedPackages = new ArrayMap<>();
+                loadState.grantedPackages.put(profileId, grantedPackages);
+                @SuppressWarnings("unchecked")
+                final List<PackageInfo> packageInfos = mIPackageManager
+                        .getPackagesHoldingPermissions(mPermissions, 0, profileId).getList();
+                final int packageInfoCount = packageInfos != null ? packageInfos.size() : 0;
+                for (int i = 0; i < packageInfoCount; i++) {
+                    final PackageInfo packageInfo = packageInfos.get(i);
+                    grantedPackages.put(packageInfo.packageName, packageInfo);
+                }
+            }
+        } catch (RemoteException e) {
+            Log.w(TAG, "PackageManager is dead. Can't get list of packages requesting "
+                    + mPermissions[0], e);
+            return null;
+        }
+
+        final List<AppOpsManager.PackageOps> packageOps = mAppOpsManager.getPackagesForOps(
+                mAppOpsOpCodes);
+        final int packageOpsCount = packageOps != null ? packageOps.size() : 0;
+        for (int i = 0; i < packageOpsCount; i++) {
+            final AppOpsManager.PackageOps packageOp = packageOps.get(i);
+            final int userId = UserHandle.getUserId(packageOp.getUid());
+            if (!isThisUserAProfileOfCurrentUser(userId) || packageOp.getOps().size() < 1) {
+                continue;
+            }
+            ArrayMap<String, Integer> appOpModes = loadState.appOpModes.get(userId);
+            if (appOpModes == null) {
+                appOpModes = new ArrayMap<>();
+                loadState.appOpModes.put(userId, appOpModes);
+            }
+            appOpModes.put(packageOp.getPackageName(), packageOp.getOps().get(0).getMode());
         }
+        return loadState;
     }
 
     /*
@@ -304,6 +414,18 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         return result;
     }
 
+    /*
+     * Permission state of all packages, fetched once per load of the extra info. It isn't
+     * modified once the batches start, so they can read it in parallel.
+     */
+    private static class LoadState {
+        final Set<String> requestedPackages = new HashSet<>();
+        // Packages holding the permission, by user.
+        final SparseArray<ArrayMap<String, PackageInfo>> grantedPackages = new SparseArray<>();
+        // App op mode of the packages, by user.
+        final SparseArray<ArrayMap<String, Integer>> appOpModes = new SparseArray<>();
+    }
+
     public static class PermissionState {
         public final String packageName;
         public final UserHandle userHandle;
@@ -15,27 +15,60 @@
  */
 package com.android.settings.applications;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.annotation.VisibleForTesting;
+import android.util.SparseArray;
 
+import com.android.settings.overlay.FeatureFactory;
+import com.android.settings.utils.BackgroundExecutors;
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.Session;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Common base class for bridging information to ApplicationsState.
  */
 public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks {
 
+    /**
+     * Histogram of the time to load the extra info of all apps.
+     */
+    private static final String METRICS_EXTRA_INFO_LOAD_TIME = "app_extra_info_load_time";
+
+    @VisibleForTesting
+    static final int BATCH_SIZE = 32;
+
+    private static final int LOAD_THREAD_COUNT =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // Shared by all bridges, the threads go away when no screen is loading.
+    private static final Executor LOAD_EXECUTOR =
+            BackgroundExecutors.newFixedThreadPool("AppExtraInfoLoader", LOAD_THREAD_COUNT);
+
     protected final ApplicationsState mAppState;
     protected final Session mAppSession;
     protected final Callback mCallback;
     protected final BackgroundHandler mHandler;
     protected final MainHandler mMainHandler;
 
+    @VisibleForTesting
+    Executor mLoadExecutor = LOAD_EXECUTOR;
+
+    private AppExtraInfoCache mExtraInfoCache;
+    private String mExtraInfoCacheType;
+
+    private final AtomicInteger mLoadGeneration = new AtomicInteger();
+
     public AppStateBaseBridge(ApplicationsState appState, Callback callback) {
         mAppState = appState;
         mAppSession = mAppState != null ? mAppState.newSession(this) : null;
@@ -108,6 +141,137 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     protected abstract void loadAllExtraInfo();
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
+    /**
+     * Keeps the extra info loaded by {@link #loadAllExtraInfoInBatches} in the shared cache, so
+     * it is loaded again only for the packages changed since. Only for bridges whose info
+     * changes with nothing but its package and the given app ops.
+     */
+    protected void useExtraInfoCache(AppExtraInfoCache cache, int... ops) {
+        mExtraInfoCache = cache;
+        mExtraInfoCacheType = getClass().getName();
+        for (int op : ops) {
+            cache.watchOp(mExtraInfoCacheType, op);
+        }
+    }
+
+    /**
+     * Returns the extra info of one app, without setting it, for {@link #loadExtraInfoBatch}.
+     * Bridges using {@link #loadAllExtraInfoInBatches} override this or the batch.
+     */
+    protected Object loadExtraInfo(AppEntry app) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " must override loadExtraInfo() or loadExtraInfoBatch()");
+    }
+
+    /**
+     * Returns the extra info of a batch of apps of the same user, in the order of the apps,
+     * without setting it. Batches are loaded in parallel, so this must be safe to call from
+     * several threads at once. By default the info of each app is loaded with
+     * {@link #loadExtraInfo}.
+     */
+    protected List<Object> loadExtraInfoBatch(int userId, List<AppEntry> apps) {
+        final int N = apps.size();
+        final List<Object> extraInfos = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            extraInfos.add(loadExtraInfo(apps.get(i)));
+        }
+        return extraInfos;
+    }
+
+    /**
+     * Bulk alternative to loading the extra info of the apps one after the other, for use from
+     * {@link #loadAllExtraInfo}. The apps are split by user into batches of {@link #BATCH_SIZE}
+     * that are loaded with {@link #loadExtraInfoBatch} on a bounded pool of threads, and this
+     * returns without waiting for them. The info of each batch is set on the main thread as
+     * soon as it is loaded, and then published to the callback. Apps whose info is cached are
+     * not loaded again.
+     */
+    protected void loadAllExtraInfoInBatches(Context context, List<AppEntry> apps) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final long cacheVersion = mExtraInfoCache != null ? mExtraInfoCache.getVersion() : 0;
+        // Batches of an earlier load still running are not published over this one.
+        final int generation = mLoadGeneration.incrementAndGet();
+        final List<AppEntry> cachedApps = new ArrayList<>();
+        final List<Object> cachedExtraInfos = new ArrayList<>();
+        final SparseArray<List<AppEntry>> appsByUser = new SparseArray<>();
+        final int N = apps.size();
+        for (int i = 0; i < N; i++) {
+            AppEntry app = apps.get(i);
+            final int userId = UserHandle.getUserId(app.info.uid);
+            if (mExtraInfoCache != null) {
+                final Object extraInfo = mExtraInfoCache.get(mExtraInfoCacheType, userId,
+                        app.info.packageName);
+                if (extraInfo != AppExtraInfoCache.NOT_CACHED) {
+                    cachedApps.add(app);
+                    cachedExtraInfos.add(extraInfo);
+                    continue;
+                }
+            }
+            List<AppEntry> userApps = appsByUser.get(userId);
+            if (userApps == null) {
+                userApps = new ArrayList<>();
+                appsByUser.put(userId, userApps);
+            }
+            userApps.add(app);
+        }
+
+        if (!cachedApps.isEmpty()) {
+            mMainHandler.post(() -> publishExtraInfo(generation, cachedApps, cachedExtraInfos));
+        }
+
+        final List<Runnable> batches = new ArrayList<>();
+        final AtomicInteger remainingBatches = new AtomicInteger();
+        for (int i = 0; i < appsByUser.size(); i++) {
+            final int userId = appsByUser.keyAt(i);
+            final List<AppEntry> userApps = appsByUser.valueAt(i);
+            for (int start = 0; start < userApps.size(); start += BATCH_SIZE) {
+                final List<AppEntry> batch =
+                        userApps.subList(start, Math.min(start + BATCH_SIZE, userApps.size()));
+                batches.add(() -> {
+                    final List<Object> extraInfos = loadExtraInfoBatch(userId, batch);
+                    for (int j = 0; j < batch.size(); j++) {
+                        cacheExtraInfo(batch.get(j), extraInfos.get(j), cacheVersion);
+                    }
+                    mMainHandler.post(() -> publishExtraInfo(generation, batch, extraInfos));
+                    if (remainingBatches.decrementAndGet() == 0) {
+                        logLoadTime(context, startTime);
+                    }
+                });
+            }
+        }
+        if (batches.isEmpty()) {
+            logLoadTime(context, startTime);
+            return;
+        }
+        remainingBatches.set(batches.size());
+        for (Runnable batch : batches) {
+            mLoadExecutor.execute(batch);
+        }
+    }
+
+    private void publishExtraInfo(int generation, List<AppEntry> apps, List<Object> extraInfos) {
+        if (generation != mLoadGeneration.get()) {
+            return;
+        }
+        final int N = apps.size();
+        for (int i = 0; i < N; i++) {
+            apps.get(i).extraInfo = extraInfos.get(i);
+        }
+        mCallback.onExtraInfoUpdated();
+    }
+
+    private static void logLoadTime(Context context, long startTime) {
+        FeatureFactory.getFactory(context).getMetricsFeatureProvider().histogram(context,
+                METRICS_EXTRA_INFO_LOAD_TIME, (int) (SystemClock.elapsedRealtime() - startTime));
+    }
+
+    private void cacheExtraInfo(AppEntry app, Object extraInfo, long cacheVersion) {
+        if (mExtraInfoCache != null) {
+            mExtraInfoCache.put(mExtraInfoCacheType, UserHandle.getUserId(app.info.uid),
+                    app.info.packageName, extraInfo, cacheVersion);
+        }
+    }
+
     private class MainHandler extends Handler {
         private static final int MSG_INFO_UPDATED = 1;
 
@@ -141,10 +305,17 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
                     final int N = apps.size();
                     String pkg = (String) msg.obj;
                     int uid = msg.arg1;
+                    long cacheVersion = 0;
+                    if (mExtraInfoCache != null) {
+                        // The package was changed in a way the cache may not have heard of.
+                        mExtraInfoCache.invalidate(UserHandle.getUserId(uid), pkg);
+                        cacheVersion = mExtraInfoCache.getVersion();
+                    }
                     for (int i = 0; i < N; i++) {
                         AppEntry app = apps.get(i);
                         if (app.info.uid == uid && pkg.equals(app.info.packageName)) {
                             updateExtraInfo(app, pkg, uid);
+                            cacheExtraInfo(app, app.extraInfo, cacheVersion);
                         }
                     }
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
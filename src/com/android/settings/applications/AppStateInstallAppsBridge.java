@@ -30,8 +30,6 @@ import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
-import java.util.List;
-
 /**
  * Connects app op info to the ApplicationsState. Wraps around the generic AppStateBaseBridge
  * class to tailor to the semantics of {@link AppOpsManager#OP_REQUEST_INSTALL_PACKAGES}
@@ -41,14 +39,18 @@ public class AppStateInstallAppsBridge extends AppStateBaseBridge {
 
     private static final String TAG = AppStateInstallAppsBridge.class.getSimpleName();
 
+    private final Context mContext;
     private final IPackageManager mIpm;
     private final AppOpsManager mAppOpsManager;
 
     public AppStateInstallAppsBridge(Context context, ApplicationsState appState,
             Callback callback) {
         super(appState, callback);
+        mContext = context;
         mIpm = AppGlobals.getPackageManager();
         mAppOpsManager = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        useExtraInfoCache(AppExtraInfoCache.getInstance(context),
+                AppOpsManager.OP_REQUEST_INSTALL_PACKAGES);
     }
 
     @Override
@@ -56,14 +58,14 @@ public class AppStateInstallAppsBridge extends AppStateBaseBridge {
         app.extraInfo = createInstallAppsStateFor(packageName, uid);
     }
 
+    @Override
+    protected Object loadExtraInfo(AppEntry app) {
+        return createInstallAppsStateFor(app.info.packageName, app.info.uid);
+    }
+
     @Override
     protected void loadAllExtraInfo() {
-        // TODO: consider making this a batch operation with a single binder call
-        final List<AppEntry> allApps = mAppSession.getAllApps();
-        for (int i = 0; i < allApps.size(); i++) {
-            AppEntry currentEntry = allApps.get(i);
-            updateExtraInfo(currentEntry, currentEntry.info.packageName, currentEntry.info.uid);
-        }
+        loadAllExtraInfoInBatches(mContext, mAppSession.getAllApps());
     }
 
     private boolean hasRequestedAppOpPermission(String permission, String packageName) {
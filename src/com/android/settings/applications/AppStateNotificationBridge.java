@@ -29,8 +29,6 @@ import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
-import java.util.ArrayList;
-
 /**
  * Connects the info provided by ApplicationsState and the NotificationBackend.
  * Also provides app filters that can use the notification data.
@@ -51,17 +49,18 @@ public class AppStateNotificationBridge extends AppStateBaseBridge {
 
     @Override
     protected void loadAllExtraInfo() {
-        ArrayList<AppEntry> apps = mAppSession.getAllApps();
-        final int N = apps.size();
-        for (int i = 0; i < N; i++) {
-            AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
-        }
+        // Each app row takes several binder calls, load them in parallel.
+        loadAllExtraInfoInBatches(mContext, mAppSession.getAllApps());
     }
 
     @Override
     protected void updateExtraInfo(AppEntry app, String pkg, int uid) {
-        app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
+        app.extraInfo = loadExtraInfo(app);
+    }
+
+    @Override
+    protected Object loadExtraInfo(AppEntry app) {
+        return mNotifBackend.loadAppRow(mContext, mPm, app.info);
     }
 
     public static final AppFilter FILTER_APP_NOTIFICATION_BLOCKED = new AppFilter() {
@@ -95,6 +95,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
 
@@ -908,8 +910,20 @@ public class ManageApplications extends InstrumentedPreferenceFragment
         private int mLastTop;
 
         private AlphabeticIndex.ImmutableIndex<Locale> mIndex;
+        // Locales mIndex was built for.
+        private LocaleList mIndexLocales;
         private SectionInfo[] mSections = EMPTY_SECTIONS;
         private int[] mPositionToSectionIndex;
+        // Bucket of mIndex of each label shown, kept across rebuilds of the sections. Cleared
+        // with mIndex when the locales change, and pruned once labels of apps no longer listed
+        // outnumber the apps.
+        private final HashMap<String, Integer> mBucketIndexByLabel = new HashMap<>();
+
+        // Label index of the last filtered base entries, used from the filter thread too.
+        private volatile AppLabelIndex mLabelIndex;
+        // Latest rebuild requested, and the one whose entries are shown.
+        private int mRebuildGeneration;
+        private int mShownGeneration;
 
         private Filter mFilter = new Filter() {
             @Override
@@ -1027,7 +1041,19 @@ public class ManageApplications extends InstrumentedPreferenceFragment
                 return;
             }
             mLastSortMode = sort;
-            rebuild(true);
+            if (mBaseEntries == null || mShownGeneration != mRebuildGeneration) {
+                rebuild(true);
+                return;
+            }
+            // Only the order changes, sort the shown entries again instead of filtering all the
+            // apps again.
+            final int generation = ++mRebuildGeneration;
+            final ArrayList<AppEntry> entries = new ArrayList<>(mBaseEntries);
+            final Comparator<AppEntry> comparatorObj = getComparator();
+            mBgHandler.post(() -> {
+                Collections.sort(entries, comparatorObj);
+                mFgHandler.post(() -> onRebuildComplete(entries, generation));
+            });
         }
 
         public void rebuild(boolean eraseold) {
@@ -1037,7 +1063,6 @@ public class ManageApplications extends InstrumentedPreferenceFragment
                 return;
             }
             ApplicationsState.AppFilter filterObj;
-            Comparator<AppEntry> comparatorObj;
             boolean emulated = Environment.isExternalStorageEmulated();
             if (emulated) {
                 mWhichSize = SIZE_TOTAL;
@@ -1057,34 +1082,43 @@ public class ManageApplications extends InstrumentedPreferenceFragment
                             ApplicationsState.FILTER_DOWNLOADED_AND_LAUNCHER);
                 }
             }
+            final Comparator<AppEntry> comparatorObj = getComparator();
+
+            filterObj = new CompoundFilter(filterObj, ApplicationsState.FILTER_NOT_HIDE);
+            AppFilter finalFilterObj = filterObj;
+            final int generation = ++mRebuildGeneration;
+            mBgHandler.post(() -> {
+                final ArrayList<AppEntry> entries = mSession.rebuild(finalFilterObj,
+                        comparatorObj, false);
+                if (entries != null) {
+                    mFgHandler.post(() -> onRebuildComplete(entries, generation));
+                }
+            });
+        }
+
+        private Comparator<AppEntry> getComparator() {
             switch (mLastSortMode) {
                 case R.id.sort_order_size:
                     switch (mWhichSize) {
                         case SIZE_INTERNAL:
-                            comparatorObj = ApplicationsState.INTERNAL_SIZE_COMPARATOR;
-                            break;
+                            return ApplicationsState.INTERNAL_SIZE_COMPARATOR;
                         case SIZE_EXTERNAL:
-                            comparatorObj = ApplicationsState.EXTERNAL_SIZE_COMPARATOR;
-                            break;
+                            return ApplicationsState.EXTERNAL_SIZE_COMPARATOR;
                         default:
-                            comparatorObj = ApplicationsState.SIZE_COMPARATOR;
-                            break;
+                            return ApplicationsState.SIZE_COMPARATOR;
                     }
-                    break;
                 default:
-                    comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
-                    break;
+                    return ApplicationsState.ALPHA_COMPARATOR;
             }
+        }
 
-            filterObj = new CompoundFilter(filterObj, ApplicationsState.FILTER_NOT_HIDE);
-            AppFilter finalFilterObj = filterObj;
-            mBgHandler.post(() -> {
-                final ArrayList<AppEntry> entries = mSession.rebuild(finalFilterObj,
-                        comparatorObj, false);
-                if (entries != null) {
-                    mFgHandler.post(() -> onRebuildComplete(entries));
-                }
-            });
+        private void onRebuildComplete(ArrayList<AppEntry> entries, int generation) {
+            if (generation != mRebuildGeneration) {
+                // A newer rebuild is on its way.
+                return;
+            }
+            mShownGeneration = generation;
+            setBaseEntries(entries);
         }
 
 
@@ -1121,6 +1155,12 @@ public class ManageApplications extends InstrumentedPreferenceFragment
 
         @Override
         public void onRebuildComplete(ArrayList<AppEntry> entries) {
+            // Newer than any rebuild still on its way, which must not replace these entries.
+            mShownGeneration = ++mRebuildGeneration;
+            setBaseEntries(entries);
+        }
+
+        private void setBaseEntries(ArrayList<AppEntry> entries) {
             if (mFilterMode == FILTER_APPS_POWER_WHITELIST ||
                     mFilterMode == FILTER_APPS_POWER_WHITELIST_ALL) {
                 entries = removeDuplicateIgnoringUser(entries);
@@ -1159,11 +1199,16 @@ public class ManageApplications extends InstrumentedPreferenceFragment
         private void rebuildSections() {
             if (mEntries != null && mManageApplications.mListView.isFastScrollEnabled()) {
                 // Rebuild sections
+                LocaleList locales = mContext.getResources().getConfiguration().getLocales();
+                if (locales.size() == 0) {
+                    locales = new LocaleList(Locale.ENGLISH);
+                }
+                if (mIndex != null && !locales.equals(mIndexLocales)) {
+                    mIndex = null;
+                    mBucketIndexByLabel.clear();
+                }
                 if (mIndex == null) {
-                    LocaleList locales = mContext.getResources().getConfiguration().getLocales();
-                    if (locales.size() == 0) {
-                        locales = new LocaleList(Locale.ENGLISH);
-                    }
+                    mIndexLocales = locales;
                     AlphabeticIndex<Locale> index = new AlphabeticIndex<>(locales.get(0));
                     int localeCount = locales.size();
                     for (int i = 1; i < localeCount; i++) {
@@ -1181,7 +1226,7 @@ public class ManageApplications extends InstrumentedPreferenceFragment
 
                 for (int pos = 0; pos < totalEntries; pos++) {
                     String label = mEntries.get(pos).label;
-                    int secId = mIndex.getBucketIndex(TextUtils.isEmpty(label) ? "" : label);
+                    int secId = getBucketIndex(TextUtils.isEmpty(label) ? "" : label);
                     if (secId != lastSecId) {
                         lastSecId = secId;
                         sections.add(new SectionInfo(mIndex.getBucket(secId).getLabel(), pos));
@@ -1189,12 +1234,34 @@ public class ManageApplications extends InstrumentedPreferenceFragment
                     mPositionToSectionIndex[pos] = sections.size() - 1;
                 }
                 mSections = sections.toArray(EMPTY_SECTIONS);
+                pruneBucketIndexes();
             } else {
                 mSections = EMPTY_SECTIONS;
                 mPositionToSectionIndex = null;
             }
         }
 
+        private void pruneBucketIndexes() {
+            if (mBaseEntries == null || mBucketIndexByLabel.size() <= mBaseEntries.size()) {
+                return;
+            }
+            final HashSet<String> labels = new HashSet<>();
+            for (int i = 0; i < mBaseEntries.size(); i++) {
+                final String label = mBaseEntries.get(i).label;
+                labels.add(TextUtils.isEmpty(label) ? "" : label);
+            }
+            mBucketIndexByLabel.keySet().retainAll(labels);
+        }
+
+        private int getBucketIndex(String label) {
+            Integer bucketIndex = mBucketIndexByLabel.get(label);
+            if (bucketIndex == null) {
+                bucketIndex = mIndex.getBucketIndex(label);
+                mBucketIndexByLabel.put(label, bucketIndex);
+            }
+            return bucketIndex;
+        }
+
         @VisibleForTesting
         void updateLoading() {
             final boolean appLoaded = mHasReceivedLoadEntries && mSession.getAllApps().size() != 0;
@@ -1210,18 +1277,14 @@ public class ManageApplications extends InstrumentedPreferenceFragment
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
             } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i = 0; i < origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
+                // The index is built once per list of entries, every character typed is then
+                // a binary search.
+                AppLabelIndex index = mLabelIndex;
+                if (index == null || index.getEntries() != origEntries) {
+                    index = new AppLabelIndex(origEntries);
+                    mLabelIndex = index;
                 }
-                return newEntries;
+                return index.filter(ApplicationsState.normalize(prefix.toString()));
             }
         }
 
@@ -23,9 +23,11 @@ import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.SparseArray;
 
 import com.android.internal.app.ProcessMap;
@@ -46,21 +48,35 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
+/**
+ * Loads the process stats over a duration and aggregates them into the memory use of the device
+ * and of each package.
+ *
+ * The aggregates of each duration are kept once loaded, switching back to a duration reuses them
+ * instead of loading the stats again. The per package entries are only computed when asked for,
+ * after which the stats themselves are dropped: only the stats of a duration whose entries were
+ * not needed yet are held on to.
+ */
 public class ProcStatsData {
 
     private static final String TAG = "ProcStatsManager";
 
     private static final boolean DEBUG = ProcessStatsUi.DEBUG;
 
-    private static ProcessStats sStatsXfer;
+    private static LongSparseArray<DurationStats> sStatsXfer;
 
     private PackageManager mPm;
     private Context mContext;
     private long memTotalTime;
 
     private IProcessStats mProcessStats;
+    // Only set while computing the entries.
     private ProcessStats mStats;
 
+    // The aggregates of each duration loaded, and of the current one.
+    private LongSparseArray<DurationStats> mDurationStats = new LongSparseArray<>();
+    private DurationStats mCurStats;
+
     private boolean mUseUss;
     private long mDuration;
 
@@ -68,8 +84,7 @@ public class ProcStatsData {
 
     private int[] mStates;
 
-    private MemInfo mMemInfo;
-
+    // Only set while computing the entries.
     private ArrayList<ProcStatsPackageEntry> pkgEntries;
 
     public ProcStatsData(Context context, boolean useXfer) {
@@ -79,8 +94,9 @@ public class ProcStatsData {
                 ServiceManager.getService(ProcessStats.SERVICE_NAME));
         mMemStates = ProcessStats.ALL_MEM_ADJ;
         mStates = ProcessStats.BACKGROUND_PROC_STATES;
-        if (useXfer) {
-            mStats = sStatsXfer;
+        if (useXfer && sStatsXfer != null) {
+            mDurationStats = copyDurationStats(sStatsXfer);
+            sStatsXfer = null;
         }
     }
 
@@ -89,21 +105,24 @@ public class ProcStatsData {
     }
 
     public void xferStats() {
-        sStatsXfer = mStats;
+        // Copied, this instance keeps using its own aggregates until it goes away.
+        sStatsXfer = copyDurationStats(mDurationStats);
     }
 
     public void setMemStates(int[] memStates) {
         mMemStates = memStates;
+        clearDurationStats();
         refreshStats(false);
     }
 
     public void setStats(int[] stats) {
         this.mStates = stats;
+        clearDurationStats();
         refreshStats(false);
     }
 
     public int getMemState() {
-        int factor = mStats.mMemFactor;
+        int factor = mCurStats.memFactor;
         if (factor == ProcessStats.ADJ_NOTHING) {
             return ProcessStats.ADJ_MEM_FACTOR_NORMAL;
         }
@@ -114,17 +133,18 @@ public class ProcStatsData {
     }
 
     public MemInfo getMemInfo() {
-        return mMemInfo;
+        return mCurStats.memInfo;
     }
 
     public long getElapsedTime() {
-        return mStats.mTimePeriodEndRealtime - mStats.mTimePeriodStartRealtime;
+        return mCurStats.elapsedTime;
     }
 
     public void setDuration(long duration) {
         if (duration != mDuration) {
             mDuration = duration;
-            refreshStats(true);
+            mCurStats = mDurationStats.get(duration);
+            refreshStats(false);
         }
     }
 
@@ -133,40 +153,66 @@ public class ProcStatsData {
     }
 
     public List<ProcStatsPackageEntry> getEntries() {
-        return pkgEntries;
+        if (mCurStats.entries == null) {
+            computeEntries(mCurStats);
+        }
+        return mCurStats.entries;
     }
 
+    /**
+     * Loads the stats of the current duration, unless they were loaded already.
+     *
+     * @param forceLoad whether to load the stats again even if they were loaded already.
+     */
     public void refreshStats(boolean forceLoad) {
-        if (mStats == null || forceLoad) {
-            load();
+        if (mCurStats == null || forceLoad) {
+            mCurStats = load();
+            mDurationStats.put(mDuration, mCurStats);
         }
+    }
 
-        pkgEntries = new ArrayList<>();
-
-        long now = SystemClock.uptimeMillis();
-
-        memTotalTime = DumpUtils.dumpSingleTime(null, null, mStats.mMemFactorDurations,
-                mStats.mMemFactor, mStats.mStartTime, now);
+    private void clearDurationStats() {
+        mDurationStats.clear();
+        mCurStats = null;
+    }
 
-        ProcessStats.TotalMemoryUseCollection totalMem = new ProcessStats.TotalMemoryUseCollection(
-                ProcessStats.ALL_SCREEN_ADJ, mMemStates);
-        mStats.computeTotalMemoryUse(totalMem, now);
+    /**
+     * @return a copy of the aggregates, so two instances never update the same ones.
+     */
+    private static LongSparseArray<DurationStats> copyDurationStats(
+            LongSparseArray<DurationStats> durationStats) {
+        final LongSparseArray<DurationStats> copy = new LongSparseArray<>(durationStats.size());
+        for (int i = 0; i < durationStats.size(); i++) {
+            copy.put(durationStats.keyAt(i), new DurationStats(durationStats.valueAt(i)));
+        }
+        return copy;
+    }
 
-        mMemInfo = new MemInfo(mContext, totalMem, memTotalTime);
+    private void computeEntries(DurationStats durationStats) {
+        mStats = durationStats.stats;
+        memTotalTime = durationStats.memTotalTime;
+        pkgEntries = new ArrayList<>();
 
         ProcessDataCollection bgTotals = new ProcessDataCollection(
                 ProcessStats.ALL_SCREEN_ADJ, mMemStates, mStates);
         ProcessDataCollection runTotals = new ProcessDataCollection(
                 ProcessStats.ALL_SCREEN_ADJ, mMemStates, ProcessStats.NON_CACHED_PROC_STATES);
 
+        TotalMemoryUseCollection totalMem = durationStats.totalMem;
         createPkgMap(getProcs(bgTotals, runTotals), bgTotals, runTotals);
         if (totalMem.sysMemZRamWeight > 0 && !totalMem.hasSwappedOutPss) {
             distributeZRam(totalMem.sysMemZRamWeight);
         }
 
         ProcStatsPackageEntry osPkg = createOsEntry(bgTotals, runTotals, totalMem,
-                mMemInfo.baseCacheRam);
+                durationStats.memInfo.baseCacheRam);
         pkgEntries.add(osPkg);
+
+        durationStats.entries = pkgEntries;
+        // The entries hold all there is to show of the stats, don't keep them around.
+        durationStats.stats = null;
+        mStats = null;
+        pkgEntries = null;
     }
 
     private void createPkgMap(ArrayList<ProcStatsEntry> procEntries, ProcessDataCollection bgTotals,
@@ -340,22 +386,79 @@ public class ProcStatsData {
         return procEntries;
     }
 
-    private void load() {
+    @VisibleForTesting
+    DurationStats load() {
+        ProcessStats stats = new ProcessStats(false);
         try {
             ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
+            stats.read(is);
             try {
                 is.close();
             } catch (IOException e) {
             }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
             }
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException:", e);
         }
+
+        DurationStats durationStats = new DurationStats();
+        durationStats.stats = stats;
+        durationStats.memFactor = stats.mMemFactor;
+        durationStats.elapsedTime = stats.mTimePeriodEndRealtime - stats.mTimePeriodStartRealtime;
+
+        long now = SystemClock.uptimeMillis();
+
+        durationStats.memTotalTime = DumpUtils.dumpSingleTime(null, null,
+                stats.mMemFactorDurations, stats.mMemFactor, stats.mStartTime, now);
+
+        durationStats.totalMem = new ProcessStats.TotalMemoryUseCollection(
+                ProcessStats.ALL_SCREEN_ADJ, mMemStates);
+        stats.computeTotalMemoryUse(durationStats.totalMem, now);
+
+        durationStats.memInfo = new MemInfo(mContext, durationStats.totalMem,
+                durationStats.memTotalTime);
+        return durationStats;
+    }
+
+    /**
+     * The aggregates of the stats over a duration.
+     */
+    @VisibleForTesting
+    static class DurationStats {
+        // The stats, until the entries are computed from them.
+        ProcessStats stats;
+        int memFactor;
+        long elapsedTime;
+        long memTotalTime;
+        TotalMemoryUseCollection totalMem;
+        MemInfo memInfo;
+        // The entries of the packages, computed when first asked for.
+        ArrayList<ProcStatsPackageEntry> entries;
+
+        DurationStats() {
+        }
+
+        /**
+         * Copies the stats. The entries are copied too, as they are updated and sorted in place
+         * by the UI. The process stats and memory totals are only read, so they are shared.
+         */
+        DurationStats(DurationStats other) {
+            stats = other.stats;
+            memFactor = other.memFactor;
+            elapsedTime = other.elapsedTime;
+            memTotalTime = other.memTotalTime;
+            totalMem = other.totalMem;
+            memInfo = other.memInfo;
+            if (other.entries != null) {
+                entries = new ArrayList<>(other.entries.size());
+                for (int i = 0; i < other.entries.size(); i++) {
+                    entries.add(new ProcStatsPackageEntry(other.entries.get(i)));
+                }
+            }
+        }
     }
 
     public static class MemInfo {
@@ -56,6 +56,25 @@ public class ProcStatsPackageEntry implements Parcelable {
         mWindowLength = windowLength;
     }
 
+    /**
+     * Copies the entry, with its own list of the same process entries.
+     */
+    ProcStatsPackageEntry(ProcStatsPackageEntry other) {
+        mPackage = other.mPackage;
+        mEntries.addAll(other.mEntries);
+        mBgDuration = other.mBgDuration;
+        mAvgBgMem = other.mAvgBgMem;
+        mMaxBgMem = other.mMaxBgMem;
+        mBgWeight = other.mBgWeight;
+        mRunDuration = other.mRunDuration;
+        mAvgRunMem = other.mAvgRunMem;
+        mMaxRunMem = other.mMaxRunMem;
+        mRunWeight = other.mRunWeight;
+        mUiTargetApp = other.mUiTargetApp;
+        mUiLabel = other.mUiLabel;
+        mWindowLength = other.mWindowLength;
+    }
+
     public ProcStatsPackageEntry(Parcel in) {
         mPackage = in.readString();
         in.readTypedList(mEntries, ProcStatsEntry.CREATOR);
@@ -39,6 +39,7 @@ import android.os.Message;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.support.annotation.VisibleForTesting;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
@@ -48,11 +49,13 @@ import com.android.settingslib.Utils;
 import com.android.settingslib.applications.InterestingConfigChanges;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Singleton for retrieving and monitoring the state about all running
@@ -112,6 +115,21 @@ public class RunningState {
     
     // The processes associated with services, in sorted order.
     final ArrayList<ProcessItem> mProcessItems = new ArrayList<ProcessItem>();
+
+    // The processes hosting services, sorted with mServiceProcessComparator.
+    final ArrayList<ProcessItem> mSortedProcesses = new ArrayList<ProcessItem>();
+
+    // The services and processes of the last update, organized by uid and
+    // component and by pid, to find what changed since.
+    final SparseArray<HashMap<ComponentName, ActivityManager.RunningServiceInfo>> mLastServices
+            = new SparseArray<HashMap<ComponentName, ActivityManager.RunningServiceInfo>>();
+    int mNumLastServices;
+    final SparseArray<ActivityManager.RunningAppProcessInfo> mLastProcesses
+            = new SparseArray<ActivityManager.RunningAppProcessInfo>();
+
+    // The pids and memory use of the last update.
+    int[] mLastPids;
+    long[] mLastPss;
     
     // All processes, used for retrieving memory information.
     final ArrayList<ProcessItem> mAllProcessItems = new ArrayList<ProcessItem>();
@@ -239,7 +257,7 @@ public class RunningState {
                         }
                     }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = update(mApplicationContext, mAm);
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
@@ -258,9 +276,8 @@ public class RunningState {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                    // Don't lose a bigger refresh that is still pending.
+                    mNextUpdate = Math.max(mNextUpdate, msg.arg1);
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
@@ -404,6 +421,8 @@ public class RunningState {
         boolean mIsSystem;
         boolean mIsStarted;
         long mActiveSince;
+        // Whether it is placed in mSortedProcesses by the above.
+        boolean mSorted;
         
         public ProcessItem(Context context, int uid, String processName) {
             super(true, UserHandle.getUserId(uid));
@@ -743,7 +762,12 @@ public class RunningState {
                 // services last.
                 return (object1.mActiveSince > object2.mActiveSince) ? -1 : 1;
             }
-            return 0;
+            // Ties are broken by what identifies the process, so a process
+            // placed again by binary search lands where a full sort puts it.
+            if (object1.mUid != object2.mUid) {
+                return object1.mUid < object2.mUid ? -1 : 1;
+            }
+            return object1.mProcessName.compareTo(object2.mProcessName);
         }
     }
     
@@ -862,6 +886,12 @@ public class RunningState {
         mRunningProcesses.clear();
         mProcessItems.clear();
         mAllProcessItems.clear();
+        mSortedProcesses.clear();
+        mLastServices.clear();
+        mNumLastServices = 0;
+        mLastProcesses.clear();
+        mLastPids = null;
+        mLastPss = null;
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -893,44 +923,112 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
-        final PackageManager pm = context.getPackageManager();
+    /**
+     * Diffs the services and processes against those of the last update, by
+     * service component and pid, and keeps them for the next update.
+     *
+     * @return whether a service or process was added, removed or changed in
+     * a way the items depend on.
+     */
+    @VisibleForTesting
+    boolean updateSnapshot(List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        final int NS = services != null ? services.size() : 0;
+        final int NP = processes != null ? processes.size() : 0;
+        boolean changed = NS != mNumLastServices || NP != mLastProcesses.size();
+        for (int i=0; i<NS && !changed; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            HashMap<ComponentName, ActivityManager.RunningServiceInfo> last
+                    = mLastServices.get(si.uid);
+            changed = last == null || !isSameService(last.get(si.service), si);
+        }
+        for (int i=0; i<NP && !changed; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            changed = !isSameProcess(mLastProcesses.get(pi.pid), pi);
+        }
 
-        mSequence++;
-        
-        boolean changed = false;
+        if (!changed) {
+            // Only what the items don't depend on, like the LRU position, may
+            // have changed: keep it up to date for sorting background items.
+            for (int i=0; i<NP; i++) {
+                ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+                ProcessItem proc = mServiceProcessesByPid.get(pi.pid);
+                if (proc == null) {
+                    proc = mRunningProcesses.get(pi.pid);
+                }
+                if (proc != null) {
+                    proc.mRunningProcessInfo = pi;
+                }
+            }
+            return false;
+        }
 
-        // Retrieve list of services, filtering out anything that definitely
-        // won't be shown in the UI.
-        List<ActivityManager.RunningServiceInfo> services 
-                = am.getRunningServices(MAX_SERVICES);
-        int NS = services != null ? services.size() : 0;
+        mLastServices.clear();
         for (int i=0; i<NS; i++) {
             ActivityManager.RunningServiceInfo si = services.get(i);
-            // We are not interested in services that have not been started
-            // and don't have a known client, because
-            // there is nothing the user can do about them.
-            if (!si.started && si.clientLabel == 0) {
-                services.remove(i);
-                i--;
-                NS--;
-                continue;
-            }
-            // We likewise don't care about services running in a
-            // persistent process like the system or phone.
-            if ((si.flags&ActivityManager.RunningServiceInfo.FLAG_PERSISTENT_PROCESS)
-                    != 0) {
-                services.remove(i);
-                i--;
-                NS--;
-                continue;
+            HashMap<ComponentName, ActivityManager.RunningServiceInfo> last
+                    = mLastServices.get(si.uid);
+            if (last == null) {
+                last = new HashMap<ComponentName, ActivityManager.RunningServiceInfo>();
+                mLastServices.put(si.uid, last);
             }
+            last.put(si.service, si);
         }
+        mNumLastServices = NS;
+        mLastProcesses.clear();
+        for (int i=0; i<NP; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            mLastProcesses.put(pi.pid, pi);
+        }
+        return true;
+    }
 
-        // Retrieve list of running processes, organizing them into a sparse
-        // array for easy retrieval.
-        List<ActivityManager.RunningAppProcessInfo> processes
-                = am.getRunningAppProcesses();
+    private static boolean isSameService(ActivityManager.RunningServiceInfo last,
+            ActivityManager.RunningServiceInfo si) {
+        return last != null
+                && last.pid == si.pid
+                && last.restarting == si.restarting
+                && last.started == si.started
+                && last.foreground == si.foreground
+                && last.activeSince == si.activeSince
+                && last.clientLabel == si.clientLabel
+                && last.flags == si.flags
+                && Objects.equals(last.clientPackage, si.clientPackage)
+                && Objects.equals(last.process, si.process);
+    }
+
+    private static boolean isSameProcess(ActivityManager.RunningAppProcessInfo last,
+            ActivityManager.RunningAppProcessInfo pi) {
+        return last != null
+                && last.uid == pi.uid
+                && last.importance == pi.importance
+                && last.importanceReasonPid == pi.importanceReasonPid
+                && last.importanceReasonCode == pi.importanceReasonCode
+                && last.flags == pi.flags
+                && Objects.equals(last.processName, pi.processName)
+                && Objects.equals(last.importanceReasonComponent, pi.importanceReasonComponent)
+                && Arrays.equals(last.pkgList, pi.pkgList);
+    }
+
+    /**
+     * Updates the process and service items from the services and processes,
+     * and rebuilds the items to show if anything changed.
+     *
+     * @return whether the items to show changed.
+     */
+    private boolean updateStructure(Context context,
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        final PackageManager pm = context.getPackageManager();
+
+        mSequence++;
+
+        boolean changed = false;
+
+        final int NS = services != null ? services.size() : 0;
+
+        // Organize the running processes into a sparse array for easy
+        // retrieval.
         final int NP = processes != null ? processes.size() : 0;
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
@@ -1156,10 +1254,15 @@ public class RunningState {
         }
 
         if (changed) {
-            // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            // First determine an order for the services.  Only the processes
+            // that are new or whose sort keys changed need to be placed, the
+            // others keep their order from the last time.
+            ArrayList<ProcessItem> movedProcesses = new ArrayList<ProcessItem>();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
+                    final boolean wasSystem = pi.mIsSystem;
+                    final boolean wasStarted = pi.mIsStarted;
+                    final long wasActiveSince = pi.mActiveSince;
                     pi.mIsSystem = false;
                     pi.mIsStarted = true;
                     pi.mActiveSince = Long.MAX_VALUE;
@@ -1177,11 +1280,32 @@ public class RunningState {
                             }
                         }
                     }
-                    sortedProcesses.add(pi);
+                    if (!pi.mSorted || pi.mIsSystem != wasSystem
+                            || pi.mIsStarted != wasStarted
+                            || pi.mActiveSince != wasActiveSince) {
+                        pi.mSorted = false;
+                        movedProcesses.add(pi);
+                    }
                 }
             }
-            
-            Collections.sort(sortedProcesses, mServiceProcessComparator);
+
+            // Drop the processes that are gone or need to be placed again.
+            final ArrayList<ProcessItem> sortedProcesses = mSortedProcesses;
+            int numSorted = 0;
+            for (int i=0; i<sortedProcesses.size(); i++) {
+                ProcessItem pi = sortedProcesses.get(i);
+                if (pi.mSorted && pi.mCurSeq == mSequence) {
+                    sortedProcesses.set(numSorted++, pi);
+                }
+            }
+            sortedProcesses.subList(numSorted, sortedProcesses.size()).clear();
+            for (int i=0; i<movedProcesses.size(); i++) {
+                ProcessItem pi = movedProcesses.get(i);
+                int index = Collections.binarySearch(sortedProcesses, pi,
+                        mServiceProcessComparator);
+                sortedProcesses.add(index >= 0 ? index : -index - 1, pi);
+                pi.mSorted = true;
+            }
             
             ArrayList<BaseItem> newItems = new ArrayList<BaseItem>();
             ArrayList<MergedItem> newMergedItems = new ArrayList<MergedItem>();
@@ -1276,7 +1400,57 @@ public class RunningState {
                 mMergedItems = newMergedItems;
             }
         }
-        
+
+        return changed;
+    }
+
+    /**
+     * Retrieves the running services and processes and updates the items from them.
+     *
+     * @return how much of the UI needs to be refreshed, one of the
+     * {@link OnRefreshUiListener} constants.
+     */
+    @VisibleForTesting
+    int update(Context context, ActivityManager am) {
+        boolean changed = false;
+
+        // Retrieve list of services, filtering out anything that definitely
+        // won't be shown in the UI.
+        List<ActivityManager.RunningServiceInfo> services 
+                = am.getRunningServices(MAX_SERVICES);
+        int NS = services != null ? services.size() : 0;
+        for (int i=0; i<NS; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            // We are not interested in services that have not been started
+            // and don't have a known client, because
+            // there is nothing the user can do about them.
+            if (!si.started && si.clientLabel == 0) {
+                services.remove(i);
+                i--;
+                NS--;
+                continue;
+            }
+            // We likewise don't care about services running in a
+            // persistent process like the system or phone.
+            if ((si.flags&ActivityManager.RunningServiceInfo.FLAG_PERSISTENT_PROCESS)
+                    != 0) {
+                services.remove(i);
+                i--;
+                NS--;
+                continue;
+            }
+        }
+
+        List<ActivityManager.RunningAppProcessInfo> processes
+                = am.getRunningAppProcesses();
+
+        // Most of the time nothing was started, stopped or moved to another
+        // importance since the last update: only the memory use then needs
+        // to be retrieved again.
+        if (updateSnapshot(services, processes)) {
+            changed = updateStructure(context, services, processes);
+        }
+
         // Count number of interesting other (non-active) processes, and
         // build a list of all processes we will retrieve memory for.
         mAllProcessItems.clear();
@@ -1284,7 +1458,7 @@ public class RunningState {
         int numBackgroundProcesses = 0;
         int numForegroundProcesses = 0;
         int numServiceProcesses = 0;
-        NRP = mRunningProcesses.size();
+        final int NRP = mRunningProcesses.size();
         for (int i=0; i<NRP; i++) {
             ProcessItem proc = mRunningProcesses.valueAt(i);
             if (proc.mCurSeq != mSequence) {
@@ -1313,6 +1487,7 @@ public class RunningState {
         ArrayList<MergedItem> newBackgroundItems = null;
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
+        boolean sizesChanged = false;
         try {
             final int numProc = mAllProcessItems.size();
             int[] pids = new int[numProc];
@@ -1321,6 +1496,9 @@ public class RunningState {
             }
             long[] pss = ActivityManager.getService()
                     .getProcessPss(pids);
+            sizesChanged = !Arrays.equals(pids, mLastPids) || !Arrays.equals(pss, mLastPss);
+            mLastPids = pids;
+            mLastPss = pss;
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
@@ -1414,6 +1592,9 @@ public class RunningState {
         }
         
         synchronized (mLock) {
+            sizesChanged |= mNumBackgroundProcesses != numBackgroundProcesses
+                    || mNumForegroundProcesses != numForegroundProcesses
+                    || mNumServiceProcesses != numServiceProcesses;
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
             mNumServiceProcesses = numServiceProcesses;
@@ -1432,8 +1613,11 @@ public class RunningState {
                 mLock.notifyAll();
             }
         }
-        
-        return changed;
+
+        if (changed) {
+            return OnRefreshUiListener.REFRESH_STRUCTURE;
+        }
+        return sizesChanged ? OnRefreshUiListener.REFRESH_DATA : OnRefreshUiListener.REFRESH_TIME;
     }
     
     void setWatchingBackgroundItems(boolean watching) {
@@ -22,13 +22,15 @@ import android.content.res.TypedArray;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.VisibleForTesting;
 import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
-import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Pair;
 import android.view.LayoutInflater;
@@ -56,7 +58,9 @@ import com.android.settingslib.drawer.Tile;
 import com.android.settingslib.suggestions.SuggestionParser;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.DashboardItemHolder>
         implements SummaryLoader.SummaryConsumer {
@@ -71,6 +75,10 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     static final int SUGGESTION_CONDITION_HEADER_POSITION = 0;
     @VisibleForTesting
     static final int MAX_SUGGESTION_TO_SHOW = 5;
+    /**
+     * Number of tiles, about a screen, whose icons are loaded ahead of being bound.
+     */
+    private static final int PREFETCH_TILE_COUNT = 10;
 
     private final IconCache mCache;
     private final Context mContext;
@@ -78,6 +86,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private final DashboardFeatureProvider mDashboardFeatureProvider;
     private final SuggestionFeatureProvider mSuggestionFeatureProvider;
     private final ArrayList<String> mSuggestionsShownLogged;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private boolean mFirstFrameDrawn;
     private RecyclerView mRecyclerView;
     private SuggestionParser mSuggestionParser;
@@ -85,8 +94,24 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private SuggestionDismissController mSuggestionDismissHandler;
     private SuggestionDismissController.Callback mCallback;
 
+    /**
+     * Latest data, the items shown may still lag behind until its diff is applied.
+     */
     @VisibleForTesting
     DashboardData mDashboardData;
+    /**
+     * Data of the items RecyclerView currently shows, used for positions and binding.
+     */
+    private DashboardData mDisplayedData;
+    /**
+     * Incremented on each change, a diff is applied only if no newer change was made since.
+     */
+    private int mDataGeneration;
+    /**
+     * Builds and diffs the items of new data.
+     */
+    @VisibleForTesting
+    Executor mDiffExecutor = AsyncTask.THREAD_POOL_EXECUTOR;
 
     private View.OnClickListener mTileClickListener = new View.OnClickListener() {
         @Override
@@ -121,7 +146,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         mMetricsFeatureProvider = factory.getMetricsFeatureProvider();
         mDashboardFeatureProvider = factory.getDashboardFeatureProvider(context);
         mSuggestionFeatureProvider = factory.getSuggestionFeatureProvider(context);
-        mCache = new IconCache(context);
+        mCache = IconCache.getInstance(context);
         mSuggestionParser = suggestionParser;
         mCallback = callback;
 
@@ -144,6 +169,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 .setCategory(category)
                 .setSuggestionConditionMode(suggestionConditionMode)
                 .build();
+        mDisplayedData = mDashboardData;
     }
 
     public List<Tile> getSuggestions() {
@@ -153,6 +179,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     public void setCategoriesAndSuggestions(DashboardCategory category,
             List<Tile> suggestions) {
         tintIcons(category, suggestions);
+        prefetchIcons(category);
 
         final DashboardData prevData = mDashboardData;
         mDashboardData = new DashboardData.Builder(prevData)
@@ -183,6 +210,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     public void setCategory(DashboardCategory category) {
         tintIcons(category, null);
+        prefetchIcons(category);
         final DashboardData prevData = mDashboardData;
         Log.d(TAG, "adapter setCategory called");
         mDashboardData = new DashboardData.Builder(prevData)
@@ -220,11 +248,36 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     @Override
     public void notifySummaryChanged(Tile tile) {
-        final int position = mDashboardData.getPositionByTile(tile);
+        final int position = mDisplayedData.getPositionByTile(tile);
         if (position != DashboardData.POSITION_NOT_FOUND) {
             // Since usually tile in parameter and tile in mCategories are same instance,
             // which is hard to be detected by DiffUtil, so we notifyItemChanged directly.
-            notifyItemChanged(position, mDashboardData.getItemTypeByPosition(position));
+            notifyItemChanged(position, mDisplayedData.getItemTypeByPosition(position));
+        }
+    }
+
+    @Override
+    public void notifySummariesChanged(List<Tile> tiles) {
+        final List<Integer> positions = new ArrayList<>(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            final int position = mDisplayedData.getPositionByTile(tiles.get(i));
+            if (position != DashboardData.POSITION_NOT_FOUND) {
+                positions.add(position);
+            }
+        }
+        Collections.sort(positions);
+        // Adjacent tiles of the same type are notified as one range.
+        int start = 0;
+        for (int i = 1; i <= positions.size(); i++) {
+            final int startPosition = positions.get(start);
+            final int type = mDisplayedData.getItemTypeByPosition(startPosition);
+            if (i < positions.size()
+                    && positions.get(i) == startPosition + (i - start)
+                    && mDisplayedData.getItemTypeByPosition(positions.get(i)) == type) {
+                continue;
+            }
+            notifyItemRangeChanged(startPosition, i - start, type);
+            start = i;
         }
     }
 
@@ -242,13 +295,14 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     @Override
     public void onBindViewHolder(DashboardItemHolder holder, int position) {
-        final int type = mDashboardData.getItemTypeByPosition(position);
+        final int type = mDisplayedData.getItemTypeByPosition(position);
         switch (type) {
             case R.layout.dashboard_tile:
-                final Tile tile = (Tile) mDashboardData.getItemEntityByPosition(position);
-                onBindTile(holder, tile);
+                final Tile tile = (Tile) mDisplayedData.getItemEntityByPosition(position);
                 holder.itemView.setTag(tile);
+                onBindTile(holder, tile);
                 holder.itemView.setOnClickListener(mTileClickListener);
+                prefetchIcons(position);
                 break;
             case R.layout.suggestion_condition_container:
                 onBindConditionAndSuggestion(
@@ -257,7 +311,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
             case R.layout.suggestion_condition_header:
                 onBindSuggestionConditionHeader((SuggestionAndConditionHeaderHolder) holder,
                         (SuggestionConditionHeaderData)
-                                mDashboardData.getItemEntityByPosition(position));
+                                mDisplayedData.getItemEntityByPosition(position));
                 break;
             case R.layout.suggestion_condition_footer:
                 holder.itemView.setOnClickListener(v -> {
@@ -275,17 +329,17 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     @Override
     public long getItemId(int position) {
-        return mDashboardData.getItemIdByPosition(position);
+        return mDisplayedData.getItemIdByPosition(position);
     }
 
     @Override
     public int getItemViewType(int position) {
-        return mDashboardData.getItemTypeByPosition(position);
+        return mDisplayedData.getItemTypeByPosition(position);
     }
 
     @Override
     public int getItemCount() {
-        return mDashboardData.size();
+        return mDisplayedData.size();
     }
 
     @Override
@@ -313,7 +367,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     }
 
     public Object getItem(long itemId) {
-        return mDashboardData.getItemEntityById(itemId);
+        return mDisplayedData.getItemEntityById(itemId);
     }
 
     public Tile getSuggestion(int position) {
@@ -322,12 +376,30 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     @VisibleForTesting
     void notifyDashboardDataChanged(DashboardData prevData) {
+        final int generation = ++mDataGeneration;
         if (mFirstFrameDrawn && prevData != null) {
-            final DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new DashboardData
-                    .ItemsDataDiffCallback(prevData.getItemList(), mDashboardData.getItemList()));
-            diffResult.dispatchUpdatesTo(this);
+            // Diff against what is displayed rather than prevData, a previous diff may not be
+            // applied yet.
+            final DashboardData oldData = mDisplayedData;
+            final DashboardData newData = mDashboardData;
+            // The items copy the fields of the tiles and conditions they are compared on, so
+            // build them here, where those fields are changed.
+            newData.getItemList();
+            mDiffExecutor.execute(() -> {
+                final DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new DashboardData
+                        .ItemsDataDiffCallback(oldData.getItemList(), newData.getItemList()));
+                mHandler.post(() -> {
+                    if (generation != mDataGeneration) {
+                        // Stale, the diff of the newer data is on its way.
+                        return;
+                    }
+                    mDisplayedData = newData;
+                    diffResult.dispatchUpdatesTo(this);
+                });
+            });
         } else {
             mFirstFrameDrawn = true;
+            mDisplayedData = mDashboardData;
             notifyDataSetChanged();
         }
     }
@@ -352,7 +424,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     @VisibleForTesting
     void onBindSuggestionConditionHeader(final SuggestionAndConditionHeaderHolder holder,
             SuggestionConditionHeaderData data) {
-        final int curMode = mDashboardData.getSuggestionConditionMode();
+        final int curMode = mDisplayedData.getSuggestionConditionMode();
         final int nextMode = data.hiddenSuggestionCount > 0 && data.conditionCount > 0
                 && curMode != DashboardData.HEADER_MODE_SUGGESTION_EXPANDED
                 ? DashboardData.HEADER_MODE_SUGGESTION_EXPANDED
@@ -439,18 +511,18 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
             int position) {
         // If there is suggestions to show, it will be at position 0 as we don't show the suggestion
         // header anymore.
-        final List<Tile> suggestions = mDashboardData.getSuggestions();
+        final List<Tile> suggestions = mDisplayedData.getSuggestions();
         if (position == SUGGESTION_CONDITION_HEADER_POSITION
                 && suggestions != null && suggestions.size() > 0) {
             mSuggestionAdapter = new SuggestionAdapter(mContext, (List<Tile>)
-                    mDashboardData.getItemEntityByPosition(position), mSuggestionsShownLogged);
+                    mDisplayedData.getItemEntityByPosition(position), mSuggestionsShownLogged);
             mSuggestionDismissHandler = new SuggestionDismissController(mContext,
                     holder.data, mSuggestionParser, mCallback);
             holder.data.setAdapter(mSuggestionAdapter);
         } else {
             ConditionAdapter adapter = new ConditionAdapter(mContext,
-                    (List<Condition>) mDashboardData.getItemEntityByPosition(position),
-                    mDashboardData.getSuggestionConditionMode());
+                    (List<Condition>) mDisplayedData.getItemEntityByPosition(position),
+                    mDisplayedData.getSuggestionConditionMode());
             adapter.addDismissHandling(holder.data);
             holder.data.setAdapter(adapter);
         }
@@ -463,7 +535,18 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
             itemView.removeAllViews();
             itemView.addView(tile.remoteViews.apply(itemView.getContext(), itemView));
         } else {
-            holder.icon.setImageDrawable(mCache.getIcon(tile.icon));
+            final Drawable icon = mCache.getCachedIcon(tile);
+            if (icon != null) {
+                holder.icon.setImageDrawable(icon);
+            } else {
+                holder.icon.setImageDrawable(null);
+                mCache.loadIcon(tile, drawable -> {
+                    // The holder may have been bound to another tile in the meantime.
+                    if (holder.itemView.getTag() == tile) {
+                        holder.icon.setImageDrawable(drawable);
+                    }
+                });
+            }
             holder.title.setText(tile.title);
             if (!TextUtils.isEmpty(tile.summary)) {
                 holder.summary.setText(tile.summary);
@@ -474,6 +557,30 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         }
     }
 
+    /**
+     * Loads the icons of the first two screens of tiles.
+     */
+    private void prefetchIcons(DashboardCategory category) {
+        if (category != null && category.tiles != null) {
+            mCache.prefetch(category.tiles.subList(0,
+                    Math.min(category.tiles.size(), 2 * PREFETCH_TILE_COUNT)));
+        }
+    }
+
+    /**
+     * Loads the icons of the screen of tiles following the bound position.
+     */
+    private void prefetchIcons(int position) {
+        final int end = Math.min(mDisplayedData.size(), position + 1 + PREFETCH_TILE_COUNT);
+        final List<Tile> tiles = new ArrayList<>(end - position);
+        for (int i = position + 1; i < end; i++) {
+            if (mDisplayedData.getItemTypeByPosition(i) == R.layout.dashboard_tile) {
+                tiles.add((Tile) mDisplayedData.getItemEntityByPosition(i));
+            }
+        }
+        mCache.prefetch(tiles);
+    }
+
     private void tintIcons(DashboardCategory category, List<Tile> suggestions) {
         if (!mDashboardFeatureProvider.shouldTintIcon()) {
             return;
@@ -535,24 +642,6 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 mSuggestionFeatureProvider.isSmartSuggestionEnabled(mContext));
     }
 
-    public static class IconCache {
-        private final Context mContext;
-        private final ArrayMap<Icon, Drawable> mMap = new ArrayMap<>();
-
-        public IconCache(Context context) {
-            mContext = context;
-        }
-
-        public Drawable getIcon(Icon icon) {
-            Drawable drawable = mMap.get(icon);
-            if (drawable == null) {
-                drawable = icon.loadDrawable(mContext);
-                mMap.put(icon, drawable);
-            }
-            return drawable;
-        }
-    }
-
     public static class DashboardItemHolder extends RecyclerView.ViewHolder {
         public final ImageView icon;
         public final TextView title;
@@ -65,46 +65,47 @@ public class DashboardData {
     @VisibleForTesting
     static final int STABLE_ID_CONDITION_CONTAINER = 4;
 
-    private final List<Item> mItems;
     private final DashboardCategory mCategory;
     private final List<Condition> mConditions;
     private final List<Tile> mSuggestions;
     @HeaderMode
     private final int mSuggestionConditionMode;
 
+    /**
+     * Built on first use. It reads the tiles and conditions, so it must be first used on the main
+     * thread, while the items can then be diffed on any thread.
+     */
+    private List<Item> mItems;
+
     private DashboardData(Builder builder) {
         mCategory = builder.mCategory;
         mConditions = builder.mConditions;
         mSuggestions = builder.mSuggestions;
         mSuggestionConditionMode = builder.mSuggestionConditionMode;
-
-        mItems = new ArrayList<>();
-
-        buildItemsData();
     }
 
     public int getItemIdByPosition(int position) {
-        return mItems.get(position).id;
+        return getItems().get(position).id;
     }
 
     public int getItemTypeByPosition(int position) {
-        return mItems.get(position).type;
+        return getItems().get(position).type;
     }
 
     public Object getItemEntityByPosition(int position) {
-        return mItems.get(position).entity;
+        return getItems().get(position).entity;
     }
 
     public List<Item> getItemList() {
-        return mItems;
+        return getItems();
     }
 
     public int size() {
-        return mItems.size();
+        return getItems().size();
     }
 
     public Object getItemEntityById(long id) {
-        for (final Item item : mItems) {
+        for (final Item item : getItems()) {
             if (item.id == id) {
                 return item.entity;
             }
@@ -129,7 +130,7 @@ public class DashboardData {
     }
 
     /**
-     * Find the position of the object in mItems list, using the equals method to compare
+     * Find the position of the object in item list, using the equals method to compare
      *
      * @param entity the object that need to be found in list
      * @return position of the object, return POSITION_NOT_FOUND if object isn't in the list
@@ -137,9 +138,10 @@ public class DashboardData {
     public int getPositionByEntity(Object entity) {
         if (entity == null) return POSITION_NOT_FOUND;
 
-        final int size = mItems.size();
+        final List<Item> items = getItems();
+        final int size = items.size();
         for (int i = 0; i < size; i++) {
-            final Object item = mItems.get(i).entity;
+            final Object item = items.get(i).entity;
             if (entity.equals(item)) {
                 return i;
             }
@@ -158,9 +160,10 @@ public class DashboardData {
      * @return position of the object, return INDEX_NOT_FOUND if object isn't in the list
      */
     public int getPositionByTile(Tile tile) {
-        final int size = mItems.size();
+        final List<Item> items = getItems();
+        final int size = items.size();
         for (int i = 0; i < size; i++) {
-            final Object entity = mItems.get(i).entity;
+            final Object entity = items.get(i).entity;
             if (entity == tile) {
                 return i;
             } else if (entity instanceof Tile && tile.title.equals(((Tile) entity).title)) {
@@ -195,6 +198,14 @@ public class DashboardData {
         return suggestionSize;
     }
 
+    private synchronized List<Item> getItems() {
+        if (mItems == null) {
+            mItems = new ArrayList<>();
+            buildItemsData();
+        }
+        return mItems;
+    }
+
     /**
      * Add item into list when {@paramref add} is true.
      *
@@ -432,10 +443,37 @@ public class DashboardData {
          */
         public final int id;
 
+        /**
+         * What {@link #equals} compares of a mutable entity, copied when the item is built, so
+         * the items can be diffed on another thread while the entity changes.
+         */
+        private final CharSequence mTitle;
+        private final CharSequence mSummary;
+        private final boolean mHasRemoteViews;
+
         public Item(Object entity, @ItemTypes int type, int id) {
             this.entity = entity;
             this.type = type;
             this.id = id;
+            if (type == TYPE_DASHBOARD_TILE) {
+                final Tile tile = (Tile) entity;
+                mTitle = tile.title;
+                mSummary = tile.summary;
+                mHasRemoteViews = false;
+            } else {
+                mTitle = null;
+                mSummary = null;
+                mHasRemoteViews = type == TYPE_SUGGESTION_CONDITION_CONTAINER
+                        && hasRemoteViews((List) entity);
+            }
+        }
+
+        private static boolean hasRemoteViews(List entities) {
+            if (entities.isEmpty()) {
+                return false;
+            }
+            final Object firstEntity = entities.get(0);
+            return firstEntity instanceof Tile && ((Tile) firstEntity).remoteViews != null;
         }
 
         /**
@@ -461,21 +499,13 @@ public class DashboardData {
 
             switch (type) {
                 case TYPE_DASHBOARD_TILE:
-                    final Tile localTile = (Tile) entity;
-                    final Tile targetTile = (Tile) targetItem.entity;
-
                     // Only check title and summary for dashboard tile
-                    return TextUtils.equals(localTile.title, targetTile.title)
-                            && TextUtils.equals(localTile.summary, targetTile.summary);
+                    return TextUtils.equals(mTitle, targetItem.mTitle)
+                            && TextUtils.equals(mSummary, targetItem.mSummary);
                 case TYPE_SUGGESTION_CONDITION_CONTAINER:
                     // If entity is suggestion and contains remote view, force refresh
-                    final List entities = (List) entity;
-                    if (!entities.isEmpty()) {
-                        Object firstEntity = entities.get(0);
-                        if (firstEntity instanceof Tile
-                                && ((Tile) firstEntity).remoteViews != null) {
-                            return false;
-                        }
+                    if (mHasRemoteViews) {
+                        return false;
                     }
                     // Otherwise Fall through to default
                 default:
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Icon;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+import android.util.ArraySet;
+import android.util.LruCache;
+
+import com.android.settingslib.drawer.Tile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache of the icons shown on the dashboard, suggestions, conditions and search
+ * results, bounded by the estimated memory of the drawables.
+ *
+ * The {@link Drawable.ConstantState} of each icon is cached, and every caller gets its own
+ * drawable from it, so views never share the bounds or state of one drawable. Icons without a
+ * constant state are not cached.
+ *
+ * Tile icons are keyed by the component of the tile, its icon resource and whether it is tinted,
+ * tiles whose icon isn't a resource aren't cached. The cache is cleared when the density or ui
+ * mode changes.
+ */
+public class IconCache {
+
+    @VisibleForTesting
+    static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static IconCache sInstance;
+
+    private final Context mContext;
+    private final Executor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, CachedIcon> mCache;
+    /**
+     * Keys being loaded in the background.
+     */
+    private final Set<String> mPendingKeys = new ArraySet<>();
+
+    private int mDensityDpi;
+    private int mUiMode;
+
+    public static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getApplicationContext(), MAX_SIZE_BYTES,
+                    AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    IconCache(Context context, int maxSizeBytes, Executor executor) {
+        mContext = context;
+        mExecutor = executor;
+        final Configuration configuration = context.getResources().getConfiguration();
+        mDensityDpi = configuration.densityDpi;
+        mUiMode = configuration.uiMode;
+        mCache = new LruCache<String, CachedIcon>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, CachedIcon icon) {
+                return icon.sizeBytes;
+            }
+        };
+    }
+
+    /**
+     * @return the icon of the tile, loading it on the calling thread if it isn't cached.
+     */
+    public Drawable getIcon(Tile tile) {
+        return getIcon(getKey(tile), () -> loadDrawable(tile.icon));
+    }
+
+    /**
+     * @return the icon cached for the key, loading it with the loader if it isn't cached. A null
+     * key skips the cache.
+     */
+    public Drawable getIcon(String key, Supplier<Drawable> loader) {
+        if (key == null) {
+            return loader.get();
+        }
+        Drawable drawable = getCachedIcon(key);
+        if (drawable == null) {
+            drawable = loader.get();
+            put(key, drawable);
+        }
+        return drawable;
+    }
+
+    /**
+     * @return the cached icon of the tile, or null if it needs to be loaded.
+     */
+    public Drawable getCachedIcon(Tile tile) {
+        final String key = getKey(tile);
+        return key == null ? null : getCachedIcon(key);
+    }
+
+    private Drawable getCachedIcon(String key) {
+        clearIfConfigurationChanged();
+        final CachedIcon icon = mCache.get(key);
+        return icon == null ? null : icon.state.newDrawable(mContext.getResources());
+    }
+
+    /**
+     * Loads the icon of the tile in the background, the listener is called on the main thread.
+     * Tiles that cannot be cached are loaded on the calling thread.
+     */
+    public void loadIcon(Tile tile, Consumer<Drawable> listener) {
+        final String key = getKey(tile);
+        if (key == null) {
+            listener.accept(loadDrawable(tile.icon));
+            return;
+        }
+        final Drawable cached = getCachedIcon(key);
+        if (cached != null) {
+            listener.accept(cached);
+            return;
+        }
+        mExecutor.execute(() -> {
+            final Drawable drawable = getIcon(key, () -> loadDrawable(tile.icon));
+            mHandler.post(() -> listener.accept(drawable));
+        });
+    }
+
+    /**
+     * Loads the icons of the tiles that aren't cached or being loaded in the background, so they
+     * are ready when the tiles are scrolled into view.
+     */
+    public void prefetch(List<Tile> tiles) {
+        for (int i = 0, size = tiles.size(); i < size; i++) {
+            final Tile tile = tiles.get(i);
+            final String key = getKey(tile);
+            if (key == null || getCachedIcon(key) != null) {
+                continue;
+            }
+            synchronized (mPendingKeys) {
+                if (!mPendingKeys.add(key)) {
+                    continue;
+                }
+            }
+            mExecutor.execute(() -> {
+                getIcon(key, () -> loadDrawable(tile.icon));
+                synchronized (mPendingKeys) {
+                    mPendingKeys.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the memory use and hit ratio of the cache.
+     */
+    public JSONObject dump() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        final int hits = mCache.hitCount();
+        final int misses = mCache.missCount();
+        obj.put("entries", mCache.snapshot().size());
+        obj.put("size_bytes", mCache.size());
+        obj.put("max_size_bytes", mCache.maxSize());
+        obj.put("hits", hits);
+        obj.put("misses", misses);
+        obj.put("hit_ratio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        obj.put("evictions", mCache.evictionCount());
+        return obj;
+    }
+
+    private void put(String key, Drawable drawable) {
+        if (drawable == null) {
+            return;
+        }
+        final Drawable.ConstantState state = drawable.getConstantState();
+        if (state != null) {
+            mCache.put(key, new CachedIcon(state, getSizeBytes(drawable)));
+        }
+    }
+
+    private Drawable loadDrawable(Icon icon) {
+        return icon == null ? null : icon.loadDrawable(mContext);
+    }
+
+    private synchronized void clearIfConfigurationChanged() {
+        final Configuration configuration = mContext.getResources().getConfiguration();
+        if (configuration.densityDpi != mDensityDpi || configuration.uiMode != mUiMode) {
+            mDensityDpi = configuration.densityDpi;
+            mUiMode = configuration.uiMode;
+            mCache.evictAll();
+        }
+    }
+
+    /**
+     * @return the key of the tile icon, or null if the tile has no component to key it by or its
+     * icon isn't a resource.
+     */
+    @VisibleForTesting
+    static String getKey(Tile tile) {
+        if (tile.intent == null || tile.intent.getComponent() == null) {
+            return null;
+        }
+        final ComponentName component = tile.intent.getComponent();
+        final StringBuilder key = new StringBuilder(component.flattenToShortString());
+        if (tile.icon != null) {
+            if (tile.icon.getType() != Icon.TYPE_RESOURCE) {
+                return null;
+            }
+            key.append('/').append(tile.icon.getResPackage())
+                    .append(':').append(tile.icon.getResId());
+        }
+        if (tile.isIconTintable) {
+            key.append("/tinted");
+        }
+        return key.toString();
+    }
+
+    private static int getSizeBytes(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable
+                && ((BitmapDrawable) drawable).getBitmap() != null) {
+            return ((BitmapDrawable) drawable).getBitmap().getAllocationByteCount();
+        }
+        // Estimated as the ARGB bitmap it is drawn into.
+        return Math.max(1, drawable.getIntrinsicWidth() * drawable.getIntrinsicHeight() * 4);
+    }
+
+    private static class CachedIcon {
+        final Drawable.ConstantState state;
+        final int sizeBytes;
+
+        CachedIcon(Drawable.ConstantState state, int sizeBytes) {
+            this.state = state;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+}
@@ -19,9 +19,9 @@ package com.android.settings.dashboard;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
-import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.settings.SettingsActivity;
@@ -33,16 +33,24 @@ import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.Tile;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import static com.android.settings.dashboard.DashboardFragmentRegistry.CATEGORY_KEY_TO_PARENT_MAP;
 
 /**
  * A manager class that maintains a "site map" and look up breadcrumb for a certain page on demand.
  * <p/>
- * The methods on this class can only be called on a background thread.
+ * The site map is resolved once into a map from page to the titles of its ancestors, so looking
+ * up a breadcrumb is a single read of an immutable snapshot and can happen on any number of
+ * threads. Breadcrumb lookups only read the database; the pairs derived from the IA are stored by
+ * {@link #updateDynamicPairs} when indexing finishes. The methods on this class can only be called
+ * on a background thread, except {@link #onCategoriesChanged(Context)}.
  */
 public class SiteMapManager {
 
@@ -57,14 +65,48 @@ public class SiteMapManager {
             SiteMapColumns.CHILD_TITLE
     };
 
+    private static final String[] SITE_MAP_COLUMNS_WITH_DOCID = {
+            SiteMapColumns.DOCID,
+            SiteMapColumns.PARENT_CLASS,
+            SiteMapColumns.PARENT_TITLE,
+            SiteMapColumns.CHILD_CLASS,
+            SiteMapColumns.CHILD_TITLE
+    };
+
     private static final String[] CLASS_TO_SCREEN_TITLE_COLUMNS = {
             IndexColumns.CLASS_NAME,
             IndexColumns.SCREEN_TITLE,
     };
 
-    private final List<SiteMapPair> mPairs = new ArrayList<>();
+    /**
+     * Pairs derived from {@link DashboardFeatureProvider} categories are stored in the site map
+     * table with consecutive doc ids starting here, above the int doc ids written at indexing
+     * time, so they can be replaced without touching the indexed pairs.
+     */
+    @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+    public static final long DYNAMIC_PAIR_DOCID_OFFSET = 1L << 32;
+
+    private static final String INSERT_SITE_MAP_PAIR =
+            "INSERT INTO " + IndexDatabaseHelper.Tables.TABLE_SITE_MAP + "(" +
+                    SiteMapColumns.DOCID + ", " +
+                    SiteMapColumns.PARENT_CLASS + ", " +
+                    SiteMapColumns.PARENT_TITLE + ", " +
+                    SiteMapColumns.CHILD_CLASS + ", " +
+                    SiteMapColumns.CHILD_TITLE +
+                    ") VALUES (?, ?, ?, ?, ?)";
 
-    private boolean mInitialized;
+    private final Object mLock = new Object();
+
+    /**
+     * Immutable, resolved site map. Null until {@link #init(Context)} runs, and again after the
+     * categories it was built from changed.
+     */
+    private volatile SiteMap mSiteMap;
+
+    /**
+     * Fingerprint of the categories {@link #mSiteMap} was built from.
+     */
+    private volatile int mCategoriesFingerprint;
 
     /**
      * Given a fragment class name and its screen title, build a breadcrumb from Settings root to
@@ -74,81 +116,138 @@ public class SiteMapManager {
      * page in the breadcrumb path is not indexed, or it's only reachable via search.
      */
     @WorkerThread
-    public synchronized List<String> buildBreadCrumb(Context context, String clazz,
-            String screenTitle) {
-        init(context);
-        final long startTime = System.currentTimeMillis();
-        final List<String> breadcrumbs = new ArrayList<>();
-        if (!mInitialized) {
+    public List<String> buildBreadCrumb(Context context, String clazz, String screenTitle) {
+        SiteMap siteMap = mSiteMap;
+        if (siteMap == null) {
+            init(context);
+            siteMap = mSiteMap;
+        }
+        if (siteMap == null) {
             Log.w(TAG, "SiteMap is not initialized yet, skipping");
-            return breadcrumbs;
+            return new ArrayList<>();
         }
+        final List<String> ancestors = siteMap.getAncestorTitles(clazz, screenTitle);
+        final List<String> breadcrumbs = new ArrayList<>(ancestors.size() + 1);
+        breadcrumbs.addAll(ancestors);
         breadcrumbs.add(screenTitle);
-        String currentClass = clazz;
-        String currentTitle = screenTitle;
-        // Look up current page's parent, if found add it to breadcrumb string list, and repeat.
-        while (true) {
-            final SiteMapPair pair = lookUpParent(currentClass, currentTitle);
-            if (pair == null) {
-                if (DEBUG_TIMING) {
-                    Log.d(TAG, "BreadCrumb timing: " + (System.currentTimeMillis() - startTime));
-                }
-                return breadcrumbs;
-            }
-            breadcrumbs.add(0, pair.parentTitle);
-            currentClass = pair.parentClass;
-            currentTitle = pair.parentTitle;
+        return breadcrumbs;
+    }
+
+    /**
+     * Drops the resolved site map if the {@link DashboardFeatureProvider} categories changed
+     * since it was built. It is rebuilt on the next breadcrumb lookup.
+     */
+    public void onCategoriesChanged(Context context) {
+        // Not under mLock, which init() holds while it reads the database.
+        if (mSiteMap == null) {
+            return;
+        }
+        final int fingerprint = getCategoriesFingerprint(getAllCategories(context));
+        if (fingerprint != mCategoriesFingerprint) {
+            mSiteMap = null;
         }
     }
 
     /**
-     * Initialize a list of {@link SiteMapPair}s. Each pair knows about a single parent-child
-     * page relationship.
+     * Initialize the site map from a list of {@link SiteMapPair}s. Each pair knows about a single
+     * parent-child page relationship.
      *
-     * We get the knowledge of such mPairs from 2 sources:
+     * We get the knowledge of such pairs from 2 sources:
      * 1. Static indexing time: we know which page(s) a parent can open by parsing its pref xml.
      * 2. IA: We know from {@link DashboardFeatureProvider} which page can be dynamically
      * injected to where.
+     *
+     * Pairs from IA stored by {@link #updateDynamicPairs} are used when they were derived from the
+     * current categories. Otherwise they are derived again, without writing to the database.
      */
     @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
     @WorkerThread
-    synchronized void init(Context context) {
-        if (mInitialized) {
-            // Make sure only init once.
-            return;
+    void init(Context context) {
+        synchronized (mLock) {
+            if (mSiteMap != null) {
+                // Make sure only init once.
+                return;
+            }
+            initLocked(context);
         }
+    }
+
+    private void initLocked(Context context) {
         final long startTime = System.currentTimeMillis();
-        // First load site map from static index table.
         final Context appContext = context.getApplicationContext();
         final SQLiteDatabase db = IndexDatabaseHelper.getInstance(appContext).getReadableDatabase();
-        Cursor sitemap = db.query(IndexDatabaseHelper.Tables.TABLE_SITE_MAP, SITE_MAP_COLUMNS, null,
-                null, null, null, null);
-        while (sitemap.moveToNext()) {
-            final SiteMapPair pair = new SiteMapPair(
-                    sitemap.getString(sitemap.getColumnIndex(SiteMapColumns.PARENT_CLASS)),
-                    sitemap.getString(sitemap.getColumnIndex(SiteMapColumns.PARENT_TITLE)),
-                    sitemap.getString(sitemap.getColumnIndex(SiteMapColumns.CHILD_CLASS)),
-                    sitemap.getString(sitemap.getColumnIndex(SiteMapColumns.CHILD_TITLE)));
-            mPairs.add(pair);
-        }
-        sitemap.close();
-
-        // Then prepare a local map that contains class name -> screen title mapping. This is needed
+        final List<DashboardCategory> categories = getAllCategories(context);
+        final int fingerprint = getCategoriesFingerprint(categories);
+
+        // First load site map from static index table, and the IA pairs stored along with it.
+        final List<SiteMapPair> pairs = new ArrayList<>();
+        List<SiteMapPair> dynamicPairs = new ArrayList<>();
+        try (Cursor sitemap = db.query(IndexDatabaseHelper.Tables.TABLE_SITE_MAP,
+                SITE_MAP_COLUMNS_WITH_DOCID, null, null, null, null, null)) {
+            while (sitemap.moveToNext()) {
+                final SiteMapPair pair = new SiteMapPair(
+                        sitemap.getString(1), sitemap.getString(2),
+                        sitemap.getString(3), sitemap.getString(4));
+                if (sitemap.getLong(0) >= DYNAMIC_PAIR_DOCID_OFFSET) {
+                    dynamicPairs.add(pair);
+                } else {
+                    pairs.add(pair);
+                }
+            }
+        }
+
+        if (dynamicPairs.isEmpty()
+                || fingerprint != IndexDatabaseHelper.getSiteMapCategoriesFingerprint(appContext)) {
+            dynamicPairs = buildDynamicPairs(db, categories);
+        }
+        pairs.addAll(dynamicPairs);
+
+        // Done.
+        mCategoriesFingerprint = fingerprint;
+        mSiteMap = new SiteMap(pairs);
+        if (DEBUG_TIMING) {
+            Log.d(TAG, "Init timing: " + (System.currentTimeMillis() - startTime));
+        }
+    }
+
+    /**
+     * Stores the pairs of all IA categories and pages in the site map table once indexing
+     * finished, unless the stored pairs were derived from the same categories and index.
+     *
+     * @param indexChanged whether the screen titles in the index may have changed since the
+     *                     pairs were stored.
+     */
+    @WorkerThread
+    public static void updateDynamicPairs(Context context, SQLiteDatabase db,
+            boolean indexChanged) {
+        final List<DashboardCategory> categories = getAllCategories(context);
+        final int fingerprint = getCategoriesFingerprint(categories);
+        if (!indexChanged
+                && fingerprint == IndexDatabaseHelper.getSiteMapCategoriesFingerprint(context)) {
+            return;
+        }
+        storeDynamicPairs(db, buildDynamicPairs(db, categories));
+        IndexDatabaseHelper.setSiteMapCategoriesFingerprint(context, fingerprint);
+    }
+
+    /**
+     * Builds the parent-child pairs of all IA categories and pages, without duplicates.
+     */
+    private static List<SiteMapPair> buildDynamicPairs(SQLiteDatabase db,
+            List<DashboardCategory> categories) {
+        final List<SiteMapPair> pairs = new ArrayList<>();
+        // Prepare a local map that contains class name -> screen title mapping. This is needed
         // to figure out the display name for any fragment if it's injected dynamically through IA.
         final Map<String, String> classToTitleMap = new HashMap<>();
-        final Cursor titleQuery = db.query(IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX,
-                CLASS_TO_SCREEN_TITLE_COLUMNS, null, null, null, null, null);
-        while (titleQuery.moveToNext()) {
-            classToTitleMap.put(
-                    titleQuery.getString(titleQuery.getColumnIndex(IndexColumns.CLASS_NAME)),
-                    titleQuery.getString(titleQuery.getColumnIndex(IndexColumns.SCREEN_TITLE)));
+        try (Cursor titleQuery = db.query(IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX,
+                CLASS_TO_SCREEN_TITLE_COLUMNS, null, null, null, null, null)) {
+            while (titleQuery.moveToNext()) {
+                classToTitleMap.put(titleQuery.getString(0), titleQuery.getString(1));
+            }
         }
-        titleQuery.close();
 
         // Loop through all IA categories and pages and build additional SiteMapPairs
-        List<DashboardCategory> categories = FeatureFactory.getFactory(context)
-                .getDashboardFeatureProvider(context).getAllCategories();
-
+        final Set<String> pairKeys = new HashSet<>();
         for (DashboardCategory category : categories) {
             // Find the category key first.
             final String parentClass = CATEGORY_KEY_TO_PARENT_MAP.get(category.key);
@@ -160,36 +259,132 @@ public class SiteMapManager {
             if (parentName == null) {
                 continue;
             }
-            // Build parent-child mPairs for all children listed under this key.
+            // Build parent-child pairs for all children listed under this key.
             for (Tile tile : category.tiles) {
                 final String childTitle = tile.title.toString();
-                String childClass = null;
-                if (tile.metaData != null) {
-                    childClass = tile.metaData.getString(
-                            SettingsActivity.META_DATA_KEY_FRAGMENT_CLASS);
-                }
-                if (childClass == null) {
+                final String childClass = getFragmentClass(tile);
+                if (childClass == null
+                        || !pairKeys.add(parentClass + '\0' + childClass + '\0' + childTitle)) {
                     continue;
                 }
-                mPairs.add(new SiteMapPair(parentClass, parentName, childClass, childTitle));
+                pairs.add(new SiteMapPair(parentClass, parentName, childClass, childTitle));
             }
         }
-        // Done.
-        mInitialized = true;
-        if (DEBUG_TIMING) {
-            Log.d(TAG, "Init timing: " + (System.currentTimeMillis() - startTime));
+        return pairs;
+    }
+
+    /**
+     * Replaces the IA pairs stored in the site map table.
+     */
+    private static void storeDynamicPairs(SQLiteDatabase db, List<SiteMapPair> pairs) {
+        db.beginTransaction();
+        try {
+            db.delete(IndexDatabaseHelper.Tables.TABLE_SITE_MAP, SiteMapColumns.DOCID + " >= ?",
+                    new String[] {String.valueOf(DYNAMIC_PAIR_DOCID_OFFSET)});
+            try (SQLiteStatement insertPair = db.compileStatement(INSERT_SITE_MAP_PAIR)) {
+                for (int i = 0, size = pairs.size(); i < size; i++) {
+                    final SiteMapPair pair = pairs.get(i);
+                    insertPair.clearBindings();
+                    insertPair.bindLong(1, DYNAMIC_PAIR_DOCID_OFFSET + i);
+                    insertPair.bindString(2, pair.parentClass);
+                    insertPair.bindString(3, pair.parentTitle);
+                    insertPair.bindString(4, pair.childClass);
+                    insertPair.bindString(5, pair.childTitle);
+                    insertPair.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
 
-    @WorkerThread
-    private SiteMapPair lookUpParent(String clazz, String title) {
-        for (SiteMapPair pair : mPairs) {
-            if (TextUtils.equals(pair.childClass, clazz)
-                    && TextUtils.equals(title, pair.childTitle)) {
-                return pair;
+    private static List<DashboardCategory> getAllCategories(Context context) {
+        final List<DashboardCategory> categories = FeatureFactory.getFactory(context)
+                .getDashboardFeatureProvider(context).getAllCategories();
+        return categories != null ? categories : Collections.emptyList();
+    }
+
+    /**
+     * @return a hash of everything in the categories which ends up in the IA pairs.
+     */
+    private static int getCategoriesFingerprint(List<DashboardCategory> categories) {
+        int fingerprint = 1;
+        for (DashboardCategory category : categories) {
+            if (!CATEGORY_KEY_TO_PARENT_MAP.containsKey(category.key)) {
+                continue;
+            }
+            fingerprint = 31 * fingerprint + Objects.hashCode(category.key);
+            for (Tile tile : category.tiles) {
+                fingerprint = 31 * fingerprint + Objects.hash(
+                        tile.title != null ? tile.title.toString() : null,
+                        getFragmentClass(tile));
+            }
+        }
+        return fingerprint;
+    }
+
+    private static String getFragmentClass(Tile tile) {
+        if (tile.metaData == null) {
+            return null;
+        }
+        return tile.metaData.getString(SettingsActivity.META_DATA_KEY_FRAGMENT_CLASS);
+    }
+
+    /**
+     * Breadcrumbs of every page of the site map, resolved ahead of time.
+     */
+    private static class SiteMap {
+        private final Map<String, List<String>> mAncestorTitles = new HashMap<>();
+
+        SiteMap(List<SiteMapPair> pairs) {
+            // Parent of each page. Like a linear scan, the first pair for a page wins.
+            final Map<String, SiteMapPair> parents = new HashMap<>();
+            for (SiteMapPair pair : pairs) {
+                final String key = getKey(pair.childClass, pair.childTitle);
+                if (!parents.containsKey(key)) {
+                    parents.put(key, pair);
+                }
+            }
+            final Set<String> visiting = new HashSet<>();
+            for (String key : parents.keySet()) {
+                resolve(key, parents, visiting);
+            }
+        }
+
+        /**
+         * @return titles from the root down to the parent of the page, empty if it has none.
+         */
+        List<String> getAncestorTitles(String clazz, String title) {
+            final List<String> ancestors = mAncestorTitles.get(getKey(clazz, title));
+            return ancestors != null ? ancestors : Collections.emptyList();
+        }
+
+        private List<String> resolve(String key, Map<String, SiteMapPair> parents,
+                Set<String> visiting) {
+            final List<String> resolved = mAncestorTitles.get(key);
+            if (resolved != null) {
+                return resolved;
             }
+            final SiteMapPair pair = parents.get(key);
+            if (pair == null || !visiting.add(key)) {
+                // Root of the site map, or a cycle.
+                return Collections.emptyList();
+            }
+            final List<String> parentAncestors = resolve(
+                    getKey(pair.parentClass, pair.parentTitle), parents, visiting);
+            visiting.remove(key);
+            final List<String> ancestors = new ArrayList<>(parentAncestors.size() + 1);
+            ancestors.addAll(parentAncestors);
+            ancestors.add(pair.parentTitle);
+            final List<String> unmodifiable = Collections.unmodifiableList(ancestors);
+            mAncestorTitles.put(key, unmodifiable);
+            return unmodifiable;
+        }
+
+        private static String getKey(String clazz, String title) {
+            return clazz + '\0' + title;
         }
-        return null;
     }
 
     /**
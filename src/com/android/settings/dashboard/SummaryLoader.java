@@ -21,23 +21,26 @@ import android.content.ComponentName;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.view.Choreographer;
 
 import com.android.settings.SettingsActivity;
+import com.android.settings.core.instrumentation.MetricsFeatureProvider;
 import com.android.settings.overlay.FeatureFactory;
+import com.android.settings.utils.BackgroundExecutors;
 import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.Tile;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class SummaryLoader {
     private static final boolean DEBUG = DashboardSummary.DEBUG;
@@ -45,48 +48,89 @@ public class SummaryLoader {
 
     public static final String SUMMARY_PROVIDER_FACTORY = "SUMMARY_PROVIDER_FACTORY";
 
+    /**
+     * Most summary providers running at once, across every loader of the process.
+     */
+    private static final int MAX_WORKERS = 4;
+
+    /**
+     * How long a provider may take to be created or to change its listening state before it is
+     * reported as slow.
+     */
+    @VisibleForTesting
+    static final long PROVIDER_DEADLINE_MS = 500;
+
+    /**
+     * Followed by the component of the provider, so slow providers can be told apart.
+     */
+    private static final String METRICS_SUMMARY_PROVIDER_LATENCY = "summary_provider_latency_";
+    private static final String METRICS_SUMMARY_PROVIDER_TIMEOUT = "summary_provider_timeout_";
+
+    private static Executor sExecutor;
+
     private final Activity mActivity;
     private final ArrayMap<SummaryProvider, ComponentName> mSummaryProviderMap = new ArrayMap<>();
     private final ArrayMap<String, CharSequence> mSummaryTextMap = new ArrayMap<>();
     private final DashboardFeatureProvider mDashboardFeatureProvider;
+    private final MetricsFeatureProvider mMetricsFeatureProvider;
+    private final TileSummaryCache mTileSummaryCache;
     private final String mCategoryKey;
 
-    private final Worker mWorker;
     private final Handler mHandler;
-    private final HandlerThread mWorkerThread;
+    private final Executor mExecutor;
+    private final List<ProviderState> mProviderStates = new ArrayList<>();
+    private final TileSummaryCache.OnLoadListener mCacheLoadListener =
+            this::applyCachedSummaries;
+
+    /**
+     * Deadlines of the provider calls still running, removed as soon as the call finishes.
+     */
+    private final ArraySet<Runnable> mPendingDeadlines = new ArraySet<>();
+
+    /**
+     * Summaries set since the last frame, applied together on the next one.
+     */
+    private final ArrayMap<ComponentName, CharSequence> mPendingSummaries = new ArrayMap<>();
+    private boolean mSummaryFlushScheduled;
 
     private SummaryConsumer mSummaryConsumer;
     private boolean mListening;
-    private boolean mWorkerListening;
+    private volatile boolean mWorkerListening;
+    private volatile boolean mReleased;
     private ArraySet<BroadcastReceiver> mReceivers = new ArraySet<>();
 
     public SummaryLoader(Activity activity, List<DashboardCategory> categories) {
-        mDashboardFeatureProvider = FeatureFactory.getFactory(activity)
-                .getDashboardFeatureProvider(activity);
-        mCategoryKey = null;
-        mHandler = new Handler();
-        mWorkerThread = new HandlerThread("SummaryLoader", Process.THREAD_PRIORITY_BACKGROUND);
-        mWorkerThread.start();
-        mWorker = new Worker(mWorkerThread.getLooper());
-        mActivity = activity;
+        this(activity, null /* categoryKey */, getExecutor());
         for (int i = 0; i < categories.size(); i++) {
             List<Tile> tiles = categories.get(i).tiles;
             for (int j = 0; j < tiles.size(); j++) {
-                Tile tile = tiles.get(j);
-                mWorker.obtainMessage(Worker.MSG_GET_PROVIDER, tile).sendToTarget();
+                addProvider(tiles.get(j));
             }
         }
     }
 
     public SummaryLoader(Activity activity, String categoryKey) {
-        mDashboardFeatureProvider = FeatureFactory.getFactory(activity)
-                .getDashboardFeatureProvider(activity);
+        this(activity, categoryKey, getExecutor());
+    }
+
+    /**
+     * @param categoryKey the category whose tiles get summaries, or null to add them later.
+     * @param executor    runs the summary providers.
+     */
+    @VisibleForTesting
+    SummaryLoader(Activity activity, String categoryKey, Executor executor) {
+        final FeatureFactory featureFactory = FeatureFactory.getFactory(activity);
+        mDashboardFeatureProvider = featureFactory.getDashboardFeatureProvider(activity);
+        mMetricsFeatureProvider = featureFactory.getMetricsFeatureProvider();
+        mTileSummaryCache = TileSummaryCache.getInstance(activity);
         mCategoryKey = categoryKey;
         mHandler = new Handler();
-        mWorkerThread = new HandlerThread("SummaryLoader", Process.THREAD_PRIORITY_BACKGROUND);
-        mWorkerThread.start();
-        mWorker = new Worker(mWorkerThread.getLooper());
+        mExecutor = executor;
         mActivity = activity;
+        mTileSummaryCache.addOnLoadListener(mCacheLoadListener);
+        if (categoryKey == null) {
+            return;
+        }
 
         final DashboardCategory category =
                 mDashboardFeatureProvider.getTilesForCategory(categoryKey);
@@ -96,14 +140,35 @@ public class SummaryLoader {
 
         List<Tile> tiles = category.tiles;
         for (Tile tile : tiles) {
-            mWorker.obtainMessage(Worker.MSG_GET_PROVIDER, tile).sendToTarget();
+            addProvider(tile);
         }
     }
 
+    /**
+     * Returns the bounded pool shared by every loader, so a slow provider only holds one worker
+     * instead of the summaries of a whole screen.
+     */
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = BackgroundExecutors.newFixedThreadPool("SummaryLoader", MAX_WORKERS);
+        }
+        return sExecutor;
+    }
+
     public void release() {
-        mWorkerThread.quitSafely();
+        mReleased = true;
+        mTileSummaryCache.removeOnLoadListener(mCacheLoadListener);
         // Make sure we aren't listening.
-        setListeningW(false);
+        mWorkerListening = false;
+        synchronized (mPendingDeadlines) {
+            for (int i = 0; i < mPendingDeadlines.size(); i++) {
+                mHandler.removeCallbacks(mPendingDeadlines.valueAt(i));
+            }
+            mPendingDeadlines.clear();
+        }
+        for (int i = 0; i < mProviderStates.size(); i++) {
+            syncProvider(mProviderStates.get(i));
+        }
     }
 
     public void setSummaryConsumer(SummaryConsumer summaryConsumer) {
@@ -111,39 +176,78 @@ public class SummaryLoader {
     }
 
     public void setSummary(SummaryProvider provider, final CharSequence summary) {
-        final ComponentName component = mSummaryProviderMap.get(provider);
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-
-                final Tile tile = getTileFromCategory(
-                        mDashboardFeatureProvider.getTilesForCategory(mCategoryKey), component);
+        final ComponentName component;
+        synchronized (mSummaryProviderMap) {
+            component = mSummaryProviderMap.get(provider);
+        }
+        if (component == null) {
+            return;
+        }
+        synchronized (mPendingSummaries) {
+            mPendingSummaries.put(component, summary);
+            if (mSummaryFlushScheduled) {
+                return;
+            }
+            mSummaryFlushScheduled = true;
+        }
+        // Choreographer callbacks have to be posted from the main thread.
+        mHandler.post(() -> Choreographer.getInstance()
+                .postFrameCallback(frameTimeNanos -> flushPendingSummaries()));
+    }
 
-                if (tile == null) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Can't find tile for " + component);
-                    }
-                    return;
-                }
+    /**
+     * Applies the summaries set since the last frame, and notifies the consumer once for all the
+     * tiles which changed.
+     */
+    @VisibleForTesting
+    void flushPendingSummaries() {
+        final ArrayMap<ComponentName, CharSequence> summaries;
+        synchronized (mPendingSummaries) {
+            summaries = new ArrayMap<>(mPendingSummaries);
+            mPendingSummaries.clear();
+            mSummaryFlushScheduled = false;
+        }
+        if (mReleased) {
+            return;
+        }
+        final DashboardCategory category =
+                mDashboardFeatureProvider.getTilesForCategory(mCategoryKey);
+        final List<Tile> changedTiles = new ArrayList<>();
+        for (int i = 0; i < summaries.size(); i++) {
+            final ComponentName component = summaries.keyAt(i);
+            final CharSequence summary = summaries.valueAt(i);
+            final Tile tile = getTileFromCategory(category, component);
+
+            if (tile == null) {
                 if (DEBUG) {
-                    Log.d(TAG, "setSummary " + tile.title + " - " + summary);
+                    Log.d(TAG, "Can't find tile for " + component);
                 }
+                continue;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "setSummary " + tile.title + " - " + summary);
+            }
 
-                updateSummaryIfNeeded(tile, summary);
+            if (applySummary(tile, summary)) {
+                changedTiles.add(tile);
             }
-        });
+        }
+        if (changedTiles.isEmpty()) {
+            return;
+        }
+        if (mSummaryConsumer != null) {
+            mSummaryConsumer.notifySummariesChanged(changedTiles);
+        } else if (DEBUG) {
+            Log.d(TAG, "SummaryConsumer is null, skipping summary update for "
+                    + changedTiles.size() + " tiles");
+        }
     }
 
     @VisibleForTesting
     void updateSummaryIfNeeded(Tile tile, CharSequence summary) {
-        if (TextUtils.equals(tile.summary, summary)) {
-            if (DEBUG) {
-                Log.d(TAG, "Summary doesn't change, skipping summary update for " + tile.title);
-            }
+        if (!applySummary(tile, summary)) {
             return;
         }
-        mSummaryTextMap.put(mDashboardFeatureProvider.getDashboardKeyForTile(tile), summary);
-        tile.summary = summary;
         if (mSummaryConsumer != null) {
             mSummaryConsumer.notifySummaryChanged(tile);
         } else {
@@ -154,6 +258,24 @@ public class SummaryLoader {
         }
     }
 
+    /**
+     * @return true if the summary of the tile changed.
+     */
+    private boolean applySummary(Tile tile, CharSequence summary) {
+        if (TextUtils.equals(tile.summary, summary)) {
+            if (DEBUG) {
+                Log.d(TAG, "Summary doesn't change, skipping summary update for " + tile.title);
+            }
+            return false;
+        }
+        mSummaryTextMap.put(mDashboardFeatureProvider.getDashboardKeyForTile(tile), summary);
+        tile.summary = summary;
+        if (tile.intent != null && tile.intent.getComponent() != null) {
+            mTileSummaryCache.put(tile.intent.getComponent(), summary);
+        }
+        return true;
+    }
+
     /**
      * Only call from the main thread.
      */
@@ -165,8 +287,10 @@ public class SummaryLoader {
             mActivity.unregisterReceiver(mReceivers.valueAt(i));
         }
         mReceivers.clear();
-        mWorker.removeMessages(Worker.MSG_SET_LISTENING);
-        mWorker.obtainMessage(Worker.MSG_SET_LISTENING, listening ? 1 : 0, 0).sendToTarget();
+        mWorkerListening = listening;
+        for (int i = 0; i < mProviderStates.size(); i++) {
+            syncProvider(mProviderStates.get(i));
+        }
     }
 
     private SummaryProvider getSummaryProvider(Tile tile) {
@@ -226,7 +350,8 @@ public class SummaryLoader {
 
     /**
      * Updates all tile's summary to latest cached version. This is necessary to handle the case
-     * where category is updated after summary change.
+     * where category is updated after summary change. Tiles without a summary from this loader
+     * yet get the one persisted by {@link TileSummaryCache}, if any.
      */
     public void updateSummaryToCache(DashboardCategory category) {
         if (category == null) {
@@ -236,28 +361,127 @@ public class SummaryLoader {
             final String key = mDashboardFeatureProvider.getDashboardKeyForTile(tile);
             if (mSummaryTextMap.containsKey(key)) {
                 tile.summary = mSummaryTextMap.get(key);
+            } else if (tile.intent != null && tile.intent.getComponent() != null) {
+                final CharSequence summary =
+                        mTileSummaryCache.get(tile.intent.getComponent());
+                if (summary != null) {
+                    tile.summary = summary;
+                }
             }
         }
     }
 
-    private synchronized void setListeningW(boolean listening) {
-        if (mWorkerListening == listening) return;
-        mWorkerListening = listening;
-        if (DEBUG) Log.d(TAG, "Listening " + listening);
-        for (SummaryProvider p : mSummaryProviderMap.keySet()) {
-            try {
-                p.setListening(listening);
-            } catch (Exception e) {
-                Log.d(TAG, "Problem in setListening", e);
+    /**
+     * Gives the summary persisted by {@link TileSummaryCache} to the tiles which are still shown
+     * without one, once it is loaded.
+     */
+    @VisibleForTesting
+    void applyCachedSummaries() {
+        if (mReleased) {
+            return;
+        }
+        final List<Tile> tiles = new ArrayList<>();
+        if (mCategoryKey != null) {
+            final DashboardCategory category =
+                    mDashboardFeatureProvider.getTilesForCategory(mCategoryKey);
+            if (category != null && category.tiles != null) {
+                tiles.addAll(category.tiles);
+            }
+        } else {
+            for (int i = 0; i < mProviderStates.size(); i++) {
+                tiles.add(mProviderStates.get(i).tile);
+            }
+        }
+        final List<Tile> changedTiles = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i++) {
+            final Tile tile = tiles.get(i);
+            if (!TextUtils.isEmpty(tile.summary) || tile.intent == null
+                    || tile.intent.getComponent() == null
+                    || mSummaryTextMap.containsKey(
+                            mDashboardFeatureProvider.getDashboardKeyForTile(tile))) {
+                continue;
+            }
+            final CharSequence summary = mTileSummaryCache.get(tile.intent.getComponent());
+            if (summary != null) {
+                tile.summary = summary;
+                changedTiles.add(tile);
             }
         }
+        if (!changedTiles.isEmpty() && mSummaryConsumer != null) {
+            mSummaryConsumer.notifySummariesChanged(changedTiles);
+        }
+    }
+
+    private void addProvider(Tile tile) {
+        final ProviderState state = new ProviderState(tile);
+        mProviderStates.add(state);
+        syncProvider(state);
     }
 
-    private synchronized void makeProviderW(Tile tile) {
-        SummaryProvider provider = getSummaryProvider(tile);
-        if (provider != null) {
-            if (DEBUG) Log.d(TAG, "Creating " + tile);
-            mSummaryProviderMap.put(provider, tile.intent.getComponent());
+    /**
+     * Brings the provider of a tile to the current listening state on the shared pool. Providers
+     * run concurrently with each other, while the calls of one provider are serialized.
+     */
+    private void syncProvider(ProviderState state) {
+        final FutureTask<Void> task = new FutureTask<>(() -> syncProviderW(state), null);
+        final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingDeadlines) {
+                    mPendingDeadlines.remove(this);
+                }
+                if (!task.isDone()) {
+                    // Providers don't support being interrupted, so a slow one is only reported.
+                    Log.w(TAG, "Summary provider for " + state.component + " is slow");
+                    mMetricsFeatureProvider.count(mActivity, METRICS_SUMMARY_PROVIDER_TIMEOUT
+                            + state.component.flattenToShortString(), 1);
+                }
+            }
+        };
+        if (!mReleased) {
+            synchronized (mPendingDeadlines) {
+                mPendingDeadlines.add(deadline);
+            }
+            mHandler.postDelayed(deadline, PROVIDER_DEADLINE_MS);
+        }
+        mExecutor.execute(() -> {
+            task.run();
+            mHandler.removeCallbacks(deadline);
+            synchronized (mPendingDeadlines) {
+                mPendingDeadlines.remove(deadline);
+            }
+        });
+    }
+
+    private void syncProviderW(ProviderState state) {
+        synchronized (state) {
+            final long startTime = SystemClock.elapsedRealtime();
+            if (!state.created) {
+                state.created = true;
+                if (!mReleased) {
+                    state.provider = getSummaryProvider(state.tile);
+                }
+                if (state.provider != null) {
+                    if (DEBUG) Log.d(TAG, "Creating " + state.tile);
+                    synchronized (mSummaryProviderMap) {
+                        mSummaryProviderMap.put(state.provider, state.component);
+                    }
+                }
+            }
+            final boolean listening = mWorkerListening;
+            if (state.provider == null || state.listening == listening) {
+                return;
+            }
+            if (DEBUG) Log.d(TAG, "Listening " + listening + " " + state.component);
+            try {
+                state.provider.setListening(listening);
+            } catch (Exception e) {
+                Log.d(TAG, "Problem in setListening", e);
+            }
+            state.listening = listening;
+            mMetricsFeatureProvider.histogram(mActivity,
+                    METRICS_SUMMARY_PROVIDER_LATENCY + state.component.flattenToShortString(),
+                    (int) (SystemClock.elapsedRealtime() - startTime));
         }
     }
 
@@ -275,7 +499,22 @@ public class SummaryLoader {
         return null;
     }
 
-
+    /**
+     * The summary provider of one tile, and the listening state last applied to it. Only read
+     * or written while holding its lock.
+     */
+    private static class ProviderState {
+        final Tile tile;
+        final ComponentName component;
+        boolean created;
+        SummaryProvider provider;
+        boolean listening;
+
+        ProviderState(Tile tile) {
+            this.tile = tile;
+            component = tile.intent.getComponent();
+        }
+    }
 
     public interface SummaryProvider {
         void setListening(boolean listening);
@@ -283,32 +522,18 @@ public class SummaryLoader {
 
     public interface SummaryConsumer {
         void notifySummaryChanged(Tile tile);
+
+        /**
+         * Called once per frame with every tile whose summary changed during it.
+         */
+        default void notifySummariesChanged(List<Tile> tiles) {
+            for (int i = 0; i < tiles.size(); i++) {
+                notifySummaryChanged(tiles.get(i));
+            }
+        }
     }
 
     public interface SummaryProviderFactory {
         SummaryProvider createSummaryProvider(Activity activity, SummaryLoader summaryLoader);
     }
-
-    private class Worker extends Handler {
-        private static final int MSG_GET_PROVIDER = 1;
-        private static final int MSG_SET_LISTENING = 2;
-
-        public Worker(Looper looper) {
-            super(looper);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_GET_PROVIDER:
-                    Tile tile = (Tile) msg.obj;
-                    makeProviderW(tile);
-                    break;
-                case MSG_SET_LISTENING:
-                    boolean listening = msg.arg1 != 0;
-                    setListeningW(listening);
-                    break;
-            }
-        }
-    }
 }
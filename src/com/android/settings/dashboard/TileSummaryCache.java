@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Last summaries reported for dashboard tiles, kept on disk so a cold start can show them
+ * before the {@link SummaryLoader.SummaryProvider}s report again.
+ *
+ * Summaries are dropped when the locale changes, when the package of the tile was updated since,
+ * or after {@link #MAX_AGE_MS}. Only plain text is kept, summaries with spans aren't cached.
+ *
+ * The file is read in the background, so summaries are only returned once it is loaded. Use
+ * {@link #addOnLoadListener} to apply them to tiles shown before that.
+ */
+public class TileSummaryCache {
+
+    private static final String TAG = "TileSummaryCache";
+
+    private static final String FILE_NAME = "tile_summaries";
+
+    /**
+     * Version of the file format, files of another version are ignored.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Update time of an entry whose package wasn't looked up yet, done when it is written.
+     */
+    private static final long UNKNOWN_UPDATE_TIME = -1;
+
+    @VisibleForTesting
+    static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static TileSummaryCache sInstance;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final Executor mExecutor;
+    private final Map<ComponentName, Entry> mEntries = new ArrayMap<>();
+    private final Map<String, Long> mPackageUpdateTimes = new ArrayMap<>();
+    /**
+     * Tiles whose summary was removed before the file was loaded, their stored one is ignored.
+     */
+    private final Set<ComponentName> mRemovedBeforeLoad = new ArraySet<>();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null) {
+                onPackageChanged(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    /**
+     * Listeners to notify once the file is loaded, guarded by this.
+     */
+    private final Set<OnLoadListener> mLoadListeners = new ArraySet<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private String mLocale;
+    private boolean mLoaded;
+    private boolean mWriteScheduled;
+
+    public static synchronized TileSummaryCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new TileSummaryCache(appContext,
+                    new File(appContext.getCacheDir(), FILE_NAME),
+                    Executors.newSingleThreadExecutor());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads the cache file on the executor, and starts dropping the summaries of a package when
+     * it is replaced or changed.
+     */
+    @VisibleForTesting
+    TileSummaryCache(Context context, File file, Executor executor) {
+        mContext = context;
+        mFile = new AtomicFile(file);
+        mExecutor = executor;
+        mLocale = Locale.getDefault().toString();
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+        mExecutor.execute(this::read);
+    }
+
+    /**
+     * @return the cached summary of the tile, or null if there is none or it is stale.
+     */
+    public synchronized CharSequence get(ComponentName component) {
+        dropEntriesIfLocaleChanged();
+        final Entry entry = mEntries.get(component);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.timestamp > MAX_AGE_MS) {
+            mEntries.remove(component);
+            return null;
+        }
+        return entry.summary;
+    }
+
+    /**
+     * Registers a listener notified on the main thread once the file is loaded.
+     *
+     * @return true if the file is already loaded, the listener is then not registered.
+     */
+    public synchronized boolean addOnLoadListener(OnLoadListener listener) {
+        if (mLoaded) {
+            return true;
+        }
+        mLoadListeners.add(listener);
+        return false;
+    }
+
+    public synchronized void removeOnLoadListener(OnLoadListener listener) {
+        mLoadListeners.remove(listener);
+    }
+
+    /**
+     * Records the summary of the tile, the file is written in the background. A summary with
+     * spans only removes the cached one, as the file stores plain text.
+     */
+    public void put(ComponentName component, CharSequence summary) {
+        put(component, summary, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    void put(ComponentName component, CharSequence summary, long timestamp) {
+        synchronized (this) {
+            dropEntriesIfLocaleChanged();
+            if (summary == null || summary instanceof Spanned) {
+                if (!mLoaded) {
+                    mRemovedBeforeLoad.add(component);
+                }
+                if (mEntries.remove(component) == null && mLoaded) {
+                    return;
+                }
+            } else {
+                final Entry entry = mEntries.get(component);
+                if (entry != null && TextUtils.equals(entry.summary, summary)
+                        && timestamp - entry.timestamp < MAX_AGE_MS / 2) {
+                    // Unchanged and still fresh, not worth a write.
+                    return;
+                }
+                mEntries.put(component,
+                        new Entry(summary.toString(), timestamp, UNKNOWN_UPDATE_TIME));
+            }
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Drops the summaries of a package which was replaced or changed, they may be out of date.
+     */
+    @VisibleForTesting
+    void onPackageChanged(String packageName) {
+        synchronized (mPackageUpdateTimes) {
+            mPackageUpdateTimes.remove(packageName);
+        }
+        synchronized (this) {
+            boolean removed = false;
+            final Iterator<ComponentName> iterator = mEntries.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getPackageName().equals(packageName)) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+            if (!removed) {
+                return;
+            }
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        synchronized (this) {
+            if (mWriteScheduled) {
+                return;
+            }
+            mWriteScheduled = true;
+        }
+        mExecutor.execute(this::write);
+    }
+
+    private synchronized void dropEntriesIfLocaleChanged() {
+        final String locale = Locale.getDefault().toString();
+        if (!locale.equals(mLocale)) {
+            mLocale = locale;
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Loads the file, summaries recorded since the cache was created take precedence.
+     */
+    private void read() {
+        final long now = System.currentTimeMillis();
+        final String locale;
+        synchronized (this) {
+            locale = mLocale;
+        }
+        final Map<ComponentName, Entry> entries = new ArrayMap<>();
+        readEntries(locale, now, entries);
+        final List<OnLoadListener> listeners;
+        synchronized (this) {
+            if (locale.equals(mLocale)) {
+                for (Map.Entry<ComponentName, Entry> mapEntry : entries.entrySet()) {
+                    final ComponentName component = mapEntry.getKey();
+                    if (!mEntries.containsKey(component)
+                            && !mRemovedBeforeLoad.contains(component)) {
+                        mEntries.put(component, mapEntry.getValue());
+                    }
+                }
+            }
+            mRemovedBeforeLoad.clear();
+            mLoaded = true;
+            listeners = new ArrayList<>(mLoadListeners);
+            mLoadListeners.clear();
+        }
+        if (!listeners.isEmpty()) {
+            mMainHandler.post(() -> {
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).onTileSummariesLoaded();
+                }
+            });
+        }
+    }
+
+    private void readEntries(String locale, long now, Map<ComponentName, Entry> entries) {
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != VERSION || !locale.equals(in.readUTF())) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final ComponentName component = new ComponentName(in.readUTF(), in.readUTF());
+                final Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+                final boolean fresh = now - entry.timestamp <= MAX_AGE_MS;
+                final boolean packageUnchanged = entry.packageUpdateTime
+                        == getPackageUpdateTime(component.getPackageName());
+                if (fresh && packageUnchanged) {
+                    entries.put(component, entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read tile summaries", e);
+            entries.clear();
+        }
+    }
+
+    private void write() {
+        final Map<ComponentName, Entry> entries;
+        final String locale;
+        synchronized (this) {
+            mWriteScheduled = false;
+            entries = new ArrayMap<>(mEntries);
+            locale = mLocale;
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(VERSION);
+            out.writeUTF(locale);
+            out.writeInt(entries.size());
+            for (Map.Entry<ComponentName, Entry> mapEntry : entries.entrySet()) {
+                final ComponentName component = mapEntry.getKey();
+                final Entry entry = mapEntry.getValue();
+                final long packageUpdateTime = entry.packageUpdateTime != UNKNOWN_UPDATE_TIME
+                        ? entry.packageUpdateTime
+                        : getPackageUpdateTime(component.getPackageName());
+                out.writeUTF(component.getPackageName());
+                out.writeUTF(component.getClassName());
+                out.writeUTF(entry.summary);
+                out.writeLong(entry.timestamp);
+                out.writeLong(packageUpdateTime);
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write tile summaries", e);
+            mFile.failWrite(stream);
+        }
+    }
+
+    /**
+     * Only call from the executor, it may query the package manager.
+     *
+     * @return when the package was last installed or updated, or 0 if it isn't installed.
+     */
+    private long getPackageUpdateTime(String packageName) {
+        synchronized (mPackageUpdateTimes) {
+            Long updateTime = mPackageUpdateTimes.get(packageName);
+            if (updateTime == null) {
+                try {
+                    updateTime = mContext.getPackageManager()
+                            .getPackageInfo(packageName, 0 /* flags */).lastUpdateTime;
+                } catch (PackageManager.NameNotFoundException e) {
+                    updateTime = 0L;
+                }
+                mPackageUpdateTimes.put(packageName, updateTime);
+            }
+            return updateTime;
+        }
+    }
+
+    /**
+     * Notified once the summaries stored on disk can be returned by {@link #get}.
+     */
+    public interface OnLoadListener {
+        void onTileSummariesLoaded();
+    }
+
+    private static class Entry {
+        final String summary;
+        final long timestamp;
+        final long packageUpdateTime;
+
+        Entry(String summary, long timestamp, long packageUpdateTime) {
+            this.summary = summary;
+            this.timestamp = timestamp;
+            this.packageUpdateTime = packageUpdateTime;
+        }
+    }
+}
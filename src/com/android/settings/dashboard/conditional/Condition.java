@@ -57,6 +57,26 @@ public abstract class Condition {
         mLastStateChange = bundle.getLong(KEY_LAST_STATE);
     }
 
+    /**
+     * Restores the saved state onto a condition which was refreshed already. The current active
+     * state wins, and a dismissal made since the state was saved is kept.
+     *
+     * @return true if the state differs from the saved one, so it needs to be saved again.
+     */
+    boolean mergeState(PersistableBundle bundle) {
+        if (mIsActive) {
+            if (bundle.getBoolean(KEY_ACTIVE)) {
+                mLastStateChange = bundle.getLong(KEY_LAST_STATE);
+            }
+            if (!mIsSilenced && bundle.getBoolean(KEY_SILENCE)) {
+                mIsSilenced = true;
+                onSilenceChanged(mIsSilenced);
+            }
+        }
+        return mIsSilenced != bundle.getBoolean(KEY_SILENCE)
+                || mIsActive != bundle.getBoolean(KEY_ACTIVE);
+    }
+
     boolean saveState(PersistableBundle bundle) {
         if (mIsSilenced) {
             bundle.putBoolean(KEY_SILENCE, mIsSilenced);
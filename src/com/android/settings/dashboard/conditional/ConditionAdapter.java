@@ -16,6 +16,7 @@
 package com.android.settings.dashboard.conditional;
 
 import android.content.Context;
+import android.graphics.drawable.Icon;
 import android.support.annotation.VisibleForTesting;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
@@ -32,6 +33,7 @@ import com.android.settings.dashboard.DashboardAdapter;
 import com.android.settings.dashboard.DashboardAdapter.DashboardItemHolder;
 import com.android.settings.dashboard.DashboardData;
 import com.android.settings.dashboard.DashboardData.HeaderMode;
+import com.android.settings.dashboard.IconCache;
 import com.android.settings.overlay.FeatureFactory;
 import com.android.settingslib.WirelessUtils;
 
@@ -148,7 +150,12 @@ public class ConditionAdapter extends RecyclerView.Adapter<DashboardItemHolder>
         View card = view.itemView.findViewById(R.id.content);
         card.setTag(condition);
         card.setOnClickListener(onClickListener);
-        view.icon.setImageIcon(condition.getIcon());
+        // Conditions of a type always show the same icon.
+        view.icon.setImageDrawable(IconCache.getInstance(mContext).getIcon(
+                condition.getClass().getName(), () -> {
+                    final Icon icon = condition.getIcon();
+                    return icon == null ? null : icon.loadDrawable(mContext);
+                }));
         view.title.setText(condition.getTitle());
 
         CharSequence[] actions = condition.getActions();
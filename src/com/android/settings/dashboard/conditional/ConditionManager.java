@@ -18,6 +18,9 @@ package com.android.settings.dashboard.conditional;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.os.PersistableBundle;
+import android.support.annotation.VisibleForTesting;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Xml;
 
@@ -29,13 +32,19 @@ import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
 
@@ -50,25 +59,64 @@ public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
     private static final String TAG_CONDITION = "c";
     private static final String ATTR_CLASS = "cls";
 
+    /**
+     * Creates the conditions by the simple class name they are saved under, in the order they are
+     * added to the dashboard.
+     */
+    private static final Map<String, ConditionFactory> CONDITION_FACTORIES =
+            new LinkedHashMap<>();
+
+    static {
+        register(AirplaneModeCondition.class, AirplaneModeCondition::new);
+        register(HotspotCondition.class, HotspotCondition::new);
+        register(DndCondition.class, DndCondition::new);
+        register(BatterySaverCondition.class, BatterySaverCondition::new);
+        register(CellularDataCondition.class, CellularDataCondition::new);
+        register(BackgroundDataCondition.class, BackgroundDataCondition::new);
+        register(WorkModeCondition.class, WorkModeCondition::new);
+        register(NightDisplayCondition.class, NightDisplayCondition::new);
+    }
+
     private static ConditionManager sInstance;
 
     private final Context mContext;
     private final ArrayList<Condition> mConditions;
-    private File mXmlFile;
+    private final AtomicFile mXmlFile;
+    private final Executor mWriteExecutor;
 
     private final ArrayList<ConditionListener> mListeners = new ArrayList<>();
 
+    // Whether the saved state was restored, nothing is written before so it isn't overwritten.
+    private boolean mStateRestored;
+    // Latest state waiting to be written, null when no write is scheduled.
+    private Map<String, PersistableBundle> mPendingStates;
+
     private ConditionManager(Context context, boolean loadConditionsNow) {
+        this(context, loadConditionsNow, new File(context.getFilesDir(), FILE_NAME),
+                Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * When loadConditionsNow is true the conditions are created and refreshed right away, so
+     * {@link #getCondition(Class)} can be used at once, and their saved state is merged in once
+     * it was read in the background, keeping the dismissals made meanwhile. Otherwise the
+     * conditions are created and restored in the background, and refreshed afterwards.
+     */
+    @VisibleForTesting
+    ConditionManager(Context context, boolean loadConditionsNow, File xmlFile,
+            Executor writeExecutor) {
         mContext = context;
         mConditions = new ArrayList<>();
+        mXmlFile = new AtomicFile(xmlFile);
+        mWriteExecutor = writeExecutor;
         if (loadConditionsNow) {
             Log.d(TAG, "conditions loading synchronously");
-            ConditionLoader loader = new ConditionLoader();
-            loader.onPostExecute(loader.doInBackground());
+            addMissingConditions(mConditions);
+            refreshAll();
         } else {
             Log.d(TAG, "conditions loading asychronously");
-            new ConditionLoader().execute();
         }
+        new ConditionLoader(!loadConditionsNow).execute();
     }
 
     public void refreshAll() {
@@ -78,29 +126,32 @@ public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
         }
     }
 
-    private void readFromXml(File xmlFile, ArrayList<Condition> conditions) {
-        if (DEBUG) Log.d(TAG, "Reading from " + xmlFile.toString());
-        try {
+    /**
+     * @return the saved state of each known condition, keyed by its simple class name.
+     */
+    @VisibleForTesting
+    static Map<String, PersistableBundle> readFromXml(AtomicFile xmlFile) {
+        if (DEBUG) Log.d(TAG, "Reading from " + xmlFile.getBaseFile());
+        final Map<String, PersistableBundle> states = new ArrayMap<>();
+        try (FileInputStream in = xmlFile.openRead()) {
             XmlPullParser parser = Xml.newPullParser();
-            FileReader in = new FileReader(xmlFile);
-            parser.setInput(in);
+            parser.setInput(in, StandardCharsets.UTF_8.name());
             int state = parser.getEventType();
 
             while (state != XmlPullParser.END_DOCUMENT) {
                 if (TAG_CONDITION.equals(parser.getName())) {
                     int depth = parser.getDepth();
                     String clz = parser.getAttributeValue("", ATTR_CLASS);
-                    if (!clz.startsWith(PKG)) {
-                        clz = PKG + clz;
+                    // Older versions may have saved the fully qualified name.
+                    if (clz != null && clz.startsWith(PKG)) {
+                        clz = clz.substring(PKG.length());
                     }
-                    Condition condition = createCondition(Class.forName(clz));
                     PersistableBundle bundle = PersistableBundle.restoreFromXml(parser);
                     if (DEBUG) Log.d(TAG, "Reading " + clz + " -- " + bundle);
-                    if (condition != null) {
-                        condition.restoreState(bundle);
-                        conditions.add(condition);
+                    if (CONDITION_FACTORIES.containsKey(clz)) {
+                        states.put(clz, bundle);
                     } else {
-                        Log.e(TAG, "failed to add condition: " + clz);
+                        Log.e(TAG, "unknown condition: " + clz);
                     }
                     while (parser.getDepth() > depth) {
                         parser.next();
@@ -108,83 +159,130 @@ public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
                 }
                 state = parser.next();
             }
-            in.close();
-        } catch (XmlPullParserException | IOException | ClassNotFoundException e) {
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (XmlPullParserException | IOException e) {
             Log.w(TAG, "Problem reading " + FILE_NAME, e);
         }
+        return states;
+    }
+
+    /**
+     * Writes the state of the conditions in the background. The state is captured now, and
+     * changes made before the write starts are coalesced into a single write of the latest state.
+     */
+    private void scheduleSave() {
+        if (!mStateRestored) {
+            return;
+        }
+        final Map<String, PersistableBundle> states = new ArrayMap<>();
+        final int N = mConditions.size();
+        for (int i = 0; i < N; i++) {
+            PersistableBundle bundle = new PersistableBundle();
+            if (mConditions.get(i).saveState(bundle)) {
+                states.put(mConditions.get(i).getClass().getSimpleName(), bundle);
+            }
+        }
+        synchronized (this) {
+            final boolean writeScheduled = mPendingStates != null;
+            mPendingStates = states;
+            if (writeScheduled) {
+                return;
+            }
+        }
+        mWriteExecutor.execute(this::saveToXml);
     }
 
     private void saveToXml() {
-        if (DEBUG) Log.d(TAG, "Writing to " + mXmlFile.toString());
+        final Map<String, PersistableBundle> states;
+        synchronized (this) {
+            states = mPendingStates;
+            mPendingStates = null;
+        }
+        writeToXml(mXmlFile, states);
+    }
+
+    @VisibleForTesting
+    static void writeToXml(AtomicFile xmlFile, Map<String, PersistableBundle> states) {
+        if (DEBUG) Log.d(TAG, "Writing to " + xmlFile.getBaseFile());
+        FileOutputStream out = null;
         try {
+            out = xmlFile.startWrite();
             XmlSerializer serializer = Xml.newSerializer();
-            FileWriter writer = new FileWriter(mXmlFile);
-            serializer.setOutput(writer);
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
 
-            serializer.startDocument("UTF-8", true);
+            serializer.startDocument(StandardCharsets.UTF_8.name(), true);
             serializer.startTag("", TAG_CONDITIONS);
 
-            final int N = mConditions.size();
-            for (int i = 0; i < N; i++) {
-                PersistableBundle bundle = new PersistableBundle();
-                if (mConditions.get(i).saveState(bundle)) {
-                    serializer.startTag("", TAG_CONDITION);
-                    final String clz = mConditions.get(i).getClass().getSimpleName();
-                    serializer.attribute("", ATTR_CLASS, clz);
-                    bundle.saveToXml(serializer);
-                    serializer.endTag("", TAG_CONDITION);
-                }
+            for (Map.Entry<String, PersistableBundle> state : states.entrySet()) {
+                serializer.startTag("", TAG_CONDITION);
+                serializer.attribute("", ATTR_CLASS, state.getKey());
+                state.getValue().saveToXml(serializer);
+                serializer.endTag("", TAG_CONDITION);
             }
 
             serializer.endTag("", TAG_CONDITIONS);
-            serializer.flush();
-            writer.close();
+            serializer.endDocument();
+            xmlFile.finishWrite(out);
         } catch (XmlPullParserException | IOException e) {
             Log.w(TAG, "Problem writing " + FILE_NAME, e);
+            if (out != null) {
+                xmlFile.failWrite(out);
+            }
         }
     }
 
     private void addMissingConditions(ArrayList<Condition> conditions) {
-        addIfMissing(AirplaneModeCondition.class, conditions);
-        addIfMissing(HotspotCondition.class, conditions);
-        addIfMissing(DndCondition.class, conditions);
-        addIfMissing(BatterySaverCondition.class, conditions);
-        addIfMissing(CellularDataCondition.class, conditions);
-        addIfMissing(BackgroundDataCondition.class, conditions);
-        addIfMissing(WorkModeCondition.class, conditions);
-        addIfMissing(NightDisplayCondition.class, conditions);
+        for (Map.Entry<String, ConditionFactory> entry : CONDITION_FACTORIES.entrySet()) {
+            if (getCondition(entry.getKey(), conditions) == null) {
+                if (DEBUG) Log.d(TAG, "Adding missing " + entry.getKey());
+                conditions.add(entry.getValue().create(this));
+            }
+        }
         Collections.sort(conditions, CONDITION_COMPARATOR);
     }
 
-    private void addIfMissing(Class<? extends Condition> clz, ArrayList<Condition> conditions) {
-        if (getCondition(clz, conditions) == null) {
-            if (DEBUG) Log.d(TAG, "Adding missing " + clz.getName());
-            Condition condition = createCondition(clz);
+    /**
+     * Merges the saved state into the conditions which were refreshed before it was read.
+     *
+     * @return true if a condition changed since its state was saved.
+     */
+    private boolean mergeState(List<Condition> conditions, Map<String, PersistableBundle> states) {
+        boolean changed = false;
+        for (int i = 0, size = conditions.size(); i < size; i++) {
+            final Condition condition = conditions.get(i);
+            PersistableBundle state = states.get(condition.getClass().getSimpleName());
+            if (state == null) {
+                state = new PersistableBundle();
+            }
+            changed |= condition.mergeState(state);
+        }
+        return changed;
+    }
+
+    /**
+     * Restores the saved state onto the conditions, they still need a refresh as it may be stale.
+     */
+    private void restoreState(List<Condition> conditions, Map<String, PersistableBundle> states) {
+        for (Map.Entry<String, PersistableBundle> state : states.entrySet()) {
+            Condition condition = getCondition(state.getKey(), conditions);
             if (condition != null) {
-                conditions.add(condition);
+                condition.restoreState(state.getValue());
             }
         }
     }
 
-    private Condition createCondition(Class<?> clz) {
-        if (AirplaneModeCondition.class == clz) {
-            return new AirplaneModeCondition(this);
-        } else if (HotspotCondition.class == clz) {
-            return new HotspotCondition(this);
-        } else if (DndCondition.class == clz) {
-            return new DndCondition(this);
-        } else if (BatterySaverCondition.class == clz) {
-            return new BatterySaverCondition(this);
-        } else if (CellularDataCondition.class == clz) {
-            return new CellularDataCondition(this);
-        } else if (BackgroundDataCondition.class == clz) {
-            return new BackgroundDataCondition(this);
-        } else if (WorkModeCondition.class == clz) {
-            return new WorkModeCondition(this);
-        } else if (NightDisplayCondition.class == clz) {
-            return new NightDisplayCondition(this);
+    private static void register(Class<? extends Condition> clz, ConditionFactory factory) {
+        CONDITION_FACTORIES.put(clz.getSimpleName(), factory);
+    }
+
+    private static Condition getCondition(String name, List<Condition> conditions) {
+        final int N = conditions.size();
+        for (int i = 0; i < N; i++) {
+            if (name.equals(conditions.get(i).getClass().getSimpleName())) {
+                return conditions.get(i);
+            }
         }
-        Log.e(TAG, "unknown condition class: " + clz.getSimpleName());
         return null;
     }
 
@@ -222,7 +320,11 @@ public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
     }
 
     public void notifyChanged(Condition condition) {
-        saveToXml();
+        scheduleSave();
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
         Collections.sort(mConditions, CONDITION_COMPARATOR);
         final int N = mListeners.size();
         for (int i = 0; i < N; i++) {
@@ -254,24 +356,44 @@ public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
     }
 
     private class ConditionLoader extends AsyncTask<Void, Void, ArrayList<Condition>> {
+        private final boolean mCreateConditions;
+        private Map<String, PersistableBundle> mStates;
+
+        ConditionLoader(boolean createConditions) {
+            mCreateConditions = createConditions;
+        }
+
         @Override
         protected ArrayList<Condition> doInBackground(Void... params) {
             Log.d(TAG, "loading conditions from xml");
-            ArrayList<Condition> conditions = new ArrayList<>();
-            mXmlFile = new File(mContext.getFilesDir(), FILE_NAME);
-            if (mXmlFile.exists()) {
-                readFromXml(mXmlFile, conditions);
+            mStates = readFromXml(mXmlFile);
+            if (!mCreateConditions) {
+                return null;
             }
+            ArrayList<Condition> conditions = new ArrayList<>();
             addMissingConditions(conditions);
+            restoreState(conditions, mStates);
             return conditions;
         }
 
         @Override
         protected void onPostExecute(ArrayList<Condition> conditions) {
             Log.d(TAG, "conditions loaded from xml, refreshing conditions");
-            mConditions.clear();
-            mConditions.addAll(conditions);
-            refreshAll();
+            if (conditions != null) {
+                mConditions.clear();
+                mConditions.addAll(conditions);
+                mStateRestored = true;
+                // Conditions whose state changed since it was saved are written again.
+                refreshAll();
+            } else {
+                // Already refreshed, dismissals made before the state was read are kept.
+                final boolean changed = mergeState(mConditions, mStates);
+                mStateRestored = true;
+                if (changed) {
+                    scheduleSave();
+                }
+            }
+            notifyListeners();
         }
     }
 
@@ -290,6 +412,10 @@ public class ConditionManager implements LifecycleObserver, OnResume, OnPause {
         void onConditionsChanged();
     }
 
+    private interface ConditionFactory {
+        Condition create(ConditionManager manager);
+    }
+
     private static final Comparator<Condition> CONDITION_COMPARATOR = new Comparator<Condition>() {
         @Override
         public int compare(Condition lhs, Condition rhs) {
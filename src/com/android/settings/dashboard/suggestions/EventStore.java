@@ -16,15 +16,20 @@
 package com.android.settings.dashboard.suggestions;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.support.annotation.VisibleForTesting;
+import android.util.ArrayMap;
 import android.util.Log;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Stores suggestion related statistics.
+ *
+ * Events are kept in a {@link SuggestionEventLog}, shared by all the instances for the same
+ * context.
  */
 public class EventStore {
 
@@ -36,15 +41,54 @@ public class EventStore {
     public static final String METRIC_LAST_EVENT_TIME = "last_event_time";
     public static final String METRIC_COUNT = "count";
 
-    private static final Set<String> EVENTS = new HashSet<String>(
-            Arrays.asList(new String[] {EVENT_SHOWN, EVENT_DISMISSED, EVENT_CLICKED}));
-    private static final Set<String> METRICS = new HashSet<String>(
-            Arrays.asList(new String[] {METRIC_LAST_EVENT_TIME, METRIC_COUNT}));
+    // Indices of the events and metrics, see readMetrics(String, long[]).
+    public static final int EVENT_INDEX_SHOWN = 0;
+    public static final int EVENT_INDEX_DISMISSED = 1;
+    public static final int EVENT_INDEX_CLICKED = 2;
+    public static final int METRIC_INDEX_LAST_EVENT_TIME = 0;
+    public static final int METRIC_INDEX_COUNT = 1;
+
+    static final String[] EVENTS = {EVENT_SHOWN, EVENT_DISMISSED, EVENT_CLICKED};
+    static final String[] METRICS = {METRIC_LAST_EVENT_TIME, METRIC_COUNT};
+
+    /**
+     * Number of metrics of a package, the size of the array passed to readMetrics.
+     */
+    public static final int METRICS_PER_PACKAGE = EVENTS.length * METRICS.length;
 
-    private final SharedPreferences mSharedPrefs;
+    private static final String FILE_NAME = "suggestion_events";
+
+    @VisibleForTesting
+    static final int COMPACT_EVENT_COUNT = SuggestionEventLog.COMPACT_EVENT_COUNT;
+
+    private static final Map<String, SuggestionEventLog> sLogs = new ArrayMap<>();
+    private static Executor sExecutor;
+
+    private final SuggestionEventLog mLog;
 
     public EventStore(Context context) {
-        mSharedPrefs = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        mLog = getLog(context);
+    }
+
+    @VisibleForTesting
+    EventStore(File file, Executor executor) {
+        mLog = new SuggestionEventLog(file, executor, null /* prefs */);
+    }
+
+    private static SuggestionEventLog getLog(Context context) {
+        final File file = new File(context.getFilesDir(), FILE_NAME);
+        synchronized (sLogs) {
+            SuggestionEventLog log = sLogs.get(file.getPath());
+            if (log == null) {
+                if (sExecutor == null) {
+                    sExecutor = Executors.newSingleThreadExecutor();
+                }
+                log = new SuggestionEventLog(file, sExecutor,
+                        context.getSharedPreferences(TAG, Context.MODE_PRIVATE));
+                sLogs.put(file.getPath(), log);
+            }
+            return log;
+        }
     }
 
     /**
@@ -53,14 +97,12 @@ public class EventStore {
      * @param eventType: Type of event (one of {@link #EVENTS}).
      */
     public void writeEvent(String pkgName, String eventType) {
-        if (!EVENTS.contains(eventType)) {
+        final int event = indexOf(EVENTS, eventType);
+        if (event < 0) {
             Log.w(TAG, "Reported event type " + eventType + " is not a valid type!");
             return;
         }
-        final String lastTimePrefKey = getPrefKey(pkgName, eventType, METRIC_LAST_EVENT_TIME);
-        final String countPrefKey = getPrefKey(pkgName, eventType, METRIC_COUNT);
-        writePref(lastTimePrefKey, System.currentTimeMillis());
-        writePref(countPrefKey, readPref(countPrefKey, (long) 0) + 1);
+        mLog.appendEvent(pkgName, event, System.currentTimeMillis());
     }
 
     /**
@@ -71,32 +113,42 @@ public class EventStore {
      * @return the corresponding metric.
      */
     public long readMetric(String pkgName, String eventType, String metricType) {
-        if (!EVENTS.contains(eventType)) {
+        final int event = indexOf(EVENTS, eventType);
+        final int metric = indexOf(METRICS, metricType);
+        if (event < 0) {
             Log.w(TAG, "Reported event type " + eventType + " is not a valid event!");
             return 0;
-        } else if (!METRICS.contains(metricType)) {
+        } else if (metric < 0) {
             Log.w(TAG, "Required stat type + " + metricType + " is not a valid stat!");
             return 0;
         }
-        return readPref(getPrefKey(pkgName, eventType, metricType), (long) 0);
+        final long[] metrics = new long[METRICS_PER_PACKAGE];
+        readMetrics(pkgName, metrics);
+        return metrics[getMetricIndex(event, metric)];
     }
 
-    private void writePref(String prefKey, long value) {
-        mSharedPrefs.edit().putLong(prefKey, value).apply();
+    /**
+     * Reads all metrics of the package without allocating. Waits for the events to be loaded
+     * from disk, so don't call from the main thread.
+     * @param metrics: Receives the metrics, at {@link #getMetricIndex}. Zero if never reported.
+     */
+    public void readMetrics(String pkgName, long[] metrics) {
+        mLog.readMetrics(pkgName, metrics);
     }
 
-    private long readPref(String prefKey, Long defaultValue) {
-        return mSharedPrefs.getLong(prefKey, defaultValue);
+    /**
+     * @return the position of the metric in the array filled by {@link #readMetrics}.
+     */
+    public static int getMetricIndex(int event, int metric) {
+        return event * METRICS.length + metric;
     }
 
-    private String getPrefKey(String pkgName, String eventType, String statType) {
-        return new StringBuilder()
-                .append("setting_suggestion_")
-                .append(pkgName)
-                .append("_")
-                .append(eventType)
-                .append("_")
-                .append(statType)
-                .toString();
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
@@ -27,7 +27,7 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.core.instrumentation.MetricsFeatureProvider;
 import com.android.settings.dashboard.DashboardAdapter.DashboardItemHolder;
-import com.android.settings.dashboard.DashboardAdapter.IconCache;
+import com.android.settings.dashboard.IconCache;
 import com.android.settings.overlay.FeatureFactory;
 import com.android.settingslib.drawer.Tile;
 
@@ -49,7 +49,7 @@ public class SuggestionAdapter extends RecyclerView.Adapter<DashboardItemHolder>
         mContext = context;
         mSuggestions = suggestions;
         mSuggestionsShownLogged = suggestionsShownLogged;
-        mCache = new IconCache(context);
+        mCache = IconCache.getInstance(context);
         final FeatureFactory factory = FeatureFactory.getFactory(context);
         mMetricsFeatureProvider = factory.getMetricsFeatureProvider();
         mSuggestionFeatureProvider = factory.getSuggestionFeatureProvider(context);
@@ -80,7 +80,7 @@ public class SuggestionAdapter extends RecyclerView.Adapter<DashboardItemHolder>
             itemView.removeAllViews();
             itemView.addView(suggestion.remoteViews.apply(itemView.getContext(), itemView));
         } else {
-            holder.icon.setImageDrawable(mCache.getIcon(suggestion.icon));
+            holder.icon.setImageDrawable(mCache.getIcon(suggestion));
             holder.title.setText(suggestion.title);
             if (!TextUtils.isEmpty(suggestion.summary)) {
                 holder.summary.setText(suggestion.summary);
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.settings.dashboard.suggestions;
+
+import static com.android.settings.dashboard.suggestions.EventStore.EVENTS;
+import static com.android.settings.dashboard.suggestions.EventStore.METRICS_PER_PACKAGE;
+import static com.android.settings.dashboard.suggestions.EventStore.METRIC_INDEX_COUNT;
+import static com.android.settings.dashboard.suggestions.EventStore.METRIC_INDEX_LAST_EVENT_TIME;
+import static com.android.settings.dashboard.suggestions.EventStore.METRICS;
+import static com.android.settings.dashboard.suggestions.EventStore.getMetricIndex;
+
+import android.content.SharedPreferences;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Binary log of the suggestion events of a file, and the table of metrics aggregated from it.
+ *
+ * The log is loaded on the executor. Events written before are applied once it is loaded, and
+ * reads wait for it. Records are appended on the executor, and the log is compacted into one
+ * aggregate record per package and event once enough events were appended.
+ */
+class SuggestionEventLog {
+
+    private static final String TAG = EventStore.TAG;
+
+    private static final int VERSION = 1;
+
+    // Records of the log, each starts with its type.
+    // Package name, the row of the package is its position among the package records.
+    private static final byte RECORD_PACKAGE = 0;
+    // Row, event and time of one event.
+    private static final byte RECORD_EVENT = 1;
+    // Row, event, count and last time of the events compacted.
+    private static final byte RECORD_AGGREGATE = 2;
+
+    static final int COMPACT_EVENT_COUNT = 500;
+
+    private final AtomicFile mFile;
+    /**
+     * Backup left by a compaction which didn't finish, restored by the next read of the file.
+     */
+    private final File mBackupFile;
+    private final Executor mExecutor;
+    private final Map<String, Integer> mRows = new ArrayMap<>();
+    private final List<String> mPackages = new ArrayList<>();
+    /**
+     * Metrics of all packages, METRICS_PER_PACKAGE longs per row.
+     */
+    private long[] mMetrics = new long[METRICS_PER_PACKAGE * 16];
+    /**
+     * Records not appended to the log yet.
+     */
+    private final ByteArrayOutputStream mPendingRecords = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingOut = new DataOutputStream(mPendingRecords);
+    /**
+     * Events written before the log was loaded.
+     */
+    private final List<Event> mEventsBeforeLoad = new ArrayList<>();
+
+    private boolean mLoaded;
+    private int mEventsSinceCompaction;
+    private boolean mWriteScheduled;
+
+    /**
+     * @param prefs metrics stored by earlier versions, moved to the log if it doesn't exist yet.
+     *              May be null.
+     */
+    SuggestionEventLog(File file, Executor executor, SharedPreferences prefs) {
+        mFile = new AtomicFile(file);
+        mBackupFile = new File(file.getPath() + ".bak");
+        mExecutor = executor;
+        mExecutor.execute(() -> load(prefs));
+    }
+
+    synchronized void appendEvent(String pkgName, int event, long time) {
+        if (!mLoaded) {
+            mEventsBeforeLoad.add(new Event(pkgName, event, time));
+            return;
+        }
+        final int row = getOrCreateRow(pkgName);
+        aggregate(row, event, 1 /* count */, time);
+        try {
+            mPendingOut.writeByte(RECORD_EVENT);
+            mPendingOut.writeShort(row);
+            mPendingOut.writeByte(event);
+            mPendingOut.writeLong(time);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+        }
+        mEventsSinceCompaction++;
+        scheduleWrite();
+    }
+
+    /**
+     * Waits for the log to be loaded, so don't call from the main thread.
+     */
+    synchronized void readMetrics(String pkgName, long[] metrics) {
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Arrays.fill(metrics, 0, METRICS_PER_PACKAGE, 0);
+                return;
+            }
+        }
+        final Integer row = mRows.get(pkgName);
+        if (row == null) {
+            Arrays.fill(metrics, 0, METRICS_PER_PACKAGE, 0);
+        } else {
+            System.arraycopy(mMetrics, row * METRICS_PER_PACKAGE, metrics, 0,
+                    METRICS_PER_PACKAGE);
+        }
+    }
+
+    private int getOrCreateRow(String pkgName) {
+        Integer row = mRows.get(pkgName);
+        if (row == null) {
+            row = mPackages.size();
+            mRows.put(pkgName, row);
+            mPackages.add(pkgName);
+            if (mMetrics.length < (row + 1) * METRICS_PER_PACKAGE) {
+                mMetrics = Arrays.copyOf(mMetrics, mMetrics.length * 2);
+            }
+            try {
+                mPendingOut.writeByte(RECORD_PACKAGE);
+                mPendingOut.writeUTF(pkgName);
+            } catch (IOException e) {
+                // Cannot happen when writing to memory.
+            }
+        }
+        return row;
+    }
+
+    private void aggregate(int row, int event, long count, long lastTime) {
+        final int offset = row * METRICS_PER_PACKAGE;
+        final int timeIndex = offset + getMetricIndex(event, METRIC_INDEX_LAST_EVENT_TIME);
+        mMetrics[offset + getMetricIndex(event, METRIC_INDEX_COUNT)] += count;
+        mMetrics[timeIndex] = Math.max(mMetrics[timeIndex], lastTime);
+    }
+
+    private void scheduleWrite() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mExecutor.execute(this::write);
+        }
+    }
+
+    /**
+     * Appends the pending records, or rewrites the log compacted once it holds enough events or
+     * a backup of it was left, since the backup would replace anything appended.
+     */
+    private void write() {
+        final byte[] records;
+        synchronized (this) {
+            mWriteScheduled = false;
+            if (mEventsSinceCompaction >= COMPACT_EVENT_COUNT || mBackupFile.exists()) {
+                compact();
+                return;
+            }
+            records = mPendingRecords.toByteArray();
+            mPendingRecords.reset();
+        }
+        if (records.length == 0) {
+            return;
+        }
+        final boolean newFile = !mFile.getBaseFile().exists();
+        try (FileOutputStream out = new FileOutputStream(mFile.getBaseFile(), true /* append */)) {
+            if (newFile) {
+                new DataOutputStream(out).writeInt(VERSION);
+            }
+            out.write(records);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append suggestion events", e);
+        }
+    }
+
+    /**
+     * Rewrites the log as one aggregate record per package and event. Must hold the lock.
+     */
+    private void compact() {
+        mPendingRecords.reset();
+        mEventsSinceCompaction = 0;
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(VERSION);
+            for (int row = 0, size = mPackages.size(); row < size; row++) {
+                out.writeByte(RECORD_PACKAGE);
+                out.writeUTF(mPackages.get(row));
+            }
+            for (int row = 0, size = mPackages.size(); row < size; row++) {
+                final int offset = row * METRICS_PER_PACKAGE;
+                for (int event = 0; event < EVENTS.length; event++) {
+                    final long count =
+                            mMetrics[offset + getMetricIndex(event, METRIC_INDEX_COUNT)];
+                    if (count == 0) {
+                        continue;
+                    }
+                    out.writeByte(RECORD_AGGREGATE);
+                    out.writeShort(row);
+                    out.writeByte(event);
+                    out.writeLong(count);
+                    out.writeLong(mMetrics[
+                            offset + getMetricIndex(event, METRIC_INDEX_LAST_EVENT_TIME)]);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot compact suggestion events", e);
+            mFile.failWrite(stream);
+        }
+    }
+
+    private synchronized void load(SharedPreferences prefs) {
+        final boolean exists = mFile.getBaseFile().exists() || mBackupFile.exists();
+        read();
+        if (!exists && prefs != null) {
+            importSharedPreferences(prefs);
+        }
+        mLoaded = true;
+        for (int i = 0, size = mEventsBeforeLoad.size(); i < size; i++) {
+            final Event event = mEventsBeforeLoad.get(i);
+            appendEvent(event.pkgName, event.event, event.time);
+        }
+        mEventsBeforeLoad.clear();
+        notifyAll();
+    }
+
+    private void read() {
+        boolean truncated = false;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != VERSION) {
+                truncated = true;
+            } else {
+                int type;
+                while ((type = in.read()) != -1) {
+                    if (type == RECORD_PACKAGE) {
+                        getOrCreateRow(in.readUTF());
+                    } else if (type == RECORD_EVENT || type == RECORD_AGGREGATE) {
+                        final int row = in.readUnsignedShort();
+                        final int event = in.readUnsignedByte();
+                        final long count = type == RECORD_EVENT ? 1 : in.readLong();
+                        final long time = in.readLong();
+                        if (row >= mPackages.size() || event >= EVENTS.length) {
+                            truncated = true;
+                            break;
+                        }
+                        aggregate(row, event, count, time);
+                        if (type == RECORD_EVENT) {
+                            mEventsSinceCompaction++;
+                        }
+                    } else {
+                        truncated = true;
+                        break;
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing logged yet.
+        } catch (EOFException e) {
+            // The last record was cut short when the process died.
+            truncated = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read suggestion events", e);
+            truncated = true;
+        }
+        // Packages read were all written already.
+        mPendingRecords.reset();
+        if (truncated) {
+            // Rewrite what could be read, appending after a broken record would lose the rest.
+            compact();
+        }
+    }
+
+    /**
+     * Moves the metrics stored in SharedPreferences by earlier versions to the log.
+     */
+    private void importSharedPreferences(SharedPreferences prefs) {
+        final Map<String, ?> values = prefs.getAll();
+        if (values.isEmpty()) {
+            return;
+        }
+        final String prefix = "setting_suggestion_";
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix) || !(entry.getValue() instanceof Long)) {
+                continue;
+            }
+            for (int event = 0; event < EVENTS.length; event++) {
+                for (int metric = 0; metric < METRICS.length; metric++) {
+                    final String suffix = "_" + EVENTS[event] + "_" + METRICS[metric];
+                    if (!key.endsWith(suffix)) {
+                        continue;
+                    }
+                    final int row = getOrCreateRow(
+                            key.substring(prefix.length(), key.length() - suffix.length()));
+                    mMetrics[row * METRICS_PER_PACKAGE + getMetricIndex(event, metric)] =
+                            (Long) entry.getValue();
+                }
+            }
+        }
+        compact();
+        prefs.edit().clear().apply();
+    }
+
+    private static class Event {
+        final String pkgName;
+        final int event;
+        final long time;
+
+        Event(String pkgName, int event, long time) {
+            this.pkgName = pkgName;
+            this.event = event;
+            this.time = time;
+        }
+    }
+}
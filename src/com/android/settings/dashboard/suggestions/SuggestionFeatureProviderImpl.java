@@ -106,7 +106,8 @@ public class SuggestionFeatureProviderImpl implements SuggestionFeatureProvider
     public SuggestionFeatureProviderImpl(Context context) {
         final Context appContext = context.getApplicationContext();
         mSuggestionRanker = new SuggestionRanker(
-                new SuggestionFeaturizer(new EventStore(appContext)));
+                new SuggestionFeaturizer(new EventStore(appContext)),
+                SuggestionRankingModel.load(appContext));
         mMetricsFeatureProvider = FeatureFactory.getFactory(appContext)
                 .getMetricsFeatureProvider();
     }
@@ -38,11 +38,40 @@ public class SuggestionFeaturizer {
     public static final String FEATURE_DISMISSED_COUNT = "dismissed_count";
     public static final String FEATURE_CLICKED_COUNT = "clicked_count";
 
+    // Index of the features in a feature vector.
+    public static final int INDEX_IS_SHOWN = 0;
+    public static final int INDEX_IS_DISMISSED = 1;
+    public static final int INDEX_IS_CLICKED = 2;
+    public static final int INDEX_TIME_FROM_LAST_SHOWN = 3;
+    public static final int INDEX_TIME_FROM_LAST_DISMISSED = 4;
+    public static final int INDEX_TIME_FROM_LAST_CLICKED = 5;
+    public static final int INDEX_SHOWN_COUNT = 6;
+    public static final int INDEX_DISMISSED_COUNT = 7;
+    public static final int INDEX_CLICKED_COUNT = 8;
+
+    /**
+     * Keys of the features, by index in a feature vector.
+     */
+    public static final String[] FEATURES = {
+            FEATURE_IS_SHOWN,
+            FEATURE_IS_DISMISSED,
+            FEATURE_IS_CLICKED,
+            FEATURE_TIME_FROM_LAST_SHOWN,
+            FEATURE_TIME_FROM_LAST_DISMISSED,
+            FEATURE_TIME_FROM_LAST_CLICKED,
+            FEATURE_SHOWN_COUNT,
+            FEATURE_DISMISSED_COUNT,
+            FEATURE_CLICKED_COUNT,
+    };
+
+    public static final int FEATURE_COUNT = FEATURES.length;
+
     // The following numbers are estimated from histograms.
     public static final double TIME_NORMALIZATION_FACTOR = 2e10;
     public static final double COUNT_NORMALIZATION_FACTOR = 500;
 
     private final EventStore mEventStore;
+    private final long[] mMetrics = new long[EventStore.METRICS_PER_PACKAGE];
 
     /**
      * Constructor
@@ -63,35 +92,53 @@ public class SuggestionFeaturizer {
      */
     public Map<String, Map<String, Double>> featurize(List<String> pkgNames) {
         Map<String, Map<String, Double>> features = new HashMap<>();
-        Long curTimeMs = System.currentTimeMillis();
+        final long curTimeMs = System.currentTimeMillis();
+        final double[] featureVector = new double[FEATURE_COUNT];
         for (String pkgName : pkgNames) {
+            featurize(pkgName, curTimeMs, featureVector);
             Map<String, Double> featureMap = new HashMap<>();
+            for (int i = 0; i < FEATURE_COUNT; i++) {
+                featureMap.put(FEATURES[i], featureVector[i]);
+            }
             features.put(pkgName, featureMap);
-            Long lastShownTime = mEventStore
-                    .readMetric(pkgName, EventStore.EVENT_SHOWN, EventStore.METRIC_LAST_EVENT_TIME);
-            Long lastDismissedTime = mEventStore.readMetric(pkgName, EventStore.EVENT_DISMISSED,
-                    EventStore.METRIC_LAST_EVENT_TIME);
-            Long lastClickedTime = mEventStore.readMetric(pkgName, EventStore.EVENT_CLICKED,
-                    EventStore.METRIC_LAST_EVENT_TIME);
-            featureMap.put(FEATURE_IS_SHOWN, booleanToDouble(lastShownTime > 0));
-            featureMap.put(FEATURE_IS_DISMISSED, booleanToDouble(lastDismissedTime > 0));
-            featureMap.put(FEATURE_IS_CLICKED, booleanToDouble(lastClickedTime > 0));
-            featureMap.put(FEATURE_TIME_FROM_LAST_SHOWN,
-                    normalizedTimeDiff(curTimeMs, lastShownTime));
-            featureMap.put(FEATURE_TIME_FROM_LAST_DISMISSED,
-                    normalizedTimeDiff(curTimeMs, lastDismissedTime));
-            featureMap.put(FEATURE_TIME_FROM_LAST_CLICKED,
-                    normalizedTimeDiff(curTimeMs, lastClickedTime));
-            featureMap.put(FEATURE_SHOWN_COUNT, normalizedCount(mEventStore
-                    .readMetric(pkgName, EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT)));
-            featureMap.put(FEATURE_DISMISSED_COUNT, normalizedCount(mEventStore
-                    .readMetric(pkgName, EventStore.EVENT_DISMISSED, EventStore.METRIC_COUNT)));
-            featureMap.put(FEATURE_CLICKED_COUNT, normalizedCount(mEventStore
-                    .readMetric(pkgName, EventStore.EVENT_CLICKED, EventStore.METRIC_COUNT)));
         }
         return features;
     }
 
+    /**
+     * Extracts the features of a package without allocating.
+     *
+     * @param pkgName: Package name for which features are queried.
+     * @param curTimeMs: Time the time features are relative to.
+     * @param features: Receives the features, at the INDEX_* positions.
+     */
+    public synchronized void featurize(String pkgName, long curTimeMs, double[] features) {
+        mEventStore.readMetrics(pkgName, mMetrics);
+        final long lastShownTime = readMetric(
+                EventStore.EVENT_INDEX_SHOWN, EventStore.METRIC_INDEX_LAST_EVENT_TIME);
+        final long lastDismissedTime = readMetric(
+                EventStore.EVENT_INDEX_DISMISSED, EventStore.METRIC_INDEX_LAST_EVENT_TIME);
+        final long lastClickedTime = readMetric(
+                EventStore.EVENT_INDEX_CLICKED, EventStore.METRIC_INDEX_LAST_EVENT_TIME);
+        features[INDEX_IS_SHOWN] = booleanToDouble(lastShownTime > 0);
+        features[INDEX_IS_DISMISSED] = booleanToDouble(lastDismissedTime > 0);
+        features[INDEX_IS_CLICKED] = booleanToDouble(lastClickedTime > 0);
+        features[INDEX_TIME_FROM_LAST_SHOWN] = normalizedTimeDiff(curTimeMs, lastShownTime);
+        features[INDEX_TIME_FROM_LAST_DISMISSED] =
+                normalizedTimeDiff(curTimeMs, lastDismissedTime);
+        features[INDEX_TIME_FROM_LAST_CLICKED] = normalizedTimeDiff(curTimeMs, lastClickedTime);
+        features[INDEX_SHOWN_COUNT] = normalizedCount(
+                readMetric(EventStore.EVENT_INDEX_SHOWN, EventStore.METRIC_INDEX_COUNT));
+        features[INDEX_DISMISSED_COUNT] = normalizedCount(
+                readMetric(EventStore.EVENT_INDEX_DISMISSED, EventStore.METRIC_INDEX_COUNT));
+        features[INDEX_CLICKED_COUNT] = normalizedCount(
+                readMetric(EventStore.EVENT_INDEX_CLICKED, EventStore.METRIC_INDEX_COUNT));
+    }
+
+    private long readMetric(int event, int metric) {
+        return mMetrics[EventStore.getMetricIndex(event, metric)];
+    }
+
     private static double booleanToDouble(boolean bool) {
         return bool ? 1 : 0;
     }
@@ -19,65 +19,86 @@ import com.android.settingslib.drawer.Tile;
 
 import android.support.annotation.VisibleForTesting;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
+/**
+ * Ranks suggestions by the relevance metric {@link SuggestionRankingModel} computes from their
+ * features. The buffers are reused across calls, so ranking doesn't allocate once they grew to
+ * the number of suggestions.
+ */
 public class SuggestionRanker {
 
     private static final String TAG = "SuggestionRanker";
 
-    // The following coefficients form a linear model, which mixes the features to obtain a
-    // relevance metric for ranking the suggestion items. This model is learned with off-line data
-    // by training a binary classifier to detect the clicked items. The higher the obtained
-    // relevance metric, the higher chance of getting clicked.
-    private static final Map<String, Double> WEIGHTS = new HashMap<String, Double>() {{
-        put(SuggestionFeaturizer.FEATURE_IS_SHOWN, 5.05140842519);
-        put(SuggestionFeaturizer.FEATURE_IS_DISMISSED, 2.29641455171);
-        put(SuggestionFeaturizer.FEATURE_IS_CLICKED, -2.98812233623);
-        put(SuggestionFeaturizer.FEATURE_TIME_FROM_LAST_SHOWN, 5.02807250202);
-        put(SuggestionFeaturizer.FEATURE_TIME_FROM_LAST_DISMISSED, 2.49589700842);
-        put(SuggestionFeaturizer.FEATURE_TIME_FROM_LAST_CLICKED, -4.3377039948);
-        put(SuggestionFeaturizer.FEATURE_SHOWN_COUNT, -2.35993512546);
-    }};
-
     private final SuggestionFeaturizer mSuggestionFeaturizer;
+    private final SuggestionRankingModel mModel;
+    private final double[] mFeatures = new double[SuggestionFeaturizer.FEATURE_COUNT];
 
-    private final Map<Tile, Double> relevanceMetrics;
-
-    Comparator<Tile> suggestionComparator = new Comparator<Tile>() {
-        @Override
-        public int compare(Tile suggestion1, Tile suggestion2) {
-            return relevanceMetrics.get(suggestion1) < relevanceMetrics.get(suggestion2) ? 1 : -1;
-        }
-    };
+    private double[] mScores = new double[0];
+    private int[] mOrder = new int[0];
+    private Tile[] mTiles = new Tile[0];
 
     public SuggestionRanker(SuggestionFeaturizer suggestionFeaturizer) {
+        this(suggestionFeaturizer, SuggestionRankingModel.getDefault());
+    }
+
+    public SuggestionRanker(SuggestionFeaturizer suggestionFeaturizer,
+            SuggestionRankingModel model) {
         mSuggestionFeaturizer = suggestionFeaturizer;
-        relevanceMetrics = new HashMap<Tile, Double>();
+        mModel = model;
     }
 
-    public void rankSuggestions(final List<Tile> suggestions, List<String> suggestionIds) {
-        relevanceMetrics.clear();
-        Map<String, Map<String, Double>> features = mSuggestionFeaturizer.featurize(suggestionIds);
-        for (int i = 0; i < suggestionIds.size(); i++) {
-            relevanceMetrics.put(suggestions.get(i),
-                    getRelevanceMetric(features.get(suggestionIds.get(i))));
+    /**
+     * Sorts the suggestions by decreasing relevance, suggestions of the same relevance keep their
+     * order.
+     *
+     * @param suggestionIds: Identifiers of the suggestions, in the same order.
+     */
+    public synchronized void rankSuggestions(final List<Tile> suggestions,
+            List<String> suggestionIds) {
+        final int count = suggestionIds.size();
+        ensureCapacity(count);
+        final long curTimeMs = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            mSuggestionFeaturizer.featurize(suggestionIds.get(i), curTimeMs, mFeatures);
+            mScores[i] = getRelevanceMetric(mFeatures);
+            mTiles[i] = suggestions.get(i);
         }
-        Collections.sort(suggestions, suggestionComparator);
+        sortIndicesByScore(count);
+        for (int i = 0; i < count; i++) {
+            suggestions.set(i, mTiles[mOrder[i]]);
+        }
+        // Don't hold on to the tiles until the next ranking.
+        Arrays.fill(mTiles, 0, count, null);
     }
 
     @VisibleForTesting
-    double getRelevanceMetric(Map<String, Double> features) {
-        double sum = 0;
-        if (features == null) {
-            return sum;
+    double getRelevanceMetric(double[] features) {
+        return mModel.getRelevanceMetric(features);
+    }
+
+    /**
+     * Sorts the first count indices by decreasing score. There are only a handful of suggestions,
+     * so a stable insertion sort is used.
+     */
+    private void sortIndicesByScore(int count) {
+        for (int i = 0; i < count; i++) {
+            final double score = mScores[i];
+            int j = i - 1;
+            while (j >= 0 && mScores[mOrder[j]] < score) {
+                mOrder[j + 1] = mOrder[j];
+                j--;
+            }
+            mOrder[j + 1] = i;
         }
-        for (String feature : WEIGHTS.keySet()) {
-            sum += WEIGHTS.get(feature) * features.get(feature);
+    }
+
+    private void ensureCapacity(int count) {
+        if (mScores.length < count) {
+            mScores = new double[count];
+            mOrder = new int[count];
+            mTiles = new Tile[count];
         }
-        return sum;
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.settings.dashboard.suggestions;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Linear model mixing the features of {@link SuggestionFeaturizer} into the relevance metric
+ * used to rank suggestions, with one weight per feature index.
+ *
+ * The model is read from the {@link #ASSET_PATH} asset, a JSON object holding the format
+ * "version" and the "weights" keyed by feature. The built-in model is used if the asset is
+ * missing, of another version or names features this build doesn't extract.
+ */
+public class SuggestionRankingModel {
+
+    private static final String TAG = "SuggestionRankingModel";
+
+    @VisibleForTesting
+    static final String ASSET_PATH = "suggestion_ranking_model.json";
+
+    /**
+     * Version of the asset format this build reads.
+     */
+    @VisibleForTesting
+    static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_WEIGHTS = "weights";
+
+    // This model is learned with off-line data by training a binary classifier to detect the
+    // clicked items. The higher the obtained relevance metric, the higher chance of getting
+    // clicked.
+    private static final double[] DEFAULT_WEIGHTS = new double[SuggestionFeaturizer.FEATURE_COUNT];
+
+    static {
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_IS_SHOWN] = 5.05140842519;
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_IS_DISMISSED] = 2.29641455171;
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_IS_CLICKED] = -2.98812233623;
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_TIME_FROM_LAST_SHOWN] = 5.02807250202;
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_TIME_FROM_LAST_DISMISSED] = 2.49589700842;
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_TIME_FROM_LAST_CLICKED] = -4.3377039948;
+        DEFAULT_WEIGHTS[SuggestionFeaturizer.INDEX_SHOWN_COUNT] = -2.35993512546;
+    }
+
+    private final double[] mWeights;
+
+    public SuggestionRankingModel(double[] weights) {
+        if (weights.length != SuggestionFeaturizer.FEATURE_COUNT) {
+            throw new IllegalArgumentException("Expected " + SuggestionFeaturizer.FEATURE_COUNT
+                    + " weights, got " + weights.length);
+        }
+        mWeights = weights;
+    }
+
+    public static SuggestionRankingModel getDefault() {
+        return new SuggestionRankingModel(DEFAULT_WEIGHTS);
+    }
+
+    /**
+     * @return the model of the asset, or the built-in one if the asset cannot be used.
+     */
+    public static SuggestionRankingModel load(Context context) {
+        try (InputStream in = context.getAssets().open(ASSET_PATH)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            final SuggestionRankingModel model =
+                    parse(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            if (model != null) {
+                return model;
+            }
+        } catch (FileNotFoundException e) {
+            // No model shipped, use the built-in one.
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Cannot read " + ASSET_PATH, e);
+        }
+        return getDefault();
+    }
+
+    /**
+     * @return the model, or null if it is of another version or has unknown features.
+     */
+    @VisibleForTesting
+    static SuggestionRankingModel parse(String json) throws JSONException {
+        final JSONObject model = new JSONObject(json);
+        final int version = model.getInt(KEY_VERSION);
+        if (version != VERSION) {
+            Log.w(TAG, "Unsupported model version " + version);
+            return null;
+        }
+        final JSONObject weights = model.getJSONObject(KEY_WEIGHTS);
+        final double[] result = new double[SuggestionFeaturizer.FEATURE_COUNT];
+        final Iterator<String> features = weights.keys();
+        while (features.hasNext()) {
+            final String feature = features.next();
+            final int index = indexOf(feature);
+            if (index < 0) {
+                Log.w(TAG, "Model uses unknown feature " + feature);
+                return null;
+            }
+            result[index] = weights.getDouble(feature);
+        }
+        return new SuggestionRankingModel(result);
+    }
+
+    /**
+     * @return the relevance metric of a feature vector of {@link SuggestionFeaturizer}.
+     */
+    public double getRelevanceMetric(double[] features) {
+        double sum = 0;
+        for (int i = 0; i < mWeights.length; i++) {
+            sum += mWeights[i] * features[i];
+        }
+        return sum;
+    }
+
+    private static int indexOf(String feature) {
+        for (int i = 0; i < SuggestionFeaturizer.FEATURE_COUNT; i++) {
+            if (SuggestionFeaturizer.FEATURES[i].equals(feature)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -28,16 +28,16 @@ public class BatteryCellParser implements BatteryInfo.BatteryDataParser, Battery
     private long mLength;
     private long mLastTime;
 
-    protected int getValue(HistoryItem rec) {
+    protected int getValue(int states) {
         int bin;
-        if (((rec.states & HistoryItem.STATE_PHONE_STATE_MASK)
+        if (((states & HistoryItem.STATE_PHONE_STATE_MASK)
                 >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                 == ServiceState.STATE_POWER_OFF) {
             bin = 0;
-        } else if ((rec.states & HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+        } else if ((states & HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
             bin = 1;
         } else {
-            bin = (rec.states & HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+            bin = (states & HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                     >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
             bin += 2;
         }
@@ -50,8 +50,8 @@ public class BatteryCellParser implements BatteryInfo.BatteryDataParser, Battery
     }
 
     @Override
-    public void onDataPoint(long time, HistoryItem record) {
-        int value = getValue(record);
+    public void onDataPoint(long time, BatteryHistory history, int index) {
+        int value = getValue(history.getStates(index));
         if (value != mLastValue) {
             mData.put((int) time, value);
             mLastValue = value;
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The history of a {@link BatteryStats}, decoded in a single pass into primitive columns with one
+ * entry per record. The battery charts and parsers compute their series from these columns
+ * instead of each iterating the history of the stats.
+ *
+ * The stats the battery screens get are snapshots, loaded again once the battery changed, so the
+ * history decoded from them is kept for as long as they are.
+ */
+public class BatteryHistory {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final Map<BatteryStats, BatteryHistory> sHistories = new WeakHashMap<>();
+
+    // Number of records, the columns may be longer.
+    final int mSize;
+    final long[] mTime;
+    final long[] mCurrentTime;
+    final byte[] mCmd;
+    final byte[] mBatteryLevel;
+    final int[] mStates;
+    final int[] mStates2;
+
+    // Time of the first record.
+    long mHistStart;
+    // Time of the last delta record.
+    long mHistDataEnd;
+    // Wall clock time the history starts at, and of the last time change.
+    long mStartWallTime;
+    long mLastWallTime;
+    // Time of the last time change.
+    long mLastRealtime;
+    // Number of records up to and including the last delta record.
+    int mNumInteresting;
+    // All the states and states2 flags set in any delta record.
+    int mAggrStates;
+    int mAggrStates2;
+
+    /**
+     * @return the decoded history of the stats, decoding it on the first call for them.
+     */
+    public static BatteryHistory get(BatteryStats stats) {
+        synchronized (sHistories) {
+            BatteryHistory history = sHistories.get(stats);
+            if (history == null) {
+                history = decode(stats);
+                sHistories.put(stats, history);
+            }
+            return history;
+        }
+    }
+
+    @VisibleForTesting
+    static BatteryHistory decode(BatteryStats stats) {
+        int size = 0;
+        long[] time = new long[INITIAL_CAPACITY];
+        long[] currentTime = new long[INITIAL_CAPACITY];
+        byte[] cmd = new byte[INITIAL_CAPACITY];
+        byte[] batteryLevel = new byte[INITIAL_CAPACITY];
+        int[] states = new int[INITIAL_CAPACITY];
+        int[] states2 = new int[INITIAL_CAPACITY];
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (size == time.length) {
+                    final int capacity = size * 2;
+                    time = Arrays.copyOf(time, capacity);
+                    currentTime = Arrays.copyOf(currentTime, capacity);
+                    cmd = Arrays.copyOf(cmd, capacity);
+                    batteryLevel = Arrays.copyOf(batteryLevel, capacity);
+                    states = Arrays.copyOf(states, capacity);
+                    states2 = Arrays.copyOf(states2, capacity);
+                }
+                time[size] = rec.time;
+                currentTime[size] = rec.currentTime;
+                cmd[size] = rec.cmd;
+                batteryLevel[size] = rec.batteryLevel;
+                states[size] = rec.states;
+                states2[size] = rec.states2;
+                size++;
+            }
+        }
+        stats.finishIteratingHistoryLocked();
+
+        final BatteryHistory history = new BatteryHistory(size, time, currentTime, cmd,
+                batteryLevel, states, states2);
+        history.computeTimes();
+        return history;
+    }
+
+    private BatteryHistory(int size, long[] time, long[] currentTime, byte[] cmd,
+            byte[] batteryLevel, int[] states, int[] states2) {
+        mSize = size;
+        mTime = time;
+        mCurrentTime = currentTime;
+        mCmd = cmd;
+        mBatteryLevel = batteryLevel;
+        mStates = states;
+        mStates2 = states2;
+    }
+
+    /**
+     * @return the number of records.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return whether the record holds battery data, see {@link HistoryItem#isDeltaData}.
+     */
+    public boolean isDeltaData(int index) {
+        return mCmd[index] == HistoryItem.CMD_UPDATE;
+    }
+
+    public byte getBatteryLevel(int index) {
+        return mBatteryLevel[index];
+    }
+
+    public int getStates(int index) {
+        return mStates[index];
+    }
+
+    public int getStates2(int index) {
+        return mStates2[index];
+    }
+
+    /**
+     * @return the wall clock time the data ends at.
+     */
+    public long getEndDataWallTime() {
+        return mLastWallTime + mHistDataEnd - mLastRealtime;
+    }
+
+    private void computeTimes() {
+        for (int i = 0; i < mSize; i++) {
+            if (i == 0) {
+                mHistStart = mTime[i];
+            }
+            if (mCmd[i] == HistoryItem.CMD_CURRENT_TIME || mCmd[i] == HistoryItem.CMD_RESET) {
+                // If there is a ridiculously large jump in time, then we won't be
+                // able to create a good chart with that data, so just ignore the
+                // times we got before and pretend like our data extends back from
+                // the time we have now.
+                // Also, if we are getting a time change and we are less than 5 minutes
+                // since the start of the history real time, then also use this new
+                // time to compute the base time, since whatever time we had before is
+                // pretty much just noise.
+                if (mCurrentTime[i] > (mLastWallTime + (180 * 24 * 60 * 60 * 1000L))
+                        || mTime[i] < (mHistStart + (5 * 60 * 1000L))) {
+                    mStartWallTime = 0;
+                }
+                mLastWallTime = mCurrentTime[i];
+                mLastRealtime = mTime[i];
+                if (mStartWallTime == 0) {
+                    mStartWallTime = mLastWallTime - (mLastRealtime - mHistStart);
+                }
+            }
+            if (isDeltaData(i)) {
+                mNumInteresting = i + 1;
+                mHistDataEnd = mTime[i];
+                mAggrStates |= mStates[i];
+                mAggrStates2 |= mStates2[i];
+            }
+        }
+    }
+}
@@ -113,6 +113,34 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Path of a state bar. State changes within the same pixel are merged, so the path has at
+     * most one segment per pixel however long the history is.
+     */
+    static class StatePath extends Path {
+        // x of the last point of the path, or -1.
+        int mLastX = -1;
+
+        void setOn(boolean on, int x, int y) {
+            if (x != mLastX) {
+                if (on) {
+                    moveTo(x, y);
+                } else {
+                    lineTo(x, y);
+                }
+                mLastX = x;
+            }
+            // Otherwise the state was on or off within this pixel only: turning on again
+            // continues the segment ending here, turning off again would add an empty segment.
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mLastX = -1;
+        }
+    }
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -144,16 +172,17 @@ public class BatteryHistoryChart extends View {
     final Path mBatWarnPath = new Path();
     final Path mBatCriticalPath = new Path();
     final Path mTimeRemainPath = new Path();
-    final Path mChargingPath = new Path();
-    final Path mScreenOnPath = new Path();
-    final Path mGpsOnPath = new Path();
-    final Path mFlashlightOnPath = new Path();
-    final Path mCameraOnPath = new Path();
-    final Path mWifiRunningPath = new Path();
-    final Path mCpuRunningPath = new Path();
+    final StatePath mChargingPath = new StatePath();
+    final StatePath mScreenOnPath = new StatePath();
+    final StatePath mGpsOnPath = new StatePath();
+    final StatePath mFlashlightOnPath = new StatePath();
+    final StatePath mCameraOnPath = new StatePath();
+    final StatePath mWifiRunningPath = new StatePath();
+    final StatePath mCpuRunningPath = new StatePath();
     final Path mDateLinePath = new Path();
 
     BatteryStats mStats;
+    BatteryHistory mHistory;
     Intent mBatteryBroadcast;
     long mStatsPeriod;
     String mMaxPercentLabelString;
@@ -512,64 +541,19 @@ public class BatteryHistoryChart extends View {
             mChargeDurationString = "";
             setContentDescription(mInfo.chargeLabel);
 
-            int pos = 0;
-            int lastInteresting = 0;
-            byte lastLevel = -1;
             mBatLow = 0;
             mBatHigh = 100;
-            mStartWallTime = 0;
-            mEndDataWallTime = 0;
-            mEndWallTime = 0;
-            mHistStart = 0;
-            mHistEnd = 0;
-            long lastWallTime = 0;
-            long lastRealtime = 0;
-            int aggrStates = 0;
-            int aggrStates2 = 0;
-            boolean first = true;
-            if (stats.startIteratingHistoryLocked()) {
-                final HistoryItem rec = new HistoryItem();
-                while (stats.getNextHistoryLocked(rec)) {
-                    pos++;
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        // If there is a ridiculously large jump in time, then we won't be
-                        // able to create a good chart with that data, so just ignore the
-                        // times we got before and pretend like our data extends back from
-                        // the time we have now.
-                        // Also, if we are getting a time change and we are less than 5 minutes
-                        // since the start of the history real time, then also use this new
-                        // time to compute the base time, since whatever time we had before is
-                        // pretty much just noise.
-                        if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                                || rec.time < (mHistStart+(5*60*1000L))) {
-                            mStartWallTime = 0;
-                        }
-                        lastWallTime = rec.currentTime;
-                        lastRealtime = rec.time;
-                        if (mStartWallTime == 0) {
-                            mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                        }
-                    }
-                    if (rec.isDeltaData()) {
-                        if (rec.batteryLevel != lastLevel || pos == 1) {
-                            lastLevel = rec.batteryLevel;
-                        }
-                        lastInteresting = pos;
-                        mHistDataEnd = rec.time;
-                        aggrStates |= rec.states;
-                        aggrStates2 |= rec.states2;
-                    }
-                }
-            }
+            final BatteryHistory history = BatteryHistory.get(stats);
+            mHistory = history;
+            mHistStart = history.mHistStart;
+            mHistDataEnd = history.mHistDataEnd;
+            mStartWallTime = history.mStartWallTime;
+            mEndDataWallTime = history.getEndDataWallTime();
+            final int aggrStates = history.mAggrStates;
+            final int aggrStates2 = history.mAggrStates2;
             mHistEnd = mHistDataEnd + (mInfo.remainingTimeUs/1000);
-            mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
             mEndWallTime = mEndDataWallTime + (mInfo.remainingTimeUs/1000);
-            mNumHist = lastInteresting;
+            mNumHist = history.mNumInteresting;
             mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
             mHaveFlashlight = (aggrStates2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
             mHaveCamera = (aggrStates2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
@@ -619,25 +603,25 @@ public class BatteryHistoryChart extends View {
         }
         
         if (lastCharging) {
-            mChargingPath.lineTo(w, h-mChargingOffset);
+            mChargingPath.setOn(false, w, h-mChargingOffset);
         }
         if (lastScreenOn) {
-            mScreenOnPath.lineTo(w, h-mScreenOnOffset);
+            mScreenOnPath.setOn(false, w, h-mScreenOnOffset);
         }
         if (lastGpsOn) {
-            mGpsOnPath.lineTo(w, h-mGpsOnOffset);
+            mGpsOnPath.setOn(false, w, h-mGpsOnOffset);
         }
         if (lastFlashlightOn) {
-            mFlashlightOnPath.lineTo(w, h-mFlashlightOnOffset);
+            mFlashlightOnPath.setOn(false, w, h-mFlashlightOnOffset);
         }
         if (lastCameraOn) {
-            mCameraOnPath.lineTo(w, h-mCameraOnOffset);
+            mCameraOnPath.setOn(false, w, h-mCameraOnOffset);
         }
         if (lastWifiRunning) {
-            mWifiRunningPath.lineTo(w, h-mWifiRunningOffset);
+            mWifiRunningPath.setOn(false, w, h-mWifiRunningOffset);
         }
         if (lastCpuRunning) {
-            mCpuRunningPath.lineTo(w, h - mCpuRunningOffset);
+            mCpuRunningPath.setOn(false, w, h - mCpuRunningOffset);
         }
         if (mHavePhoneSignal) {
             mPhoneSignalChart.finish(w);
@@ -764,6 +748,7 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
+        int columnMinY = 0, columnMaxY = 0;
         int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
@@ -772,12 +757,17 @@ public class BatteryHistoryChart extends View {
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
         final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        final BatteryHistory history = mHistory;
+        if (mEndDataWallTime > mStartWallTime) {
+            for (; i < N; i++) {
+                final long time = history.mTime[i];
+                final int states = history.mStates[i];
+                final int states2 = history.mStates2[i];
+                final byte batteryLevel = history.mBatteryLevel[i];
+                final byte cmd = history.mCmd[i];
+                if (history.isDeltaData(i)) {
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
@@ -792,100 +782,87 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
-                            else path = null; //mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                if (path != null) {
-                                    path.moveTo(x, y);
-                                }
-                                lastLinePath = path;
-                            } else if (path != null) {
-                                path.lineTo(x, y);
+                    y = mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
+
+                    // Plot a point when we have moved by at least a pixel and the level
+                    // changed, or when the level goes beyond what the current pixel column
+                    // shows so far, so the highs and lows within a column are not lost while
+                    // the path has a bounded number of points per column.
+                    final boolean newColumn = lastX != x;
+                    if (newColumn ? lastY != y : (y < columnMinY || y > columnMaxY)) {
+                        Path path;
+                        byte value = batteryLevel;
+                        if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
+                        else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+                        else path = null; //mBatGoodPath;
+
+                        if (path != lastLinePath) {
+                            if (lastLinePath != null) {
+                                lastLinePath.lineTo(x, y);
                             }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
+                            if (path != null) {
+                                path.moveTo(x, y);
                             }
-                            lastX = x;
-                            lastY = y;
+                            lastLinePath = path;
+                        } else if (path != null) {
+                            path.lineTo(x, y);
+                        }
+
+                        if (curLevelPath == null) {
+                            curLevelPath = mBatLevelPath;
+                            curLevelPath.moveTo(x, y);
+                            startX = x;
+                        } else {
+                            curLevelPath.lineTo(x, y);
                         }
+                        if (newColumn) {
+                            columnMinY = columnMaxY = y;
+                        } else {
+                            columnMinY = Math.min(columnMinY, y);
+                            columnMaxY = Math.max(columnMaxY, y);
+                        }
+                        lastX = x;
+                        lastY = y;
                     }
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
+                            mChargingPath.setOn(charging, x, h-mChargingOffset);
                             lastCharging = charging;
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                            }
+                            mScreenOnPath.setOn(screenOn, x, h-mScreenOnOffset);
                             lastScreenOn = screenOn;
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
+                            mGpsOnPath.setOn(gpsOn, x, h-mGpsOnOffset);
                             lastGpsOn = gpsOn;
                         }
 
                         final boolean flashlightOn =
-                            (rec.states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
+                            (states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
                         if (flashlightOn != lastFlashlightOn) {
-                            if (flashlightOn) {
-                                mFlashlightOnPath.moveTo(x, h-mFlashlightOnOffset);
-                            } else {
-                                mFlashlightOnPath.lineTo(x, h-mFlashlightOnOffset);
-                            }
+                            mFlashlightOnPath.setOn(flashlightOn, x, h-mFlashlightOnOffset);
                             lastFlashlightOn = flashlightOn;
                         }
 
                         final boolean cameraOn =
-                            (rec.states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
+                            (states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
                         if (cameraOn != lastCameraOn) {
-                            if (cameraOn) {
-                                mCameraOnPath.moveTo(x, h-mCameraOnOffset);
-                            } else {
-                                mCameraOnPath.lineTo(x, h-mCameraOnOffset);
-                            }
+                            mCameraOnPath.setOn(cameraOn, x, h-mCameraOnOffset);
                             lastCameraOn = cameraOn;
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -906,41 +883,33 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
                         }
                         if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
+                            mWifiRunningPath.setOn(wifiRunning, x, h-mWifiRunningOffset);
                             lastWifiRunning = wifiRunning;
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
-                            if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
-                            } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
-                            }
+                            mCpuRunningPath.setOn(cpuRunning, x, h - mCpuRunningOffset);
                             lastCpuRunning = cpuRunning;
                         }
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -950,18 +919,18 @@ public class BatteryHistoryChart extends View {
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        if (history.mCurrentTime[i] >= mStartWallTime) {
+                            curWalltime = history.mCurrentTime[i];
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = mStartWallTime + (time-mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
                             finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
@@ -975,10 +944,7 @@ public class BatteryHistoryChart extends View {
                         }
                     }
                 }
-
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
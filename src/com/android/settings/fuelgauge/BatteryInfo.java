@@ -71,9 +71,9 @@ public class BatteryInfo {
             }
 
             @Override
-            public void onDataPoint(long time, HistoryItem record) {
+            public void onDataPoint(long time, BatteryHistory history, int index) {
                 lastTime = (int) time;
-                lastLevel = record.batteryLevel;
+                lastLevel = history.getBatteryLevel(index);
                 points.put(lastTime, lastLevel);
             }
 
@@ -264,7 +264,10 @@ public class BatteryInfo {
     public interface BatteryDataParser {
         void onParsingStarted(long startTime, long endTime);
 
-        void onDataPoint(long time, HistoryItem record);
+        /**
+         * @param index of the record in the history.
+         */
+        void onDataPoint(long time, BatteryHistory history, int index);
 
         void onDataGap();
 
@@ -272,98 +275,55 @@ public class BatteryInfo {
     }
 
     private static void parse(BatteryStats stats, BatteryDataParser... parsers) {
-        long startWalltime = 0;
-        long endWalltime = 0;
-        long historyStart = 0;
-        long historyEnd = 0;
-        long curWalltime = startWalltime;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int lastInteresting = 0;
-        int pos = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    historyStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime + (180 * 24 * 60 * 60 * 1000L))
-                            || rec.time < (historyStart + (5 * 60 * 1000L))) {
-                        startWalltime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (startWalltime == 0) {
-                        startWalltime = lastWallTime - (lastRealtime - historyStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    lastInteresting = pos;
-                    historyEnd = rec.time;
-                }
-            }
-        }
-        stats.finishIteratingHistoryLocked();
-        endWalltime = lastWallTime + historyEnd - lastRealtime;
+        final BatteryHistory history = BatteryHistory.get(stats);
+        final long startWalltime = history.mStartWallTime;
+        final long endWalltime = history.getEndDataWallTime();
+        final long historyStart = history.mHistStart;
+        long curWalltime = 0;
+        long lastRealtime = history.mLastRealtime;
 
-        int i = 0;
-        final int N = lastInteresting;
+        final int N = history.mNumInteresting;
 
         for (int j = 0; j < parsers.length; j++) {
             parsers[j].onParsingStarted(startWalltime, endWalltime);
         }
-        if (endWalltime > startWalltime && stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time - lastRealtime;
-                    lastRealtime = rec.time;
+        if (endWalltime > startWalltime) {
+            for (int i = 0; i < N; i++) {
+                final long time = history.mTime[i];
+                final byte cmd = history.mCmd[i];
+                if (history.isDeltaData(i)) {
+                    curWalltime += time - lastRealtime;
+                    lastRealtime = time;
                     long x = (curWalltime - startWalltime);
                     if (x < 0) {
                         x = 0;
                     }
                     for (int j = 0; j < parsers.length; j++) {
-                        parsers[j].onDataPoint(x, rec);
+                        parsers[j].onDataPoint(x, history, i);
                     }
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= startWalltime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        if (history.mCurrentTime[i] >= startWalltime) {
+                            curWalltime = history.mCurrentTime[i];
                         } else {
-                            curWalltime = startWalltime + (rec.time - historyStart);
+                            curWalltime = startWalltime + (time - historyStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                             || Math.abs(lastWalltime - curWalltime) > (60 * 60 * 1000))) {
                         for (int j = 0; j < parsers.length; j++) {
                             parsers[j].onDataGap();
                         }
                     }
                 }
-                i++;
             }
         }
 
-        stats.finishIteratingHistoryLocked();
-
         for (int j = 0; j < parsers.length; j++) {
             parsers[j].onParsingDone();
         }
@@ -17,10 +17,15 @@
 package com.android.settings.fuelgauge.anomaly;
 
 import android.content.Context;
+import android.os.BatteryStats;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.VisibleForTesting;
 
+import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatteryStatsHelper;
+import com.android.settings.Utils;
+import com.android.settings.fuelgauge.BatteryUtils;
 import com.android.settings.fuelgauge.anomaly.action.AnomalyAction;
 import com.android.settings.fuelgauge.anomaly.action.ForceStopAction;
 import com.android.settings.fuelgauge.anomaly.action.LocationCheckAction;
@@ -30,6 +35,7 @@ import com.android.settings.fuelgauge.anomaly.checker.BluetoothScanAnomalyDetect
 import com.android.settings.fuelgauge.anomaly.checker.WakeLockAnomalyDetector;
 import com.android.settings.fuelgauge.anomaly.checker.WakeupAlarmAnomalyDetector;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -39,10 +45,20 @@ import java.util.List;
 public class AnomalyUtils {
     private Context mContext;
     private static AnomalyUtils sInstance;
+    @VisibleForTesting
+    BatteryUtils mBatteryUtils;
+
+    // Anomalies of all the apps from the last detection, and the stats and types they are for.
+    // The helper is held weakly since it keeps the activity that created it.
+    private List<Anomaly> mAnomalies;
+    private WeakReference<BatteryStatsHelper> mAnomaliesStatsHelper;
+    private long mAnomaliesStatsPeriod;
+    private int mAnomaliesTypes;
 
     @VisibleForTesting
     AnomalyUtils(Context context) {
         mContext = context.getApplicationContext();
+        mBatteryUtils = BatteryUtils.getInstance(mContext);
     }
 
     public static AnomalyUtils getInstance(Context context) {
@@ -100,6 +116,10 @@ public class AnomalyUtils {
      * Detect whether application with {@code targetPackageName} has anomaly. When
      * {@code targetPackageName} is null, start detection among all the applications.
      *
+     * The anomalies of all the applications are detected at once and kept until the stats are
+     * refreshed, so detecting them again, or for a single application, reuses them. Without
+     * them, detection for a single application only checks that application.
+     *
      * @param batteryStatsHelper contains battery stats, used to detect anomaly
      * @param policy             contains configuration about anomaly check
      * @param targetPackageName  represents the app need to be detected
@@ -107,14 +127,138 @@ public class AnomalyUtils {
      */
     public List<Anomaly> detectAnomalies(BatteryStatsHelper batteryStatsHelper,
             AnomalyDetectionPolicy policy, String targetPackageName) {
+        final int types = getEnabledTypes(policy);
+        final int targetUid = mBatteryUtils.getPackageUid(targetPackageName);
+        if (targetUid == BatteryUtils.UID_NULL) {
+            return new ArrayList<>(getAllAnomalies(batteryStatsHelper, types));
+        }
+
+        final List<Anomaly> allAnomalies = getCachedAnomalies(batteryStatsHelper, types);
+        if (allAnomalies == null) {
+            return detectAnomalies(batteryStatsHelper, types, targetUid);
+        }
         final List<Anomaly> anomalies = new ArrayList<>();
+        for (int i = 0, size = allAnomalies.size(); i < size; i++) {
+            final Anomaly anomaly = allAnomalies.get(i);
+            if (anomaly.uid == targetUid) {
+                anomalies.add(anomaly);
+            }
+        }
+
+        return anomalies;
+    }
+
+    private int getEnabledTypes(AnomalyDetectionPolicy policy) {
+        int types = 0;
         for (@Anomaly.AnomalyType int type : Anomaly.ANOMALY_TYPE_LIST) {
             if (policy.isAnomalyDetectorEnabled(type)) {
-                anomalies.addAll(getAnomalyDetector(type).detectAnomalies(
-                        batteryStatsHelper, targetPackageName));
+                types |= 1 << type;
             }
         }
 
+        return types;
+    }
+
+    private synchronized List<Anomaly> getAllAnomalies(BatteryStatsHelper batteryStatsHelper,
+            int types) {
+        if (getCachedAnomalies(batteryStatsHelper, types) == null) {
+            mAnomalies = detectAllAnomalies(batteryStatsHelper, types);
+            mAnomaliesStatsHelper = new WeakReference<>(batteryStatsHelper);
+            mAnomaliesStatsPeriod = batteryStatsHelper.getStatsPeriod();
+            mAnomaliesTypes = types;
+        }
+
+        return mAnomalies;
+    }
+
+    /**
+     * @return the anomalies of all the applications detected from {@code batteryStatsHelper}
+     * with its current stats, or null if they haven't been detected yet.
+     */
+    private synchronized List<Anomaly> getCachedAnomalies(BatteryStatsHelper batteryStatsHelper,
+            int types) {
+        if (mAnomalies == null || mAnomaliesStatsHelper.get() != batteryStatsHelper
+                || mAnomaliesStatsPeriod != batteryStatsHelper.getStatsPeriod()
+                || mAnomaliesTypes != types) {
+            return null;
+        }
+
+        return mAnomalies;
+    }
+
+    /**
+     * Detect the anomalies of all the types in {@code types} in a single pass over the
+     * applications. Package and display names are only looked up for the applications that have
+     * anomaly, once for all their anomalies.
+     *
+     * @return the list of anomalies, ordered by type as {@link Anomaly#ANOMALY_TYPE_LIST}
+     */
+    @VisibleForTesting
+    List<Anomaly> detectAllAnomalies(BatteryStatsHelper batteryStatsHelper, int types) {
+        return detectAnomalies(batteryStatsHelper, types, BatteryUtils.UID_NULL);
+    }
+
+    /**
+     * Same as {@link #detectAllAnomalies(BatteryStatsHelper, int)}, but only for the application
+     * with {@code targetUid} unless it is {@link BatteryUtils#UID_NULL}.
+     */
+    private List<Anomaly> detectAnomalies(BatteryStatsHelper batteryStatsHelper, int types,
+            int targetUid) {
+        final List<AnomalyDetector> detectors = new ArrayList<>();
+        for (@Anomaly.AnomalyType int type : Anomaly.ANOMALY_TYPE_LIST) {
+            if ((types & (1 << type)) != 0) {
+                detectors.add(getAnomalyDetector(type));
+            }
+        }
+        final int detectorCount = detectors.size();
+        final List<List<Anomaly>> anomaliesByDetector = new ArrayList<>(detectorCount);
+        for (int i = 0; i < detectorCount; i++) {
+            anomaliesByDetector.add(new ArrayList<>());
+        }
+
+        final List<BatterySipper> batterySippers = detectorCount > 0
+                ? batteryStatsHelper.getUsageList() : new ArrayList<>();
+        final long elapsedRealtimeMs = SystemClock.elapsedRealtime();
+        for (int i = 0, size = batterySippers.size(); i < size; i++) {
+            final BatterySipper sipper = batterySippers.get(i);
+            final BatteryStats.Uid uid = sipper.uidObj;
+            if (uid == null || (targetUid != BatteryUtils.UID_NULL && uid.getUid() != targetUid)
+                    || mBatteryUtils.shouldHideSipper(sipper)) {
+                continue;
+            }
+
+            boolean packageResolved = false;
+            String packageName = null;
+            CharSequence displayName = null;
+            for (int j = 0; j < detectorCount; j++) {
+                final AnomalyDetector detector = detectors.get(j);
+                final Anomaly.Builder builder = detector.detectAnomaly(batteryStatsHelper, uid,
+                        elapsedRealtimeMs);
+                if (builder == null) {
+                    continue;
+                }
+                if (!packageResolved) {
+                    packageName = mBatteryUtils.getPackageName(uid.getUid());
+                    displayName = Utils.getApplicationLabel(mContext, packageName);
+                    packageResolved = true;
+                }
+                detector.setPackageData(builder, uid.getUid(), packageName);
+
+                final Anomaly anomaly = builder
+                        .setDisplayName(displayName)
+                        .setPackageName(packageName)
+                        .build();
+                if (getAnomalyAction(anomaly).isActionActive(anomaly)) {
+                    anomaliesByDetector.get(j).add(anomaly);
+                }
+            }
+        }
+
+        final List<Anomaly> anomalies = new ArrayList<>();
+        for (int i = 0; i < detectorCount; i++) {
+            anomalies.addAll(anomaliesByDetector.get(i));
+        }
+
         return anomalies;
     }
 
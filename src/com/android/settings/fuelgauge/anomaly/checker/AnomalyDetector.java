@@ -18,6 +18,7 @@
 package com.android.settings.fuelgauge.anomaly.checker;
 
 import android.annotation.Nullable;
+import android.os.BatteryStats;
 
 import com.android.internal.os.BatteryStatsHelper;
 import com.android.settings.fuelgauge.anomaly.Anomaly;
@@ -43,4 +44,29 @@ public interface AnomalyDetector {
      */
     List<Anomaly> detectAnomalies(BatteryStatsHelper batteryStatsHelper,
             @Nullable String targetPackageName);
+
+    /**
+     * Detect whether application with {@code uid} has anomaly, so several detectors can share a
+     * single pass over the applications. Only the uid, type and data of the anomaly are set, the
+     * package dependent fields are left to {@link #setPackageData} as few applications have
+     * anomaly.
+     *
+     * @param batteryStatsHelper used to detect the anomaly
+     * @param uid                represents the app need to be detected
+     * @param elapsedRealtimeMs  time of the detection
+     * @return builder of the anomaly, or {@code null} if the app has no anomaly
+     */
+    @Nullable
+    Anomaly.Builder detectAnomaly(BatteryStatsHelper batteryStatsHelper, BatteryStats.Uid uid,
+            long elapsedRealtimeMs);
+
+    /**
+     * Set the fields of an anomaly from {@link #detectAnomaly} that depend on the package of the
+     * app, besides its package and display name.
+     *
+     * @param builder     builder returned by {@link #detectAnomaly}
+     * @param uid         uid of the app
+     * @param packageName package name of the app
+     */
+    void setPackageData(Anomaly.Builder builder, int uid, String packageName);
 }
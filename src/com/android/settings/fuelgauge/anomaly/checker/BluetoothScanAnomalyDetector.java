@@ -82,18 +82,16 @@ public class BluetoothScanAnomalyDetector implements AnomalyDetector {
                 continue;
             }
 
-            final long bluetoothTimeMs = getBluetoothUnoptimizedBgTimeMs(uid, elapsedRealtimeMs);
-            if (bluetoothTimeMs > mBluetoothScanningThreshold) {
+            final Anomaly.Builder builder = detectAnomaly(batteryStatsHelper, uid,
+                    elapsedRealtimeMs);
+            if (builder != null) {
                 final String packageName = mBatteryUtils.getPackageName(uid.getUid());
                 final CharSequence displayName = Utils.getApplicationLabel(mContext,
                         packageName);
 
-                Anomaly anomaly = new Anomaly.Builder()
-                        .setUid(uid.getUid())
-                        .setType(Anomaly.AnomalyType.BLUETOOTH_SCAN)
+                Anomaly anomaly = builder
                         .setDisplayName(displayName)
                         .setPackageName(packageName)
-                        .setBluetoothScanningTimeMs(bluetoothTimeMs)
                         .build();
 
                 if (mAnomalyUtils.getAnomalyAction(anomaly).isActionActive(anomaly)) {
@@ -105,6 +103,24 @@ public class BluetoothScanAnomalyDetector implements AnomalyDetector {
         return anomalies;
     }
 
+    @Override
+    public Anomaly.Builder detectAnomaly(BatteryStatsHelper batteryStatsHelper,
+            BatteryStats.Uid uid, long elapsedRealtimeMs) {
+        final long bluetoothTimeMs = getBluetoothUnoptimizedBgTimeMs(uid, elapsedRealtimeMs);
+        if (bluetoothTimeMs > mBluetoothScanningThreshold) {
+            return new Anomaly.Builder()
+                    .setUid(uid.getUid())
+                    .setType(Anomaly.AnomalyType.BLUETOOTH_SCAN)
+                    .setBluetoothScanningTimeMs(bluetoothTimeMs);
+        }
+        return null;
+    }
+
+    @Override
+    public void setPackageData(Anomaly.Builder builder, int uid, String packageName) {
+        // The anomaly doesn't depend on the package
+    }
+
     @VisibleForTesting
     public long getBluetoothUnoptimizedBgTimeMs(BatteryStats.Uid uid, long elapsedRealtimeMs) {
         BatteryStats.Timer timer = uid.getBluetoothUnoptimizedScanBackgroundTimer();
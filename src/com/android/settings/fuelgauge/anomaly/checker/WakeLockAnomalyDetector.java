@@ -84,20 +84,15 @@ public class WakeLockAnomalyDetector implements AnomalyDetector {
                 continue;
             }
 
-            final long currentDurationMs = getCurrentDurationMs(uid, rawRealtime);
-            final long backgroundDurationMs = getBackgroundTotalDurationMs(uid, rawRealtime);
-
-            if (backgroundDurationMs > mWakeLockThresholdMs && currentDurationMs != 0) {
+            final Anomaly.Builder builder = detectAnomaly(batteryStatsHelper, uid, rawRealtime);
+            if (builder != null) {
                 final String packageName = mBatteryUtils.getPackageName(uid.getUid());
                 final CharSequence displayName = Utils.getApplicationLabel(mContext,
                         packageName);
 
-                Anomaly anomaly = new Anomaly.Builder()
-                        .setUid(uid.getUid())
-                        .setType(Anomaly.AnomalyType.WAKE_LOCK)
+                Anomaly anomaly = builder
                         .setDisplayName(displayName)
                         .setPackageName(packageName)
-                        .setWakeLockTimeMs(backgroundDurationMs)
                         .build();
 
                 if (mAnomalyUtils.getAnomalyAction(anomaly).isActionActive(anomaly)) {
@@ -108,6 +103,26 @@ public class WakeLockAnomalyDetector implements AnomalyDetector {
         return anomalies;
     }
 
+    @Override
+    public Anomaly.Builder detectAnomaly(BatteryStatsHelper batteryStatsHelper,
+            BatteryStats.Uid uid, long elapsedRealtimeMs) {
+        final long currentDurationMs = getCurrentDurationMs(uid, elapsedRealtimeMs);
+        final long backgroundDurationMs = getBackgroundTotalDurationMs(uid, elapsedRealtimeMs);
+
+        if (backgroundDurationMs > mWakeLockThresholdMs && currentDurationMs != 0) {
+            return new Anomaly.Builder()
+                    .setUid(uid.getUid())
+                    .setType(Anomaly.AnomalyType.WAKE_LOCK)
+                    .setWakeLockTimeMs(backgroundDurationMs);
+        }
+        return null;
+    }
+
+    @Override
+    public void setPackageData(Anomaly.Builder builder, int uid, String packageName) {
+        // The anomaly doesn't depend on the package
+    }
+
     @VisibleForTesting
     long getCurrentDurationMs(BatteryStats.Uid uid, long elapsedRealtimeMs) {
         BatteryStats.Timer timer = uid.getAggregatedPartialWakelockTimer();
@@ -87,24 +87,17 @@ public class WakeupAlarmAnomalyDetector implements AnomalyDetector {
                     continue;
                 }
 
-                final int wakeupAlarmCount = (int) (getWakeupAlarmCountFromUid(uid)
-                        / totalRunningHours);
-                if (wakeupAlarmCount > mWakeupAlarmThreshold) {
+                final Anomaly.Builder builder = detectAnomaly(uid,
+                        getWakeupAlarmCountFromUid(uid), totalRunningHours);
+                if (builder != null) {
                     final String packageName = mBatteryUtils.getPackageName(uid.getUid());
                     final CharSequence displayName = Utils.getApplicationLabel(mContext,
                             packageName);
-                    final int targetSdkVersion = mBatteryUtils.getTargetSdkVersion(packageName);
+                    setPackageData(builder, uid.getUid(), packageName);
 
-                    Anomaly anomaly = new Anomaly.Builder()
-                            .setUid(uid.getUid())
-                            .setType(Anomaly.AnomalyType.WAKEUP_ALARM)
+                    Anomaly anomaly = builder
                             .setDisplayName(displayName)
                             .setPackageName(packageName)
-                            .setTargetSdkVersion(targetSdkVersion)
-                            .setBackgroundRestrictionEnabled(
-                                    mBatteryUtils.isBackgroundRestrictionEnabled(targetSdkVersion,
-                                            uid.getUid(), packageName))
-                            .setWakeupAlarmCount(wakeupAlarmCount)
                             .build();
 
                     if (mAnomalyUtils.getAnomalyAction(anomaly).isActionActive(anomaly)) {
@@ -117,6 +110,44 @@ public class WakeupAlarmAnomalyDetector implements AnomalyDetector {
         return anomalies;
     }
 
+    @Override
+    public Anomaly.Builder detectAnomaly(BatteryStatsHelper batteryStatsHelper,
+            BatteryStats.Uid uid, long elapsedRealtimeMs) {
+        final int wakeupAlarmCount = getWakeupAlarmCountFromUid(uid);
+        // Alarms per hour don't exceed the alarm count once the stats cover an hour, so the
+        // running time is only needed for the apps above the threshold
+        if (wakeupAlarmCount <= mWakeupAlarmThreshold) {
+            return null;
+        }
+        final double totalRunningHours = mBatteryUtils.calculateRunningTimeBasedOnStatsType(
+                batteryStatsHelper, BatteryStats.STATS_SINCE_CHARGED)
+                / (double) DateUtils.HOUR_IN_MILLIS;
+
+        return totalRunningHours >= 1
+                ? detectAnomaly(uid, wakeupAlarmCount, totalRunningHours) : null;
+    }
+
+    @Override
+    public void setPackageData(Anomaly.Builder builder, int uid, String packageName) {
+        final int targetSdkVersion = mBatteryUtils.getTargetSdkVersion(packageName);
+        builder.setTargetSdkVersion(targetSdkVersion)
+                .setBackgroundRestrictionEnabled(
+                        mBatteryUtils.isBackgroundRestrictionEnabled(targetSdkVersion, uid,
+                                packageName));
+    }
+
+    private Anomaly.Builder detectAnomaly(BatteryStats.Uid uid, int wakeupAlarmCount,
+            double totalRunningHours) {
+        final int wakeupAlarmRate = (int) (wakeupAlarmCount / totalRunningHours);
+        if (wakeupAlarmRate > mWakeupAlarmThreshold) {
+            return new Anomaly.Builder()
+                    .setUid(uid.getUid())
+                    .setType(Anomaly.AnomalyType.WAKEUP_ALARM)
+                    .setWakeupAlarmCount(wakeupAlarmRate);
+        }
+        return null;
+    }
+
     @VisibleForTesting
     int getWakeupAlarmCountFromUid(BatteryStats.Uid uid) {
         int wakeups = 0;
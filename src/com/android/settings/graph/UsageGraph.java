@@ -68,6 +68,12 @@ public class UsageGraph extends View {
     private float mMaxX = 100;
     private float mMaxY = 100;
 
+    // Size and max the local paths were calculated for.
+    private int mLocalWidth = -1;
+    private int mLocalHeight = -1;
+    private float mLocalMaxX;
+    private float mLocalMaxY;
+
     private float mMiddleDividerLoc = .5f;
     private int mMiddleDividerTint = -1;
     private int mTopDividerTint = -1;
@@ -166,8 +172,17 @@ public class UsageGraph extends View {
     }
 
     private void calculateLocalPaths() {
+        if (getWidth() == mLocalWidth && getHeight() == mLocalHeight && mMaxX == mLocalMaxX
+                && mMaxY == mLocalMaxY) {
+            // The local paths are up to date, the paths recalculate theirs when added.
+            return;
+        }
         calculateLocalPaths(mPaths, mLocalPaths);
         calculateLocalPaths(mProjectedPaths, mLocalProjectedPaths);
+        mLocalWidth = getWidth();
+        mLocalHeight = getHeight();
+        mLocalMaxX = mMaxX;
+        mLocalMaxY = mMaxY;
     }
 
     @VisibleForTesting
@@ -185,8 +200,10 @@ public class UsageGraph extends View {
             int x = paths.keyAt(i);
             int y = paths.valueAt(i);
             if (y == PATH_DELIM) {
-                if (i == paths.size() - 1 && skippedLastPoint) {
-                    // Add back skipped point to complete the path.
+                if (i == paths.size() - 1 && skippedLastPoint
+                        && localPaths.keyAt(localPaths.size() - 1) != lx) {
+                    // Add back skipped point to complete the path, unless its column already
+                    // holds the point kept for it.
                     localPaths.put(lx, ly);
                 }
                 skippedLastPoint = false;
@@ -202,6 +219,16 @@ public class UsageGraph extends View {
                         skippedLastPoint = true;
                         continue;
                     }
+                    // A pixel column holds a single point, keep the one furthest from the
+                    // column before so peaks and dips survive however many points there are.
+                    if (lastY != PATH_DELIM && lastX == lx && localPaths.size() > 1) {
+                        int prevY = localPaths.valueAt(localPaths.size() - 2);
+                        if (prevY != PATH_DELIM
+                                && Math.abs(ly - prevY) <= Math.abs(lastY - prevY)) {
+                            skippedLastPoint = true;
+                            continue;
+                        }
+                    }
                 }
                 skippedLastPoint = false;
                 localPaths.put(lx, ly);
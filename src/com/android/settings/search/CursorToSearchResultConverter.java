@@ -26,6 +26,7 @@ import android.os.BadParcelableException;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.settings.dashboard.IconCache;
 import com.android.settings.dashboard.SiteMapManager;
 
 import java.util.Arrays;
@@ -36,6 +37,7 @@ import java.util.Map;
 import java.util.Set;
 
 import static com.android.settings.search.DatabaseResultLoader.BASE_RANKS;
+import static com.android.settings.search.DatabaseResultLoader.COLUMN_INDEX_BASE_RANK;
 import static com.android.settings.search.DatabaseResultLoader.COLUMN_INDEX_CLASS_NAME;
 import static com.android.settings.search.DatabaseResultLoader.COLUMN_INDEX_ICON;
 import static com.android.settings.search.DatabaseResultLoader.COLUMN_INDEX_ID;
@@ -63,8 +65,12 @@ public class CursorToSearchResultConverter {
     private static final String TAG = "CursorConverter";
 
     private final Context mContext;
+    private final IconCache mIconCache;
 
-    private final int LONG_TITLE_LENGTH = 20;
+    /**
+     * Titles longer than this rank one below their base rank.
+     */
+    public static final int LONG_TITLE_LENGTH = 20;
 
     private static final String[] whiteList = {
             "main_toggle_wifi",
@@ -83,10 +89,24 @@ public class CursorToSearchResultConverter {
 
     public CursorToSearchResultConverter(Context context) {
         mContext = context;
+        mIconCache = IconCache.getInstance(context);
     }
 
     public Set<SearchResult> convertCursor(SiteMapManager sitemapManager,
             Cursor cursorResults, int baseRank) {
+        return convertCursor(sitemapManager, cursorResults, baseRank, false /* rankFromCursor */);
+    }
+
+    /**
+     * Converts a cursor where each row carries its own base rank in
+     * {@link DatabaseResultLoader#COLUMN_INDEX_BASE_RANK}.
+     */
+    public Set<SearchResult> convertCursor(SiteMapManager sitemapManager, Cursor cursorResults) {
+        return convertCursor(sitemapManager, cursorResults, 0, true /* rankFromCursor */);
+    }
+
+    private Set<SearchResult> convertCursor(SiteMapManager sitemapManager,
+            Cursor cursorResults, int baseRank, boolean rankFromCursor) {
         if (cursorResults == null) {
             return null;
         }
@@ -94,8 +114,10 @@ public class CursorToSearchResultConverter {
         final Set<SearchResult> results = new HashSet<>();
 
         while (cursorResults.moveToNext()) {
+            final int rowBaseRank = rankFromCursor
+                    ? cursorResults.getInt(COLUMN_INDEX_BASE_RANK) : baseRank;
             SearchResult result = buildSingleSearchResultFromCursor(sitemapManager,
-                    contextMap, cursorResults, baseRank);
+                    contextMap, cursorResults, rowBaseRank);
             if (result != null) {
                 results.add(result);
             }
@@ -139,7 +161,8 @@ public class CursorToSearchResultConverter {
         final List<String> breadcrumbs = getBreadcrumbs(sitemapManager, cursor);
         final int rank = getRank(title, baseRank, key);
 
-        final SearchResult.Builder builder = new SearchResult.Builder()
+        final SearchResult.Builder builder = new DatabaseSearchResult.Builder()
+                .setDocId(docId)
                 .setStableId(docId)
                 .setTitle(title)
                 .setSummary(summaryOn)
@@ -154,32 +177,41 @@ public class CursorToSearchResultConverter {
             String className, String iconResStr) {
         final int iconId = TextUtils.isEmpty(iconResStr)
                 ? 0 : Integer.parseInt(iconResStr);
-        Drawable icon;
-        Context packageContext;
         if (iconId == 0) {
-            icon = null;
-        } else {
-            if (TextUtils.isEmpty(className) && !TextUtils.isEmpty(pkgName)) {
-                packageContext = contextMap.get(pkgName);
-                if (packageContext == null) {
-                    try {
-                        packageContext = mContext.createPackageContext(pkgName, 0);
-                    } catch (PackageManager.NameNotFoundException e) {
-                        Log.e(TAG, "Cannot create Context for package: " + pkgName);
-                        return null;
-                    }
-                    contextMap.put(pkgName, packageContext);
+            return null;
+        }
+        final boolean fromPackage = TextUtils.isEmpty(className) && !TextUtils.isEmpty(pkgName);
+        final String key = "search:" + (fromPackage ? pkgName : mContext.getPackageName())
+                + ":" + iconId;
+        return mIconCache.getIcon(key,
+                () -> loadIconForPackage(contextMap, fromPackage ? pkgName : null, iconId));
+    }
+
+    /**
+     * @param pkgName package holding the icon, or null if it is a Settings resource.
+     */
+    private Drawable loadIconForPackage(Map<String, Context> contextMap, String pkgName,
+            int iconId) {
+        Context packageContext;
+        if (pkgName != null) {
+            packageContext = contextMap.get(pkgName);
+            if (packageContext == null) {
+                try {
+                    packageContext = mContext.createPackageContext(pkgName, 0);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.e(TAG, "Cannot create Context for package: " + pkgName);
+                    return null;
                 }
-            } else {
-                packageContext = mContext;
-            }
-            try {
-                icon = packageContext.getDrawable(iconId);
-            } catch (Resources.NotFoundException nfe) {
-                icon = null;
+                contextMap.put(pkgName, packageContext);
             }
+        } else {
+            packageContext = mContext;
+        }
+        try {
+            return packageContext.getDrawable(iconId);
+        } catch (Resources.NotFoundException nfe) {
+            return null;
         }
-        return icon;
     }
 
     private List<String> getBreadcrumbs(SiteMapManager siteMapManager, Cursor cursor) {
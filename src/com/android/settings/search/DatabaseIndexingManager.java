@@ -38,40 +38,14 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_TARGET_CLASS;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_TARGET_PACKAGE;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_RESID;
-import static com.android.settings.search.DatabaseResultLoader.COLUMN_INDEX_ID;
-import static com.android.settings.search.DatabaseResultLoader
-        .COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE;
-import static com.android.settings.search.DatabaseResultLoader.COLUMN_INDEX_KEY;
-import static com.android.settings.search.DatabaseResultLoader.SELECT_COLUMNS;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.CLASS_NAME;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_ENTRIES;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_KEYWORDS;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_KEY_REF;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_RANK;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_SUMMARY_OFF;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns
-        .DATA_SUMMARY_OFF_NORMALIZED;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_SUMMARY_ON;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns
-        .DATA_SUMMARY_ON_NORMALIZED;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_TITLE;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DATA_TITLE_NORMALIZED;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.DOCID;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.ENABLED;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.ICON;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.INTENT_ACTION;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.INTENT_TARGET_CLASS;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.INTENT_TARGET_PACKAGE;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.LOCALE;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.PAYLOAD;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.PAYLOAD_TYPE;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.SCREEN_TITLE;
-import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.USER_ID;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns.PROVIDER_PACKAGE;
 import static com.android.settings.search.IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX;
 
 import android.content.ComponentName;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -80,6 +54,7 @@ import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
@@ -89,6 +64,7 @@ import android.provider.SearchIndexablesContract;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -96,7 +72,10 @@ import android.util.Xml;
 
 import com.android.settings.SettingsActivity;
 import com.android.settings.core.PreferenceControllerMixin;
+import com.android.settings.core.instrumentation.MetricsFeatureProvider;
+import com.android.settings.dashboard.SiteMapManager;
 import com.android.settings.overlay.FeatureFactory;
+import com.android.settings.utils.BackgroundExecutors;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -105,12 +84,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Consumes the SearchIndexableProvider content providers.
@@ -125,6 +109,43 @@ public class DatabaseIndexingManager {
     private static final String METRICS_ACTION_SETTINGS_ASYNC_INDEX =
             "search_asynchronous_indexing";
 
+    private static final String METRICS_ACTION_SETTINGS_INDEX_PARSE =
+            "search_indexing_parse";
+
+    private static final String METRICS_ACTION_SETTINGS_INDEX_WRITE =
+            "search_indexing_write";
+
+    private static final String METRICS_ACTION_SETTINGS_INDEX_IN_MEMORY =
+            "search_indexing_in_memory";
+
+    /**
+     * Followed by the authority of the provider the keys are queried from.
+     */
+    private static final String METRICS_ACTION_SETTINGS_INDEX_NON_INDEXABLE_KEYS =
+            "search_indexing_non_indexable_keys_";
+
+    private static final String METRICS_ACTION_SETTINGS_INDEX_UPDATE_DATABASE =
+            "search_indexing_update_database";
+
+    private static final String METRICS_ACTION_SETTINGS_INDEX_ENABLED_CHANGES =
+            "search_indexing_enabled_changes";
+
+    private static final String METRICS_ACTION_SETTINGS_INDEX_NON_INDEXABLE_KEYS_SKIPPED =
+            "search_indexing_non_indexable_keys_skipped";
+
+    private static final String METRICS_ACTION_SETTINGS_INDEX_NON_INDEXABLE_KEYS_UPDATED =
+            "search_indexing_non_indexable_keys_updated";
+
+    private static final String METRICS_ACTION_SETTINGS_FULL_INDEX = "search_full_index";
+
+    private static final String METRICS_ACTION_SETTINGS_INCREMENTAL_INDEX =
+            "search_incremental_index";
+
+    /**
+     * Most keys bound in one UPDATE, well under the SQLite limit on bound arguments.
+     */
+    private static final int MAX_KEYS_PER_UPDATE = 500;
+
     public static final String FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER =
             "SEARCH_INDEX_DATA_PROVIDER";
 
@@ -134,6 +155,8 @@ public class DatabaseIndexingManager {
 
     private static final List<String> EMPTY_LIST = Collections.emptyList();
 
+    private static ExecutorService sParseExecutor;
+
     private final String mBaseAuthority;
 
     @VisibleForTesting
@@ -143,6 +166,12 @@ public class DatabaseIndexingManager {
     final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
 
+    private volatile InMemorySearchIndex mInMemorySearchIndex;
+
+    // Held while calling into the SearchIndexProviders and their preference controllers, which
+    // are not written to be called concurrently, while the XML is parsed in parallel.
+    private final Object mProviderLock = new Object();
+
     public DatabaseIndexingManager(Context context, String baseAuthority) {
         mContext = context;
         mBaseAuthority = baseAuthority;
@@ -156,6 +185,38 @@ public class DatabaseIndexingManager {
         return mIsIndexingComplete.get();
     }
 
+    /**
+     * @return the in-memory copy of the index, or null if it is not built or out of date.
+     */
+    public InMemorySearchIndex getInMemorySearchIndex() {
+        return mInMemorySearchIndex;
+    }
+
+    /**
+     * Rebuilds the in-memory copy of the index from the database. It is dropped if it does not
+     * fit in {@link InMemorySearchIndex#DEFAULT_MEMORY_BUDGET_BYTES}.
+     */
+    @VisibleForTesting
+    void buildInMemorySearchIndex() {
+        final SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        mInMemorySearchIndex = InMemorySearchIndex.build(database,
+                InMemorySearchIndex.DEFAULT_MEMORY_BUDGET_BYTES);
+        FeatureFactory.getFactory(mContext).getMetricsFeatureProvider().histogram(mContext,
+                METRICS_ACTION_SETTINGS_INDEX_IN_MEMORY,
+                (int) (System.currentTimeMillis() - startTime));
+    }
+
+    private void buildInMemorySearchIndexIfEnabled() {
+        if (FeatureFactory.getFactory(mContext).getSearchFeatureProvider()
+                .isInMemorySearchIndexEnabled(mContext)) {
+            buildInMemorySearchIndex();
+        }
+    }
+
     public void indexDatabase(IndexingCallback callback) {
         IndexingTask task = new IndexingTask(callback);
         task.execute();
@@ -164,61 +225,84 @@ public class DatabaseIndexingManager {
     /**
      * Accumulate all data and non-indexable keys from each of the content-providers.
      * Only the first indexing for the default language gets static search results - subsequent
-     * calls will only gather non-indexable keys.
+     * calls will only gather non-indexable keys, and re-index the providers whose version changed
+     * since they were last indexed.
      */
     public void performIndexing() {
         final long startTime = System.currentTimeMillis();
+        final MetricsFeatureProvider metricsFeatureProvider =
+                FeatureFactory.getFactory(mContext).getMetricsFeatureProvider();
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         final List<ResolveInfo> providers =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
         final String localeStr = Locale.getDefault().toString();
         final String fingerprint = Build.FINGERPRINT;
-        final String providerVersionedNames =
-                IndexDatabaseHelper.buildProviderVersionedNames(providers);
 
         final boolean isFullIndex = IndexDatabaseHelper.isFullIndex(mContext, localeStr,
-                fingerprint, providerVersionedNames);
+                fingerprint);
 
         if (isFullIndex) {
             rebuildDatabase();
         }
 
+        // Authorities left in this map after the loop are no longer installed.
+        final Map<String, String> staleProviders = isFullIndex
+                ? new ArrayMap<>()
+                : IndexDatabaseHelper.getIndexedProviderVersions(mContext);
+        // Providers which failed to be indexed are left out, to be indexed again next time.
+        final Map<String, String> providerVersions = new ArrayMap<>();
+        // Whether the screen titles the site map is derived from may have changed.
+        boolean indexChanged = isFullIndex;
+
         for (final ResolveInfo info : providers) {
             if (!DatabaseIndexingUtils.isWellKnownProvider(info, mContext)) {
                 continue;
             }
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
+            final String providerVersion = IndexDatabaseHelper.buildProviderVersion(info);
 
-            if (isFullIndex) {
-                addIndexablesFromRemoteProvider(packageName, authority);
+            final String indexedVersion = staleProviders.remove(authority);
+            boolean indexed = true;
+            if (isFullIndex || !TextUtils.equals(indexedVersion, providerVersion)) {
+                if (!isFullIndex) {
+                    clearIndexablesFromPackage(packageName);
+                }
+                indexed = addIndexablesFromRemoteProvider(packageName, authority);
+                indexChanged = true;
+            }
+            if (indexed) {
+                providerVersions.put(authority, providerVersion);
             }
             final long nonIndexableStartTime = System.currentTimeMillis();
             addNonIndexablesKeysFromRemoteProvider(packageName, authority);
-            if (SettingsSearchIndexablesProvider.DEBUG) {
-                final long nonIndextableTime = System.currentTimeMillis() - nonIndexableStartTime;
-                Log.d(LOG_TAG, "performIndexing update non-indexable for package " + packageName
-                        + " took time: " + nonIndextableTime);
-            }
+            metricsFeatureProvider.histogram(mContext,
+                    METRICS_ACTION_SETTINGS_INDEX_NON_INDEXABLE_KEYS + authority,
+                    (int) (System.currentTimeMillis() - nonIndexableStartTime));
+        }
+        for (String staleVersion : staleProviders.values()) {
+            clearIndexablesFromPackage(getPackageFromProviderVersion(staleVersion));
+            indexChanged = true;
         }
         final long updateDatabaseStartTime = System.currentTimeMillis();
         updateDatabase(isFullIndex, localeStr);
-        if (SettingsSearchIndexablesProvider.DEBUG) {
-            final long updateDatabaseTime = System.currentTimeMillis() - updateDatabaseStartTime;
-            Log.d(LOG_TAG, "performIndexing updateDatabase took time: " + updateDatabaseTime);
+        metricsFeatureProvider.histogram(mContext, METRICS_ACTION_SETTINGS_INDEX_UPDATE_DATABASE,
+                (int) (System.currentTimeMillis() - updateDatabaseStartTime));
+        final SQLiteDatabase database = getWritableDatabase();
+        if (database != null) {
+            SiteMapManager.updateDynamicPairs(mContext, database, indexChanged);
         }
 
         //TODO(63922686): Setting indexed should be a single method, not 3 separate setters.
         IndexDatabaseHelper.setLocaleIndexed(mContext, localeStr);
         IndexDatabaseHelper.setBuildIndexed(mContext, fingerprint);
-        IndexDatabaseHelper.setProvidersIndexed(mContext, providerVersionedNames);
+        IndexDatabaseHelper.setProvidersIndexed(mContext, providerVersions);
 
-        if (SettingsSearchIndexablesProvider.DEBUG) {
-            final long indexingTime = System.currentTimeMillis() - startTime;
-            Log.d(LOG_TAG, "performIndexing took time: " + indexingTime
-                    + "ms. Full index? " + isFullIndex);
-        }
+        metricsFeatureProvider.histogram(mContext, isFullIndex
+                        ? METRICS_ACTION_SETTINGS_FULL_INDEX
+                        : METRICS_ACTION_SETTINGS_INCREMENTAL_INDEX,
+                (int) (System.currentTimeMillis() - startTime));
     }
 
     /**
@@ -233,9 +317,15 @@ public class DatabaseIndexingManager {
         IndexDatabaseHelper.getInstance(mContext).reconstruct(db);
     }
 
+    private static String getPackageFromProviderVersion(String providerVersion) {
+        final int separator = providerVersion.lastIndexOf(':');
+        return separator < 0 ? providerVersion : providerVersion.substring(0, separator);
+    }
+
     /**
      * Adds new data to the database and verifies the correctness of the ENABLED column.
      * First, the data to be updated and all non-indexable keys are copied locally.
+     * Then rows owned by providers which have changed are removed.
      * Then all new data to be added is inserted.
      * Then search results are verified to have the correct value of enabled.
      * Finally, we record that the locale has been indexed.
@@ -253,6 +343,7 @@ public class DatabaseIndexingManager {
         }
 
         final List<SearchIndexableData> dataToUpdate = copy.dataToUpdate;
+        final Set<String> packagesToClear = copy.packagesToClear;
         final Map<String, Set<String>> nonIndexableKeys = copy.nonIndexableKeys;
 
         final SQLiteDatabase database = getWritableDatabase();
@@ -261,9 +352,16 @@ public class DatabaseIndexingManager {
             return;
         }
 
+        // The rows are about to change, stop serving the in-memory copy until it is rebuilt.
+        mInMemorySearchIndex = null;
         try {
             database.beginTransaction();
 
+            // Remove the rows of providers which are re-indexed or uninstalled.
+            if (packagesToClear.size() > 0) {
+                clearPackagesFromDatabase(database, packagesToClear);
+            }
+
             // Add new data from Providers at initial index time, or inserted later.
             if (dataToUpdate.size() > 0) {
                 addDataToDatabase(database, localeStr, dataToUpdate, nonIndexableKeys);
@@ -279,6 +377,19 @@ public class DatabaseIndexingManager {
         } finally {
             database.endTransaction();
         }
+        // Rows inserted above already reflect the keys, and the others were just updated. Rows
+        // inserted without the keys of their package no longer reflect the recorded ones.
+        final Set<String> stalePackages = new ArraySet<>(packagesToClear);
+        for (SearchIndexableData data : dataToUpdate) {
+            final String packageName = data.packageName != null
+                    ? data.packageName
+                    : mContext.getPackageName();
+            if (!nonIndexableKeys.containsKey(packageName)) {
+                stalePackages.add(packageName);
+            }
+        }
+        IndexDatabaseHelper.updateIndexedNonIndexableKeys(mContext, nonIndexableKeys,
+                stalePackages);
     }
 
     /**
@@ -295,18 +406,104 @@ public class DatabaseIndexingManager {
             List<SearchIndexableData> dataToUpdate, Map<String, Set<String>> nonIndexableKeys) {
         final long current = System.currentTimeMillis();
 
-        for (SearchIndexableData data : dataToUpdate) {
-            try {
-                indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
-                        + " for locale: " + localeStr, e);
+        // Parsing is spread over the shared parser pool, while rows are written on this thread
+        // which owns the transaction.
+        final int size = dataToUpdate.size();
+        final boolean parallel = size > 1 && Runtime.getRuntime().availableProcessors() > 1;
+        // Sum of the time spent parsing by every parser.
+        final AtomicLong parseTime = new AtomicLong();
+        final List<Future<List<DatabaseRow>>> batches = new ArrayList<>(size);
+        if (parallel) {
+            final ExecutorService parsers = getParseExecutor();
+            for (SearchIndexableData data : dataToUpdate) {
+                batches.add(parsers.submit(() -> {
+                    final long parseStartTime = System.currentTimeMillis();
+                    try {
+                        return parseOneSearchIndexableData(localeStr, data, nonIndexableKeys);
+                    } finally {
+                        parseTime.addAndGet(System.currentTimeMillis() - parseStartTime);
+                    }
+                }));
+            }
+        }
+
+        long writeTime = 0;
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(database)) {
+            for (int i = 0; i < size; i++) {
+                final SearchIndexableData data = dataToUpdate.get(i);
+                final List<DatabaseRow> rows;
+                if (parallel) {
+                    rows = getParsedRows(batches.get(i), data, localeStr);
+                } else {
+                    final long parseStartTime = System.currentTimeMillis();
+                    rows = parseOneSearchIndexableDataSafely(localeStr, data, nonIndexableKeys);
+                    parseTime.addAndGet(System.currentTimeMillis() - parseStartTime);
+                }
+                final long writeStartTime = System.currentTimeMillis();
+                writer.write(rows);
+                writeTime += System.currentTimeMillis() - writeStartTime;
             }
         }
 
         final long now = System.currentTimeMillis();
-        Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                (now - current) + " millis");
+        final int totalTime = (int) (now - current);
+        final MetricsFeatureProvider metricsFeatureProvider =
+                FeatureFactory.getFactory(mContext).getMetricsFeatureProvider();
+        metricsFeatureProvider.histogram(mContext, METRICS_ACTION_SETTINGS_INDEX_PARSE,
+                (int) parseTime.get());
+        metricsFeatureProvider.histogram(mContext, METRICS_ACTION_SETTINGS_INDEX_WRITE,
+                (int) writeTime);
+        Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " + totalTime + " millis, "
+                + parseTime.get() + " millis parsing, " + writeTime + " millis writing");
+    }
+
+    /**
+     * Returns the background pool shared by every indexing, with a parser per core.
+     */
+    private static synchronized ExecutorService getParseExecutor() {
+        if (sParseExecutor == null) {
+            sParseExecutor = BackgroundExecutors.newFixedThreadPool("SearchIndexParser",
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return sParseExecutor;
+    }
+
+    private List<DatabaseRow> getParsedRows(Future<List<DatabaseRow>> batch,
+            SearchIndexableData data, String localeStr) {
+        try {
+            return batch.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
+                    + " for locale: " + localeStr, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private List<DatabaseRow> parseOneSearchIndexableDataSafely(String localeStr,
+            SearchIndexableData data, Map<String, Set<String>> nonIndexableKeys) {
+        try {
+            return parseOneSearchIndexableData(localeStr, data, nonIndexableKeys);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
+                    + " for locale: " + localeStr, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Deletes every row indexed from the providers of the given packages.
+     *
+     * @param database         where the data will be deleted.
+     * @param packagesToClear  package names of the providers whose rows are deleted.
+     */
+    @VisibleForTesting
+    void clearPackagesFromDatabase(SQLiteDatabase database, Set<String> packagesToClear) {
+        final String whereClause = PROVIDER_PACKAGE + " = ?";
+        for (String packageName : packagesToClear) {
+            final int deleted = database.delete(TABLE_PREFS_INDEX, whereClause,
+                    new String[] {packageName});
+            Log.d(LOG_TAG, "Cleared " + deleted + " rows indexed from " + packageName);
+        }
     }
 
     /**
@@ -314,68 +511,125 @@ public class DatabaseIndexingManager {
      * All rows which are enabled but are now flagged with non-indexable keys will become disabled.
      * All rows which are disabled but no longer a non-indexable key will become enabled.
      *
+     * Packages whose keys have the same hash as when the enabled state was last updated are
+     * skipped. For the others, the keys of their disabled rows are read back, and only the rows
+     * of keys which were added or removed are updated.
+     *
      * @param database         The database to validate.
      * @param nonIndexableKeys A map between package name and the set of non-indexable keys for it.
      */
     @VisibleForTesting
     void updateDataInDatabase(SQLiteDatabase database,
             Map<String, Set<String>> nonIndexableKeys) {
-        final String whereEnabled = ENABLED + " = 1";
-        final String whereDisabled = ENABLED + " = 0";
-
-        final Cursor enabledResults = database.query(TABLE_PREFS_INDEX, SELECT_COLUMNS,
-                whereEnabled, null, null, null, null);
-
-        final ContentValues enabledToDisabledValue = new ContentValues();
-        enabledToDisabledValue.put(ENABLED, 0);
-
-        String packageName;
-        // TODO Refactor: Move these two loops into one method.
-        while (enabledResults.moveToNext()) {
-            // Package name is the key for remote providers.
-            // If package name is null, the provider is Settings.
-            packageName = enabledResults.getString(COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
-            if (packageName == null) {
-                packageName = mContext.getPackageName();
+        final Map<String, Long> indexedHashes =
+                IndexDatabaseHelper.getIndexedNonIndexableKeyHashes(mContext);
+        int changes = 0;
+        int skipped = 0;
+        for (Map.Entry<String, Set<String>> entry : nonIndexableKeys.entrySet()) {
+            final String packageName = entry.getKey();
+            final Set<String> keys = entry.getValue();
+            final Long indexedHash = indexedHashes.get(packageName);
+
+            if (indexedHash != null
+                    && indexedHash == IndexDatabaseHelper.hashNonIndexableKeys(keys)) {
+                skipped++;
+                continue;
             }
-
-            final String key = enabledResults.getString(COLUMN_INDEX_KEY);
-            final Set<String> packageKeys = nonIndexableKeys.get(packageName);
-
-            // The indexed item is set to Enabled but is now non-indexable
-            if (packageKeys != null && packageKeys.contains(key)) {
-                final String whereClause = DOCID + " = " + enabledResults.getInt(COLUMN_INDEX_ID);
-                database.update(TABLE_PREFS_INDEX, enabledToDisabledValue, whereClause, null);
+            final Set<String> disabledKeys = getDisabledKeys(database, packageName);
+            final List<String> keysToDisable = new ArrayList<>();
+            for (String key : keys) {
+                if (!disabledKeys.remove(key)) {
+                    keysToDisable.add(key);
+                }
             }
+            // What is left was disabled by keys which are no longer non-indexable.
+            changes += setKeysEnabled(database, packageName, keysToDisable,
+                    new ArrayList<>(disabledKeys));
         }
-        enabledResults.close();
-
-        final Cursor disabledResults = database.query(TABLE_PREFS_INDEX, SELECT_COLUMNS,
-                whereDisabled, null, null, null, null);
-
-        final ContentValues disabledToEnabledValue = new ContentValues();
-        disabledToEnabledValue.put(ENABLED, 1);
+        final MetricsFeatureProvider metricsFeatureProvider =
+                FeatureFactory.getFactory(mContext).getMetricsFeatureProvider();
+        metricsFeatureProvider.count(mContext,
+                METRICS_ACTION_SETTINGS_INDEX_NON_INDEXABLE_KEYS_SKIPPED, skipped);
+        metricsFeatureProvider.count(mContext,
+                METRICS_ACTION_SETTINGS_INDEX_NON_INDEXABLE_KEYS_UPDATED,
+                nonIndexableKeys.size() - skipped);
+        metricsFeatureProvider.histogram(mContext, METRICS_ACTION_SETTINGS_INDEX_ENABLED_CHANGES,
+                changes);
+    }
 
-        while (disabledResults.moveToNext()) {
-            // Package name is the key for remote providers.
-            // If package name is null, the provider is Settings.
-            packageName = disabledResults.getString(COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
-            if (packageName == null) {
-                packageName = mContext.getPackageName();
+    /**
+     * @return the keys of the disabled rows of the package.
+     */
+    private Set<String> getDisabledKeys(SQLiteDatabase database, String packageName) {
+        final List<String> args = new ArrayList<>();
+        final String selection = ENABLED + " = 0 AND " + DATA_KEY_REF + " IS NOT NULL AND "
+                + buildPackageSelection(packageName, args);
+        final Set<String> keys = new HashSet<>();
+        try (Cursor cursor = database.query(true /* distinct */, TABLE_PREFS_INDEX,
+                new String[] {DATA_KEY_REF}, selection, args.toArray(new String[args.size()]),
+                null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getString(0));
             }
+        }
+        return keys;
+    }
 
-            final String key = disabledResults.getString(COLUMN_INDEX_KEY);
-            final Set<String> packageKeys = nonIndexableKeys.get(packageName);
-
-            // The indexed item is set to Disabled but is no longer non-indexable.
-            // We do not enable keys when packageKeys is null because it means the keys came
-            // from an unrecognized package and therefore should not be surfaced as results.
-            if (packageKeys != null && !packageKeys.contains(key)) {
-                String whereClause = DOCID + " = " + disabledResults.getInt(COLUMN_INDEX_ID);
-                database.update(TABLE_PREFS_INDEX, disabledToEnabledValue, whereClause, null);
+    /**
+     * Disables the rows of the package with the first keys and enables those with the second,
+     * changing both in the same UPDATE.
+     *
+     * @return the number of rows changed.
+     */
+    private int setKeysEnabled(SQLiteDatabase database, String packageName,
+            List<String> keysToDisable, List<String> keysToEnable) {
+        final List<String> keyList = new ArrayList<>(keysToDisable);
+        keyList.addAll(keysToEnable);
+        final int disableCount = keysToDisable.size();
+        final int size = keyList.size();
+        int changes = 0;
+        for (int start = 0; start < size; start += MAX_KEYS_PER_UPDATE) {
+            final int end = Math.min(size, start + MAX_KEYS_PER_UPDATE);
+            final List<String> args = new ArrayList<>();
+            final String packageSelection = buildPackageSelection(packageName, args);
+            // Keys are bound once as ?2, ?3... and referenced by number from both clauses.
+            final StringBuilder disabled = new StringBuilder();
+            final StringBuilder batch = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                final String parameter = "?" + (args.size() + 1);
+                args.add(keyList.get(i));
+                if (i < disableCount) {
+                    disabled.append(disabled.length() == 0 ? "" : ", ").append(parameter);
+                }
+                batch.append(i == start ? "" : ", ").append(parameter);
+            }
+            final String enabled = disabled.length() == 0
+                    ? "1"
+                    : "CASE WHEN " + DATA_KEY_REF + " IN (" + disabled + ") THEN 0 ELSE 1 END";
+            final SQLiteStatement statement = database.compileStatement("UPDATE "
+                    + TABLE_PREFS_INDEX + " SET " + ENABLED + " = " + enabled
+                    + " WHERE " + packageSelection
+                    + " AND " + DATA_KEY_REF + " IN (" + batch + ")"
+                    + " AND " + ENABLED + " != " + enabled);
+            try {
+                statement.bindAllArgsAsStrings(args.toArray(new String[args.size()]));
+                changes += statement.executeUpdateDelete();
+            } finally {
+                statement.close();
             }
         }
-        disabledResults.close();
+        return changes;
+    }
+
+    /**
+     * Rows of Settings have no target package, other packages are the target of their rows.
+     * The package is bound as the first argument, {@code ?1}.
+     */
+    private String buildPackageSelection(String packageName, List<String> args) {
+        args.add(0, packageName);
+        return TextUtils.equals(packageName, mContext.getPackageName())
+                ? "(" + INTENT_TARGET_PACKAGE + " = ?1 OR " + INTENT_TARGET_PACKAGE + " IS NULL)"
+                : INTENT_TARGET_PACKAGE + " = ?1";
     }
 
     @VisibleForTesting
@@ -456,6 +710,16 @@ public class DatabaseIndexingManager {
         }
     }
 
+    /**
+     * Marks the rows indexed from a provider's package to be removed before new data is added.
+     */
+    @VisibleForTesting
+    void clearIndexablesFromPackage(String packageName) {
+        synchronized (mDataToProcess) {
+            mDataToProcess.packagesToClear.add(packageName);
+        }
+    }
+
     public void addIndexableData(SearchIndexableData data) {
         synchronized (mDataToProcess) {
             mDataToProcess.dataToUpdate.add(data);
@@ -494,6 +758,10 @@ public class DatabaseIndexingManager {
                 addIndexableData(res);
                 updateDatabase(false, Locale.getDefault().toString());
                 res.enabled = false;
+                // A pending indexing builds it once it is done.
+                if (mIsIndexingComplete.get()) {
+                    buildInMemorySearchIndexIfEnabled();
+                }
             }
         });
     }
@@ -628,14 +896,27 @@ public class DatabaseIndexingManager {
 
     public void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
             SearchIndexableData data, Map<String, Set<String>> nonIndexableKeys) {
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(database)) {
+            writer.write(parseOneSearchIndexableData(localeStr, data, nonIndexableKeys));
+        }
+    }
+
+    /**
+     * Converts one {@link SearchIndexableData} into the rows to insert in the index. This does
+     * not touch the database, so it can run on any thread.
+     */
+    private List<DatabaseRow> parseOneSearchIndexableData(String localeStr,
+            SearchIndexableData data, Map<String, Set<String>> nonIndexableKeys) {
+        final List<DatabaseRow> rows = new ArrayList<>();
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data, nonIndexableKeys);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data, nonIndexableKeys);
         }
+        return rows;
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<DatabaseRow> rows, String localeStr,
             SearchIndexableRaw raw, Map<String, Set<String>> nonIndexableKeysFromResource) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
@@ -661,13 +942,14 @@ public class DatabaseIndexingManager {
                 .setIntentTargetClass(raw.intentTargetClass)
                 .setEnabled(enabled)
                 .setKey(raw.key)
-                .setUserId(raw.userId);
+                .setUserId(raw.userId)
+                .setProviderPackage(raw.packageName);
 
-        updateOneRowWithFilteredData(database, builder, raw.title, raw.summaryOn, raw.summaryOff,
+        updateOneRowWithFilteredData(rows, builder, raw.title, raw.summaryOn, raw.summaryOff,
                 raw.keywords);
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<DatabaseRow> rows, String localeStr,
             SearchIndexableResource sir, Map<String, Set<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -683,7 +965,7 @@ public class DatabaseIndexingManager {
                 nonIndexableKeys.addAll(resNonIndexableKeys);
             }
 
-            indexFromResource(database, localeStr, sir, nonIndexableKeys);
+            indexFromResource(rows, localeStr, sir, nonIndexableKeys);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
@@ -702,12 +984,15 @@ public class DatabaseIndexingManager {
             final Indexable.SearchIndexProvider provider =
                     DatabaseIndexingUtils.getSearchIndexProvider(clazz);
             if (provider != null) {
-                List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
+                final List<String> providerNonIndexableKeys;
+                synchronized (mProviderLock) {
+                    providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
+                }
                 if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(database, localeStr, provider, sir, nonIndexableKeys);
+                indexFromProvider(rows, localeStr, provider, sir, nonIndexableKeys);
             }
         }
     }
@@ -715,6 +1000,15 @@ public class DatabaseIndexingManager {
     @VisibleForTesting
     void indexFromResource(SQLiteDatabase database, String localeStr,
             SearchIndexableResource sir, List<String> nonIndexableKeys) {
+        final List<DatabaseRow> rows = new ArrayList<>();
+        indexFromResource(rows, localeStr, sir, nonIndexableKeys);
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(database)) {
+            writer.write(rows);
+        }
+    }
+
+    private void indexFromResource(List<DatabaseRow> rows, String localeStr,
+            SearchIndexableResource sir, List<String> nonIndexableKeys) {
         final Context context = sir.context;
         XmlResourceParser parser = null;
         try {
@@ -755,12 +1049,15 @@ public class DatabaseIndexingManager {
             final String intentAction = sir.intentAction;
             final String intentTargetPackage = sir.intentTargetPackage;
             final String intentTargetClass = sir.intentTargetClass;
+            final String providerPackage = sir.packageName;
 
             Map<String, PreferenceControllerMixin> controllerUriMap = null;
 
             if (fragmentName != null) {
-                controllerUriMap = DatabaseIndexingUtils
-                        .getPreferenceControllerUriMap(fragmentName, context);
+                synchronized (mProviderLock) {
+                    controllerUriMap = DatabaseIndexingUtils
+                            .getPreferenceControllerUriMap(fragmentName, context);
+                }
             }
 
             // Insert rows for the main PreferenceScreen node. Rewrite the data for removing
@@ -783,7 +1080,8 @@ public class DatabaseIndexingManager {
                     .setIntentTargetClass(intentTargetClass)
                     .setEnabled(enabled)
                     .setKey(key)
-                    .setUserId(-1 /* default user id */);
+                    .setUserId(-1 /* default user id */)
+                    .setProviderPackage(providerPackage);
 
             // Flag for XML headers which a child element's title.
             boolean isHeaderUnique = true;
@@ -818,7 +1116,8 @@ public class DatabaseIndexingManager {
                         .setIntentTargetClass(intentTargetClass)
                         .setEnabled(enabled)
                         .setKey(key)
-                        .setUserId(-1 /* default user id */);
+                        .setUserId(-1 /* default user id */)
+                        .setProviderPackage(providerPackage);
 
                 if (!nodeName.equals(NODE_NAME_CHECK_BOX_PREFERENCE)) {
                     summary = XmlParserUtils.getDataSummary(context, attrs);
@@ -830,7 +1129,10 @@ public class DatabaseIndexingManager {
                     }
 
                     // TODO (b/62254931) index primitives instead of payload
-                    payload = DatabaseIndexingUtils.getPayloadFromUriMap(controllerUriMap, key);
+                    synchronized (mProviderLock) {
+                        payload = DatabaseIndexingUtils.getPayloadFromUriMap(controllerUriMap,
+                                key);
+                    }
                     childFragment = XmlParserUtils.getDataChildFragment(context, attrs);
 
                     builder.setEntries(entries)
@@ -838,7 +1140,7 @@ public class DatabaseIndexingManager {
                             .setPayload(payload);
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, builder, title, summary,
+                    updateOneRowWithFilteredData(rows, builder, title, summary,
                             null /* summary off */, keywords);
                 } else {
                     String summaryOn = XmlParserUtils.getDataSummaryOn(context, attrs);
@@ -848,14 +1150,14 @@ public class DatabaseIndexingManager {
                         summaryOn = XmlParserUtils.getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, builder, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, builder, title, summaryOn, summaryOff,
                             keywords);
                 }
             }
 
             // The xml header's title does not match the title of one of the child settings.
             if (isHeaderUnique) {
-                updateOneRowWithFilteredData(database, headerBuilder, headerTitle, headerSummary,
+                updateOneRowWithFilteredData(rows, headerBuilder, headerTitle, headerSummary,
                         null /* summary off */, headerKeywords);
             }
         } catch (XmlPullParserException e) {
@@ -867,7 +1169,7 @@ public class DatabaseIndexingManager {
         }
     }
 
-    private void indexFromProvider(SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(List<DatabaseRow> rows, String localeStr,
             Indexable.SearchIndexProvider provider, SearchIndexableResource sir,
             List<String> nonIndexableKeys) {
 
@@ -880,8 +1182,10 @@ public class DatabaseIndexingManager {
             return;
         }
 
-        final List<SearchIndexableRaw> rawList = provider.getRawDataToIndex(mContext,
-                true /* enabled */);
+        final List<SearchIndexableRaw> rawList;
+        synchronized (mProviderLock) {
+            rawList = provider.getRawDataToIndex(mContext, true /* enabled */);
+        }
 
         if (rawList != null) {
 
@@ -906,15 +1210,18 @@ public class DatabaseIndexingManager {
                         .setIntentTargetClass(raw.intentTargetClass)
                         .setEnabled(enabled)
                         .setKey(raw.key)
-                        .setUserId(raw.userId);
+                        .setUserId(raw.userId)
+                        .setProviderPackage(sir.packageName);
 
-                updateOneRowWithFilteredData(database, builder, raw.title, raw.summaryOn,
+                updateOneRowWithFilteredData(rows, builder, raw.title, raw.summaryOn,
                         raw.summaryOff, raw.keywords);
             }
         }
 
-        final List<SearchIndexableResource> resList =
-                provider.getXmlResourcesToIndex(mContext, true);
+        final List<SearchIndexableResource> resList;
+        synchronized (mProviderLock) {
+            resList = provider.getXmlResourcesToIndex(mContext, true);
+        }
         if (resList != null) {
             final int resSize = resList.size();
             for (int i = 0; i < resSize; i++) {
@@ -934,13 +1241,16 @@ public class DatabaseIndexingManager {
                 item.intentTargetPackage = TextUtils.isEmpty(item.intentTargetPackage)
                         ? intentTargetPackage
                         : item.intentTargetPackage;
+                item.packageName = TextUtils.isEmpty(item.packageName)
+                        ? sir.packageName
+                        : item.packageName;
 
-                indexFromResource(database, localeStr, item, nonIndexableKeys);
+                indexFromResource(rows, localeStr, item, nonIndexableKeys);
             }
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, DatabaseRow.Builder builder,
+    private void updateOneRowWithFilteredData(List<DatabaseRow> rows, DatabaseRow.Builder builder,
             String title, String summaryOn, String summaryOff, String keywords) {
 
         final String updatedTitle = DatabaseIndexingUtils.normalizeHyphen(title);
@@ -962,51 +1272,9 @@ public class DatabaseIndexingManager {
                 .setNormalizedSummaryOff(normalizedSummaryOff)
                 .setSpaceDelimitedKeywords(spaceDelimitedKeywords);
 
-        updateOneRow(database, builder.build(mContext));
-    }
-
-    private void updateOneRow(SQLiteDatabase database, DatabaseRow row) {
-
-        if (TextUtils.isEmpty(row.updatedTitle)) {
-            return;
-        }
-
-        ContentValues values = new ContentValues();
-        values.put(IndexDatabaseHelper.IndexColumns.DOCID, row.getDocId());
-        values.put(LOCALE, row.locale);
-        values.put(DATA_RANK, row.rank);
-        values.put(DATA_TITLE, row.updatedTitle);
-        values.put(DATA_TITLE_NORMALIZED, row.normalizedTitle);
-        values.put(DATA_SUMMARY_ON, row.updatedSummaryOn);
-        values.put(DATA_SUMMARY_ON_NORMALIZED, row.normalizedSummaryOn);
-        values.put(DATA_SUMMARY_OFF, row.updatedSummaryOff);
-        values.put(DATA_SUMMARY_OFF_NORMALIZED, row.normalizedSummaryOff);
-        values.put(DATA_ENTRIES, row.entries);
-        values.put(DATA_KEYWORDS, row.spaceDelimitedKeywords);
-        values.put(CLASS_NAME, row.className);
-        values.put(SCREEN_TITLE, row.screenTitle);
-        values.put(INTENT_ACTION, row.intentAction);
-        values.put(INTENT_TARGET_PACKAGE, row.intentTargetPackage);
-        values.put(INTENT_TARGET_CLASS, row.intentTargetClass);
-        values.put(ICON, row.iconResId);
-        values.put(ENABLED, row.enabled);
-        values.put(DATA_KEY_REF, row.key);
-        values.put(USER_ID, row.userId);
-        values.put(PAYLOAD_TYPE, row.payloadType);
-        values.put(PAYLOAD, row.payload);
-
-        database.replaceOrThrow(TABLE_PREFS_INDEX, null, values);
-
-        if (!TextUtils.isEmpty(row.className) && !TextUtils.isEmpty(row.childClassName)) {
-            ContentValues siteMapPair = new ContentValues();
-            final int pairDocId = Objects.hash(row.className, row.childClassName);
-            siteMapPair.put(IndexDatabaseHelper.SiteMapColumns.DOCID, pairDocId);
-            siteMapPair.put(IndexDatabaseHelper.SiteMapColumns.PARENT_CLASS, row.className);
-            siteMapPair.put(IndexDatabaseHelper.SiteMapColumns.PARENT_TITLE, row.screenTitle);
-            siteMapPair.put(IndexDatabaseHelper.SiteMapColumns.CHILD_CLASS, row.childClassName);
-            siteMapPair.put(IndexDatabaseHelper.SiteMapColumns.CHILD_TITLE, row.updatedTitle);
-
-            database.replaceOrThrow(IndexDatabaseHelper.Tables.TABLE_SITE_MAP, null, siteMapPair);
+        final DatabaseRow row = builder.build(mContext);
+        if (!TextUtils.isEmpty(row.updatedTitle)) {
+            rows.add(row);
         }
     }
 
@@ -1017,17 +1285,20 @@ public class DatabaseIndexingManager {
     static class UpdateData {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDisable;
+        public Set<String> packagesToClear;
         public Map<String, Set<String>> nonIndexableKeys;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<>();
             dataToDisable = new ArrayList<>();
+            packagesToClear = new ArraySet<>();
             nonIndexableKeys = new HashMap<>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<>(other.dataToUpdate);
             dataToDisable = new ArrayList<>(other.dataToDisable);
+            packagesToClear = new ArraySet<>(other.packagesToClear);
             nonIndexableKeys = new HashMap<>(other.nonIndexableKeys);
         }
 
@@ -1038,6 +1309,7 @@ public class DatabaseIndexingManager {
         public void clear() {
             dataToUpdate.clear();
             dataToDisable.clear();
+            packagesToClear.clear();
             nonIndexableKeys.clear();
         }
     }
@@ -1065,6 +1337,7 @@ public class DatabaseIndexingManager {
         public final int userId;
         public final int payloadType;
         public final byte[] payload;
+        public final String providerPackage;
 
         private DatabaseRow(Builder builder) {
             locale = builder.mLocale;
@@ -1090,6 +1363,7 @@ public class DatabaseIndexingManager {
             payloadType = builder.mPayloadType;
             payload = builder.mPayload != null ? ResultPayloadUtils.marshall(builder.mPayload)
                     : null;
+            providerPackage = builder.mProviderPackage;
         }
 
         /**
@@ -1127,6 +1401,7 @@ public class DatabaseIndexingManager {
             @ResultPayload.PayloadType
             private int mPayloadType;
             private ResultPayload mPayload;
+            private String mProviderPackage;
 
             public Builder setLocale(String locale) {
                 mLocale = locale;
@@ -1228,6 +1503,11 @@ public class DatabaseIndexingManager {
                 return this;
             }
 
+            public Builder setProviderPackage(String providerPackage) {
+                mProviderPackage = providerPackage;
+                return this;
+            }
+
             public Builder setPayload(ResultPayload payload) {
                 mPayload = payload;
 
@@ -1315,6 +1595,7 @@ public class DatabaseIndexingManager {
         @Override
         protected Void doInBackground(Void... voids) {
             performIndexing();
+            buildInMemorySearchIndexIfEnabled();
             return null;
         }
 
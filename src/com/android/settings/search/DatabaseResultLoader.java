@@ -23,7 +23,10 @@ import static com.android.settings.search.IndexDatabaseHelper.Tables.TABLE_PREFS
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
 
 import com.android.settings.dashboard.SiteMapManager;
 import com.android.settings.utils.AsyncLoader;
@@ -40,8 +43,8 @@ public class DatabaseResultLoader extends AsyncLoader<Set<? extends SearchResult
     /* These indices are used to match the columns of the this loader's SELECT statement.
      These are not necessarily the same order nor similar coverage as the schema defined in
      IndexDatabaseHelper */
-    static final int COLUMN_INDEX_ID = 0;
-    static final int COLUMN_INDEX_TITLE = 1;
+    public static final int COLUMN_INDEX_ID = 0;
+    public static final int COLUMN_INDEX_TITLE = 1;
     static final int COLUMN_INDEX_SUMMARY_ON = 2;
     static final int COLUMN_INDEX_SUMMARY_OFF = 3;
     static final int COLUMN_INDEX_CLASS_NAME = 4;
@@ -53,6 +56,7 @@ public class DatabaseResultLoader extends AsyncLoader<Set<? extends SearchResult
     static final int COLUMN_INDEX_KEY = 10;
     static final int COLUMN_INDEX_PAYLOAD_TYPE = 11;
     static final int COLUMN_INDEX_PAYLOAD = 12;
+    public static final int COLUMN_INDEX_BASE_RANK = 13;
 
     public static final String[] SELECT_COLUMNS = {
             IndexColumns.DOCID,
@@ -97,17 +101,44 @@ public class DatabaseResultLoader extends AsyncLoader<Set<? extends SearchResult
      */
     public static final int[] BASE_RANKS = {1, 3, 7, 9};
 
+    private static final String COLUMN_BASE_RANK = "base_rank";
+
+    /**
+     * Characters with a meaning in the FTS query syntax, which must not reach MATCH.
+     */
+    private static final String FTS_SPECIAL_CHARS = "[\"*^]";
+
+    private static final String MATCH_QUERY = buildMatchQuery();
+
+    /**
+     * Maximum number of rows read back from the database for hits of the in-memory index.
+     */
+    @VisibleForTesting
+    static final int MAX_IN_MEMORY_HITS = 100;
+
     @VisibleForTesting
     final String mQueryText;
     private final Context mContext;
     private final CursorToSearchResultConverter mConverter;
     private final SiteMapManager mSiteMapManager;
+    private final InMemorySearchIndex mSearchIndex;
+    private CancellationSignal mCancellationSignal;
 
     public DatabaseResultLoader(Context context, String queryText, SiteMapManager mapManager) {
+        this(context, queryText, mapManager, null /* searchIndex */);
+    }
+
+    /**
+     * @param searchIndex in-memory copy of the index to match the query against, or null to
+     *                    match it with FTS.
+     */
+    public DatabaseResultLoader(Context context, String queryText, SiteMapManager mapManager,
+            InMemorySearchIndex searchIndex) {
         super(context);
         mSiteMapManager = mapManager;
         mContext = context;
         mQueryText = queryText;
+        mSearchIndex = searchIndex;
         mConverter = new CursorToSearchResultConverter(context);
     }
 
@@ -121,156 +152,171 @@ public class DatabaseResultLoader extends AsyncLoader<Set<? extends SearchResult
         if (mQueryText == null || mQueryText.isEmpty()) {
             return null;
         }
+        final String matchText = buildMatchText(mQueryText);
+        if (matchText.isEmpty()) {
+            return new HashSet<>();
+        }
 
-        final Set<SearchResult> results = new HashSet<>();
-
-        results.addAll(firstWordQuery(MATCH_COLUMNS_PRIMARY, BASE_RANKS[0]));
-        results.addAll(secondaryWordQuery(MATCH_COLUMNS_PRIMARY, BASE_RANKS[1]));
-        results.addAll(anyWordQuery(MATCH_COLUMNS_SECONDARY, BASE_RANKS[2]));
-        results.addAll(anyWordQuery(MATCH_COLUMNS_TERTIARY, BASE_RANKS[3]));
-        return results;
+        // A newer query restarts the loader, which cancels the query below.
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            final SQLiteDatabase database =
+                    IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
+            try (Cursor resultCursor = queryMatches(database, matchText, mSearchIndex,
+                    mCancellationSignal)) {
+                return resultCursor == null
+                        ? new HashSet<>()
+                        : mConverter.convertCursor(mSiteMapManager, resultCursor);
+            }
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
     }
 
     @Override
-    protected boolean onCancelLoad() {
-        // TODO
-        return super.onCancelLoad();
-    }
-
-    /**
-     * Creates and executes the query which matches prefixes of the first word of the given columns.
-     *
-     * @param matchColumns The columns to match on
-     * @param baseRank The highest rank achievable by these results
-     * @return A set of the matching results.
-     */
-    private Set<SearchResult> firstWordQuery(String[] matchColumns, int baseRank) {
-        final String whereClause = buildSingleWordWhereClause(matchColumns);
-        final String query = mQueryText + "%";
-        final String[] selection = buildSingleWordSelection(query, matchColumns.length);
-
-        return query(whereClause, selection, baseRank);
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
     }
 
     /**
-     * Creates and executes the query which matches prefixes of the non-first words of the
-     * given columns.
+     * Runs the match behind {@link #loadInBackground()}, for callers which need the matching rows
+     * rather than {@link SearchResult}s.
      *
-     * @param matchColumns The columns to match on
-     * @param baseRank The highest rank achievable by these results
-     * @return A set of the matching results.
+     * @param matchText   query built by {@link #buildMatchText}.
+     * @param searchIndex in-memory copy of the index, or null to match with FTS.
+     * @return a cursor over {@link #SELECT_COLUMNS} followed by the base rank of each row, or
+     * null if nothing can match.
      */
-    private Set<SearchResult> secondaryWordQuery(String[] matchColumns, int baseRank) {
-        final String whereClause = buildSingleWordWhereClause(matchColumns);
-        final String query = "% " + mQueryText + "%";
-        final String[] selection = buildSingleWordSelection(query, matchColumns.length);
-
-        return query(whereClause, selection, baseRank);
+    public static Cursor queryMatches(SQLiteDatabase database, String matchText,
+            InMemorySearchIndex searchIndex, CancellationSignal cancellationSignal) {
+        if (searchIndex != null) {
+            final InMemorySearchIndex.Hits hits =
+                    searchIndex.search(matchText, MAX_IN_MEMORY_HITS);
+            if (hits.size() == 0) {
+                return null;
+            }
+            return database.rawQuery(buildHitsQuery(hits), null /* selectionArgs */,
+                    cancellationSignal);
+        }
+        return database.rawQuery(MATCH_QUERY, buildMatchSelection(matchText),
+                cancellationSignal);
     }
 
     /**
-     * Creates and executes the query which matches prefixes of the any word of the given columns.
-     *
-     * @param matchColumns The columns to match on
-     * @param baseRank The highest rank achievable by these results
-     * @return A set of the matching results.
+     * Strips the characters which have a meaning in the FTS query syntax so the user's query is
+     * always matched as a single phrase.
      */
-    private Set<SearchResult> anyWordQuery(String[] matchColumns, int baseRank) {
-        final String whereClause = buildTwoWordWhereClause(matchColumns);
-        final String[] selection = buildAnyWordSelection(matchColumns.length * 2);
-
-        return query(whereClause, selection, baseRank);
+    public static String buildMatchText(String queryText) {
+        return queryText.replaceAll(FTS_SPECIAL_CHARS, " ").trim();
     }
 
     /**
-     * Generic method used by all of the query methods above to execute a query.
-     *
-     * @param whereClause Where clause for the SQL query which uses bindings.
-     * @param selection List of the transformed query to match each bind in the whereClause
-     * @param baseRank The highest rank achievable by these results.
-     * @return A set of the matching results.
+     * Fills out the selection array for {@link #MATCH_QUERY}. Each bind is a phrase query where
+     * the last token is a prefix, so "wi fi" matches "Wi-Fi calling". Primary columns are also
+     * matched with the phrase anchored to the first token of the column.
      */
-    private Set<SearchResult> query(String whereClause, String[] selection, int baseRank) {
-        final SQLiteDatabase database =
-                IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
-        try (Cursor resultCursor = database.query(TABLE_PREFS_INDEX, SELECT_COLUMNS, whereClause,
-                selection, null, null, null)) {
-            return mConverter.convertCursor(mSiteMapManager, resultCursor, baseRank);
+    @VisibleForTesting
+    static String[] buildMatchSelection(String matchText) {
+        final String firstWordPhrase = "\"^" + matchText + "*\"";
+        final String anyWordPhrase = "\"" + matchText + "*\"";
+        final String[] selection = new String[MATCH_COLUMNS_PRIMARY.length * 2
+                + MATCH_COLUMNS_SECONDARY.length + MATCH_COLUMNS_TERTIARY.length];
+        int i = 0;
+        for (int n = 0; n < MATCH_COLUMNS_PRIMARY.length; n++) {
+            selection[i++] = firstWordPhrase;
         }
+        for (int n = 0; n < selection.length - MATCH_COLUMNS_PRIMARY.length; n++) {
+            selection[i++] = anyWordPhrase;
+        }
+        return selection;
     }
 
     /**
-     * Builds the SQLite WHERE clause that matches all matchColumns for a single query.
+     * Builds a single statement which matches every tier against the FTS index and keeps the
+     * best base rank for each docid. Each tier is a MATCH against one column, which lets sqlite
+     * answer it from the full-text index instead of scanning prefs_index.
      *
-     * @param matchColumns List of columns that will be used for matching.
-     * @return The constructed WHERE clause.
+     * SELECT <SELECT_COLUMNS>, MIN(base_rank) FROM (
+     *     SELECT <SELECT_COLUMNS>, 1 AS base_rank FROM prefs_index
+     *         WHERE data_title MATCH ? AND enabled = 1
+     *     UNION ALL ...
+     * ) GROUP BY docid
      */
-    private static String buildSingleWordWhereClause(String[] matchColumns) {
-        StringBuilder sb = new StringBuilder(" (");
-        final int count = matchColumns.length;
-        for (int n = 0; n < count; n++) {
-            sb.append(matchColumns[n]);
-            sb.append(" like ? ");
-            if (n < count - 1) {
-                sb.append(" OR ");
-            }
-        }
-        sb.append(") AND enabled = 1");
+    private static String buildMatchQuery() {
+        final String columns = TextUtils.join(", ", SELECT_COLUMNS);
+        final StringBuilder sb = new StringBuilder("SELECT ")
+                .append(columns)
+                .append(", MIN(").append(COLUMN_BASE_RANK).append(") FROM (");
+        boolean first = appendTier(sb, columns, MATCH_COLUMNS_PRIMARY, BASE_RANKS[0], true);
+        first = appendTier(sb, columns, MATCH_COLUMNS_PRIMARY, BASE_RANKS[1], first);
+        first = appendTier(sb, columns, MATCH_COLUMNS_SECONDARY, BASE_RANKS[2], first);
+        appendTier(sb, columns, MATCH_COLUMNS_TERTIARY, BASE_RANKS[3], first);
+        sb.append(") GROUP BY ").append(IndexColumns.DOCID);
         return sb.toString();
     }
 
     /**
-     * Builds the SQLite WHERE clause that matches all matchColumns to two different queries.
+     * Builds a statement reading back the rows of the in-memory index hits by docid, with the
+     * base rank of the tier each of them matched.
      *
-     * @param matchColumns List of columns that will be used for matching.
-     * @return The constructed WHERE clause.
+     * SELECT <SELECT_COLUMNS>, 1 AS base_rank FROM prefs_index
+     *     WHERE docid IN (...) AND enabled = 1
+     * UNION ALL ...
      */
-    private static String buildTwoWordWhereClause(String[] matchColumns) {
-        StringBuilder sb = new StringBuilder(" (");
-        final int count = matchColumns.length;
-        for (int n = 0; n < count; n++) {
-            sb.append(matchColumns[n]);
-            sb.append(" like ? OR ");
-            sb.append(matchColumns[n]);
-            sb.append(" like ?");
-            if (n < count - 1) {
-                sb.append(" OR ");
+    @VisibleForTesting
+    static String buildHitsQuery(InMemorySearchIndex.Hits hits) {
+        final String columns = TextUtils.join(", ", SELECT_COLUMNS);
+        final StringBuilder sb = new StringBuilder();
+        final int size = hits.size();
+        int i = 0;
+        while (i < size) {
+            final int tier = hits.tiers[i];
+            if (sb.length() > 0) {
+                sb.append(" UNION ALL ");
+            }
+            sb.append("SELECT ").append(columns)
+                    .append(", ").append(BASE_RANKS[tier]).append(" AS ").append(COLUMN_BASE_RANK)
+                    .append(" FROM ").append(TABLE_PREFS_INDEX)
+                    .append(" WHERE ").append(IndexColumns.DOCID).append(" IN (");
+            // Hits are ordered by tier, so each tier is a contiguous run.
+            boolean first = true;
+            for (; i < size && hits.tiers[i] == tier; i++) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(hits.docIds[i]);
             }
+            sb.append(") AND ").append(IndexColumns.ENABLED).append(" = 1");
         }
-        sb.append(") AND enabled = 1");
         return sb.toString();
     }
 
-    /**
-     * Fills out the selection array to match the query as the prefix of a single word.
-     *
-     * @param size is the number of columns to be matched.
-     */
-    private String[] buildSingleWordSelection(String query, int size) {
-        String[] selection = new String[size];
-
-        for(int i = 0; i < size; i ++) {
-            selection[i] = query;
-        }
-        return selection;
-    }
-
-    /**
-     * Fills out the selection array to match the query as the prefix of a word.
-     *
-     * @param size is twice the number of columns to be matched. The first match is for the prefix
-     *             of the first word in the column. The second match is for any subsequent word
-     *             prefix match.
-     */
-    private String[] buildAnyWordSelection(int size) {
-        String[] selection = new String[size];
-        final String query = mQueryText + "%";
-        final String subStringQuery = "% " + mQueryText + "%";
-
-        for(int i = 0; i < (size - 1); i += 2) {
-            selection[i] = query;
-            selection[i + 1] = subStringQuery;
+    private static boolean appendTier(StringBuilder sb, String columns, String[] matchColumns,
+            int baseRank, boolean first) {
+        for (String matchColumn : matchColumns) {
+            if (!first) {
+                sb.append(" UNION ALL ");
+            }
+            first = false;
+            sb.append("SELECT ").append(columns)
+                    .append(", ").append(baseRank).append(" AS ").append(COLUMN_BASE_RANK)
+                    .append(" FROM ").append(TABLE_PREFS_INDEX)
+                    .append(" WHERE ").append(matchColumn).append(" MATCH ?")
+                    .append(" AND ").append(IndexColumns.ENABLED).append(" = 1");
         }
-        return selection;
+        return first;
     }
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+/**
+ * Search result read from a row of the search index database.
+ */
+public class DatabaseSearchResult extends SearchResult {
+    /**
+     * Docid of the row in prefs_index.
+     */
+    public final int docId;
+
+    public DatabaseSearchResult(Builder builder) {
+        super(builder);
+        docId = builder.mDocId;
+    }
+
+    public static class Builder extends SearchResult.Builder {
+        protected int mDocId;
+
+        public SearchResult.Builder setDocId(int docId) {
+            mDocId = docId;
+            return this;
+        }
+
+        public DatabaseSearchResult build() {
+            return new DatabaseSearchResult(this);
+        }
+    }
+}
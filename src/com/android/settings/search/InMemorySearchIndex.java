@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, in-memory mirror of the enabled rows of prefs_index used to answer typeahead
+ * queries without going to SQLite.
+ *
+ * Every token of the title, summary, keyword and entry columns is stored in a prefix trie laid
+ * out in flat arrays. Terms are inserted in sorted order, so all the postings below a trie node
+ * are contiguous and a prefix query is a walk down the trie followed by a scan of one range of
+ * primitive postings. Each posting packs the document index with the column the term was found
+ * in, next to the position of the term in that column.
+ *
+ * Queries have the semantics of the FTS phrase query built by
+ * {@link DatabaseResultLoader#buildMatchSelection}: the tokens must follow each other in one
+ * column, the last token is a prefix and the others are whole terms. A phrase starting at the
+ * first token of a title has the first word tier of {@link DatabaseResultLoader#BASE_RANKS}.
+ */
+public class InMemorySearchIndex {
+
+    private static final String TAG = "InMemorySearchIndex";
+
+    /**
+     * Default cap on the estimated size of the index. Past it, search falls back to SQLite.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 2 * 1024 * 1024;
+
+    static final int TIER_TITLE_FIRST_WORD = 0;
+    static final int TIER_TITLE = 1;
+    static final int TIER_SUMMARY = 2;
+    static final int TIER_KEYWORDS = 3;
+    private static final int TIER_COUNT = 4;
+    private static final int TIER_BITS = 2;
+    private static final int TIER_MASK = (1 << TIER_BITS) - 1;
+    // A field is the tier of a column and its index among the columns of that tier.
+    private static final int FIELD_BITS = TIER_BITS + 2;
+
+    // Estimated bytes per trie node (char + 4 ints) and per posting (2 ints).
+    private static final int BYTES_PER_NODE = 2 + 4 * 4;
+    private static final int BYTES_PER_POSTING = 2 * 4;
+
+    private static final String[] INDEX_COLUMNS = {
+            IndexColumns.DOCID,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.DATA_ENTRIES,
+    };
+
+    private final int[] mDocIds;
+    private final char[] mNodeChars;
+    private final int[] mNodeFirstChild;
+    private final int[] mNodeNextSibling;
+    private final int[] mNodePostingStart;
+    private final int[] mNodePostingEnd;
+    private final int[] mPostings;
+    private final int[] mPositions;
+
+    private InMemorySearchIndex(int[] docIds, char[] nodeChars, int[] nodeFirstChild,
+            int[] nodeNextSibling, int[] nodePostingStart, int[] nodePostingEnd, int[] postings,
+            int[] positions) {
+        mDocIds = docIds;
+        mNodeChars = nodeChars;
+        mNodeFirstChild = nodeFirstChild;
+        mNodeNextSibling = nodeNextSibling;
+        mNodePostingStart = nodePostingStart;
+        mNodePostingEnd = nodePostingEnd;
+        mPostings = postings;
+        mPositions = positions;
+    }
+
+    /**
+     * Builds the index from the enabled rows of the search database.
+     *
+     * @return the index, or null if it would not fit in {@param memoryBudgetBytes}.
+     */
+    public static InMemorySearchIndex build(SQLiteDatabase database, long memoryBudgetBytes) {
+        final Builder builder = new Builder();
+        try (Cursor cursor = database.query(TABLE_PREFS_INDEX, INDEX_COLUMNS,
+                IndexColumns.ENABLED + " = 1", null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                builder.addDocument(cursor.getInt(0),
+                        new String[] {cursor.getString(1), cursor.getString(2)},
+                        new String[] {cursor.getString(3), cursor.getString(4),
+                                cursor.getString(5), cursor.getString(6)},
+                        new String[] {cursor.getString(7), cursor.getString(8)});
+            }
+        }
+        return builder.build(memoryBudgetBytes);
+    }
+
+    /**
+     * @return the number of documents in the index.
+     */
+    public int getDocumentCount() {
+        return mDocIds.length;
+    }
+
+    /**
+     * @return the estimated memory used by the index, in bytes.
+     */
+    public long getEstimatedSizeBytes() {
+        return estimateSizeBytes(mNodeChars.length, mPostings.length, mDocIds.length);
+    }
+
+    /**
+     * Finds the documents with a column containing the query as a phrase, where the last token
+     * of the query may be the prefix of a term.
+     *
+     * @param query the user's query.
+     * @param limit maximum number of hits returned.
+     * @return hits ordered by their best tier.
+     */
+    public Hits search(String query, int limit) {
+        final List<String> tokens = tokenize(query);
+        final int tokenCount = tokens.size();
+        if (tokenCount == 0 || limit <= 0) {
+            return Hits.EMPTY;
+        }
+
+        // Occurrences of the phrase so far, as sorted keys of the posting and the position the
+        // phrase starts at.
+        long[] matches = null;
+        for (int t = 0; t < tokenCount; t++) {
+            final int node = findNode(tokens.get(t));
+            if (node < 0) {
+                return Hits.EMPTY;
+            }
+            final int start = mNodePostingStart[node];
+            final int end = t == tokenCount - 1 ? mNodePostingEnd[node] : getTermPostingEnd(node);
+            final long[] occurrences = new long[end - start];
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                final int phraseStart = mPositions[i] - t;
+                if (phraseStart >= 0) {
+                    occurrences[count++] = ((long) mPostings[i] << 32) | phraseStart;
+                }
+            }
+            Arrays.sort(occurrences, 0, count);
+            matches = matches == null
+                    ? Arrays.copyOf(occurrences, count)
+                    : intersect(matches, occurrences, count);
+            if (matches.length == 0) {
+                return Hits.EMPTY;
+            }
+        }
+
+        // Best tier of the phrase for each document, or -1 when not matched.
+        final int docCount = mDocIds.length;
+        final int[] bestTier = new int[docCount];
+        Arrays.fill(bestTier, -1);
+        for (long match : matches) {
+            final int posting = (int) (match >>> 32);
+            final int docIndex = posting >>> FIELD_BITS;
+            int tier = posting & TIER_MASK;
+            if (tier == TIER_TITLE && (int) match == 0) {
+                tier = TIER_TITLE_FIRST_WORD;
+            }
+            if (bestTier[docIndex] < 0 || tier < bestTier[docIndex]) {
+                bestTier[docIndex] = tier;
+            }
+        }
+
+        // Bucket the matches by tier to return the best ones first.
+        final int[] tierCounts = new int[TIER_COUNT];
+        int total = 0;
+        for (int docIndex = 0; docIndex < docCount; docIndex++) {
+            if (bestTier[docIndex] >= 0) {
+                tierCounts[bestTier[docIndex]]++;
+                total++;
+            }
+        }
+        final int size = Math.min(total, limit);
+        final int[] docIds = new int[size];
+        final int[] tiers = new int[size];
+        int count = 0;
+        for (int tier = 0; tier < TIER_COUNT && count < size; tier++) {
+            if (tierCounts[tier] == 0) {
+                continue;
+            }
+            for (int docIndex = 0; docIndex < docCount && count < size; docIndex++) {
+                if (bestTier[docIndex] == tier) {
+                    docIds[count] = mDocIds[docIndex];
+                    tiers[count] = tier;
+                    count++;
+                }
+            }
+        }
+        return new Hits(docIds, tiers);
+    }
+
+    private int findNode(String prefix) {
+        int node = 0;
+        final int length = prefix.length();
+        for (int i = 0; i < length; i++) {
+            final char c = prefix.charAt(i);
+            int child = mNodeFirstChild[node];
+            while (child >= 0 && mNodeChars[child] != c) {
+                child = mNodeNextSibling[child];
+            }
+            if (child < 0) {
+                return -1;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * @return the end of the postings of the term ending at {@param node}, which are inserted
+     * before the postings of the longer terms below it.
+     */
+    private int getTermPostingEnd(int node) {
+        final int child = mNodeFirstChild[node];
+        return child >= 0 ? mNodePostingStart[child] : mNodePostingEnd[node];
+    }
+
+    /**
+     * @return the keys of {@param matches} also in the first {@param count} {@param keys}, both
+     * sorted.
+     */
+    private static long[] intersect(long[] matches, long[] keys, int count) {
+        final long[] result = new long[Math.min(matches.length, count)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < matches.length && j < count) {
+            if (matches[i] < keys[j]) {
+                i++;
+            } else if (matches[i] > keys[j]) {
+                j++;
+            } else {
+                result[size++] = matches[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Splits text into tokens like the FTS simple tokenizer: tokens are runs of ASCII letters
+     * and digits and of non-ASCII characters, and only ASCII letters are folded to lower case.
+     */
+    @VisibleForTesting
+    static List<String> tokenize(String text) {
+        final List<String> tokens = new ArrayList<>();
+        if (TextUtils.isEmpty(text)) {
+            return tokens;
+        }
+        final int length = text.length();
+        final StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= length; i++) {
+            final char c = i < length ? text.charAt(i) : ' ';
+            if (c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+                token.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                token.append((char) (c - 'A' + 'a'));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private static long estimateSizeBytes(int nodeCount, int postingCount, int docCount) {
+        return (long) nodeCount * BYTES_PER_NODE
+                + (long) postingCount * BYTES_PER_POSTING
+                + (long) docCount * 4;
+    }
+
+    /**
+     * Matching documents, best tier first.
+     */
+    public static class Hits {
+        static final Hits EMPTY = new Hits(new int[0], new int[0]);
+
+        /**
+         * Doc ids of the matching rows in prefs_index.
+         */
+        public final int[] docIds;
+        /**
+         * Index in {@link DatabaseResultLoader#BASE_RANKS} of the tier each document matched.
+         */
+        public final int[] tiers;
+
+        Hits(int[] docIds, int[] tiers) {
+            this.docIds = docIds;
+            this.tiers = tiers;
+        }
+
+        public int size() {
+            return docIds.length;
+        }
+    }
+
+    /**
+     * Collects documents and lays them out into an {@link InMemorySearchIndex}.
+     */
+    @VisibleForTesting
+    static class Builder {
+        private final Map<String, PostingList> mTerms = new HashMap<>();
+        private int[] mDocIds = new int[256];
+        private int mDocCount;
+        private int mPostingCount;
+
+        /**
+         * Each group holds at most four columns.
+         *
+         * @param titles    title columns, whose first token is also matched as the first word.
+         * @param summaries summary columns.
+         * @param others    keyword and entry columns.
+         */
+        Builder addDocument(int docId, String[] titles, String[] summaries, String[] others) {
+            if (mDocCount == mDocIds.length) {
+                mDocIds = Arrays.copyOf(mDocIds, mDocCount * 2);
+            }
+            final int docIndex = mDocCount++;
+            mDocIds[docIndex] = docId;
+
+            addPostings(titles, docIndex, TIER_TITLE);
+            addPostings(summaries, docIndex, TIER_SUMMARY);
+            addPostings(others, docIndex, TIER_KEYWORDS);
+            return this;
+        }
+
+        private void addPostings(String[] columns, int docIndex, int tier) {
+            for (int column = 0; column < columns.length; column++) {
+                final int posting = (docIndex << FIELD_BITS) | (column << TIER_BITS) | tier;
+                final List<String> tokens = tokenize(columns[column]);
+                for (int position = 0; position < tokens.size(); position++) {
+                    addPosting(tokens.get(position), posting, position);
+                }
+            }
+        }
+
+        private void addPosting(String term, int posting, int position) {
+            PostingList postings = mTerms.get(term);
+            if (postings == null) {
+                postings = new PostingList();
+                mTerms.put(term, postings);
+            }
+            postings.add(posting, position);
+            mPostingCount++;
+        }
+
+        /**
+         * @return the index, or null if it would not fit in {@param memoryBudgetBytes}.
+         */
+        InMemorySearchIndex build(long memoryBudgetBytes) {
+            final String[] terms = mTerms.keySet().toArray(new String[mTerms.size()]);
+            Arrays.sort(terms);
+
+            // Upper bound of the node count, before prefixes are shared.
+            int maxNodeCount = 1;
+            int maxTermLength = 0;
+            for (String term : terms) {
+                maxNodeCount += term.length();
+                maxTermLength = Math.max(maxTermLength, term.length());
+            }
+            if (estimateSizeBytes(maxNodeCount, mPostingCount, mDocCount) > memoryBudgetBytes) {
+                Log.w(TAG, "Search index over budget: " + terms.length + " terms, "
+                        + mPostingCount + " postings");
+                return null;
+            }
+
+            final char[] nodeChars = new char[maxNodeCount];
+            final int[] firstChild = new int[maxNodeCount];
+            final int[] nextSibling = new int[maxNodeCount];
+            final int[] lastChild = new int[maxNodeCount];
+            final int[] postingStart = new int[maxNodeCount];
+            final int[] postingEnd = new int[maxNodeCount];
+            final int[] postings = new int[mPostingCount];
+            final int[] positions = new int[mPostingCount];
+            Arrays.fill(firstChild, -1);
+            Arrays.fill(nextSibling, -1);
+            Arrays.fill(lastChild, -1);
+
+            // Nodes from the root to the last inserted term.
+            final int[] path = new int[maxTermLength + 1];
+            int nodeCount = 1;
+            int postingCount = 0;
+            String previous = "";
+            for (String term : terms) {
+                int common = 0;
+                final int max = Math.min(previous.length(), term.length());
+                while (common < max && previous.charAt(common) == term.charAt(common)) {
+                    common++;
+                }
+                for (int i = common; i < term.length(); i++) {
+                    final int parent = path[i];
+                    final int node = nodeCount++;
+                    nodeChars[node] = term.charAt(i);
+                    postingStart[node] = postingCount;
+                    if (lastChild[parent] < 0) {
+                        firstChild[parent] = node;
+                    } else {
+                        nextSibling[lastChild[parent]] = node;
+                    }
+                    lastChild[parent] = node;
+                    path[i + 1] = node;
+                }
+
+                final PostingList termPostings = mTerms.get(term);
+                System.arraycopy(termPostings.mPostings, 0, postings, postingCount,
+                        termPostings.mSize);
+                System.arraycopy(termPostings.mPositions, 0, positions, postingCount,
+                        termPostings.mSize);
+                postingCount += termPostings.mSize;
+                for (int i = 0; i <= term.length(); i++) {
+                    postingEnd[path[i]] = postingCount;
+                }
+                previous = term;
+            }
+
+            return new InMemorySearchIndex(Arrays.copyOf(mDocIds, mDocCount),
+                    Arrays.copyOf(nodeChars, nodeCount), Arrays.copyOf(firstChild, nodeCount),
+                    Arrays.copyOf(nextSibling, nodeCount), Arrays.copyOf(postingStart, nodeCount),
+                    Arrays.copyOf(postingEnd, nodeCount), postings, positions);
+        }
+    }
+
+    /**
+     * Growable list of packed postings and the positions of the term in their column.
+     */
+    private static class PostingList {
+        private int[] mPostings = new int[4];
+        private int[] mPositions = new int[4];
+        private int mSize;
+
+        void add(int posting, int position) {
+            if (mSize == mPostings.length) {
+                mPostings = Arrays.copyOf(mPostings, mSize * 2);
+                mPositions = Arrays.copyOf(mPositions, mSize * 2);
+            }
+            mPostings[mSize] = posting;
+            mPositions[mSize] = position;
+            mSize++;
+        }
+    }
+}
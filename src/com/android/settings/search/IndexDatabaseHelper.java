@@ -17,33 +17,86 @@
 package com.android.settings.search;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.support.annotation.VisibleForTesting;
-import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 117;
+    private static final int DATABASE_VERSION = 121;
+
+    /**
+     * Oldest schema version whose {@link Tables#TABLE_PREFS_INDEX} rows can be copied into the
+     * current table. Rows copied from it have no {@link IndexColumns#PROVIDER_PACKAGE}.
+     */
+    @VisibleForTesting
+    static final int DATABASE_VERSION_MIGRATABLE = 117;
+
+    /**
+     * First schema version with {@link IndexColumns#PROVIDER_PACKAGE}.
+     */
+    private static final int DATABASE_VERSION_PROVIDER_PACKAGE = 119;
+
+    /**
+     * First schema version with {@link Tables#TABLE_INSTALLED_APPS}.
+     */
+    private static final int DATABASE_VERSION_INSTALLED_APPS = 120;
+
+    /**
+     * First schema version with {@link Tables#TABLE_RESULT_CLICKS}.
+     */
+    private static final int DATABASE_VERSION_RESULT_CLICKS = 121;
 
     private static final String INDEX = "index";
 
-    private static final String PREF_KEY_INDEXED_PROVIDERS = "indexed_providers";
+    /**
+     * Prefix lengths, in characters, which get their own FTS index so short typeahead queries
+     * don't have to expand every matching term.
+     */
+    private static final String PREFIX_INDEX_LENGTHS = "1,2,3";
+
+    /**
+     * Ledger of the provider version last indexed for each authority.
+     */
+    private static final String INDEXED_PROVIDERS = "indexed_providers";
+
+    /**
+     * Fingerprint of the dashboard categories the persisted site map pairs were derived from.
+     */
+    private static final String SITE_MAP = "site_map";
+    private static final String PREF_KEY_SITE_MAP_CATEGORIES = "categories_fingerprint";
+
+    /**
+     * Hash of the non-indexable keys of each package which the enabled state of the indexed rows
+     * reflects.
+     */
+    private static final String NON_INDEXABLE_KEYS = "non_indexable_keys";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
 
     public interface Tables {
         String TABLE_PREFS_INDEX = "prefs_index";
         String TABLE_SITE_MAP = "site_map";
         String TABLE_META_INDEX = "meta_index";
         String TABLE_SAVED_QUERIES = "saved_queries";
+        String TABLE_INSTALLED_APPS = "installed_apps";
+        String TABLE_RESULT_CLICKS = "result_clicks";
     }
 
     public interface IndexColumns {
@@ -69,6 +122,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         String USER_ID = "user_id";
         String PAYLOAD_TYPE = "payload_type";
         String PAYLOAD = "payload";
+        String PROVIDER_PACKAGE = "provider_package";
     }
 
     public interface MetaColumns {
@@ -88,6 +142,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         String CHILD_TITLE = "child_title";
     }
 
+    public interface InstalledAppsColumns {
+        String PACKAGE_NAME = "package_name";
+        String USER_ID = "user_id";
+        String LABEL = "label";
+        String LOCALE = "locale";
+    }
+
+    public interface ResultClicksColumns {
+        String QUERY = "query";
+        String DOCID = "docid";
+        String TIME_STAMP = "timestamp";
+    }
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
@@ -132,8 +199,42 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     IndexColumns.PAYLOAD_TYPE +
                     ", " +
                     IndexColumns.PAYLOAD +
+                    ", " +
+                    IndexColumns.PROVIDER_PACKAGE +
+                    ", " +
+                    "prefix=\"" + PREFIX_INDEX_LENGTHS + "\"" +
                     ");";
 
+    /**
+     * Columns shared by every migratable version of {@link Tables#TABLE_PREFS_INDEX}.
+     */
+    private static final String PREFS_INDEX_COLUMNS =
+            IndexColumns.DOCID + ", " +
+                    IndexColumns.LOCALE + ", " +
+                    IndexColumns.DATA_RANK + ", " +
+                    IndexColumns.DATA_TITLE + ", " +
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_ON + ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+                    IndexColumns.DATA_ENTRIES + ", " +
+                    IndexColumns.DATA_KEYWORDS + ", " +
+                    IndexColumns.SCREEN_TITLE + ", " +
+                    IndexColumns.CLASS_NAME + ", " +
+                    IndexColumns.ICON + ", " +
+                    IndexColumns.INTENT_ACTION + ", " +
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +
+                    IndexColumns.ENABLED + ", " +
+                    IndexColumns.DATA_KEY_REF + ", " +
+                    IndexColumns.USER_ID + ", " +
+                    IndexColumns.PAYLOAD_TYPE + ", " +
+                    IndexColumns.PAYLOAD;
+
+    private static final String TABLE_PREFS_INDEX_MIGRATION =
+            Tables.TABLE_PREFS_INDEX + "_migration";
+
     private static final String CREATE_META_TABLE =
             "CREATE TABLE " + Tables.TABLE_META_INDEX +
                     "(" +
@@ -159,6 +260,32 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     ", " +
                     SiteMapColumns.CHILD_TITLE +
                     ")";
+
+    private static final String CREATE_INSTALLED_APPS_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + Tables.TABLE_INSTALLED_APPS +
+                    "(" +
+                    InstalledAppsColumns.PACKAGE_NAME + " TEXT NOT NULL" +
+                    ", " +
+                    InstalledAppsColumns.USER_ID + " INTEGER NOT NULL" +
+                    ", " +
+                    InstalledAppsColumns.LABEL + " TEXT" +
+                    ", " +
+                    InstalledAppsColumns.LOCALE + " TEXT" +
+                    ", " +
+                    "PRIMARY KEY (" + InstalledAppsColumns.PACKAGE_NAME + ", "
+                    + InstalledAppsColumns.USER_ID + ")" +
+                    ")";
+
+    private static final String CREATE_RESULT_CLICKS_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + Tables.TABLE_RESULT_CLICKS +
+                    "(" +
+                    ResultClicksColumns.QUERY + " VARCHAR(64) NOT NULL" +
+                    ", " +
+                    ResultClicksColumns.DOCID + " INTEGER NOT NULL" +
+                    ", " +
+                    ResultClicksColumns.TIME_STAMP + " INTEGER" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
@@ -192,6 +319,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
         db.execSQL(CREATE_SITE_MAP_TABLE);
+        db.execSQL(CREATE_INSTALLED_APPS_TABLE);
+        db.execSQL(CREATE_RESULT_CLICKS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -213,7 +342,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion < DATABASE_VERSION) {
+        if (oldVersion >= DATABASE_VERSION_MIGRATABLE && oldVersion < DATABASE_VERSION) {
+            Log.i(TAG, "Migrating from schema version '" + oldVersion + "' to '" + newVersion
+                    + "'.");
+            if (oldVersion < DATABASE_VERSION_PROVIDER_PACKAGE) {
+                migratePrefsIndex(db);
+            }
+            if (oldVersion < DATABASE_VERSION_INSTALLED_APPS) {
+                db.execSQL(CREATE_INSTALLED_APPS_TABLE);
+            }
+            if (oldVersion < DATABASE_VERSION_RESULT_CLICKS) {
+                db.execSQL(CREATE_RESULT_CLICKS_TABLE);
+            }
+        } else if (oldVersion < DATABASE_VERSION) {
             Log.w(TAG, "Detected schema version '" + oldVersion + "'. " +
                     "Index needs to be rebuilt for schema version '" + newVersion + "'.");
             // We need to drop the tables and recreate them
@@ -229,6 +370,24 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         reconstruct(db);
     }
 
+    /**
+     * Recreates {@link Tables#TABLE_PREFS_INDEX} with the current schema, keeping the indexed rows
+     * and every other table so search keeps working until the next indexing pass.
+     *
+     * The copied rows don't know which provider owns them, so the cached index state is cleared
+     * and the next indexing pass is a full index.
+     */
+    @VisibleForTesting
+    void migratePrefsIndex(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.TABLE_PREFS_INDEX
+                + " RENAME TO " + TABLE_PREFS_INDEX_MIGRATION);
+        db.execSQL(CREATE_INDEX_TABLE);
+        db.execSQL("INSERT INTO " + Tables.TABLE_PREFS_INDEX + "(" + PREFS_INDEX_COLUMNS + ")"
+                + " SELECT " + PREFS_INDEX_COLUMNS + " FROM " + TABLE_PREFS_INDEX_MIGRATION);
+        db.execSQL("DROP TABLE " + TABLE_PREFS_INDEX_MIGRATION);
+        clearCachedIndexed(mContext);
+    }
+
     public void reconstruct(SQLiteDatabase db) {
         dropTables(db);
         bootstrapDB(db);
@@ -253,37 +412,37 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Perform a full index on an OTA or when the locale has changed
+     * Perform a full index on an OTA or when the locale has changed. Changes to individual
+     * providers are handled incrementally through {@link #getIndexedProviderVersions}.
      *
      * @param locale      is the default for the device
      * @param fingerprint id for the current build.
      * @return true when the locale or build has changed since last index.
      */
     @VisibleForTesting
-    static boolean isFullIndex(Context context, String locale, String fingerprint,
-            String providerVersionedNames) {
+    static boolean isFullIndex(Context context, String locale, String fingerprint) {
         final boolean isLocaleIndexed = IndexDatabaseHelper.isLocaleAlreadyIndexed(context, locale);
         final boolean isBuildIndexed = IndexDatabaseHelper.isBuildIndexed(context, fingerprint);
-        final boolean areProvidersIndexed = IndexDatabaseHelper
-                .areProvidersIndexed(context, providerVersionedNames);
 
-        return !(isLocaleIndexed && isBuildIndexed && areProvidersIndexed);
+        return !(isLocaleIndexed && isBuildIndexed);
     }
 
+    /**
+     * @return the version of the provider, which changes whenever its package is updated.
+     */
     @VisibleForTesting
-    static String buildProviderVersionedNames(List<ResolveInfo> providers) {
-        StringBuilder sb = new StringBuilder();
-        for (ResolveInfo info : providers) {
-            sb.append(info.providerInfo.packageName)
-                    .append(':')
-                    .append(info.providerInfo.applicationInfo.versionCode)
-                    .append(',');
-        }
-        return sb.toString();
+    static String buildProviderVersion(ResolveInfo info) {
+        return info.providerInfo.packageName + ':'
+                + info.providerInfo.applicationInfo.versionCode;
     }
 
     static void clearCachedIndexed(Context context) {
         context.getSharedPreferences(INDEX, Context.MODE_PRIVATE).edit().clear().commit();
+        context.getSharedPreferences(INDEXED_PROVIDERS, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        context.getSharedPreferences(SITE_MAP, Context.MODE_PRIVATE).edit().clear().commit();
+        context.getSharedPreferences(NON_INDEXABLE_KEYS, Context.MODE_PRIVATE)
+                .edit().clear().commit();
     }
 
     static void setLocaleIndexed(Context context, String locale) {
@@ -293,10 +452,104 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                 .apply();
     }
 
-    static void setProvidersIndexed(Context context, String providerVersionedNames) {
-        context.getSharedPreferences(INDEX, Context.MODE_PRIVATE)
+    /**
+     * Replaces the ledger with the given provider versions.
+     *
+     * @param providerVersions map from authority to {@link #buildProviderVersion}.
+     */
+    static void setProvidersIndexed(Context context, Map<String, String> providerVersions) {
+        final SharedPreferences.Editor editor =
+                context.getSharedPreferences(INDEXED_PROVIDERS, Context.MODE_PRIVATE)
+                        .edit()
+                        .clear();
+        for (Map.Entry<String, String> entry : providerVersions.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return map from authority to the provider version it was last indexed with.
+     */
+    static Map<String, String> getIndexedProviderVersions(Context context) {
+        final Map<String, String> versions = new ArrayMap<>();
+        final Map<String, ?> ledger =
+                context.getSharedPreferences(INDEXED_PROVIDERS, Context.MODE_PRIVATE).getAll();
+        for (Map.Entry<String, ?> entry : ledger.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                versions.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Records the non-indexable keys which the enabled state of the rows of the given packages
+     * reflects. The entries of other packages are kept.
+     *
+     * @param nonIndexableKeys map from package name to its non-indexable keys.
+     * @param stalePackages    packages whose rows may no longer reflect their recorded keys.
+     */
+    static void updateIndexedNonIndexableKeys(Context context,
+            Map<String, Set<String>> nonIndexableKeys, Set<String> stalePackages) {
+        final SharedPreferences.Editor editor =
+                context.getSharedPreferences(NON_INDEXABLE_KEYS, Context.MODE_PRIVATE).edit();
+        for (String packageName : stalePackages) {
+            editor.remove(packageName);
+        }
+        for (Map.Entry<String, Set<String>> entry : nonIndexableKeys.entrySet()) {
+            editor.putLong(entry.getKey(), hashNonIndexableKeys(entry.getValue()));
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return map from package name to the hash of the non-indexable keys which the enabled
+     * state of its indexed rows reflects. Packages whose rows were never checked are missing.
+     */
+    static Map<String, Long> getIndexedNonIndexableKeyHashes(Context context) {
+        final Map<String, Long> hashes = new ArrayMap<>();
+        final Map<String, ?> ledger =
+                context.getSharedPreferences(NON_INDEXABLE_KEYS, Context.MODE_PRIVATE).getAll();
+        for (Map.Entry<String, ?> entry : ledger.entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                hashes.put(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of the keys, independent of their order.
+     */
+    static long hashNonIndexableKeys(Set<String> keys) {
+        final List<String> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys);
+        long hash = FNV_OFFSET_BASIS;
+        for (String key : sortedKeys) {
+            // The length keeps {"ab", "c"} and {"a", "bc"} apart.
+            final int length = key.length();
+            hash = (hash ^ length) * FNV_PRIME;
+            for (int i = 0; i < length; i++) {
+                hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the fingerprint of the dashboard categories whose site map pairs are stored in
+     * {@link Tables#TABLE_SITE_MAP}, or 0 if none are.
+     */
+    public static int getSiteMapCategoriesFingerprint(Context context) {
+        return context.getSharedPreferences(SITE_MAP, Context.MODE_PRIVATE)
+                .getInt(PREF_KEY_SITE_MAP_CATEGORIES, 0);
+    }
+
+    public static void setSiteMapCategoriesFingerprint(Context context, int fingerprint) {
+        context.getSharedPreferences(SITE_MAP, Context.MODE_PRIVATE)
                 .edit()
-                .putString(PREF_KEY_INDEXED_PROVIDERS, providerVersionedNames)
+                .putInt(PREF_KEY_SITE_MAP_CATEGORIES, fingerprint)
                 .apply();
     }
 
@@ -304,12 +557,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         return context.getSharedPreferences(INDEX, Context.MODE_PRIVATE).getBoolean(locale, false);
     }
 
-    static boolean areProvidersIndexed(Context context, String providerVersionedNames) {
-        final String indexedProviders = context.getSharedPreferences(INDEX, Context.MODE_PRIVATE)
-                .getString(PREF_KEY_INDEXED_PROVIDERS, null);
-        return TextUtils.equals(indexedProviders, providerVersionedNames);
-    }
-
     static boolean isBuildIndexed(Context context, String buildNo) {
         return context.getSharedPreferences(INDEX, Context.MODE_PRIVATE).getBoolean(buildNo, false);
     }
@@ -324,5 +571,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SITE_MAP);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_INSTALLED_APPS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_RESULT_CLICKS);
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.android.settings.search.DatabaseIndexingManager.DatabaseRow;
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.SiteMapColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Writes {@link DatabaseRow}s into the search index through compiled statements, so each row is
+ * a bind and execute instead of building and parsing a new INSERT.
+ *
+ * Must be used on the thread which owns the database transaction, and closed when done.
+ */
+public class IndexDatabaseWriter implements AutoCloseable {
+
+    private static final String INSERT_PREFS_INDEX_ROW =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX + "(" +
+                    IndexColumns.DOCID + ", " +
+                    IndexColumns.LOCALE + ", " +
+                    IndexColumns.DATA_RANK + ", " +
+                    IndexColumns.DATA_TITLE + ", " +
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_ON + ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+                    IndexColumns.DATA_ENTRIES + ", " +
+                    IndexColumns.DATA_KEYWORDS + ", " +
+                    IndexColumns.CLASS_NAME + ", " +
+                    IndexColumns.SCREEN_TITLE + ", " +
+                    IndexColumns.INTENT_ACTION + ", " +
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +
+                    IndexColumns.ICON + ", " +
+                    IndexColumns.ENABLED + ", " +
+                    IndexColumns.DATA_KEY_REF + ", " +
+                    IndexColumns.USER_ID + ", " +
+                    IndexColumns.PAYLOAD_TYPE + ", " +
+                    IndexColumns.PAYLOAD + ", " +
+                    IndexColumns.PROVIDER_PACKAGE +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_SITE_MAP_PAIR =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_SITE_MAP + "(" +
+                    SiteMapColumns.DOCID + ", " +
+                    SiteMapColumns.PARENT_CLASS + ", " +
+                    SiteMapColumns.PARENT_TITLE + ", " +
+                    SiteMapColumns.CHILD_CLASS + ", " +
+                    SiteMapColumns.CHILD_TITLE +
+                    ") VALUES (?, ?, ?, ?, ?)";
+
+    private final SQLiteStatement mInsertRow;
+    private final SQLiteStatement mInsertSiteMapPair;
+
+    public IndexDatabaseWriter(SQLiteDatabase database) {
+        mInsertRow = database.compileStatement(INSERT_PREFS_INDEX_ROW);
+        mInsertSiteMapPair = database.compileStatement(INSERT_SITE_MAP_PAIR);
+    }
+
+    /**
+     * Writes a batch of rows, and the site map pairs they describe.
+     */
+    public void write(List<DatabaseRow> rows) {
+        final int size = rows.size();
+        for (int i = 0; i < size; i++) {
+            write(rows.get(i));
+        }
+    }
+
+    public void write(DatabaseRow row) {
+        if (TextUtils.isEmpty(row.updatedTitle)) {
+            return;
+        }
+
+        final SQLiteStatement insertRow = mInsertRow;
+        insertRow.clearBindings();
+        insertRow.bindLong(1, row.getDocId());
+        bindString(insertRow, 2, row.locale);
+        insertRow.bindLong(3, row.rank);
+        bindString(insertRow, 4, row.updatedTitle);
+        bindString(insertRow, 5, row.normalizedTitle);
+        bindString(insertRow, 6, row.updatedSummaryOn);
+        bindString(insertRow, 7, row.normalizedSummaryOn);
+        bindString(insertRow, 8, row.updatedSummaryOff);
+        bindString(insertRow, 9, row.normalizedSummaryOff);
+        bindString(insertRow, 10, row.entries);
+        bindString(insertRow, 11, row.spaceDelimitedKeywords);
+        bindString(insertRow, 12, row.className);
+        bindString(insertRow, 13, row.screenTitle);
+        bindString(insertRow, 14, row.intentAction);
+        bindString(insertRow, 15, row.intentTargetPackage);
+        bindString(insertRow, 16, row.intentTargetClass);
+        insertRow.bindLong(17, row.iconResId);
+        insertRow.bindLong(18, row.enabled ? 1 : 0);
+        bindString(insertRow, 19, row.key);
+        insertRow.bindLong(20, row.userId);
+        insertRow.bindLong(21, row.payloadType);
+        if (row.payload == null) {
+            insertRow.bindNull(22);
+        } else {
+            insertRow.bindBlob(22, row.payload);
+        }
+        bindString(insertRow, 23, row.providerPackage);
+        insertRow.executeInsert();
+
+        if (!TextUtils.isEmpty(row.className) && !TextUtils.isEmpty(row.childClassName)) {
+            final SQLiteStatement insertPair = mInsertSiteMapPair;
+            insertPair.clearBindings();
+            insertPair.bindLong(1, Objects.hash(row.className, row.childClassName));
+            bindString(insertPair, 2, row.className);
+            bindString(insertPair, 3, row.screenTitle);
+            bindString(insertPair, 4, row.childClassName);
+            bindString(insertPair, 5, row.updatedTitle);
+            insertPair.executeInsert();
+        }
+    }
+
+    @Override
+    public void close() {
+        mInsertRow.close();
+        mInsertSiteMapPair.close();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.UserInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.applications.PackageManagerWrapper;
+import com.android.settings.applications.PackageManagerWrapperImpl;
+import com.android.settings.search.IndexDatabaseHelper.InstalledAppsColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Labels of the apps shown in app search, keyed by package and user.
+ *
+ * The labels are loaded from {@link PackageManager} once, stored in
+ * {@link Tables#TABLE_INSTALLED_APPS} and then kept up to date one package at a time from
+ * package broadcasts. A query looks the labels up by prefix in a sorted index of their words.
+ *
+ * The receiver only lives as long as the process, so a restored list is reconciled with
+ * {@link PackageManager} in the background to pick up changes made while the process was dead.
+ */
+public class InstalledAppIndex {
+
+    private static final String TAG = "InstalledAppIndex";
+
+    private static final Intent LAUNCHER_PROBE = new Intent(Intent.ACTION_MAIN)
+            .addCategory(Intent.CATEGORY_LAUNCHER);
+
+    private static final String SELECT_ENTRIES =
+            "SELECT " + InstalledAppsColumns.PACKAGE_NAME + ", " + InstalledAppsColumns.USER_ID
+                    + ", " + InstalledAppsColumns.LABEL
+                    + " FROM " + Tables.TABLE_INSTALLED_APPS
+                    + " WHERE " + InstalledAppsColumns.LOCALE + " = ?";
+
+    private static final String INSERT_ENTRY =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_INSTALLED_APPS + "("
+                    + InstalledAppsColumns.PACKAGE_NAME + ", "
+                    + InstalledAppsColumns.USER_ID + ", "
+                    + InstalledAppsColumns.LABEL + ", "
+                    + InstalledAppsColumns.LOCALE
+                    + ") VALUES (?, ?, ?, ?)";
+
+    private static final String DELETE_ENTRY_WHERE =
+            InstalledAppsColumns.PACKAGE_NAME + " = ? AND " + InstalledAppsColumns.USER_ID + " = ?";
+
+    private static InstalledAppIndex sInstance;
+
+    private final Context mContext;
+    private final PackageManagerWrapper mPackageManager;
+    private final UserManager mUserManager;
+    private final boolean mPersistent;
+    private final Executor mExecutor;
+    private final Object mLock = new Object();
+
+    /**
+     * Immutable, replaced as a whole whenever an entry changes.
+     */
+    private volatile LabelIndex mIndex;
+
+    public static synchronized InstalledAppIndex getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new InstalledAppIndex(appContext,
+                    new PackageManagerWrapperImpl(appContext.getPackageManager()),
+                    true /* persistent */);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param persistent whether the index is stored in the database and kept up to date from
+     *                   package broadcasts. A non-persistent index is loaded from
+     *                   {@link PackageManager} once and never changes.
+     */
+    @VisibleForTesting
+    InstalledAppIndex(Context context, PackageManagerWrapper pmWrapper, boolean persistent) {
+        mContext = context;
+        mPackageManager = pmWrapper;
+        mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mPersistent = persistent;
+        mExecutor = persistent ? Executors.newSingleThreadExecutor() : Runnable::run;
+    }
+
+    /**
+     * Returns the apps shown in app search, loading them on the first call. Must not be called
+     * on the main thread.
+     */
+    public List<AppEntry> getEntries() {
+        return getIndex().entries;
+    }
+
+    /**
+     * Returns the apps with a word of their label starting with {@code query}, ignoring case.
+     * Words start at the first letter or digit after a whitespace, e.g. "Bananas & Apples"
+     * matches "ban" and "app" but not "nan". Loads the apps on the first call, so must not be
+     * called on the main thread.
+     */
+    public List<AppEntry> findEntries(String query) {
+        return getIndex().find(query);
+    }
+
+    private LabelIndex getIndex() {
+        final LabelIndex index = mIndex;
+        if (index != null) {
+            return index;
+        }
+        synchronized (mLock) {
+            if (mIndex != null) {
+                return mIndex;
+            }
+            final List<AppEntry> restored = mPersistent ? restoreEntries() : null;
+            if (restored == null || restored.isEmpty()) {
+                mIndex = new LabelIndex(loadEntries());
+                persistEntries(mIndex.entries);
+            } else {
+                mIndex = new LabelIndex(restored);
+                mExecutor.execute(this::reload);
+            }
+            if (mPersistent) {
+                registerReceiver();
+            }
+            return mIndex;
+        }
+    }
+
+    /**
+     * Returns the {@link ApplicationInfo} of an entry, fetching it if the entry was restored from
+     * the database, or null if the package is gone.
+     */
+    public ApplicationInfo getApplicationInfo(AppEntry entry) {
+        if (entry.mInfo == null) {
+            try {
+                entry.mInfo = mPackageManager.getApplicationInfoAsUser(entry.packageName,
+                        getQueryFlags(isAdmin(entry.userId)), entry.userId);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+        return entry.mInfo;
+    }
+
+    /**
+     * Re-reads a single package for a user, after it was installed, updated or removed.
+     */
+    @VisibleForTesting
+    void updatePackage(String packageName, int userId) {
+        final UserInfo user = getUser(userId);
+        AppEntry entry = null;
+        if (user != null) {
+            try {
+                final ApplicationInfo info = mPackageManager.getApplicationInfoAsUser(packageName,
+                        getQueryFlags(user.isAdmin()), userId);
+                if (shouldIncludeAsCandidate(info, userId, getHomeActivities())) {
+                    entry = new AppEntry(packageName, userId, loadLabel(info), info);
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+                // Removed, drop the entry.
+            }
+        }
+
+        synchronized (mLock) {
+            if (mIndex == null) {
+                // Nothing loaded yet, the next load reads the package anyway.
+                return;
+            }
+            final List<AppEntry> entries = new ArrayList<>(mIndex.entries.size() + 1);
+            for (AppEntry existing : mIndex.entries) {
+                if (existing.userId != userId
+                        || !TextUtils.equals(existing.packageName, packageName)) {
+                    entries.add(existing);
+                }
+            }
+            if (entry != null) {
+                entries.add(entry);
+            }
+            mIndex = new LabelIndex(entries);
+        }
+        if (mPersistent) {
+            persistEntry(packageName, userId, entry);
+        }
+    }
+
+    /**
+     * Re-reads every package, after a locale or profile change or to reconcile restored entries.
+     */
+    @VisibleForTesting
+    void reload() {
+        final LabelIndex index = new LabelIndex(loadEntries());
+        synchronized (mLock) {
+            mIndex = index;
+        }
+        persistEntries(index.entries);
+    }
+
+    private List<AppEntry> loadEntries() {
+        final List<AppEntry> entries = new ArrayList<>();
+        final List<ResolveInfo> homeActivities = getHomeActivities();
+        for (UserInfo user : getProfiles()) {
+            final List<ApplicationInfo> apps = mPackageManager.getInstalledApplicationsAsUser(
+                    getQueryFlags(user.isAdmin()), user.id);
+            for (ApplicationInfo info : apps) {
+                if (shouldIncludeAsCandidate(info, user.id, homeActivities)) {
+                    entries.add(new AppEntry(info.packageName, user.id, loadLabel(info), info));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private List<AppEntry> restoreEntries() {
+        final List<AppEntry> entries = new ArrayList<>();
+        try (Cursor cursor = getDatabase().rawQuery(SELECT_ENTRIES, new String[] {getLocale()})) {
+            while (cursor.moveToNext()) {
+                entries.add(new AppEntry(cursor.getString(0), cursor.getInt(1),
+                        cursor.getString(2), null /* info */));
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot restore installed apps", e);
+            return null;
+        }
+        return entries;
+    }
+
+    private void persistEntries(List<AppEntry> entries) {
+        if (!mPersistent) {
+            return;
+        }
+        final String locale = getLocale();
+        try {
+            final SQLiteDatabase database = getDatabase();
+            database.beginTransaction();
+            try (SQLiteStatement insert = database.compileStatement(INSERT_ENTRY)) {
+                database.delete(Tables.TABLE_INSTALLED_APPS, null /* whereClause */,
+                        null /* whereArgs */);
+                for (AppEntry entry : entries) {
+                    bindEntry(insert, entry, locale);
+                    insert.executeInsert();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot persist installed apps", e);
+        }
+    }
+
+    private void persistEntry(String packageName, int userId, AppEntry entry) {
+        try {
+            final SQLiteDatabase database = getDatabase();
+            if (entry == null) {
+                database.delete(Tables.TABLE_INSTALLED_APPS, DELETE_ENTRY_WHERE,
+                        new String[] {packageName, Integer.toString(userId)});
+                return;
+            }
+            try (SQLiteStatement insert = database.compileStatement(INSERT_ENTRY)) {
+                bindEntry(insert, entry, getLocale());
+                insert.executeInsert();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot persist " + packageName, e);
+        }
+    }
+
+    private static void bindEntry(SQLiteStatement insert, AppEntry entry, String locale) {
+        insert.clearBindings();
+        insert.bindString(1, entry.packageName);
+        insert.bindLong(2, entry.userId);
+        if (entry.label == null) {
+            insert.bindNull(3);
+        } else {
+            insert.bindString(3, entry.label);
+        }
+        insert.bindString(4, locale);
+    }
+
+    private void registerReceiver() {
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageFilter, null, null);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        mContext.registerReceiver(mReceiver, filter);
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)
+                    || Intent.ACTION_MANAGED_PROFILE_ADDED.equals(action)
+                    || Intent.ACTION_MANAGED_PROFILE_REMOVED.equals(action)) {
+                mExecutor.execute(InstalledAppIndex.this::reload);
+                return;
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action)
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // An ACTION_PACKAGE_ADDED follows once the update is installed.
+                return;
+            }
+            final Uri data = intent.getData();
+            final String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (TextUtils.isEmpty(packageName)) {
+                return;
+            }
+            final int userId = getSendingUserId();
+            mExecutor.execute(() -> updatePackage(packageName, userId));
+        }
+    };
+
+    /**
+     * Returns true if the candidate should be included in candidate list
+     * <p/>
+     * This method matches logic in {@code ApplicationState#FILTER_DOWNLOADED_AND_LAUNCHER}.
+     */
+    private boolean shouldIncludeAsCandidate(ApplicationInfo info, int userId,
+            List<ResolveInfo> homeActivities) {
+        // Not system app
+        if ((info.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) != 0
+                || (info.flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
+            return true;
+        }
+        // Shows up in launcher
+        final Intent launchIntent = new Intent(LAUNCHER_PROBE)
+                .setPackage(info.packageName);
+        final List<ResolveInfo> intents = mPackageManager.queryIntentActivitiesAsUser(
+                launchIntent,
+                PackageManager.MATCH_DISABLED_COMPONENTS
+                        | PackageManager.MATCH_DIRECT_BOOT_AWARE
+                        | PackageManager.MATCH_DIRECT_BOOT_UNAWARE,
+                userId);
+        if (intents != null && intents.size() != 0) {
+            return true;
+        }
+        // Is launcher app itself
+        return isPackageInList(homeActivities, info.packageName);
+    }
+
+    private static boolean isPackageInList(List<ResolveInfo> resolveInfos, String pkg) {
+        for (ResolveInfo info : resolveInfos) {
+            if (TextUtils.equals(info.activityInfo.packageName, pkg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<ResolveInfo> getHomeActivities() {
+        final List<ResolveInfo> homeActivities = new ArrayList<>();
+        mPackageManager.getHomeActivities(homeActivities);
+        return homeActivities;
+    }
+
+    private static int getQueryFlags(boolean isAdmin) {
+        return PackageManager.MATCH_DISABLED_COMPONENTS
+                | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
+                | (isAdmin ? PackageManager.MATCH_ANY_USER : 0);
+    }
+
+    private String loadLabel(ApplicationInfo info) {
+        final CharSequence label = info.loadLabel(mPackageManager.getPackageManager());
+        return label != null ? label.toString() : null;
+    }
+
+    private List<UserInfo> getProfiles() {
+        return mUserManager.getProfiles(UserHandle.myUserId());
+    }
+
+    private UserInfo getUser(int userId) {
+        for (UserInfo user : getProfiles()) {
+            if (user.id == userId) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private boolean isAdmin(int userId) {
+        final UserInfo user = getUser(userId);
+        return user != null && user.isAdmin();
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+    }
+
+    private static String getLocale() {
+        return Locale.getDefault().toString();
+    }
+
+    /**
+     * Sorted index of the words of the labels, to find the apps matching a query with binary
+     * searches instead of scanning every label.
+     *
+     * A label matches a query when the lower case label starts with it from the start of one of
+     * its words. The index holds the rest of the lower case label from each of these positions.
+     */
+    private static class LabelIndex {
+        final List<AppEntry> entries;
+        // Rest of the lower case labels from each word, sorted.
+        private final String[] mKeys;
+        // Position in entries of the app of each key.
+        private final int[] mPositions;
+
+        LabelIndex(List<AppEntry> entries) {
+            this.entries = Collections.unmodifiableList(entries);
+            final List<Key> keys = new ArrayList<>(entries.size() * 2);
+            for (int pos = 0, size = entries.size(); pos < size; pos++) {
+                final String label = entries.get(pos).label;
+                if (TextUtils.isEmpty(label)) {
+                    continue;
+                }
+                final String lowerCase = label.toLowerCase();
+                final int length = lowerCase.length();
+                int start = 0;
+                while (start < length) {
+                    keys.add(new Key(lowerCase.substring(start), pos));
+                    // The next word starts at the first letter or digit after a whitespace.
+                    while (start < length && !Character.isWhitespace(lowerCase.charAt(start))) {
+                        start++;
+                    }
+                    while (start < length && !Character.isLetterOrDigit(lowerCase.charAt(start))) {
+                        start++;
+                    }
+                }
+            }
+            final Key[] sorted = keys.toArray(new Key[keys.size()]);
+            Arrays.sort(sorted, (lhs, rhs) -> lhs.key.compareTo(rhs.key));
+            mKeys = new String[sorted.length];
+            mPositions = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                mKeys[i] = sorted[i].key;
+                mPositions[i] = sorted[i].position;
+            }
+        }
+
+        /**
+         * @return the entries matching the query, in the order of the indexed entries.
+         */
+        List<AppEntry> find(String query) {
+            if (TextUtils.isEmpty(query)) {
+                return Collections.emptyList();
+            }
+            final String prefix = query.toLowerCase();
+            // All keys from start on are not less than the prefix, those starting with it come
+            // first.
+            final int start = lowerBound(prefix);
+            int lo = start;
+            int hi = mKeys.length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (mKeys[mid].startsWith(prefix)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            final int[] positions = Arrays.copyOfRange(mPositions, start, lo);
+            Arrays.sort(positions);
+            final List<AppEntry> result = new ArrayList<>(positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                // An app matches once even if several of its words do.
+                if (i == 0 || positions[i] != positions[i - 1]) {
+                    result.add(entries.get(positions[i]));
+                }
+            }
+            return result;
+        }
+
+        private int lowerBound(String prefix) {
+            int lo = 0;
+            int hi = mKeys.length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (mKeys[mid].compareTo(prefix) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static class Key {
+            final String key;
+            final int position;
+
+            Key(String key, int position) {
+                this.key = key;
+                this.position = position;
+            }
+        }
+    }
+
+    /**
+     * An app shown in app search.
+     */
+    public static class AppEntry {
+        public final String packageName;
+        public final int userId;
+        public final String label;
+        /**
+         * Null until first needed for entries restored from the database.
+         */
+        private volatile ApplicationInfo mInfo;
+
+        @VisibleForTesting
+        AppEntry(String packageName, int userId, String label, ApplicationInfo info) {
+            this.packageName = packageName;
+            this.userId = userId;
+            this.label = label;
+            mInfo = info;
+        }
+    }
+}
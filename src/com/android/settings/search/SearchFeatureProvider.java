@@ -150,4 +150,11 @@ public interface SearchFeatureProvider {
     default void searchRankingWarmup(Context context) {
     }
 
+    /**
+     * @return true to answer database queries from an in-memory copy of the index.
+     */
+    default boolean isInMemorySearchIndexEnabled(Context context) {
+        return false;
+    }
+
 }
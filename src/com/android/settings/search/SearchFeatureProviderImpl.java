@@ -21,9 +21,11 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.settings.applications.PackageManagerWrapperImpl;
 import com.android.settings.dashboard.SiteMapManager;
 import com.android.settings.overlay.FeatureFactory;
+import com.android.settings.search.ranking.LocalSearchRanker;
+import com.android.settings.search.ranking.SearchRankingModel;
+import com.android.settings.search.ranking.SearchResultsRankerCallback;
 
 /**
  * FeatureProvider for the refactored search code.
@@ -36,6 +38,7 @@ public class SearchFeatureProviderImpl implements SearchFeatureProvider {
 
     private DatabaseIndexingManager mDatabaseIndexingManager;
     private SiteMapManager mSiteMapManager;
+    private LocalSearchRanker mSearchRanker;
 
     @Override
     public boolean isEnabled(Context context) {
@@ -44,13 +47,13 @@ public class SearchFeatureProviderImpl implements SearchFeatureProvider {
 
     @Override
     public DatabaseResultLoader getDatabaseSearchLoader(Context context, String query) {
-        return new DatabaseResultLoader(context, cleanQuery(query), getSiteMapManager());
+        return new DatabaseResultLoader(context, cleanQuery(query), getSiteMapManager(),
+                getIndexingManager(context).getInMemorySearchIndex());
     }
 
     @Override
     public InstalledAppResultLoader getInstalledAppSearchLoader(Context context, String query) {
-        return new InstalledAppResultLoader(
-                context, new PackageManagerWrapperImpl(context.getPackageManager()),
+        return new InstalledAppResultLoader(context, InstalledAppIndex.getInstance(context),
                 cleanQuery(query), getSiteMapManager());
     }
 
@@ -100,6 +103,52 @@ public class SearchFeatureProviderImpl implements SearchFeatureProvider {
         getIndexingManager(context).indexDatabase(callback);
     }
 
+    @Override
+    public boolean isInMemorySearchIndexEnabled(Context context) {
+        return true;
+    }
+
+    @Override
+    public void querySearchResults(Context context, String query,
+            SearchResultsRankerCallback searchResultsRankerCallback) {
+        getSearchRanker(context).rank(query,
+                getIndexingManager(context).getInMemorySearchIndex(),
+                smartSearchRankingTimeoutMs(context), searchResultsRankerCallback);
+    }
+
+    @Override
+    public void cancelPendingSearchQuery(Context context) {
+        if (mSearchRanker != null) {
+            mSearchRanker.cancel();
+        }
+    }
+
+    @Override
+    public void searchResultClicked(Context context, String query, SearchResult searchResult) {
+        // Only database results are ranked, by the docid of their row.
+        if (!TextUtils.isEmpty(query) && searchResult instanceof DatabaseSearchResult) {
+            getSearchRanker(context).recordClick(query,
+                    ((DatabaseSearchResult) searchResult).docId);
+        }
+    }
+
+    @Override
+    public boolean isSmartSearchRankingEnabled(Context context) {
+        return true;
+    }
+
+    @Override
+    public void searchRankingWarmup(Context context) {
+        getSearchRanker(context).warmup();
+    }
+
+    private LocalSearchRanker getSearchRanker(Context context) {
+        if (mSearchRanker == null) {
+            mSearchRanker = new LocalSearchRanker(context, SearchRankingModel.getDefault());
+        }
+        return mSearchRanker;
+    }
+
     @Override
     public void updateIndex(Context context) {
         long indexStartTime = System.currentTimeMillis();
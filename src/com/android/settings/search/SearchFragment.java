@@ -333,6 +333,7 @@ public class SearchFragment extends InstrumentedFragment implements SearchView.O
             Set<? extends SearchResult> data) {
         mSearchAdapter.addSearchResults(data, loader.getClass().getName());
         if (mUnfinishedLoadersCount.decrementAndGet() != 0) {
+            mSearchAdapter.notifyPartialResultsLoaded();
             return;
         }
 
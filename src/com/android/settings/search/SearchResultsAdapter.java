@@ -44,6 +44,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -63,6 +64,25 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
 
     @VisibleForTesting
     static final int MSG_RANKING_TIMED_OUT = 1;
+    @VisibleForTesting
+    static final int MSG_POST_PARTIAL_RESULTS = 2;
+
+    /**
+     * Maximum number of results shown while some loaders are still running, enough to fill the
+     * first screen.
+     */
+    @VisibleForTesting
+    static final int MAX_PARTIAL_RESULTS = 20;
+
+    /**
+     * Loaders in the order their results win ties of rank, as in {@link #doStaticRanking()}.
+     */
+    private static final String[] LOADER_KEYS_BY_PRIORITY = {
+            DB_RESULTS_LOADER_KEY,
+            APP_RESULTS_LOADER_KEY,
+            ACCESSIBILITY_LOADER_KEY,
+            INPUT_DEVICE_LOADER_KEY,
+    };
 
     private final SearchFragment mFragment;
     private final Context mContext;
@@ -160,6 +180,9 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
             mSearchRankingScores.addAll(searchRankingScores);
             if (canUpdateSearchResults()) {
                 updateSearchResults();
+            } else {
+                // Re-rank the results streamed so far.
+                notifyPartialResultsLoaded();
             }
         } else {
             Log.w(TAG, "Ranking scores became available in invalid state: " + mAsyncRankingState);
@@ -205,6 +228,25 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
         return mSearchResults.size();
     }
 
+    /**
+     * Notifies the adapter that some of the loaders finished. The best results loaded so far are
+     * shown right away, instead of waiting for the slowest loader. Loaders finishing in the same
+     * frame are merged into a single update.
+     *
+     * Until async ranking succeeds they are in static order, then they are re-ranked with the
+     * scores.
+     */
+    @MainThread
+    public void notifyPartialResultsLoaded() {
+        if (!canStreamSearchResults()) {
+            return;
+        }
+        final Handler handler = getHandler();
+        if (!handler.hasMessages(MSG_POST_PARTIAL_RESULTS)) {
+            handler.sendEmptyMessage(MSG_POST_PARTIAL_RESULTS);
+        }
+    }
+
     /**
      * Notifies the adapter that all the unsorted results are loaded and now the ladapter can
      * proceed with ranking the results.
@@ -212,6 +254,9 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
     @MainThread
     public void notifyResultsLoaded() {
         mSearchResultsLoaded = true;
+        if (mHandler != null) {
+            mHandler.removeMessages(MSG_POST_PARTIAL_RESULTS);
+        }
         // static ranking is skipped only if asyc ranking is already succeeded.
         if (mAsyncRankingState != SUCCEEDED) {
             doStaticRanking();
@@ -222,6 +267,10 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
     }
 
     public void clearResults() {
+        if (mHandler != null) {
+            // Partial results of the previous query are stale.
+            mHandler.removeMessages(MSG_POST_PARTIAL_RESULTS);
+        }
         mSearchResults.clear();
         mStaticallyRankedSearchResults.clear();
         mResultsMap.clear();
@@ -328,6 +377,61 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
         }
     }
 
+    private boolean canStreamSearchResults() {
+        // Partial results are shown until the final results are, even while async ranking is
+        // pending, since it does not wait for the loaders.
+        return !mSearchResultsUpdated && !mSearchResultsLoaded;
+    }
+
+    /**
+     * @return the best results loaded so far, ordered by the ranking scores if they are
+     * available, in static order otherwise.
+     */
+    private List<SearchResult> getPartialResults() {
+        if (mAsyncRankingState != SUCCEEDED) {
+            return getTopLoadedResults(MAX_PARTIAL_RESULTS);
+        }
+        final List<SearchResult> rankedResults = doAsyncRanking();
+        return rankedResults.size() > MAX_PARTIAL_RESULTS
+                ? new ArrayList<>(rankedResults.subList(0, MAX_PARTIAL_RESULTS))
+                : rankedResults;
+    }
+
+    /**
+     * Picks the best results loaded so far, ordered like {@link #doStaticRanking()}.
+     *
+     * A bounded heap keeps the worst of the best {@param limit} results on top, so each result
+     * costs O(log limit) and only the ones shown are sorted.
+     */
+    @VisibleForTesting
+    List<SearchResult> getTopLoadedResults(int limit) {
+        // Candidates are listed by loader priority, so their index breaks ties of rank.
+        final List<SearchResult> candidates = new ArrayList<>();
+        for (String loaderKey : LOADER_KEYS_BY_PRIORITY) {
+            candidates.addAll(getUnsortedLoadedResults(loaderKey));
+        }
+        final Comparator<Integer> byRank = (i1, i2) -> {
+            final int rankDiff = candidates.get(i1).rank - candidates.get(i2).rank;
+            return rankDiff != 0 ? rankDiff : i1 - i2;
+        };
+        final PriorityQueue<Integer> heap =
+                new PriorityQueue<>(limit + 1, Collections.reverseOrder(byRank));
+        final int size = candidates.size();
+        for (int i = 0; i < size; i++) {
+            heap.offer(i);
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        final List<Integer> best = new ArrayList<>(heap);
+        Collections.sort(best, byRank);
+        final List<SearchResult> topResults = new ArrayList<>(best.size());
+        for (Integer index : best) {
+            topResults.add(candidates.get(index));
+        }
+        return topResults;
+    }
+
     private boolean canUpdateSearchResults() {
         // Results are not updated yet and db results are loaded and we are not waiting on async
         // ranking scores.
@@ -361,11 +465,13 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
                         float score2 = getRankingScoreByStableId(o2.stableId);
                         if (score1 > score2) {
                             return -1;
-                        } else if (score1 == score2) {
-                            return 0;
-                        } else {
+                        } else if (score1 < score2) {
                             return 1;
                         }
+                        // The set drops results which compare equal, so fall back to the static
+                        // order for equal scores.
+                        final int rankDiff = o1.compareTo(o2);
+                        return rankDiff != 0 ? rankDiff : Integer.compare(o1.stableId, o2.stableId);
                     }
                 });
         dbResultsSortedByScores.addAll(databaseResults);
@@ -415,7 +521,11 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
             mHandler = new Handler(Looper.getMainLooper()) {
                 @Override
                 public void handleMessage(Message msg) {
-                    if (msg.what == MSG_RANKING_TIMED_OUT) {
+                    if (msg.what == MSG_POST_PARTIAL_RESULTS) {
+                        if (canStreamSearchResults()) {
+                            postPartialSearchResults(getPartialResults());
+                        }
+                    } else if (msg.what == MSG_RANKING_TIMED_OUT) {
                         mSearchFeatureProvider.cancelPendingSearchQuery(mContext);
                         if (mAsyncRankingState == PENDING_RESULTS) {
                             mAsyncRankingState = TIMED_OUT;
@@ -435,12 +545,30 @@ public class SearchResultsAdapter extends RecyclerView.Adapter<SearchViewHolder>
 
     @VisibleForTesting
     public void postSearchResults(List<SearchResult> newSearchResults, boolean detectMoves) {
+        dispatchSearchResults(newSearchResults, detectMoves);
+        mFragment.onSearchResultsDisplayed(mSearchResults.size());
+        mSearchResultsUpdated = true;
+    }
+
+    /**
+     * Shows results while loaders are still running. Unlike {@link #postSearchResults}, an empty
+     * list is not reported as no results, since the remaining loaders may still find some.
+     */
+    @VisibleForTesting
+    void postPartialSearchResults(List<SearchResult> newSearchResults) {
+        // Results move when the ranking scores arrive.
+        dispatchSearchResults(newSearchResults, true /* detectMoves */);
+        if (!mSearchResults.isEmpty()) {
+            mFragment.onSearchResultsDisplayed(mSearchResults.size());
+        }
+    }
+
+    private void dispatchSearchResults(List<SearchResult> newSearchResults,
+            boolean detectMoves) {
         final DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(
                 new SearchResultDiffCallback(mSearchResults, newSearchResults), detectMoves);
         mSearchResults.clear();
         mSearchResults.addAll(newSearchResults);
         diffResult.dispatchUpdatesTo(this);
-        mFragment.onSearchResultsDisplayed(mSearchResults.size());
-        mSearchResultsUpdated = true;
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+/**
+ * Number of clicks and time of the last click for each docid, folded from the
+ * {@link ResultClickLog}.
+ */
+public class ClickHistory {
+
+    private final SparseIntArray mClickCounts = new SparseIntArray();
+    private final SparseLongArray mLastClickTimes = new SparseLongArray();
+
+    public synchronized void addClick(int docId, long timestampMs) {
+        mClickCounts.put(docId, mClickCounts.get(docId) + 1);
+        if (timestampMs > mLastClickTimes.get(docId)) {
+            mLastClickTimes.put(docId, timestampMs);
+        }
+    }
+
+    public synchronized int getClickCount(int docId) {
+        return mClickCounts.get(docId);
+    }
+
+    /**
+     * @return time of the last click on the docid, or 0 if it was never clicked.
+     */
+    public synchronized long getLastClickTime(int docId) {
+        return mLastClickTimes.get(docId);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
+
+import com.android.settings.search.DatabaseResultLoader;
+import com.android.settings.search.InMemorySearchIndex;
+import com.android.settings.search.IndexDatabaseHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Ranks database search results on device with a {@link SearchRankingModel}, using the clicks in
+ * the {@link ResultClickLog}.
+ *
+ * Work runs on a single background thread and scores are posted to the main thread. A ranking
+ * which can't finish before its timeout is dropped rather than delivered late, so the caller
+ * falls back to static ranking on its own timeout.
+ */
+public class LocalSearchRanker {
+
+    private static final String TAG = "LocalSearchRanker";
+
+    private final Context mContext;
+    private final SearchRankingModel mModel;
+    private final Executor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Only touched on {@link #mExecutor}, so it is reused by every ranking.
+     */
+    private final float[] mFeatures = new float[SearchRankingModel.FEATURE_COUNT];
+
+    /**
+     * Loaded on {@link #mExecutor} by the first ranking or click.
+     */
+    private ClickHistory mClickHistory;
+    private CancellationSignal mCancellationSignal;
+    /**
+     * Bumped on the main thread whenever pending scores become stale.
+     */
+    private int mGeneration;
+
+    public LocalSearchRanker(Context context, SearchRankingModel model) {
+        this(context, model, Executors.newSingleThreadExecutor());
+    }
+
+    @VisibleForTesting
+    LocalSearchRanker(Context context, SearchRankingModel model, Executor executor) {
+        mContext = context.getApplicationContext();
+        mModel = model;
+        mExecutor = executor;
+    }
+
+    /**
+     * Loads the click history ahead of the first ranking.
+     */
+    public void warmup() {
+        mExecutor.execute(this::getClickHistory);
+    }
+
+    /**
+     * Scores the database results of the query, and reports them to the callback on the main
+     * thread unless the ranking is cancelled or takes longer than the timeout.
+     *
+     * @param searchIndex in-memory index the results are loaded with, or null for FTS.
+     */
+    @MainThread
+    public void rank(String query, InMemorySearchIndex searchIndex, long timeoutMs,
+            SearchResultsRankerCallback callback) {
+        cancel();
+        final int generation = mGeneration;
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        mCancellationSignal = cancellationSignal;
+        mExecutor.execute(() -> {
+            final List<Pair<String, Float>> scores;
+            try {
+                scores = computeScores(query, searchIndex, deadline, cancellationSignal);
+            } catch (OperationCanceledException e) {
+                return;
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Cannot rank search results", e);
+                postResult(generation, callback, null);
+                return;
+            }
+            if (scores != null) {
+                postResult(generation, callback, scores);
+            }
+        });
+    }
+
+    /**
+     * Drops the ranking in progress, if any. Its callback is not called.
+     */
+    @MainThread
+    public void cancel() {
+        mGeneration++;
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+            mCancellationSignal = null;
+        }
+    }
+
+    public void recordClick(String query, int docId) {
+        final ResultClickLog.Click click =
+                new ResultClickLog.Click(query, docId, System.currentTimeMillis());
+        mExecutor.execute(() -> {
+            try {
+                ResultClickLog.recordClick(getDatabase(), click);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Cannot record search result click", e);
+            }
+            // A history loaded later reads the click from the database.
+            if (mClickHistory != null) {
+                mClickHistory.addClick(click.docId, click.timestamp);
+            }
+        });
+    }
+
+    /**
+     * @return scores of the results ordered best first, or null if the deadline passed.
+     */
+    @VisibleForTesting
+    List<Pair<String, Float>> computeScores(String query, InMemorySearchIndex searchIndex,
+            long deadline, CancellationSignal cancellationSignal) {
+        final List<Pair<String, Float>> scores = new ArrayList<>();
+        if (TextUtils.isEmpty(query)) {
+            return scores;
+        }
+        final String matchText = DatabaseResultLoader.buildMatchText(query);
+        if (matchText.isEmpty()) {
+            return scores;
+        }
+
+        final ClickHistory clickHistory = getClickHistory();
+        final float[] features = mFeatures;
+        final long now = System.currentTimeMillis();
+        try (Cursor cursor = DatabaseResultLoader.queryMatches(getDatabase(), matchText,
+                searchIndex, cancellationSignal)) {
+            if (cursor == null) {
+                return scores;
+            }
+            while (cursor.moveToNext()) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    return null;
+                }
+                final int docId = cursor.getInt(DatabaseResultLoader.COLUMN_INDEX_ID);
+                SearchRankingModel.extractFeatures(features, matchText,
+                        cursor.getString(DatabaseResultLoader.COLUMN_INDEX_TITLE),
+                        cursor.getInt(DatabaseResultLoader.COLUMN_INDEX_BASE_RANK),
+                        clickHistory.getClickCount(docId), clickHistory.getLastClickTime(docId),
+                        now);
+                scores.add(Pair.create(Integer.toString(docId), mModel.score(features)));
+            }
+        }
+        Collections.sort(scores, (s1, s2) -> Float.compare(s2.second, s1.second));
+        return scores;
+    }
+
+    private void postResult(int generation, SearchResultsRankerCallback callback,
+            List<Pair<String, Float>> scores) {
+        mHandler.post(() -> {
+            if (generation != mGeneration) {
+                return;
+            }
+            mCancellationSignal = null;
+            if (scores == null) {
+                callback.onRankingFailed();
+            } else {
+                callback.onRankingScoresAvailable(scores);
+            }
+        });
+    }
+
+    private ClickHistory getClickHistory() {
+        if (mClickHistory == null) {
+            try {
+                mClickHistory = ResultClickLog.getClickHistory(getDatabase());
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Cannot read search result clicks", e);
+                mClickHistory = new ClickHistory();
+            }
+        }
+        return mClickHistory;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+    }
+}
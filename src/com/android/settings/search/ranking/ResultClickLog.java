@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables.TABLE_RESULT_CLICKS;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.VisibleForTesting;
+
+import com.android.settings.search.IndexDatabaseHelper.ResultClicksColumns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search results clicked by the user, with the query they were clicked for, stored in
+ * {@link com.android.settings.search.IndexDatabaseHelper.Tables#TABLE_RESULT_CLICKS}.
+ */
+public class ResultClickLog {
+
+    /**
+     * Number of clicks kept, older clicks are dropped.
+     */
+    @VisibleForTesting
+    static final long MAX_RESULT_CLICKS = 256;
+
+    private static final String[] CLICK_COLUMNS = {
+            ResultClicksColumns.QUERY,
+            ResultClicksColumns.DOCID,
+            ResultClicksColumns.TIME_STAMP
+    };
+
+    /**
+     * A recorded click.
+     */
+    public static class Click {
+        public final String query;
+        public final int docId;
+        public final long timestamp;
+
+        public Click(String query, int docId, long timestamp) {
+            this.query = query;
+            this.docId = docId;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private ResultClickLog() {
+    }
+
+    public static void recordClick(SQLiteDatabase database, Click click) {
+        final ContentValues values = new ContentValues();
+        values.put(ResultClicksColumns.QUERY, click.query);
+        values.put(ResultClicksColumns.DOCID, click.docId);
+        values.put(ResultClicksColumns.TIME_STAMP, click.timestamp);
+        final long rowId = database.insertOrThrow(TABLE_RESULT_CLICKS, null, values);
+
+        final long delta = rowId - MAX_RESULT_CLICKS;
+        if (delta > 0) {
+            database.delete(TABLE_RESULT_CLICKS, "rowId <= ?",
+                    new String[] {Long.toString(delta)});
+        }
+    }
+
+    /**
+     * @return every recorded click, oldest first.
+     */
+    public static List<Click> getClicks(SQLiteDatabase database) {
+        final List<Click> clicks = new ArrayList<>();
+        try (Cursor cursor = database.query(TABLE_RESULT_CLICKS, CLICK_COLUMNS,
+                null /* selection */, null /* selectionArgs */, null /* groupBy */,
+                null /* having */, ResultClicksColumns.TIME_STAMP + " ASC")) {
+            while (cursor.moveToNext()) {
+                clicks.add(new Click(cursor.getString(0), cursor.getInt(1), cursor.getLong(2)));
+            }
+        }
+        return clicks;
+    }
+
+    public static ClickHistory getClickHistory(SQLiteDatabase database) {
+        final ClickHistory history = new ClickHistory();
+        for (Click click : getClicks(database)) {
+            history.addClick(click.docId, click.timestamp);
+        }
+        return history;
+    }
+}
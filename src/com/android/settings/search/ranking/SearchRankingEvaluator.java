@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import com.android.settings.search.CursorToSearchResultConverter;
+
+import java.util.List;
+
+/**
+ * Replays recorded clicks to compare a {@link SearchRankingModel} with static ranking offline.
+ *
+ * Clicks are replayed oldest first. Each one is ranked with the click history of the clicks
+ * before it only, then added to the history, so the model never sees the click it is judged on.
+ */
+public class SearchRankingEvaluator {
+
+    /**
+     * A database result the query matched.
+     */
+    public static class Candidate {
+        public final int docId;
+        public final String title;
+        public final int baseRank;
+
+        public Candidate(int docId, String title, int baseRank) {
+            this.docId = docId;
+            this.title = title;
+            this.baseRank = baseRank;
+        }
+    }
+
+    /**
+     * Provides the results matched by a query, in the order the database returns them.
+     */
+    public interface CandidateSource {
+        List<Candidate> getCandidates(String query);
+    }
+
+    /**
+     * Mean reciprocal rank and share of clicks ranked first, by the model and by static ranking.
+     */
+    public static class Report {
+        public int sessionCount;
+        public double modelMeanReciprocalRank;
+        public double staticMeanReciprocalRank;
+        public double modelTopHitRate;
+        public double staticTopHitRate;
+
+        @Override
+        public String toString() {
+            return "sessions=" + sessionCount
+                    + " model(mrr=" + modelMeanReciprocalRank + ", top1=" + modelTopHitRate + ")"
+                    + " static(mrr=" + staticMeanReciprocalRank + ", top1=" + staticTopHitRate
+                    + ")";
+        }
+    }
+
+    private SearchRankingEvaluator() {
+    }
+
+    /**
+     * @param clicks recorded clicks, oldest first. Clicks on a result the query no longer
+     *               matches are skipped.
+     */
+    public static Report evaluate(List<ResultClickLog.Click> clicks, CandidateSource source,
+            SearchRankingModel model) {
+        final Report report = new Report();
+        final ClickHistory history = new ClickHistory();
+        final float[] features = new float[SearchRankingModel.FEATURE_COUNT];
+        for (ResultClickLog.Click click : clicks) {
+            final List<Candidate> candidates = source.getCandidates(click.query);
+            final int size = candidates.size();
+            int clicked = -1;
+            for (int i = 0; i < size; i++) {
+                if (candidates.get(i).docId == click.docId) {
+                    clicked = i;
+                    break;
+                }
+            }
+            if (clicked >= 0) {
+                final float[] scores = new float[size];
+                for (int i = 0; i < size; i++) {
+                    final Candidate candidate = candidates.get(i);
+                    SearchRankingModel.extractFeatures(features, click.query, candidate.title,
+                            candidate.baseRank, history.getClickCount(candidate.docId),
+                            history.getLastClickTime(candidate.docId), click.timestamp);
+                    scores[i] = model.score(features);
+                }
+                final int modelRank = getModelRank(scores, clicked);
+                final int staticRank = getStaticRank(candidates, clicked);
+
+                report.sessionCount++;
+                report.modelMeanReciprocalRank += 1.0 / modelRank;
+                report.staticMeanReciprocalRank += 1.0 / staticRank;
+                report.modelTopHitRate += modelRank == 1 ? 1 : 0;
+                report.staticTopHitRate += staticRank == 1 ? 1 : 0;
+            }
+            history.addClick(click.docId, click.timestamp);
+        }
+        if (report.sessionCount > 0) {
+            report.modelMeanReciprocalRank /= report.sessionCount;
+            report.staticMeanReciprocalRank /= report.sessionCount;
+            report.modelTopHitRate /= report.sessionCount;
+            report.staticTopHitRate /= report.sessionCount;
+        }
+        return report;
+    }
+
+    /**
+     * @return 1-based position of the clicked candidate when sorted by score, ties broken by
+     * database order.
+     */
+    private static int getModelRank(float[] scores, int clicked) {
+        int rank = 1;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > scores[clicked] || (scores[i] == scores[clicked] && i < clicked)) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * @return 1-based position of the clicked candidate under the rank computed by
+     * {@link CursorToSearchResultConverter}, ties broken by database order.
+     */
+    private static int getStaticRank(List<Candidate> candidates, int clicked) {
+        final int clickedRank = getStaticRank(candidates.get(clicked));
+        int rank = 1;
+        for (int i = 0; i < candidates.size(); i++) {
+            final int otherRank = getStaticRank(candidates.get(i));
+            if (otherRank < clickedRank || (otherRank == clickedRank && i < clicked)) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    private static int getStaticRank(Candidate candidate) {
+        return candidate.title != null
+                && candidate.title.length() > CursorToSearchResultConverter.LONG_TITLE_LENGTH
+                ? candidate.baseRank + 1
+                : candidate.baseRank;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+
+import com.android.settings.search.DatabaseResultLoader;
+
+/**
+ * Linear model scoring a search result from a small feature vector. Higher scores rank first.
+ *
+ * Features are written into a caller-owned array, so extracting and scoring a result doesn't
+ * allocate.
+ */
+public class SearchRankingModel {
+
+    public static final int FEATURE_BIAS = 0;
+    /**
+     * Index of the base rank tier the result matched, 0 for the first word of the title, scaled
+     * to [0, 1].
+     */
+    public static final int FEATURE_TIER = 1;
+    /**
+     * 1 / (1 + index of the first title word the query prefixes), or 0 if no title word does.
+     */
+    public static final int FEATURE_TITLE_MATCH_POSITION = 2;
+    /**
+     * log(1 + number of past clicks on the result).
+     */
+    public static final int FEATURE_CLICKS = 3;
+    /**
+     * Decays from 1 to 0 with the time since the last click on the result, 0 if never clicked.
+     */
+    public static final int FEATURE_RECENCY = 4;
+    public static final int FEATURE_COUNT = 5;
+
+    @VisibleForTesting
+    static final long RECENCY_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final float[] DEFAULT_WEIGHTS = {
+            0f,     // FEATURE_BIAS
+            -2f,    // FEATURE_TIER
+            1f,     // FEATURE_TITLE_MATCH_POSITION
+            1.5f,   // FEATURE_CLICKS
+            1f,     // FEATURE_RECENCY
+    };
+
+    private static final SearchRankingModel DEFAULT_MODEL = new SearchRankingModel(DEFAULT_WEIGHTS);
+
+    private final float[] mWeights;
+
+    public static SearchRankingModel getDefault() {
+        return DEFAULT_MODEL;
+    }
+
+    /**
+     * @param weights one weight per feature, indexed by the FEATURE_ constants.
+     */
+    public SearchRankingModel(float[] weights) {
+        if (weights.length != FEATURE_COUNT) {
+            throw new IllegalArgumentException("Expected " + FEATURE_COUNT + " weights, got "
+                    + weights.length);
+        }
+        mWeights = weights.clone();
+    }
+
+    public float score(float[] features) {
+        final float[] weights = mWeights;
+        float score = 0;
+        for (int i = 0; i < FEATURE_COUNT; i++) {
+            score += weights[i] * features[i];
+        }
+        return score;
+    }
+
+    /**
+     * Fills {@param features} for a result of the query.
+     *
+     * @param baseRank one of {@link DatabaseResultLoader#BASE_RANKS}.
+     */
+    public static void extractFeatures(float[] features, String query, String title,
+            int baseRank, int clickCount, long lastClickTime, long now) {
+        features[FEATURE_BIAS] = 1f;
+        features[FEATURE_TIER] = getTier(baseRank)
+                / (float) (DatabaseResultLoader.BASE_RANKS.length - 1);
+
+        final int matchPosition = getTitleMatchPosition(title, query);
+        features[FEATURE_TITLE_MATCH_POSITION] = matchPosition < 0 ? 0f : 1f / (1 + matchPosition);
+
+        features[FEATURE_CLICKS] = (float) Math.log1p(clickCount);
+        features[FEATURE_RECENCY] = clickCount == 0
+                ? 0f
+                : (float) Math.pow(0.5, Math.max(0L, now - lastClickTime)
+                        / (double) RECENCY_HALF_LIFE_MS);
+    }
+
+    private static int getTier(int baseRank) {
+        final int[] baseRanks = DatabaseResultLoader.BASE_RANKS;
+        for (int i = 0; i < baseRanks.length; i++) {
+            if (baseRank <= baseRanks[i]) {
+                return i;
+            }
+        }
+        return baseRanks.length - 1;
+    }
+
+    /**
+     * @return index of the first word of the title which the query is a case insensitive prefix
+     * of, or -1 if there is none.
+     */
+    @VisibleForTesting
+    static int getTitleMatchPosition(String title, String query) {
+        if (TextUtils.isEmpty(title) || TextUtils.isEmpty(query)) {
+            return -1;
+        }
+        final int titleLength = title.length();
+        final int queryLength = query.length();
+        int word = 0;
+        int i = 0;
+        while (i < titleLength) {
+            // Skip to the start of the next word.
+            while (i < titleLength && !Character.isLetterOrDigit(title.charAt(i))) {
+                i++;
+            }
+            if (i >= titleLength) {
+                break;
+            }
+            if (title.regionMatches(true /* ignoreCase */, i, query, 0, queryLength)) {
+                return word;
+            }
+            while (i < titleLength && Character.isLetterOrDigit(title.charAt(i))) {
+                i++;
+            }
+            word++;
+        }
+        return -1;
+    }
+}
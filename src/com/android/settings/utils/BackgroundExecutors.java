@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.utils;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the pools of background threads shared across the screens of Settings.
+ */
+public final class BackgroundExecutors {
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private BackgroundExecutors() {
+    }
+
+    /**
+     * Returns a pool of at most {@code threadCount} threads of background priority, named
+     * {@code name-1}, {@code name-2}... Idle threads go away after a few seconds, so the pool
+     * costs nothing while unused.
+     */
+    public static ExecutorService newFixedThreadPool(String name, int threadCount) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, name + "-" + count.incrementAndGet());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.AppOpsManager;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class AppExtraInfoCacheTest {
+
+    private static final String TYPE = "type";
+    private static final String OTHER_TYPE = "other_type";
+    private static final String PACKAGE = "pkg";
+    private static final int USER_ID = 0;
+    private static final int WORK_USER_ID = 10;
+
+    private AppExtraInfoCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new AppExtraInfoCache();
+    }
+
+    @Test
+    public void testGet_nullValueCached() {
+        assertThat(mCache.get(TYPE, USER_ID, PACKAGE)).isSameAs(AppExtraInfoCache.NOT_CACHED);
+
+        mCache.put(TYPE, USER_ID, PACKAGE, null, mCache.getVersion());
+
+        assertThat(mCache.get(TYPE, USER_ID, PACKAGE)).isNull();
+        assertThat(mCache.get(TYPE, WORK_USER_ID, PACKAGE))
+                .isSameAs(AppExtraInfoCache.NOT_CACHED);
+    }
+
+    @Test
+    public void testInvalidate_dropsPackageOfUserOnly() {
+        mCache.put(TYPE, USER_ID, PACKAGE, "value", mCache.getVersion());
+        mCache.put(TYPE, WORK_USER_ID, PACKAGE, "value", mCache.getVersion());
+
+        mCache.invalidate(USER_ID, PACKAGE);
+
+        assertThat(mCache.get(TYPE, USER_ID, PACKAGE)).isSameAs(AppExtraInfoCache.NOT_CACHED);
+        assertThat(mCache.get(TYPE, WORK_USER_ID, PACKAGE)).isEqualTo("value");
+    }
+
+    @Test
+    public void testPut_invalidatedSinceLoad_notStored() {
+        final long version = mCache.getVersion();
+        mCache.invalidate(USER_ID, PACKAGE);
+
+        mCache.put(TYPE, USER_ID, PACKAGE, "stale", version);
+
+        assertThat(mCache.get(TYPE, USER_ID, PACKAGE)).isSameAs(AppExtraInfoCache.NOT_CACHED);
+    }
+
+    @Test
+    public void testOnOpChanged_dropsWatchingTypesOnly() {
+        mCache.watchOp(TYPE, AppOpsManager.OP_SYSTEM_ALERT_WINDOW);
+        mCache.put(TYPE, USER_ID, PACKAGE, "value", mCache.getVersion());
+        mCache.put(TYPE, WORK_USER_ID, PACKAGE, "value", mCache.getVersion());
+        mCache.put(OTHER_TYPE, USER_ID, PACKAGE, "value", mCache.getVersion());
+
+        mCache.onOpChanged(AppOpsManager.OP_SYSTEM_ALERT_WINDOW, PACKAGE);
+
+        assertThat(mCache.get(TYPE, USER_ID, PACKAGE)).isSameAs(AppExtraInfoCache.NOT_CACHED);
+        assertThat(mCache.get(TYPE, WORK_USER_ID, PACKAGE))
+                .isSameAs(AppExtraInfoCache.NOT_CACHED);
+        assertThat(mCache.get(OTHER_TYPE, USER_ID, PACKAGE)).isEqualTo("value");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class AppLabelIndexTest {
+
+    private AppEntry mMaps;
+    private AppEntry mGoogleMaps;
+    private AppEntry mMail;
+    private AppEntry mMapsMaps;
+    private AppLabelIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mMaps = newAppEntry("maps");
+        mGoogleMaps = newAppEntry("google maps");
+        mMail = newAppEntry("mail");
+        mMapsMaps = newAppEntry("maps maps");
+        final ArrayList<AppEntry> entries = new ArrayList<>();
+        entries.add(mMaps);
+        entries.add(mGoogleMaps);
+        entries.add(mMail);
+        entries.add(mMapsMaps);
+        mIndex = new AppLabelIndex(entries);
+    }
+
+    @Test
+    public void testFilter_matchesLabelAndWordStartsInEntryOrder() {
+        assertThat(mIndex.filter("map"))
+                .containsExactly(mMaps, mGoogleMaps, mMapsMaps).inOrder();
+        assertThat(mIndex.filter("ma"))
+                .containsExactly(mMaps, mGoogleMaps, mMail, mMapsMaps).inOrder();
+    }
+
+    @Test
+    public void testFilter_prefixAcrossWords() {
+        assertThat(mIndex.filter("google m")).containsExactly(mGoogleMaps);
+        assertThat(mIndex.filter("oogle")).isEmpty();
+    }
+
+    @Test
+    public void testFilter_noMatch_empty() {
+        assertThat(mIndex.filter("zzz")).isEmpty();
+        assertThat(new AppLabelIndex(new ArrayList<>()).filter("a")).isEmpty();
+    }
+
+    private static AppEntry newAppEntry(String normalizedLabel) {
+        final AppEntry entry = mock(AppEntry.class);
+        when(entry.getNormalizedLabel()).thenReturn(normalizedLabel);
+        return entry;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.UserHandle;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.FakeFeatureFactory;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class AppStateBaseBridgeTest {
+
+    private static final int WORK_USER_ID = 10;
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Context mContext;
+
+    private FakeFeatureFactory mFeatureFactory;
+    private TestBridge mBridge;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mFeatureFactory = FakeFeatureFactory.setupForTest(mContext);
+        mBridge = new TestBridge();
+        mBridge.mLoadExecutor = Runnable::run;
+    }
+
+    @Test
+    public void testLoadAllExtraInfoInBatches_batchesPerUser() {
+        final List<AppEntry> apps = new ArrayList<>();
+        final int ownerAppCount = AppStateBaseBridge.BATCH_SIZE + 1;
+        for (int i = 0; i < ownerAppCount; i++) {
+            apps.add(newAppEntry(UserHandle.USER_SYSTEM, i));
+        }
+        apps.add(newAppEntry(WORK_USER_ID, 0));
+
+        mBridge.loadAllExtraInfoInBatches(mContext, apps);
+        ShadowLooper.runUiThreadTasks();
+
+        assertThat(mBridge.mBatchUsers).containsExactly(
+                UserHandle.USER_SYSTEM, UserHandle.USER_SYSTEM, WORK_USER_ID).inOrder();
+        assertThat(mBridge.mBatchSizes).containsExactly(
+                AppStateBaseBridge.BATCH_SIZE, 1, 1).inOrder();
+        for (AppEntry app : apps) {
+            assertThat(app.extraInfo).isEqualTo(app.info.packageName);
+        }
+        verify(mFeatureFactory.metricsFeatureProvider).histogram(any(Context.class),
+                eq("app_extra_info_load_time"), anyInt());
+    }
+
+    @Test
+    public void testLoadAllExtraInfoInBatches_eachBatchSetOnMainThreadAndPublished() {
+        final List<AppEntry> apps = new ArrayList<>();
+        for (int i = 0; i < AppStateBaseBridge.BATCH_SIZE + 1; i++) {
+            apps.add(newAppEntry(UserHandle.USER_SYSTEM, i));
+        }
+        ShadowLooper.pauseMainLooper();
+
+        mBridge.loadAllExtraInfoInBatches(mContext, apps);
+
+        assertThat(apps.get(0).extraInfo).isNull();
+        ShadowLooper.unPauseMainLooper();
+        assertThat(apps.get(0).extraInfo).isEqualTo("pkg0");
+        verify(mBridge.mCallback, times(2)).onExtraInfoUpdated();
+    }
+
+    @Test
+    public void testLoadAllExtraInfoInBatches_earlierLoad_notPublished() {
+        final List<AppEntry> apps = new ArrayList<>();
+        apps.add(newAppEntry(UserHandle.USER_SYSTEM, 0));
+        ShadowLooper.pauseMainLooper();
+        mBridge.loadAllExtraInfoInBatches(mContext, apps);
+        mBridge.mExtraInfoSuffix = "-new";
+
+        mBridge.loadAllExtraInfoInBatches(mContext, apps);
+        ShadowLooper.unPauseMainLooper();
+
+        assertThat(apps.get(0).extraInfo).isEqualTo("pkg0-new");
+        verify(mBridge.mCallback).onExtraInfoUpdated();
+    }
+
+    @Test
+    public void testLoadAllExtraInfoInBatches_noApps_recordsLoadTime() {
+        mBridge.loadAllExtraInfoInBatches(mContext, new ArrayList<>());
+
+        assertThat(mBridge.mBatchUsers).isEmpty();
+        verify(mFeatureFactory.metricsFeatureProvider).histogram(any(Context.class),
+                eq("app_extra_info_load_time"), anyInt());
+    }
+
+    @Test
+    public void testLoadAllExtraInfoInBatches_cached_onlyChangedPackagesLoaded() {
+        final AppExtraInfoCache cache = new AppExtraInfoCache();
+        mBridge.useExtraInfoCache(cache);
+        final List<AppEntry> apps = new ArrayList<>();
+        apps.add(newAppEntry(UserHandle.USER_SYSTEM, 0));
+        apps.add(newAppEntry(UserHandle.USER_SYSTEM, 1));
+        mBridge.loadAllExtraInfoInBatches(mContext, apps);
+        ShadowLooper.runUiThreadTasks();
+        mBridge.mBatchSizes.clear();
+
+        cache.invalidate(UserHandle.USER_SYSTEM, "pkg1");
+        apps.get(0).extraInfo = null;
+        mBridge.loadAllExtraInfoInBatches(mContext, apps);
+        ShadowLooper.runUiThreadTasks();
+
+        assertThat(mBridge.mBatchSizes).containsExactly(1);
+        assertThat(apps.get(0).extraInfo).isEqualTo("pkg0");
+        assertThat(apps.get(1).extraInfo).isEqualTo("pkg1");
+    }
+
+    private static AppEntry newAppEntry(int userId, int index) {
+        final AppEntry entry = mock(AppEntry.class);
+        entry.info = new ApplicationInfo();
+        entry.info.packageName = "pkg" + index;
+        entry.info.uid = UserHandle.getUid(userId, 10000 + index);
+        return entry;
+    }
+
+    private static class TestBridge extends AppStateBaseBridge {
+        private final List<Integer> mBatchUsers = new ArrayList<>();
+        private final List<Integer> mBatchSizes = new ArrayList<>();
+        private String mExtraInfoSuffix = "";
+
+        TestBridge() {
+            super(null, mock(Callback.class));
+        }
+
+        @Override
+        protected List<Object> loadExtraInfoBatch(int userId, List<AppEntry> apps) {
+            mBatchUsers.add(userId);
+            mBatchSizes.add(apps.size());
+            return super.loadExtraInfoBatch(userId, apps);
+        }
+
+        @Override
+        protected Object loadExtraInfo(AppEntry app) {
+            return app.info.packageName + mExtraInfoSuffix;
+        }
+
+        @Override
+        protected void loadAllExtraInfo() {
+        }
+
+        @Override
+        protected void updateExtraInfo(AppEntry app, String pkg, int uid) {
+            app.extraInfo = pkg + mExtraInfoSuffix;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import com.android.internal.app.procstats.ProcessStats;
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class ProcStatsDataTest {
+
+    private static final long DURATION_3H = 3 * 60 * 60 * 1000L;
+    private static final long DURATION_1D = 24 * 60 * 60 * 1000L;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void setDuration_sameDuration_loadsOnce() {
+        final TestProcStatsData data = new TestProcStatsData(mContext, false);
+
+        data.setDuration(DURATION_3H);
+        data.setDuration(DURATION_3H);
+        data.refreshStats(false);
+
+        assertThat(data.mLoadCount).isEqualTo(1);
+        assertThat(data.getElapsedTime()).isEqualTo(DURATION_3H);
+    }
+
+    @Test
+    public void setDuration_switchBack_reusesLoadedStats() {
+        final TestProcStatsData data = new TestProcStatsData(mContext, false);
+
+        data.setDuration(DURATION_3H);
+        data.setDuration(DURATION_1D);
+        assertThat(data.getElapsedTime()).isEqualTo(DURATION_1D);
+        data.setDuration(DURATION_3H);
+
+        assertThat(data.mLoadCount).isEqualTo(2);
+        assertThat(data.getElapsedTime()).isEqualTo(DURATION_3H);
+    }
+
+    @Test
+    public void refreshStats_forceLoad_loadsAgain() {
+        final TestProcStatsData data = new TestProcStatsData(mContext, false);
+        data.setDuration(DURATION_3H);
+
+        data.refreshStats(true);
+
+        assertThat(data.mLoadCount).isEqualTo(2);
+    }
+
+    @Test
+    public void xferStats_copiedToNextInstance() {
+        final TestProcStatsData data = new TestProcStatsData(mContext, false);
+        data.setDuration(DURATION_3H);
+        data.xferStats();
+
+        final TestProcStatsData next = new TestProcStatsData(mContext, true);
+        next.setDuration(DURATION_3H);
+        assertThat(next.mLoadCount).isEqualTo(0);
+
+        // Clearing the stats of one instance leaves the other's alone.
+        next.setMemStates(ProcessStats.ALL_MEM_ADJ);
+        data.setDuration(DURATION_1D);
+        data.setDuration(DURATION_3H);
+        assertThat(data.mLoadCount).isEqualTo(2);
+    }
+
+    @Test
+    public void xferStats_entriesCopied() {
+        final TestProcStatsData data = new TestProcStatsData(mContext, false);
+        data.setDuration(DURATION_3H);
+        data.xferStats();
+
+        final TestProcStatsData next = new TestProcStatsData(mContext, true);
+        next.setDuration(DURATION_3H);
+        final List<ProcStatsPackageEntry> entries = data.getEntries();
+        final List<ProcStatsPackageEntry> nextEntries = next.getEntries();
+
+        assertThat(nextEntries).isNotSameAs(entries);
+        assertThat(nextEntries).hasSize(1);
+        assertThat(nextEntries.get(0)).isNotSameAs(entries.get(0));
+        assertThat(nextEntries.get(0).mPackage).isEqualTo(entries.get(0).mPackage);
+    }
+
+    private static class TestProcStatsData extends ProcStatsData {
+        private int mLoadCount;
+
+        TestProcStatsData(Context context, boolean useXfer) {
+            super(context, useXfer);
+        }
+
+        @Override
+        DurationStats load() {
+            mLoadCount++;
+            final DurationStats stats = new DurationStats();
+            stats.elapsedTime = getDuration();
+            stats.entries = new ArrayList<>();
+            stats.entries.add(new ProcStatsPackageEntry("pkg", getDuration()));
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class RunningStateTest {
+
+    private RunningState mState;
+    private List<ActivityManager.RunningServiceInfo> mServices;
+
+    @Before
+    public void setUp() {
+        mState = RunningState.getInstance(RuntimeEnvironment.application);
+        mServices = new ArrayList<>();
+        mServices.add(newService(1, "pkg1"));
+        // Start from the processes below as the last snapshot.
+        mState.updateSnapshot(mServices, newProcesses());
+    }
+
+    @Test
+    public void updateSnapshot_unchanged_returnsFalse() {
+        final List<ActivityManager.RunningServiceInfo> services = new ArrayList<>();
+        services.add(newService(1, "pkg1"));
+
+        assertThat(mState.updateSnapshot(services, newProcesses())).isFalse();
+    }
+
+    @Test
+    public void updateSnapshot_pkgListChanged_returnsTrue() {
+        final List<ActivityManager.RunningAppProcessInfo> processes = newProcesses();
+        processes.get(1).pkgList = new String[] {"pkg2", "pkg3"};
+
+        assertThat(mState.updateSnapshot(mServices, processes)).isTrue();
+        assertThat(mState.updateSnapshot(mServices, processes)).isFalse();
+    }
+
+    @Test
+    public void updateSnapshot_importanceReasonComponentChanged_returnsTrue() {
+        final List<ActivityManager.RunningAppProcessInfo> processes = newProcesses();
+        processes.get(0).importanceReasonComponent = new ComponentName("pkg2", "Service");
+
+        assertThat(mState.updateSnapshot(mServices, processes)).isTrue();
+    }
+
+    @Test
+    public void updateSnapshot_processRemoved_returnsTrue() {
+        final List<ActivityManager.RunningAppProcessInfo> processes = newProcesses();
+        processes.remove(1);
+
+        assertThat(mState.updateSnapshot(mServices, processes)).isTrue();
+    }
+
+    @Test
+    public void updateSnapshot_processReplacedWithSamePidCount_returnsTrue() {
+        final List<ActivityManager.RunningAppProcessInfo> processes = newProcesses();
+        processes.set(1, newProcess(3, "pkg3"));
+
+        assertThat(mState.updateSnapshot(mServices, processes)).isTrue();
+    }
+
+    @Test
+    public void compare_sameSortKeys_orderedByUidThenName() {
+        final RunningState.ProcessItem first =
+                new RunningState.ProcessItem(RuntimeEnvironment.application, 10001, "a");
+        final RunningState.ProcessItem second =
+                new RunningState.ProcessItem(RuntimeEnvironment.application, 10001, "b");
+        final RunningState.ProcessItem third =
+                new RunningState.ProcessItem(RuntimeEnvironment.application, 10002, "a");
+
+        assertThat(mState.mServiceProcessComparator.compare(first, second)).isLessThan(0);
+        assertThat(mState.mServiceProcessComparator.compare(second, third)).isLessThan(0);
+        assertThat(mState.mServiceProcessComparator.compare(third, first)).isGreaterThan(0);
+    }
+
+    private static List<ActivityManager.RunningAppProcessInfo> newProcesses() {
+        final List<ActivityManager.RunningAppProcessInfo> processes = new ArrayList<>();
+        processes.add(newProcess(1, "pkg1"));
+        processes.add(newProcess(2, "pkg2"));
+        return processes;
+    }
+
+    private static ActivityManager.RunningAppProcessInfo newProcess(int pid, String pkg) {
+        final ActivityManager.RunningAppProcessInfo info =
+                new ActivityManager.RunningAppProcessInfo(pkg, pid, new String[] {pkg});
+        info.uid = 10000 + pid;
+        info.importance = ActivityManager.RunningAppProcessInfo.IMPORTANCE_SERVICE;
+        return info;
+    }
+
+    private static ActivityManager.RunningServiceInfo newService(int pid, String pkg) {
+        final ActivityManager.RunningServiceInfo info = new ActivityManager.RunningServiceInfo();
+        info.service = new ComponentName(pkg, "Service");
+        info.pid = pid;
+        info.uid = 10000 + pid;
+        info.process = pkg;
+        info.started = true;
+        return info;
+    }
+}
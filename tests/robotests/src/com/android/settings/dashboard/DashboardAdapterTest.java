@@ -587,6 +587,36 @@ public class DashboardAdapterTest {
         verify(data).setAdapter(any(ConditionAdapter.class));
     }
 
+    @Test
+    public void testSetCategory_staleDiffDropped_latestDiffApplied() {
+        final List<Runnable> diffTasks = new ArrayList<>();
+        mDashboardAdapter = new DashboardAdapter(mContext, null, null, null, null);
+        mDashboardAdapter.mDiffExecutor = diffTasks::add;
+        mDashboardAdapter.setCategory(makeCategory(1));
+        assertThat(mDashboardAdapter.getItemCount()).isEqualTo(1);
+
+        mDashboardAdapter.setCategory(makeCategory(2));
+        mDashboardAdapter.setCategory(makeCategory(3));
+        // The displayed items only change once a diff is applied.
+        assertThat(mDashboardAdapter.getItemCount()).isEqualTo(1);
+
+        diffTasks.get(0).run();
+        assertThat(mDashboardAdapter.getItemCount()).isEqualTo(1);
+
+        diffTasks.get(1).run();
+        assertThat(mDashboardAdapter.getItemCount()).isEqualTo(3);
+    }
+
+    private DashboardCategory makeCategory(int tileCount) {
+        final DashboardCategory category = new DashboardCategory();
+        for (int i = 0; i < tileCount; i++) {
+            final Tile tile = new Tile();
+            tile.title = "tile" + i;
+            category.tiles.add(tile);
+        }
+        return category;
+    }
+
     private List<Tile> makeSuggestions(String... pkgNames) {
         final List<Tile> suggestions = new ArrayList<>();
         for (String pkgName : pkgNames) {
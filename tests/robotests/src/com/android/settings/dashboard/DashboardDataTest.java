@@ -278,6 +278,30 @@ public class DashboardDataTest {
         testDiffUtil(prevData, currentData, testResultData);
     }
 
+    @Test
+    public void testDiffUtil_tileSummaryChangedAfterItemsBuilt_ResultDataChanged() {
+        final List<ListUpdateResult.ResultData> testResultData = new ArrayList<>();
+        testResultData.add(new ListUpdateResult.ResultData(
+                ListUpdateResult.ResultData.TYPE_OPERATION_CHANGE, 0, 1));
+        final Tile tile = new Tile();
+        tile.title = "title";
+        tile.summary = "summary";
+        final DashboardCategory category = new DashboardCategory();
+        category.addTile(tile);
+        final DashboardData prevData = new DashboardData.Builder()
+                .setCategory(category)
+                .build();
+        prevData.getItemList();
+
+        // The same tile instance is shown by both, only the copy taken by the items differs.
+        tile.summary = "new summary";
+        final DashboardData currentData = new DashboardData.Builder()
+                .setCategory(category)
+                .build();
+
+        testDiffUtil(prevData, currentData, testResultData);
+    }
+
     /**
      * Test when using the
      * {@link com.android.settings.dashboard.DashboardData.ItemsDataDiffCallback}
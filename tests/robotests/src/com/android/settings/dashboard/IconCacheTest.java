@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Icon;
+import android.graphics.drawable.ShapeDrawable;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+import com.android.settingslib.drawer.Tile;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class IconCacheTest {
+
+    // Each test drawable is estimated at 10 * 10 * 4 bytes.
+    private static final int DRAWABLE_SIZE = 10;
+    private static final int MAX_SIZE_BYTES = 1000;
+
+    private Context mContext;
+    private List<Runnable> mTasks;
+    private IconCache mIconCache;
+    private int mLoadCount;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mTasks = new ArrayList<>();
+        mIconCache = new IconCache(mContext, MAX_SIZE_BYTES, mTasks::add);
+    }
+
+    @Test
+    public void testGetIcon_loadsOnceAndCountsHits() throws Exception {
+        final Drawable drawable = mIconCache.getIcon("key", this::newDrawable);
+        final Drawable cached = mIconCache.getIcon("key", this::newDrawable);
+
+        // Each caller gets its own drawable, sharing the loaded state.
+        assertThat(cached).isNotSameAs(drawable);
+        assertThat(cached.getConstantState()).isSameAs(drawable.getConstantState());
+        assertThat(mLoadCount).isEqualTo(1);
+        final JSONObject dump = mIconCache.dump();
+        assertThat(dump.getInt("hits")).isEqualTo(1);
+        assertThat(dump.getInt("misses")).isEqualTo(1);
+        assertThat(dump.getInt("size_bytes")).isEqualTo(DRAWABLE_SIZE * DRAWABLE_SIZE * 4);
+    }
+
+    @Test
+    public void testGetIcon_overMaxSize_evictsLeastRecentlyUsed() {
+        final Drawable first = mIconCache.getIcon("first", this::newDrawable);
+        mIconCache.getIcon("second", this::newDrawable);
+        mIconCache.getIcon("first", this::newDrawable);
+
+        mIconCache.getIcon("third", this::newDrawable);
+
+        assertThat(mIconCache.getIcon("first", this::newDrawable).getConstantState())
+                .isSameAs(first.getConstantState());
+        assertThat(mLoadCount).isEqualTo(3);
+        mIconCache.getIcon("second", this::newDrawable);
+        assertThat(mLoadCount).isEqualTo(4);
+    }
+
+    @Test
+    public void testGetIcon_nullDrawable_notCached() {
+        mIconCache.getIcon("key", () -> {
+            mLoadCount++;
+            return null;
+        });
+
+        mIconCache.getIcon("key", this::newDrawable);
+
+        assertThat(mLoadCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetKey_tintStateAndComponent() {
+        final Tile tile = new Tile();
+        assertThat(IconCache.getKey(tile)).isNull();
+
+        tile.intent = new Intent().setComponent(new ComponentName("pkg", "cls"));
+        final String key = IconCache.getKey(tile);
+        tile.isIconTintable = true;
+
+        assertThat(key).isNotNull();
+        assertThat(IconCache.getKey(tile)).isNotEqualTo(key);
+    }
+
+    @Test
+    public void testGetKey_iconNotResource_returnsNull() {
+        final Tile tile = new Tile();
+        tile.intent = new Intent().setComponent(new ComponentName("pkg", "cls"));
+        tile.icon = Icon.createWithResource("pkg", 1);
+        assertThat(IconCache.getKey(tile)).isNotNull();
+
+        tile.icon = Icon.createWithBitmap(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+
+        assertThat(IconCache.getKey(tile)).isNull();
+    }
+
+    @Test
+    public void testPrefetch_loadsInBackgroundOnce() {
+        final Tile tile = new Tile();
+        tile.intent = new Intent().setComponent(new ComponentName("pkg", "cls"));
+        final List<Tile> tiles = new ArrayList<>();
+        tiles.add(tile);
+
+        mIconCache.prefetch(tiles);
+        mIconCache.prefetch(tiles);
+
+        assertThat(mTasks).hasSize(1);
+    }
+
+    private Drawable newDrawable() {
+        mLoadCount++;
+        final ShapeDrawable drawable = new ShapeDrawable();
+        drawable.setIntrinsicWidth(DRAWABLE_SIZE);
+        drawable.setIntrinsicHeight(DRAWABLE_SIZE);
+        return drawable;
+    }
+}
@@ -18,8 +18,11 @@ package com.android.settings.dashboard;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.os.Bundle;
 
+import com.android.settings.SettingsActivity;
 import com.android.settings.TestConfig;
 import com.android.settings.testutils.FakeFeatureFactory;
 import com.android.settings.testutils.SettingsRobolectricTestRunner;
@@ -36,9 +39,14 @@ import org.robolectric.Robolectric;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(SettingsRobolectricTestRunner.class)
@@ -47,6 +55,9 @@ public class SummaryLoaderTest {
 
     private static final String SUMMARY_1 = "summary1";
     private static final String SUMMARY_2 = "summary2";
+    private static final String CATEGORY_KEY = "category";
+
+    private static final List<TestSummaryProvider> sProviders = new ArrayList<>();
 
     @Mock(answer = Answers.RETURNS_DEEP_STUBS)
     private Context mContext;
@@ -54,6 +65,7 @@ public class SummaryLoaderTest {
     private boolean mCallbackInvoked;
     private Tile mTile;
     private FakeFeatureFactory mFeatureFactory;
+    private Activity mActivity;
 
     @Before
     public void SetUp() {
@@ -64,9 +76,10 @@ public class SummaryLoaderTest {
         mTile.summary = SUMMARY_1;
         mCallbackInvoked = false;
 
-        final Activity activity = Robolectric.buildActivity(Activity.class).get();
+        sProviders.clear();
+        mActivity = Robolectric.buildActivity(Activity.class).get();
         final List<DashboardCategory> categories = new ArrayList<>();
-        mSummaryLoader = new SummaryLoader(activity, categories);
+        mSummaryLoader = new SummaryLoader(mActivity, categories);
         mSummaryLoader.setSummaryConsumer(new SummaryLoader.SummaryConsumer() {
             @Override
             public void notifySummaryChanged(Tile tile) {
@@ -107,4 +120,139 @@ public class SummaryLoaderTest {
 
         assertThat(tile.summary).isEqualTo(testSummary);
     }
+
+    @Test
+    public void testApplyCachedSummaries_onlyEmptyTilesUpdated() {
+        final DashboardCategory category = new DashboardCategory();
+        final Tile emptyTile = createTile("CachedTile1");
+        emptyTile.summary = null;
+        final Tile tileWithSummary = createTile("CachedTile2");
+        category.addTile(emptyTile);
+        category.addTile(tileWithSummary);
+        when(mFeatureFactory.dashboardFeatureProvider.getTilesForCategory(CATEGORY_KEY))
+                .thenReturn(category);
+        final TileSummaryCache cache = TileSummaryCache.getInstance(mActivity);
+        cache.put(emptyTile.intent.getComponent(), SUMMARY_2);
+        cache.put(tileWithSummary.intent.getComponent(), SUMMARY_2);
+        final SummaryLoader summaryLoader =
+                new SummaryLoader(mActivity, CATEGORY_KEY, command -> {});
+        final List<Tile> changedTiles = new ArrayList<>();
+        summaryLoader.setSummaryConsumer(new SummaryLoader.SummaryConsumer() {
+            @Override
+            public void notifySummaryChanged(Tile tile) {
+            }
+
+            @Override
+            public void notifySummariesChanged(List<Tile> tiles) {
+                changedTiles.addAll(tiles);
+            }
+        });
+
+        summaryLoader.applyCachedSummaries();
+
+        assertThat(changedTiles).containsExactly(emptyTile);
+        assertThat(emptyTile.summary).isEqualTo(SUMMARY_2);
+        assertThat(tileWithSummary.summary).isEqualTo(SUMMARY_1);
+    }
+
+    @Test
+    public void testSetSummary_summariesOfOneFrameNotifiedTogether() {
+        final DashboardCategory category = new DashboardCategory();
+        final Tile tile1 = createTile("Tile1");
+        final Tile tile2 = createTile("Tile2");
+        category.addTile(tile1);
+        category.addTile(tile2);
+        when(mFeatureFactory.dashboardFeatureProvider.getTilesForCategory(CATEGORY_KEY))
+                .thenReturn(category);
+        final List<List<Tile>> notifications = new ArrayList<>();
+        final SummaryLoader summaryLoader =
+                new SummaryLoader(mActivity, CATEGORY_KEY, Runnable::run);
+        summaryLoader.setSummaryConsumer(new SummaryLoader.SummaryConsumer() {
+            @Override
+            public void notifySummaryChanged(Tile tile) {
+                notifications.add(Arrays.asList(tile));
+            }
+
+            @Override
+            public void notifySummariesChanged(List<Tile> tiles) {
+                notifications.add(new ArrayList<>(tiles));
+            }
+        });
+
+        // Every provider sets its summary when it starts listening.
+        summaryLoader.setListening(true);
+        summaryLoader.flushPendingSummaries();
+
+        assertThat(notifications).hasSize(1);
+        assertThat(notifications.get(0)).containsExactly(tile1, tile2);
+        assertThat(tile1.summary).isEqualTo(SUMMARY_2);
+    }
+
+    @Test
+    public void testSetListening_latencyLoggedPerProvider() {
+        final DashboardCategory category = new DashboardCategory();
+        final Tile tile = createTile("Tile1");
+        category.addTile(tile);
+        when(mFeatureFactory.dashboardFeatureProvider.getTilesForCategory(CATEGORY_KEY))
+                .thenReturn(category);
+        final SummaryLoader summaryLoader =
+                new SummaryLoader(mActivity, CATEGORY_KEY, Runnable::run);
+
+        summaryLoader.setListening(true);
+
+        verify(mFeatureFactory.metricsFeatureProvider).histogram(any(Context.class),
+                eq("summary_provider_latency_"
+                        + tile.intent.getComponent().flattenToShortString()),
+                anyInt());
+    }
+
+    @Test
+    public void testRelease_providersStopListening() {
+        final DashboardCategory category = new DashboardCategory();
+        category.addTile(createTile("Tile1"));
+        when(mFeatureFactory.dashboardFeatureProvider.getTilesForCategory(CATEGORY_KEY))
+                .thenReturn(category);
+        final SummaryLoader summaryLoader =
+                new SummaryLoader(mActivity, CATEGORY_KEY, Runnable::run);
+        summaryLoader.setListening(true);
+
+        summaryLoader.release();
+
+        assertThat(sProviders).hasSize(1);
+        assertThat(sProviders.get(0).mListening).isFalse();
+    }
+
+    private Tile createTile(String className) {
+        final Tile tile = new Tile();
+        tile.summary = SUMMARY_1;
+        tile.intent = new Intent().setComponent(
+                new ComponentName(mActivity.getPackageName(), className));
+        tile.metaData = new Bundle();
+        tile.metaData.putString(SettingsActivity.META_DATA_KEY_FRAGMENT_CLASS,
+                TestFragment.class.getName());
+        return tile;
+    }
+
+    public static class TestFragment {
+        public static final SummaryLoader.SummaryProviderFactory SUMMARY_PROVIDER_FACTORY =
+                (activity, summaryLoader) -> new TestSummaryProvider(summaryLoader);
+    }
+
+    private static class TestSummaryProvider implements SummaryLoader.SummaryProvider {
+        private final SummaryLoader mSummaryLoader;
+        private boolean mListening;
+
+        TestSummaryProvider(SummaryLoader summaryLoader) {
+            mSummaryLoader = summaryLoader;
+            sProviders.add(this);
+        }
+
+        @Override
+        public void setListening(boolean listening) {
+            mListening = listening;
+            if (listening) {
+                mSummaryLoader.setSummary(this, SUMMARY_2);
+            }
+        }
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.text.SpannableString;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class TileSummaryCacheTest {
+
+    private static final String SUMMARY = "summary";
+
+    private Context mContext;
+    private File mFile;
+    private ComponentName mComponent;
+    private Locale mDefaultLocale;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mFile = new File(mContext.getCacheDir(), "tile_summaries_test");
+        mFile.delete();
+        mComponent = new ComponentName(mContext.getPackageName(), "TestActivity");
+        mDefaultLocale = Locale.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+        mFile.delete();
+    }
+
+    @Test
+    public void testPut_readBackByNewInstance() {
+        newCache().put(mComponent, SUMMARY);
+
+        assertThat(newCache().get(mComponent).toString()).isEqualTo(SUMMARY);
+    }
+
+    @Test
+    public void testGet_expired_returnsNull() {
+        newCache().put(mComponent, SUMMARY,
+                System.currentTimeMillis() - TileSummaryCache.MAX_AGE_MS - 1);
+
+        assertThat(newCache().get(mComponent)).isNull();
+    }
+
+    @Test
+    public void testGet_localeChanged_returnsNull() {
+        Locale.setDefault(Locale.US);
+        final TileSummaryCache cache = newCache();
+        cache.put(mComponent, SUMMARY);
+
+        Locale.setDefault(Locale.FRANCE);
+
+        assertThat(cache.get(mComponent)).isNull();
+        assertThat(newCache().get(mComponent)).isNull();
+    }
+
+    @Test
+    public void testPut_nullSummary_removesEntry() {
+        newCache().put(mComponent, SUMMARY);
+
+        newCache().put(mComponent, null);
+
+        assertThat(newCache().get(mComponent)).isNull();
+    }
+
+    @Test
+    public void testPut_spannedSummary_removesEntry() {
+        newCache().put(mComponent, SUMMARY);
+
+        newCache().put(mComponent, new SpannableString(SUMMARY));
+
+        assertThat(newCache().get(mComponent)).isNull();
+    }
+
+    @Test
+    public void testOnPackageChanged_dropsSummariesOfPackage() {
+        final ComponentName otherComponent = new ComponentName("other.package", "TestActivity");
+        final TileSummaryCache cache = newCache();
+        cache.put(mComponent, SUMMARY);
+        cache.put(otherComponent, SUMMARY);
+
+        cache.onPackageChanged(mContext.getPackageName());
+
+        assertThat(cache.get(mComponent)).isNull();
+        assertThat(cache.get(otherComponent).toString()).isEqualTo(SUMMARY);
+        assertThat(newCache().get(mComponent)).isNull();
+    }
+
+    @Test
+    public void testLoad_summariesRecordedBeforeLoadTakePrecedence() {
+        final ComponentName otherComponent = new ComponentName("other.package", "TestActivity");
+        final TileSummaryCache stored = newCache();
+        stored.put(mComponent, SUMMARY);
+        stored.put(otherComponent, SUMMARY);
+        final List<Runnable> tasks = new ArrayList<>();
+        final TileSummaryCache cache = new TileSummaryCache(mContext, mFile, tasks::add);
+
+        cache.put(mComponent, "new summary");
+        cache.put(otherComponent, null);
+        assertThat(cache.get(mComponent).toString()).isEqualTo("new summary");
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).run();
+        }
+
+        assertThat(cache.get(mComponent).toString()).isEqualTo("new summary");
+        assertThat(cache.get(otherComponent)).isNull();
+    }
+
+    @Test
+    public void testAddOnLoadListener_notifiedOnceLoaded() {
+        newCache().put(mComponent, SUMMARY);
+        final List<Runnable> tasks = new ArrayList<>();
+        final TileSummaryCache cache = new TileSummaryCache(mContext, mFile, tasks::add);
+        final List<CharSequence> loadedSummaries = new ArrayList<>();
+
+        assertThat(cache.addOnLoadListener(() -> loadedSummaries.add(cache.get(mComponent))))
+                .isFalse();
+        assertThat(cache.get(mComponent)).isNull();
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).run();
+        }
+        ShadowLooper.runUiThreadTasks();
+
+        assertThat(loadedSummaries).hasSize(1);
+        assertThat(loadedSummaries.get(0).toString()).isEqualTo(SUMMARY);
+    }
+
+    @Test
+    public void testAddOnLoadListener_alreadyLoaded_notRegistered() {
+        final TileSummaryCache cache = newCache();
+        final List<Boolean> notified = new ArrayList<>();
+
+        assertThat(cache.addOnLoadListener(() -> notified.add(true))).isTrue();
+        ShadowLooper.runUiThreadTasks();
+
+        assertThat(notified).isEmpty();
+    }
+
+    private TileSummaryCache newCache() {
+        return new TileSummaryCache(mContext, mFile, Runnable::run);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard.conditional;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class ConditionManagerTest {
+
+    private AtomicFile mXmlFile;
+
+    @Before
+    public void setUp() {
+        mXmlFile = new AtomicFile(
+                new File(RuntimeEnvironment.application.getFilesDir(), "condition_state.xml"));
+    }
+
+    @Test
+    public void testWriteToXml_readBack() {
+        final Map<String, PersistableBundle> states = new ArrayMap<>();
+        final PersistableBundle bundle = new PersistableBundle();
+        bundle.putBoolean("silence", true);
+        bundle.putLong("last_state", 1234L);
+        states.put(DndCondition.class.getSimpleName(), bundle);
+
+        ConditionManager.writeToXml(mXmlFile, states);
+        final Map<String, PersistableBundle> read = ConditionManager.readFromXml(mXmlFile);
+
+        assertThat(read).hasSize(1);
+        final PersistableBundle readBundle = read.get(DndCondition.class.getSimpleName());
+        assertThat(readBundle.getBoolean("silence")).isTrue();
+        assertThat(readBundle.getLong("last_state")).isEqualTo(1234L);
+    }
+
+    @Test
+    public void testReadFromXml_qualifiedName_unknownConditionDropped() throws Exception {
+        write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?><cs>"
+                + "<c cls=\"com.android.settings.dashboard.conditional.HotspotCondition\">"
+                + "<boolean name=\"silence\" value=\"true\" /></c>"
+                + "<c cls=\"RemovedCondition\"><boolean name=\"silence\" value=\"true\" /></c>"
+                + "</cs>");
+
+        final Map<String, PersistableBundle> read = ConditionManager.readFromXml(mXmlFile);
+
+        assertThat(read.keySet()).containsExactly(HotspotCondition.class.getSimpleName());
+    }
+
+    @Test
+    public void testReadFromXml_noFile_empty() {
+        assertThat(ConditionManager.readFromXml(mXmlFile)).isEmpty();
+    }
+
+    private void write(String xml) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mXmlFile.getBaseFile())) {
+            out.write(xml.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
+import android.os.PersistableBundle;
 import com.android.internal.logging.nano.MetricsProto;
 import com.android.settings.testutils.SettingsRobolectricTestRunner;
 import com.android.settings.TestConfig;
@@ -101,6 +102,44 @@ public class ConditionTest {
         // no crash
     }
 
+    @Test
+    public void mergeState_dismissedBeforeRestore_keptSilenced() {
+        mCondition.setActive(true);
+        mCondition.silence();
+
+        final boolean changed = mCondition.mergeState(new PersistableBundle());
+
+        assertThat(mCondition.isSilenced()).isTrue();
+        assertThat(changed).isTrue();
+    }
+
+    @Test
+    public void mergeState_savedDismissal_stillActive_silenced() {
+        mCondition.setActive(true);
+        final PersistableBundle state = new PersistableBundle();
+        mCondition.silence();
+        mCondition.saveState(state);
+        mCondition = new TestCondition(mConditionManager, mMetricsFeatureProvider);
+        mCondition.setActive(true);
+
+        final boolean changed = mCondition.mergeState(state);
+
+        assertThat(mCondition.isSilenced()).isTrue();
+        assertThat(changed).isFalse();
+    }
+
+    @Test
+    public void mergeState_savedDismissal_noLongerActive_notSilenced() {
+        final PersistableBundle state = new PersistableBundle();
+        state.putBoolean("silence", true);
+        state.putBoolean("active", true);
+
+        final boolean changed = mCondition.mergeState(state);
+
+        assertThat(mCondition.isSilenced()).isFalse();
+        assertThat(changed).isTrue();
+    }
+
     private static final class TestCondition extends Condition {
 
         private static final int TEST_METRIC_CONSTANT = 1234;
@@ -28,15 +28,25 @@ import static com.google.common.truth.Truth.assertThat;
 
 import org.robolectric.RuntimeEnvironment;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
 @RunWith(SettingsRobolectricTestRunner.class)
 @Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
 public class EventStoreTest {
 
     private EventStore mEventStore;
+    private File mLogFile;
 
     @Before
     public void setUp() {
         mEventStore = new EventStore(RuntimeEnvironment.application);
+        mLogFile = new File(RuntimeEnvironment.application.getCacheDir(), "events_test");
+        mLogFile.delete();
+        new File(mLogFile.getPath() + ".bak").delete();
     }
 
     @Test
@@ -69,4 +79,86 @@ public class EventStoreTest {
             .isEqualTo(0);
     }
 
+    @Test
+    public void testWriteEvent_readBackFromLog() {
+        final EventStore eventStore = new EventStore(mLogFile, Runnable::run);
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        eventStore.writeEvent("pkg2", EventStore.EVENT_CLICKED);
+
+        final EventStore reloaded = new EventStore(mLogFile, Runnable::run);
+        assertThat(reloaded.readMetric("pkg", EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT))
+            .isEqualTo(2);
+        assertThat(reloaded.readMetric("pkg2", EventStore.EVENT_CLICKED, EventStore.METRIC_COUNT))
+            .isEqualTo(1);
+        assertThat(reloaded.readMetric(
+                "pkg2", EventStore.EVENT_CLICKED, EventStore.METRIC_LAST_EVENT_TIME))
+            .isEqualTo(eventStore.readMetric(
+                "pkg2", EventStore.EVENT_CLICKED, EventStore.METRIC_LAST_EVENT_TIME));
+    }
+
+    @Test
+    public void testWriteEvent_compacted_keepsMetrics() {
+        final EventStore eventStore = new EventStore(mLogFile, Runnable::run);
+        for (int i = 0; i < EventStore.COMPACT_EVENT_COUNT; i++) {
+            eventStore.writeEvent("pkg", EventStore.EVENT_DISMISSED);
+        }
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+
+        final EventStore reloaded = new EventStore(mLogFile, Runnable::run);
+        assertThat(
+            reloaded.readMetric("pkg", EventStore.EVENT_DISMISSED, EventStore.METRIC_COUNT))
+            .isEqualTo(EventStore.COMPACT_EVENT_COUNT);
+        assertThat(reloaded.readMetric("pkg", EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT))
+            .isEqualTo(1);
+    }
+
+    @Test
+    public void testWriteEvent_backupLeft_keepsAppendedEvents() throws Exception {
+        final EventStore eventStore = new EventStore(mLogFile, Runnable::run);
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        // Left by a compaction which didn't finish, it replaces the log when read.
+        Files.copy(mLogFile.toPath(), new File(mLogFile.getPath() + ".bak").toPath());
+
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+
+        final EventStore reloaded = new EventStore(mLogFile, Runnable::run);
+        assertThat(reloaded.readMetric("pkg", EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT))
+            .isEqualTo(2);
+    }
+
+    @Test
+    public void testWriteEvent_beforeLoad_appliedOnLoad() {
+        new EventStore(mLogFile, Runnable::run).writeEvent("pkg", EventStore.EVENT_SHOWN);
+        final List<Runnable> tasks = new ArrayList<>();
+        final EventStore eventStore = new EventStore(mLogFile, tasks::add);
+
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).run();
+        }
+
+        assertThat(eventStore.readMetric("pkg", EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT))
+            .isEqualTo(2);
+        final EventStore reloaded = new EventStore(mLogFile, Runnable::run);
+        assertThat(reloaded.readMetric("pkg", EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT))
+            .isEqualTo(2);
+    }
+
+    @Test
+    public void testRead_lastRecordCutShort_keepsCompleteRecords() throws Exception {
+        final EventStore eventStore = new EventStore(mLogFile, Runnable::run);
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        eventStore.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        try (RandomAccessFile file = new RandomAccessFile(mLogFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        EventStore reloaded = new EventStore(mLogFile, Runnable::run);
+        reloaded.writeEvent("pkg", EventStore.EVENT_SHOWN);
+        reloaded = new EventStore(mLogFile, Runnable::run);
+
+        assertThat(reloaded.readMetric("pkg", EventStore.EVENT_SHOWN, EventStore.METRIC_COUNT))
+            .isEqualTo(2);
+    }
 }
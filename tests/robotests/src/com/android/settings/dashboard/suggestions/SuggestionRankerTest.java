@@ -35,20 +35,19 @@ import org.robolectric.annotation.Config;
 
 import static com.google.common.truth.Truth.assertThat;
 
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
-import static org.mockito.Mockito.same;
-import static org.mockito.Mockito.spy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 
 @RunWith(SettingsRobolectricTestRunner.class)
 @Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
 public class SuggestionRankerTest {
 
-    @Mock
-    private SuggestionRanker mSuggestionRanker;
     @Mock
     private SuggestionFeaturizer mSuggestionFeaturizer;
-    private Map<String, Map<String, Double>> mFeatures;
+    private SuggestionRanker mSuggestionRanker;
+    private Map<String, Double> mRelevance;
     private List<String> mPkgNames;
     private List<Tile> mSuggestions;
 
@@ -56,10 +55,10 @@ public class SuggestionRankerTest {
     public void setUp() {
         MockitoAnnotations.initMocks(this);
         mPkgNames = Arrays.asList("pkg1", "pkg2", "pkg3");
-        mFeatures = new HashMap<String, Map<String, Double>>();
-        mFeatures.put("pkg1", new HashMap<String, Double>());
-        mFeatures.put("pkg2", new HashMap<String, Double>());
-        mFeatures.put("pkg3", new HashMap<String, Double>());
+        mRelevance = new HashMap<>();
+        mRelevance.put("pkg1", 0.9);
+        mRelevance.put("pkg2", 0.1);
+        mRelevance.put("pkg3", 0.5);
         mSuggestions = new ArrayList<Tile>() {
             {
                 add(new Tile());
@@ -67,13 +66,18 @@ public class SuggestionRankerTest {
                 add(new Tile());
             }
         };
-        mSuggestionFeaturizer = mock(SuggestionFeaturizer.class);
-        mSuggestionRanker = new SuggestionRanker(mSuggestionFeaturizer);
-        when(mSuggestionFeaturizer.featurize(mPkgNames)).thenReturn(mFeatures);
-        mSuggestionRanker = spy(mSuggestionRanker);
-        when(mSuggestionRanker.getRelevanceMetric(same(mFeatures.get("pkg1")))).thenReturn(0.9);
-        when(mSuggestionRanker.getRelevanceMetric(same(mFeatures.get("pkg2")))).thenReturn(0.1);
-        when(mSuggestionRanker.getRelevanceMetric(same(mFeatures.get("pkg3")))).thenReturn(0.5);
+        // The relevance of each package is its only non-zero feature.
+        doAnswer(invocation -> {
+            final double[] features = (double[]) invocation.getArguments()[2];
+            Arrays.fill(features, 0);
+            features[SuggestionFeaturizer.INDEX_IS_SHOWN] =
+                    mRelevance.get((String) invocation.getArguments()[0]);
+            return null;
+        }).when(mSuggestionFeaturizer).featurize(anyString(), anyLong(), any(double[].class));
+        final double[] weights = new double[SuggestionFeaturizer.FEATURE_COUNT];
+        weights[SuggestionFeaturizer.INDEX_IS_SHOWN] = 1;
+        mSuggestionRanker = new SuggestionRanker(mSuggestionFeaturizer,
+                new SuggestionRankingModel(weights));
     }
 
     @Test
@@ -88,5 +92,18 @@ public class SuggestionRankerTest {
         mSuggestionRanker.rankSuggestions(mSuggestions, mPkgNames);
         assertThat(mSuggestions).isEqualTo(expectedOrderdList);
     }
-}
 
+    @Test
+    public void testRank_sameRelevance_keepsOrder() {
+        mRelevance.put("pkg2", 0.9);
+        List<Tile> expectedOrderdList = new ArrayList<Tile>() {
+            {
+                add(mSuggestions.get(0)); // relevance = 0.9
+                add(mSuggestions.get(1)); // relevance = 0.9
+                add(mSuggestions.get(2)); // relevance = 0.5
+            }
+        };
+        mSuggestionRanker.rankSuggestions(mSuggestions, mPkgNames);
+        assertThat(mSuggestions).isEqualTo(expectedOrderdList);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.settings.dashboard.suggestions;
+
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+import com.android.settings.TestConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class SuggestionRankingModelTest {
+
+    @Test
+    public void testParse_weightsAtFeatureIndex() throws Exception {
+        final SuggestionRankingModel model = SuggestionRankingModel.parse(
+                "{\"version\": " + SuggestionRankingModel.VERSION + ", \"weights\": {\""
+                        + SuggestionFeaturizer.FEATURE_SHOWN_COUNT + "\": 2}}");
+        final double[] features = new double[SuggestionFeaturizer.FEATURE_COUNT];
+        features[SuggestionFeaturizer.INDEX_SHOWN_COUNT] = 0.5;
+        features[SuggestionFeaturizer.INDEX_IS_SHOWN] = 1;
+
+        assertThat(model.getRelevanceMetric(features)).isEqualTo(1.0);
+    }
+
+    @Test
+    public void testParse_otherVersion_returnsNull() throws Exception {
+        assertThat(SuggestionRankingModel.parse("{\"version\": "
+                + (SuggestionRankingModel.VERSION + 1) + ", \"weights\": {}}")).isNull();
+    }
+
+    @Test
+    public void testParse_unknownFeature_returnsNull() throws Exception {
+        assertThat(SuggestionRankingModel.parse("{\"version\": " + SuggestionRankingModel.VERSION
+                + ", \"weights\": {\"unknown\": 1}}")).isNull();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class BatteryHistoryTest {
+
+    private static final long WALL_TIME = 1500000000000L;
+
+    @Mock
+    private BatteryStats mBatteryStats;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(true).when(mBatteryStats).startIteratingHistoryLocked();
+    }
+
+    @Test
+    public void testDecode_fillsColumnsAndTimes() {
+        mockHistory(new byte[] {HistoryItem.CMD_RESET, HistoryItem.CMD_UPDATE,
+                        HistoryItem.CMD_UPDATE, HistoryItem.CMD_START},
+                new long[] {1000, 2000, 3000, 4000},
+                new byte[] {0, 99, 98, 0},
+                new int[] {0, HistoryItem.STATE_SCREEN_ON_FLAG, HistoryItem.STATE_GPS_ON_FLAG,
+                        HistoryItem.STATE_CPU_RUNNING_FLAG});
+
+        final BatteryHistory history = BatteryHistory.decode(mBatteryStats);
+
+        assertThat(history.size()).isEqualTo(4);
+        assertThat(history.isDeltaData(0)).isFalse();
+        assertThat(history.isDeltaData(1)).isTrue();
+        assertThat(history.getBatteryLevel(2)).isEqualTo(98);
+        assertThat(history.getStates(1)).isEqualTo(HistoryItem.STATE_SCREEN_ON_FLAG);
+        assertThat(history.mNumInteresting).isEqualTo(3);
+        assertThat(history.mHistStart).isEqualTo(1000);
+        assertThat(history.mHistDataEnd).isEqualTo(3000);
+        assertThat(history.mStartWallTime).isEqualTo(WALL_TIME);
+        assertThat(history.getEndDataWallTime()).isEqualTo(WALL_TIME + 2000);
+        // Only the states of the delta records are aggregated.
+        assertThat(history.mAggrStates).isEqualTo(
+                HistoryItem.STATE_SCREEN_ON_FLAG | HistoryItem.STATE_GPS_ON_FLAG);
+    }
+
+    @Test
+    public void testDecode_growsColumns() {
+        final int count = 1000;
+        final byte[] cmds = new byte[count];
+        final long[] times = new long[count];
+        final byte[] levels = new byte[count];
+        for (int i = 0; i < count; i++) {
+            cmds[i] = HistoryItem.CMD_UPDATE;
+            times[i] = i;
+            levels[i] = (byte) (i % 100);
+        }
+        mockHistory(cmds, times, levels, new int[count]);
+
+        final BatteryHistory history = BatteryHistory.decode(mBatteryStats);
+
+        assertThat(history.size()).isEqualTo(count);
+        assertThat(history.getBatteryLevel(count - 1)).isEqualTo(levels[count - 1]);
+    }
+
+    @Test
+    public void testGet_decodesOncePerStats() {
+        mockHistory(new byte[] {HistoryItem.CMD_UPDATE}, new long[] {1000}, new byte[] {50},
+                new int[1]);
+
+        final BatteryHistory history = BatteryHistory.get(mBatteryStats);
+
+        assertThat(BatteryHistory.get(mBatteryStats)).isSameAs(history);
+        verify(mBatteryStats, times(1)).startIteratingHistoryLocked();
+    }
+
+    private void mockHistory(byte[] cmds, long[] times, byte[] levels, int[] states) {
+        final int[] count = new int[1];
+        doAnswer(invocation -> {
+            final int i = count[0];
+            if (i == cmds.length) {
+                return false;
+            }
+            final HistoryItem record = (HistoryItem) invocation.getArguments()[0];
+            record.cmd = cmds[i];
+            record.time = times[i];
+            record.currentTime = WALL_TIME;
+            record.batteryLevel = levels[i];
+            record.states = states[i];
+            count[0]++;
+            return true;
+        }).when(mBatteryStats).getNextHistoryLocked(any(HistoryItem.class));
+    }
+}
@@ -30,11 +30,8 @@ import android.content.pm.PackageManager;
 import android.os.UserManager;
 
 import com.android.internal.os.BatteryStatsHelper;
-import com.android.settings.fuelgauge.anomaly.checker.BluetoothScanAnomalyDetector;
 import com.android.settings.testutils.SettingsRobolectricTestRunner;
 import com.android.settings.TestConfig;
-import com.android.settings.fuelgauge.anomaly.checker.WakeLockAnomalyDetector;
-import com.android.settings.fuelgauge.anomaly.checker.WakeupAlarmAnomalyDetector;
 import com.android.settings.testutils.FakeFeatureFactory;
 
 import org.junit.Before;
@@ -59,21 +56,13 @@ public class AnomalyLoaderTest {
     @Mock
     private BatteryStatsHelper mBatteryStatsHelper;
     @Mock
-    private WakeLockAnomalyDetector mWakeLockAnomalyDetector;
-    @Mock
-    private WakeupAlarmAnomalyDetector mWakeupAlarmAnomalyDetector;
-    @Mock
-    private BluetoothScanAnomalyDetector mBluetoothScanAnomalyDetector;
-    @Mock
     private AnomalyDetectionPolicy mAnomalyDetectionPolicy;
     @Mock
     private UserManager mUserManager;
     private Anomaly mWakeLockAnomaly;
     private Anomaly mWakeupAlarmAnomaly;
     private Anomaly mBluetoothScanAnomaly;
-    private List<Anomaly> mWakeLockAnomalies;
-    private List<Anomaly> mWakeupAlarmAnomalies;
-    private List<Anomaly> mBluetoothScanAnomalies;
+    private List<Anomaly> mAnomalies;
     private AnomalyLoader mAnomalyLoader;
 
     @Before
@@ -85,22 +74,13 @@ public class AnomalyLoaderTest {
         doReturn(mUserManager).when(mContext).getSystemService(Context.USER_SERVICE);
         when(mContext.getPackageManager().getPackageUid(anyString(), anyInt())).thenReturn(UID);
 
-        mWakeLockAnomalies = new ArrayList<>();
+        mAnomalies = new ArrayList<>();
         mWakeLockAnomaly = createAnomaly(Anomaly.AnomalyType.WAKE_LOCK);
-        mWakeLockAnomalies.add(mWakeLockAnomaly);
-        doReturn(mWakeLockAnomalies).when(mWakeLockAnomalyDetector).detectAnomalies(any(), any());
-
-        mWakeupAlarmAnomalies = new ArrayList<>();
+        mAnomalies.add(mWakeLockAnomaly);
         mWakeupAlarmAnomaly = createAnomaly(Anomaly.AnomalyType.WAKEUP_ALARM);
-        mWakeupAlarmAnomalies.add(mWakeupAlarmAnomaly);
-        doReturn(mWakeupAlarmAnomalies).when(mWakeupAlarmAnomalyDetector).detectAnomalies(any(),
-                any());
-
-        mBluetoothScanAnomalies = new ArrayList<>();
+        mAnomalies.add(mWakeupAlarmAnomaly);
         mBluetoothScanAnomaly = createAnomaly(Anomaly.AnomalyType.BLUETOOTH_SCAN);
-        mBluetoothScanAnomalies.add(mBluetoothScanAnomaly);
-        doReturn(mBluetoothScanAnomalies).when(mBluetoothScanAnomalyDetector).detectAnomalies(any(),
-                any());
+        mAnomalies.add(mBluetoothScanAnomaly);
 
         mAnomalyLoader = new AnomalyLoader(mContext, mBatteryStatsHelper, null,
                 mAnomalyDetectionPolicy);
@@ -109,13 +89,8 @@ public class AnomalyLoaderTest {
 
     @Test
     public void testLoadInBackground_containsValidAnomalies() {
-        doReturn(mWakeLockAnomalyDetector).when(mAnomalyLoader.mAnomalyUtils).getAnomalyDetector(
-                Anomaly.AnomalyType.WAKE_LOCK);
-        doReturn(mWakeupAlarmAnomalyDetector).when(mAnomalyLoader.mAnomalyUtils).getAnomalyDetector(
-                Anomaly.AnomalyType.WAKEUP_ALARM);
-        doReturn(mBluetoothScanAnomalyDetector).when(
-                mAnomalyLoader.mAnomalyUtils).getAnomalyDetector(
-                Anomaly.AnomalyType.BLUETOOTH_SCAN);
+        doReturn(mAnomalies).when(mAnomalyLoader.mAnomalyUtils).detectAllAnomalies(any(),
+                anyInt());
 
         List<Anomaly> anomalies = mAnomalyLoader.loadInBackground();
 
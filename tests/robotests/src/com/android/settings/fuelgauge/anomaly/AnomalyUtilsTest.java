@@ -18,8 +18,23 @@ package com.android.settings.fuelgauge.anomaly;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.BatteryStats;
 import android.os.Build;
 
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.settings.fuelgauge.BatteryUtils;
+import com.android.settings.fuelgauge.anomaly.action.AnomalyAction;
 import com.android.settings.fuelgauge.anomaly.action.StopAndBackgroundCheckAction;
 import com.android.settings.testutils.SettingsRobolectricTestRunner;
 import com.android.settings.TestConfig;
@@ -31,18 +46,53 @@ import com.android.settings.fuelgauge.anomaly.checker.WakeupAlarmAnomalyDetector
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @RunWith(SettingsRobolectricTestRunner.class)
 @Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION, shadows = {
         ShadowKeyValueListParserWrapperImpl.class})
 public class AnomalyUtilsTest {
+    private static final String ANOMALY_PACKAGE_NAME = "com.android.anomaly";
+    private static final int ANOMALY_UID = 111;
+    private static final int NORMAL_UID = 222;
+    private static final long STATS_PERIOD = 1000;
+    @Mock
+    private BatteryStatsHelper mBatteryStatsHelper;
+    @Mock
+    private BatteryStatsHelper mOtherStatsHelper;
+    @Mock
+    private BatterySipper mAnomalySipper;
+    @Mock
+    private BatterySipper mNormalSipper;
+    @Mock
+    private BatteryStats.Uid mAnomalyUid;
+    @Mock
+    private BatteryStats.Uid mNormalUid;
+    @Mock
+    private BatteryUtils mBatteryUtils;
+    @Mock
+    private AnomalyDetectionPolicy mPolicy;
+    @Mock
+    private AnomalyAction mAnomalyAction;
+    @Mock
+    private WakeLockAnomalyDetector mWakeLockAnomalyDetector;
+    @Mock
+    private WakeupAlarmAnomalyDetector mWakeupAlarmAnomalyDetector;
     private AnomalyUtils mAnomalyUtils;
+    private Anomaly mWakeLockAnomaly;
+    private Anomaly mWakeupAlarmAnomaly;
 
     @Before
     public void setUp() {
-        mAnomalyUtils = new AnomalyUtils(RuntimeEnvironment.application);
+        MockitoAnnotations.initMocks(this);
+
+        mAnomalyUtils = spy(new AnomalyUtils(RuntimeEnvironment.application));
     }
 
     @Test
@@ -97,4 +147,108 @@ public class AnomalyUtilsTest {
         assertThat(mAnomalyUtils.getAnomalyDetector(Anomaly.AnomalyType.WAKEUP_ALARM)).isInstanceOf(
                 WakeupAlarmAnomalyDetector.class);
     }
+
+    @Test
+    public void testDetectAnomalies_severalTypes_resolvePackageOnce() {
+        setUpDetection();
+
+        List<Anomaly> anomalies = mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy,
+                null /* targetPackageName */);
+
+        assertThat(anomalies).containsExactly(mWakeLockAnomaly, mWakeupAlarmAnomaly).inOrder();
+        verify(mBatteryUtils).getPackageName(ANOMALY_UID);
+        verify(mWakeupAlarmAnomalyDetector).setPackageData(any(), eq(ANOMALY_UID),
+                eq(ANOMALY_PACKAGE_NAME));
+    }
+
+    @Test
+    public void testDetectAnomalies_targetPackageAfterAllApps_reuseDetection() {
+        setUpDetection();
+        doReturn(ANOMALY_UID).when(mBatteryUtils).getPackageUid(ANOMALY_PACKAGE_NAME);
+        mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy, null /* targetPackageName */);
+
+        List<Anomaly> anomalies = mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy,
+                ANOMALY_PACKAGE_NAME);
+
+        assertThat(anomalies).containsExactly(mWakeLockAnomaly, mWakeupAlarmAnomaly);
+        verify(mWakeLockAnomalyDetector).detectAnomaly(any(), eq(mAnomalyUid), anyLong());
+    }
+
+    @Test
+    public void testDetectAnomalies_statsRefreshed_detectAgain() {
+        setUpDetection();
+        mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy, null /* targetPackageName */);
+        doReturn(2 * STATS_PERIOD).when(mBatteryStatsHelper).getStatsPeriod();
+
+        mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy, null /* targetPackageName */);
+
+        verify(mWakeLockAnomalyDetector, times(2)).detectAnomaly(any(), eq(mNormalUid),
+                anyLong());
+    }
+
+    @Test
+    public void testDetectAnomalies_targetPackageWithOtherStats_detectOnlyTargetApp() {
+        setUpDetection();
+        doReturn(ANOMALY_UID).when(mBatteryUtils).getPackageUid(ANOMALY_PACKAGE_NAME);
+        final List<BatterySipper> usageList = mBatteryStatsHelper.getUsageList();
+        doReturn(usageList).when(mOtherStatsHelper).getUsageList();
+        mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy, null /* targetPackageName */);
+
+        List<Anomaly> anomalies = mAnomalyUtils.detectAnomalies(mOtherStatsHelper, mPolicy,
+                ANOMALY_PACKAGE_NAME);
+        mAnomalyUtils.detectAnomalies(mBatteryStatsHelper, mPolicy, null /* targetPackageName */);
+
+        assertThat(anomalies).containsExactly(mWakeLockAnomaly, mWakeupAlarmAnomaly).inOrder();
+        verify(mWakeLockAnomalyDetector, never()).detectAnomaly(eq(mOtherStatsHelper),
+                eq(mNormalUid), anyLong());
+        // The detection of all the apps is still kept.
+        verify(mWakeLockAnomalyDetector).detectAnomaly(eq(mBatteryStatsHelper), eq(mNormalUid),
+                anyLong());
+    }
+
+    private void setUpDetection() {
+        mAnomalyUtils.mBatteryUtils = mBatteryUtils;
+        doReturn(BatteryUtils.UID_NULL).when(mBatteryUtils).getPackageUid(nullable(String.class));
+        doReturn(ANOMALY_PACKAGE_NAME).when(mBatteryUtils).getPackageName(ANOMALY_UID);
+        doReturn(true).when(mPolicy).isAnomalyDetectorEnabled(Anomaly.AnomalyType.WAKE_LOCK);
+        doReturn(true).when(mPolicy).isAnomalyDetectorEnabled(Anomaly.AnomalyType.WAKEUP_ALARM);
+        doReturn(mWakeLockAnomalyDetector).when(mAnomalyUtils).getAnomalyDetector(
+                Anomaly.AnomalyType.WAKE_LOCK);
+        doReturn(mWakeupAlarmAnomalyDetector).when(mAnomalyUtils).getAnomalyDetector(
+                Anomaly.AnomalyType.WAKEUP_ALARM);
+        doReturn(true).when(mAnomalyAction).isActionActive(any());
+        doReturn(mAnomalyAction).when(mAnomalyUtils).getAnomalyAction(any());
+
+        mAnomalySipper.uidObj = mAnomalyUid;
+        doReturn(ANOMALY_UID).when(mAnomalyUid).getUid();
+        mNormalSipper.uidObj = mNormalUid;
+        doReturn(NORMAL_UID).when(mNormalUid).getUid();
+        final List<BatterySipper> usageList = new ArrayList<>();
+        usageList.add(mAnomalySipper);
+        usageList.add(mNormalSipper);
+        doReturn(usageList).when(mBatteryStatsHelper).getUsageList();
+        doReturn(STATS_PERIOD).when(mBatteryStatsHelper).getStatsPeriod();
+
+        // The app has both anomalies, found in the same pass.
+        doReturn(new Anomaly.Builder()
+                .setUid(ANOMALY_UID)
+                .setType(Anomaly.AnomalyType.WAKE_LOCK))
+                .when(mWakeLockAnomalyDetector).detectAnomaly(any(), eq(mAnomalyUid), anyLong());
+        doReturn(new Anomaly.Builder()
+                .setUid(ANOMALY_UID)
+                .setType(Anomaly.AnomalyType.WAKEUP_ALARM))
+                .when(mWakeupAlarmAnomalyDetector).detectAnomaly(any(), eq(mAnomalyUid),
+                anyLong());
+
+        mWakeLockAnomaly = new Anomaly.Builder()
+                .setUid(ANOMALY_UID)
+                .setType(Anomaly.AnomalyType.WAKE_LOCK)
+                .setPackageName(ANOMALY_PACKAGE_NAME)
+                .build();
+        mWakeupAlarmAnomaly = new Anomaly.Builder()
+                .setUid(ANOMALY_UID)
+                .setType(Anomaly.AnomalyType.WAKEUP_ALARM)
+                .setPackageName(ANOMALY_PACKAGE_NAME)
+                .build();
+    }
 }
@@ -22,7 +22,9 @@ import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
@@ -199,6 +201,28 @@ public class WakeupAlarmAnomalyDetectorTest {
         assertThat(mAnomalies).containsExactly(mTargetAnomaly);
     }
 
+    @Test
+    public void testDetectAnomaly_containsAnomaly_detectIt() {
+        doReturn(ANOMALY_WAKEUP_COUNT).when(mWakeupAlarmAnomalyDetector).getWakeupAlarmCountFromUid(
+                mAnomalyUid);
+
+        Anomaly.Builder builder = mWakeupAlarmAnomalyDetector.detectAnomaly(mBatteryStatsHelper,
+                mAnomalyUid, 0 /* elapsedRealtimeMs */);
+        mWakeupAlarmAnomalyDetector.setPackageData(builder, ANOMALY_UID, ANOMALY_PACKAGE_NAME);
+
+        assertThat(builder.setPackageName(ANOMALY_PACKAGE_NAME).build()).isEqualTo(mAnomaly);
+    }
+
+    @Test
+    public void testDetectAnomaly_fewAlarms_skipRunningTime() {
+        doReturn(BLACKLISTED_WAKEUP_COUNT).when(
+                mWakeupAlarmAnomalyDetector).getWakeupAlarmCountFromUid(mNormalUid);
+
+        assertThat(mWakeupAlarmAnomalyDetector.detectAnomaly(mBatteryStatsHelper, mNormalUid,
+                0 /* elapsedRealtimeMs */)).isNull();
+        verify(mBatteryUtils, never()).calculateRunningTimeBasedOnStatsType(any(), anyInt());
+    }
+
     @Test
     public void testGetWakeupAlarmCountFromUid_countCorrect() {
         final ArrayMap<String, BatteryStats.Uid.Pkg> packageStats = new ArrayMap<>();
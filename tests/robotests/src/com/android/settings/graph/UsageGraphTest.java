@@ -19,8 +19,11 @@ package com.android.settings.graph;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -151,4 +154,62 @@ public class UsageGraphTest {
         assertThat(localPaths.keyAt(3)).isEqualTo(1001);
         assertThat(localPaths.valueAt(3)).isEqualTo(-1);
     }
+
+    @Test
+    public void testCalculateLocalPaths_samePixelColumn_keepsExtremePoint() {
+        // 5 units per pixel.
+        mGraph.setMax(5000, 100);
+        SparseIntArray paths = new SparseIntArray();
+        paths.append(0, 100);
+        paths.append(1000, 50);
+        paths.append(1001, 10); // This point should be kept: it's the lowest of its column.
+        paths.append(1002, 40);
+        paths.append(2000, 50);
+        paths.append(2001, -1);
+
+        SparseIntArray localPaths = new SparseIntArray();
+        mGraph.calculateLocalPaths(paths, localPaths);
+
+        assertThat(localPaths.size()).isEqualTo(4);
+        assertThat(localPaths.keyAt(0)).isEqualTo(0);
+        assertThat(localPaths.valueAt(0)).isEqualTo(0);
+        assertThat(localPaths.keyAt(1)).isEqualTo(200);
+        assertThat(localPaths.valueAt(1)).isEqualTo(180);
+        assertThat(localPaths.keyAt(2)).isEqualTo(400);
+        assertThat(localPaths.valueAt(2)).isEqualTo(100);
+        assertThat(localPaths.keyAt(3)).isEqualTo(401);
+        assertThat(localPaths.valueAt(3)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testCalculateLocalPaths_lastPointInKeptColumn_keepsExtremePoint() {
+        // 5 units per pixel.
+        mGraph.setMax(5000, 100);
+        SparseIntArray paths = new SparseIntArray();
+        paths.append(0, 100);
+        paths.append(1000, 50);
+        paths.append(1001, 10); // This point should be kept: it's the lowest of its column.
+        paths.append(1004, 40); // This point should be omitted, even though it's the last one.
+        paths.append(1005, -1);
+
+        SparseIntArray localPaths = new SparseIntArray();
+        mGraph.calculateLocalPaths(paths, localPaths);
+
+        assertThat(localPaths.size()).isEqualTo(3);
+        assertThat(localPaths.keyAt(0)).isEqualTo(0);
+        assertThat(localPaths.valueAt(0)).isEqualTo(0);
+        assertThat(localPaths.keyAt(1)).isEqualTo(200);
+        assertThat(localPaths.valueAt(1)).isEqualTo(180);
+        assertThat(localPaths.keyAt(2)).isEqualTo(201);
+        assertThat(localPaths.valueAt(2)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testSetMax_sameMax_doesNotRecalculateLocalPaths() {
+        mGraph.setMax(500, 100);
+
+        // Only the paths and projected paths of the setup are calculated.
+        verify(mGraph, times(2)).calculateLocalPaths(
+                any(SparseIntArray.class), any(SparseIntArray.class));
+    }
 }
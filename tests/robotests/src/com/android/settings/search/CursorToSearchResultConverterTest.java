@@ -117,6 +117,16 @@ public class CursorToSearchResultConverterTest {
         }
     }
 
+    @Test
+    public void testParseCursor_MatchesDocId() {
+        final Set<SearchResult> results = mConverter.convertCursor(
+                mSiteMapManager, getDummyCursor(), BASE_RANK);
+        for (SearchResult result : results) {
+            assertThat(result).isInstanceOf(DatabaseSearchResult.class);
+            assertThat(((DatabaseSearchResult) result).docId).isEqualTo(result.stableId);
+        }
+    }
+
     @Test
     public void testParseCursor_MatchesIcon() {
         final MatrixCursor cursor = new MatrixCursor(DatabaseResultLoader.SELECT_COLUMNS);
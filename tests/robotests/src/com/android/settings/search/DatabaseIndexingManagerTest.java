@@ -71,8 +71,10 @@ import org.robolectric.shadows.ShadowContentResolver;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -121,8 +123,10 @@ public class DatabaseIndexingManagerTest {
 
     private final String TITLE_ONE = "title one";
     private final String TITLE_TWO = "title two";
+    private final String TITLE_THREE = "title three";
     private final String KEY_ONE = "key one";
     private final String KEY_TWO = "key two";
+    private final String KEY_THREE = "key three";
 
     private Context mContext;
 
@@ -854,24 +858,94 @@ public class DatabaseIndexingManagerTest {
     }
 
     @Test
-    public void testPerformIndexing_onPackageChange_shouldFullIndex() {
+    public void testPerformIndexing_onPackageChange_shouldNotFullIndex() {
         final List<ResolveInfo> providers = getDummyResolveInfo();
         final String buildNumber = Build.FINGERPRINT;
         final String locale = Locale.getDefault().toString();
         skipFullIndex(providers);
 
-        // This snapshot is already indexed. Should return false
-        assertThat(IndexDatabaseHelper.isFullIndex(
-                mContext, locale, buildNumber,
-                IndexDatabaseHelper.buildProviderVersionedNames(providers)))
-                .isFalse();
+        // Change provider version number, this should only re-index the provider.
+        providers.get(0).providerInfo.applicationInfo.versionCode++;
+
+        assertThat(IndexDatabaseHelper.isFullIndex(mContext, locale, buildNumber)).isFalse();
+    }
+
+    @Test
+    public void testPerformIndexing_onPackageChange_reindexesOnlyThatProvider() {
+        final List<ResolveInfo> providers = getDummyResolveInfo();
+        skipFullIndex(providers);
+        providers.get(0).providerInfo.applicationInfo.versionCode++;
+        DummyProvider provider = new DummyProvider();
+        provider.onCreate();
+        ShadowContentResolver.registerProvider(AUTHORITY_ONE, provider);
+        when(mPackageManager.queryIntentContentProviders(any(Intent.class), anyInt()))
+                .thenReturn(providers);
+
+        DatabaseIndexingManager manager =
+                spy(new DatabaseIndexingManager(mContext, PACKAGE_ONE));
+
+        manager.performIndexing();
 
-        // Change provider version number, this should trigger full index.
+        verify(manager).clearIndexablesFromPackage(PACKAGE_ONE);
+        verify(manager).addIndexablesFromRemoteProvider(PACKAGE_ONE, AUTHORITY_ONE);
+        verify(manager).updateDatabase(false /* isFullIndex */, Locale.getDefault().toString());
+        assertThat(IndexDatabaseHelper.getIndexedProviderVersions(mContext))
+                .containsEntry(AUTHORITY_ONE,
+                        IndexDatabaseHelper.buildProviderVersion(providers.get(0)));
+    }
+
+    @Test
+    public void testPerformIndexing_providerFailed_versionNotRecorded() {
+        final List<ResolveInfo> providers = getDummyResolveInfo();
+        skipFullIndex(providers);
         providers.get(0).providerInfo.applicationInfo.versionCode++;
+        when(mPackageManager.queryIntentContentProviders(any(Intent.class), anyInt()))
+                .thenReturn(providers);
+
+        DatabaseIndexingManager manager =
+                spy(new DatabaseIndexingManager(mContext, PACKAGE_ONE));
+        doReturn(false).when(manager).addIndexablesFromRemoteProvider(PACKAGE_ONE,
+                AUTHORITY_ONE);
+
+        manager.performIndexing();
+
+        assertThat(IndexDatabaseHelper.getIndexedProviderVersions(mContext))
+                .doesNotContainKey(AUTHORITY_ONE);
+    }
+
+    @Test
+    public void testPerformIndexing_providerRemoved_clearsItsRows() {
+        skipFullIndex(getDummyResolveInfo());
+        when(mPackageManager.queryIntentContentProviders(any(Intent.class), anyInt()))
+                .thenReturn(new ArrayList<>());
+
+        DatabaseIndexingManager manager =
+                spy(new DatabaseIndexingManager(mContext, PACKAGE_ONE));
+
+        manager.performIndexing();
 
-        assertThat(IndexDatabaseHelper.isFullIndex(mContext, locale, buildNumber,
-                IndexDatabaseHelper.buildProviderVersionedNames(providers)))
-                .isTrue();
+        verify(manager).clearIndexablesFromPackage(PACKAGE_ONE);
+        assertThat(IndexDatabaseHelper.getIndexedProviderVersions(mContext)).isEmpty();
+    }
+
+    @Test
+    public void testClearPackagesFromDatabase_onlyRemovesRowsOfThatPackage() {
+        final SearchIndexableRaw rawOne = getFakeRaw();
+        rawOne.packageName = PACKAGE_ONE;
+        final SearchIndexableRaw rawTwo = getFakeRaw();
+        rawTwo.key = KEY_TWO;
+        rawTwo.packageName = "other.package";
+        mManager.indexOneSearchIndexableData(mDb, localeStr, rawOne, new HashMap<>());
+        mManager.indexOneSearchIndexableData(mDb, localeStr, rawTwo, new HashMap<>());
+
+        final Set<String> packages = new HashSet<>();
+        packages.add(PACKAGE_ONE);
+        mManager.clearPackagesFromDatabase(mDb, packages);
+
+        Cursor cursor = mDb.rawQuery("SELECT * FROM prefs_index", null);
+        assertThat(cursor.getCount()).isEqualTo(1);
+        cursor.moveToPosition(0);
+        assertThat(cursor.getString(17)).isEqualTo(KEY_TWO);
     }
 
     @Test
@@ -1017,6 +1091,97 @@ public class DatabaseIndexingManagerTest {
         assertThat(cursor.getString(2)).isEqualTo(TITLE_TWO);
     }
 
+    @Test
+    public void testUpdateDataInDatabase_sameKeysHash_packageSkipped() {
+        // Out of sync with the recorded keys on purpose, to show it is not rewritten.
+        insertSpecialCase(TITLE_ONE, true /* enabled */, KEY_ONE);
+        insertSpecialCase(TITLE_TWO, false /* enabled */, KEY_TWO);
+        final Map<String, Set<String>> niks = new ArrayMap<>();
+        niks.put(targetPackage, new HashSet<>(Arrays.asList(KEY_ONE)));
+        IndexDatabaseHelper.updateIndexedNonIndexableKeys(mContext, niks,
+                Collections.emptySet());
+
+        mManager.updateDataInDatabase(mDb, niks);
+
+        Cursor cursor = mDb.rawQuery("SELECT * FROM prefs_index WHERE enabled = 1", null);
+        assertThat(cursor.getCount()).isEqualTo(1);
+        cursor.moveToPosition(0);
+        assertThat(cursor.getString(2)).isEqualTo(TITLE_ONE);
+    }
+
+    @Test
+    public void testUpdateDataInDatabase_changedKeysHash_packageUpdated() {
+        insertSpecialCase(TITLE_ONE, false /* enabled */, KEY_ONE);
+        insertSpecialCase(TITLE_TWO, true /* enabled */, KEY_TWO);
+        final Map<String, Set<String>> previousNiks = new ArrayMap<>();
+        previousNiks.put(targetPackage, new HashSet<>(Arrays.asList(KEY_ONE)));
+        IndexDatabaseHelper.updateIndexedNonIndexableKeys(mContext, previousNiks,
+                Collections.emptySet());
+        final Map<String, Set<String>> niks = new ArrayMap<>();
+        niks.put(targetPackage, new HashSet<>(Arrays.asList(KEY_TWO)));
+
+        mManager.updateDataInDatabase(mDb, niks);
+
+        Cursor cursor = mDb.rawQuery("SELECT * FROM prefs_index WHERE enabled = 1", null);
+        assertThat(cursor.getCount()).isEqualTo(1);
+        cursor.moveToPosition(0);
+        assertThat(cursor.getString(2)).isEqualTo(TITLE_ONE);
+    }
+
+    @Test
+    public void testUpdateDataInDatabase_onlyRemovedKeysBecomeEnabled() {
+        insertSpecialCase(TITLE_ONE, false /* enabled */, KEY_ONE);
+        insertSpecialCase(TITLE_TWO, false /* enabled */, KEY_TWO);
+        insertSpecialCase(TITLE_THREE, false /* enabled */, null /* dataReferenceKey */);
+        final Map<String, Set<String>> niks = new ArrayMap<>();
+        niks.put(targetPackage, new HashSet<>(Arrays.asList(KEY_ONE)));
+
+        mManager.updateDataInDatabase(mDb, niks);
+
+        Cursor cursor = mDb.rawQuery("SELECT * FROM prefs_index WHERE enabled = 1", null);
+        assertThat(cursor.getCount()).isEqualTo(1);
+        cursor.moveToPosition(0);
+        assertThat(cursor.getString(2)).isEqualTo(TITLE_TWO);
+    }
+
+    @Test
+    public void testUpdateDatabase_recordsNonIndexableKeysHash() {
+        final Set<String> keys = new HashSet<>(Arrays.asList(KEY_ONE));
+        mManager.mDataToProcess.nonIndexableKeys.put(targetPackage, keys);
+
+        mManager.updateDatabase(false /* isFullIndex */, localeStr);
+
+        assertThat(IndexDatabaseHelper.getIndexedNonIndexableKeyHashes(mContext)
+                .get(targetPackage)).isEqualTo(IndexDatabaseHelper.hashNonIndexableKeys(keys));
+    }
+
+    @Test
+    public void testUpdateDatabase_keepsNonIndexableKeysOfOtherPackages() {
+        final Map<String, Set<String>> otherNiks = new ArrayMap<>();
+        otherNiks.put("other.package", new HashSet<>(Arrays.asList(KEY_TWO)));
+        IndexDatabaseHelper.updateIndexedNonIndexableKeys(mContext, otherNiks,
+                Collections.emptySet());
+        mManager.mDataToProcess.nonIndexableKeys.put(targetPackage,
+                new HashSet<>(Arrays.asList(KEY_ONE)));
+
+        mManager.updateDatabase(false /* isFullIndex */, localeStr);
+
+        assertThat(IndexDatabaseHelper.getIndexedNonIndexableKeyHashes(mContext))
+                .containsKey("other.package");
+    }
+
+    @Test
+    public void testHashNonIndexableKeys_independentOfOrder() {
+        assertThat(IndexDatabaseHelper.hashNonIndexableKeys(
+                new LinkedHashSet<>(Arrays.asList(KEY_ONE, KEY_TWO))))
+                .isEqualTo(IndexDatabaseHelper.hashNonIndexableKeys(
+                        new LinkedHashSet<>(Arrays.asList(KEY_TWO, KEY_ONE))));
+        assertThat(IndexDatabaseHelper.hashNonIndexableKeys(
+                new HashSet<>(Arrays.asList("ab", "c"))))
+                .isNotEqualTo(IndexDatabaseHelper.hashNonIndexableKeys(
+                        new HashSet<>(Arrays.asList("a", "bc"))));
+    }
+
     @Test
     public void testEmptyNonIndexableKeys_emptyDataKeyResources_addedToDatabase() {
         insertSpecialCase(TITLE_ONE, true /* enabled */, null /* dataReferenceKey */);
@@ -1059,8 +1224,12 @@ public class DatabaseIndexingManagerTest {
     private void skipFullIndex(List<ResolveInfo> providers) {
         IndexDatabaseHelper.setLocaleIndexed(mContext, Locale.getDefault().toString());
         IndexDatabaseHelper.setBuildIndexed(mContext, Build.FINGERPRINT);
-        IndexDatabaseHelper.setProvidersIndexed(mContext,
-                IndexDatabaseHelper.buildProviderVersionedNames(providers));
+        final Map<String, String> providerVersions = new ArrayMap<>();
+        for (ResolveInfo info : providers) {
+            providerVersions.put(info.providerInfo.authority,
+                    IndexDatabaseHelper.buildProviderVersion(info));
+        }
+        IndexDatabaseHelper.setProvidersIndexed(mContext, providerVersions);
     }
 
     private SearchIndexableRaw getFakeRaw() {
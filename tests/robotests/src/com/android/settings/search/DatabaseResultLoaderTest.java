@@ -226,6 +226,96 @@ public class DatabaseResultLoaderTest {
         assertThat(actualTitles).isEqualTo(expectedTitles);
     }
 
+    @Test
+    public void testMatchFirstWordOfTitle_hasPrimaryRank() {
+        insertSpecialCase("Photos");
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "pho", mSiteMapManager);
+        final SearchResult result = loader.loadInBackground().iterator().next();
+        assertThat(result.rank).isEqualTo(DatabaseResultLoader.BASE_RANKS[0]);
+    }
+
+    @Test
+    public void testMatchSecondWordOfTitle_hasSecondaryRank() {
+        insertSpecialCase("Apps Notifications");
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "not", mSiteMapManager);
+        final SearchResult result = loader.loadInBackground().iterator().next();
+        assertThat(result.rank).isEqualTo(DatabaseResultLoader.BASE_RANKS[1]);
+    }
+
+    @Test
+    public void testMatchSummaryOnly_hasSummaryRank() {
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "summary",
+                mSiteMapManager);
+        for (SearchResult result : loader.loadInBackground()) {
+            assertThat(result.rank).isEqualTo(DatabaseResultLoader.BASE_RANKS[2]);
+        }
+    }
+
+    @Test
+    public void testMatchKeywordsOnly_hasKeywordRank() {
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "keywords",
+                mSiteMapManager);
+        for (SearchResult result : loader.loadInBackground()) {
+            assertThat(result.rank).isEqualTo(DatabaseResultLoader.BASE_RANKS[3]);
+        }
+    }
+
+    @Test
+    public void testQueryWithFtsSyntax_isMatchedAsPhrase() {
+        insertSpecialCase("Photos");
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "\"pho*",
+                mSiteMapManager);
+        assertThat(loader.loadInBackground().size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueryWithOnlyFtsSyntax_noResults() {
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "\"*", mSiteMapManager);
+        assertThat(loader.loadInBackground()).isEmpty();
+    }
+
+    @Test
+    public void testBuildMatchText_stripsFtsSyntax() {
+        assertThat(DatabaseResultLoader.buildMatchText("\"wi*fi^\"")).isEqualTo("wi fi");
+    }
+
+    @Test
+    public void testInMemoryIndex_matchesSameResultsAsFts() {
+        insertSpecialCase("wi-fi calling");
+        insertSpecialCase("Apps & Notifications");
+        final InMemorySearchIndex index = InMemorySearchIndex.build(mDb,
+                InMemorySearchIndex.DEFAULT_MEMORY_BUDGET_BYTES);
+
+        for (String query : new String[] {"title", "summary", "keywords", "wifi", "not", "hot",
+                "wi fi", "wi cal", "fi call", "apps not", "notifications apps"}) {
+            final Set<? extends SearchResult> fromFts =
+                    new DatabaseResultLoader(mContext, query, mSiteMapManager).loadInBackground();
+            final Set<? extends SearchResult> fromIndex = new DatabaseResultLoader(mContext,
+                    query, mSiteMapManager, index).loadInBackground();
+            assertThat(fromIndex).isEqualTo(fromFts);
+        }
+    }
+
+    @Test
+    public void testInMemoryIndex_matchFirstWordOfTitle_hasPrimaryRank() {
+        insertSpecialCase("Photos");
+        final InMemorySearchIndex index = InMemorySearchIndex.build(mDb,
+                InMemorySearchIndex.DEFAULT_MEMORY_BUDGET_BYTES);
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "pho", mSiteMapManager,
+                index);
+        final SearchResult result = loader.loadInBackground().iterator().next();
+        assertThat(result.rank).isEqualTo(DatabaseResultLoader.BASE_RANKS[0]);
+    }
+
+    @Test
+    public void testInMemoryIndex_noMatch_noResults() {
+        final InMemorySearchIndex index = InMemorySearchIndex.build(mDb,
+                InMemorySearchIndex.DEFAULT_MEMORY_BUDGET_BYTES);
+        DatabaseResultLoader loader = new DatabaseResultLoader(mContext, "zzz", mSiteMapManager,
+                index);
+        assertThat(loader.loadInBackground()).isEmpty();
+    }
+
     private void insertSpecialCase(String specialCase) {
         String normalized = DatabaseIndexingUtils.normalizeHyphen(specialCase);
         normalized = DatabaseIndexingUtils.normalizeString(normalized);
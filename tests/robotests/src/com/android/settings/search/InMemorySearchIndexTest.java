@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.settings.TestConfig;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class InMemorySearchIndexTest {
+
+    private static final String[] EMPTY = new String[0];
+
+    private InMemorySearchIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new InMemorySearchIndex.Builder()
+                .addDocument(1, new String[] {"Apps & notifications"},
+                        new String[] {"Permissions, default apps"}, EMPTY)
+                .addDocument(2, new String[] {"Wi-Fi calling", "wifi calling"}, EMPTY,
+                        new String[] {"voip"})
+                .addDocument(3, new String[] {"Notification light"}, EMPTY, EMPTY)
+                .build(InMemorySearchIndex.DEFAULT_MEMORY_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testTokenize_splitsOnNonLetters() {
+        assertThat(InMemorySearchIndex.tokenize("Wi-Fi & Calling"))
+                .containsExactly("wi", "fi", "calling").inOrder();
+    }
+
+    @Test
+    public void testTokenize_nonAsciiKeptAndNotFolded() {
+        assertThat(InMemorySearchIndex.tokenize("\u00c4-Caf\u00e9 D\u00c9J\u00c0"))
+                .containsExactly("\u00c4", "caf\u00e9", "d\u00c9j\u00c0").inOrder();
+    }
+
+    @Test
+    public void testSearch_prefixOfFirstWord_hasFirstWordTier() {
+        final InMemorySearchIndex.Hits hits = mIndex.search("app", 10);
+
+        assertThat(hits.size()).isEqualTo(1);
+        assertThat(hits.docIds[0]).isEqualTo(1);
+        assertThat(hits.tiers[0]).isEqualTo(InMemorySearchIndex.TIER_TITLE_FIRST_WORD);
+    }
+
+    @Test
+    public void testSearch_bestTierFirst() {
+        final InMemorySearchIndex.Hits hits = mIndex.search("notif", 10);
+
+        assertThat(hits.size()).isEqualTo(2);
+        assertThat(hits.docIds[0]).isEqualTo(3);
+        assertThat(hits.tiers[0]).isEqualTo(InMemorySearchIndex.TIER_TITLE_FIRST_WORD);
+        assertThat(hits.docIds[1]).isEqualTo(1);
+        assertThat(hits.tiers[1]).isEqualTo(InMemorySearchIndex.TIER_TITLE);
+    }
+
+    @Test
+    public void testSearch_summaryAndKeywords_haveTheirTiers() {
+        assertThat(mIndex.search("perm", 10).tiers[0])
+                .isEqualTo(InMemorySearchIndex.TIER_SUMMARY);
+        assertThat(mIndex.search("voi", 10).tiers[0])
+                .isEqualTo(InMemorySearchIndex.TIER_KEYWORDS);
+    }
+
+    @Test
+    public void testSearch_multipleTokens_matchedAsPhrase() {
+        assertThat(mIndex.search("wi fi", 10).docIds).asList().containsExactly(2);
+        assertThat(mIndex.search("wifi cal", 10).docIds).asList().containsExactly(2);
+        assertThat(mIndex.search("default app", 10).docIds).asList().containsExactly(1);
+        assertThat(mIndex.search("wi light", 10).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSearch_tokensNotAdjacentOrInOrder_noMatch() {
+        assertThat(mIndex.search("wi cal", 10).size()).isEqualTo(0);
+        assertThat(mIndex.search("calling wi", 10).size()).isEqualTo(0);
+        assertThat(mIndex.search("apps default", 10).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSearch_phraseInsideTitle_hasTitleTier() {
+        final InMemorySearchIndex.Hits hits = mIndex.search("fi cal", 10);
+
+        assertThat(hits.docIds).asList().containsExactly(2);
+        assertThat(hits.tiers[0]).isEqualTo(InMemorySearchIndex.TIER_TITLE);
+        assertThat(mIndex.search("wi fi", 10).tiers[0])
+                .isEqualTo(InMemorySearchIndex.TIER_TITLE_FIRST_WORD);
+    }
+
+    @Test
+    public void testSearch_nonPrefixSubstring_noMatch() {
+        assertThat(mIndex.search("otif", 10).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSearch_respectsLimit() {
+        assertThat(mIndex.search("notif", 1).docIds).asList().containsExactly(3);
+    }
+
+    @Test
+    public void testBuild_overBudget_returnsNull() {
+        final InMemorySearchIndex index = new InMemorySearchIndex.Builder()
+                .addDocument(1, new String[] {"Apps & notifications"}, EMPTY, EMPTY)
+                .build(1 /* memoryBudgetBytes */);
+
+        assertThat(index).isNull();
+    }
+}
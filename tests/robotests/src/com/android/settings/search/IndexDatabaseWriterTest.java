@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.settings.TestConfig;
+import com.android.settings.search.DatabaseIndexingManager.DatabaseRow;
+import com.android.settings.testutils.DatabaseTestUtils;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class IndexDatabaseWriterTest {
+
+    private static final String CLASS_NAME = "com.android.settings.Parent";
+    private static final String CHILD_CLASS_NAME = "com.android.settings.Child";
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDb = IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+    }
+
+    @After
+    public void cleanUp() {
+        DatabaseTestUtils.clearDb(mContext);
+    }
+
+    @Test
+    public void testWrite_insertsRowsAndSiteMapPair() {
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(mDb)) {
+            writer.write(Arrays.asList(buildRow("title one", "key one", CHILD_CLASS_NAME),
+                    buildRow("title two", "key two", null /* childClassName */)));
+        }
+
+        Cursor cursor = mDb.rawQuery("SELECT * FROM prefs_index", null);
+        assertThat(cursor.getCount()).isEqualTo(2);
+        cursor = mDb.rawQuery("SELECT * FROM site_map", null);
+        assertThat(cursor.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testWrite_sameKey_replacesRow() {
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(mDb)) {
+            writer.write(buildRow("old title", "key", null /* childClassName */));
+            writer.write(buildRow("new title", "key", null /* childClassName */));
+        }
+
+        Cursor cursor = mDb.rawQuery("SELECT data_title FROM prefs_index", null);
+        assertThat(cursor.getCount()).isEqualTo(1);
+        cursor.moveToFirst();
+        assertThat(cursor.getString(0)).isEqualTo("new title");
+    }
+
+    @Test
+    public void testWrite_emptyTitle_nothingInserted() {
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(mDb)) {
+            writer.write(buildRow("", "key", CHILD_CLASS_NAME));
+        }
+
+        Cursor cursor = mDb.rawQuery("SELECT * FROM prefs_index", null);
+        assertThat(cursor.getCount()).isEqualTo(0);
+    }
+
+    private DatabaseRow buildRow(String title, String key, String childClassName) {
+        return new DatabaseRow.Builder()
+                .setLocale("en_US")
+                .setUpdatedTitle(title)
+                .setNormalizedTitle(title)
+                .setClassName(CLASS_NAME)
+                .setChildClassName(childClassName)
+                .setScreenTitle("screen title")
+                .setEnabled(true)
+                .setKey(key)
+                .build(mContext);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.UserInfo;
+import android.os.UserManager;
+
+import com.android.settings.TestConfig;
+import com.android.settings.applications.PackageManagerWrapper;
+import com.android.settings.testutils.ApplicationTestUtils;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class InstalledAppIndexTest {
+
+    private static final int USER_ID = 0;
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Context mContext;
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private PackageManagerWrapper mPackageManagerWrapper;
+    @Mock
+    private UserManager mUserManager;
+
+    private InstalledAppIndex mIndex;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        final List<UserInfo> infos = new ArrayList<>();
+        infos.add(new UserInfo(USER_ID, "user 1", 0));
+        when(mUserManager.getProfiles(anyInt())).thenReturn(infos);
+        when(mContext.getSystemService(Context.USER_SERVICE)).thenReturn(mUserManager);
+        when(mPackageManagerWrapper.getInstalledApplicationsAsUser(anyInt(), anyInt()))
+                .thenReturn(Arrays.asList(
+                        ApplicationTestUtils.buildInfo(0 /* uid */, "app1", 0 /* flags */,
+                                0 /* targetSdkVersion */),
+                        ApplicationTestUtils.buildInfo(0 /* uid */, "app2", 0 /* flags */,
+                                0 /* targetSdkVersion */)));
+
+        mIndex = new InstalledAppIndex(mContext, mPackageManagerWrapper, false /* persistent */);
+    }
+
+    @Test
+    public void getEntries_loadsOnce() {
+        assertThat(getPackageNames()).containsExactly("app1", "app2");
+        assertThat(getPackageNames()).containsExactly("app1", "app2");
+
+        verify(mPackageManagerWrapper, times(1))
+                .getInstalledApplicationsAsUser(anyInt(), eq(USER_ID));
+    }
+
+    @Test
+    public void updatePackage_installed_addsEntry() throws Exception {
+        mIndex.getEntries();
+        when(mPackageManagerWrapper.getApplicationInfoAsUser(eq("app3"), anyInt(), eq(USER_ID)))
+                .thenReturn(ApplicationTestUtils.buildInfo(0 /* uid */, "app3", 0 /* flags */,
+                        0 /* targetSdkVersion */));
+
+        mIndex.updatePackage("app3", USER_ID);
+
+        assertThat(getPackageNames()).containsExactly("app1", "app2", "app3");
+    }
+
+    @Test
+    public void updatePackage_removed_dropsEntry() throws Exception {
+        mIndex.getEntries();
+        when(mPackageManagerWrapper.getApplicationInfoAsUser(eq("app1"), anyInt(), eq(USER_ID)))
+                .thenThrow(new PackageManager.NameNotFoundException());
+
+        mIndex.updatePackage("app1", USER_ID);
+
+        assertThat(getPackageNames()).containsExactly("app2");
+    }
+
+    @Test
+    public void updatePackage_otherUser_keepsEntries() throws Exception {
+        mIndex.getEntries();
+
+        mIndex.updatePackage("app1", 10 /* userId */);
+
+        assertThat(getPackageNames()).containsExactly("app1", "app2");
+    }
+
+    @Test
+    public void findEntries_matchesWordPrefixes() {
+        when(mPackageManagerWrapper.getInstalledApplicationsAsUser(anyInt(), anyInt()))
+                .thenReturn(Arrays.asList(
+                        ApplicationTestUtils.buildInfo(0 /* uid */, "Bananas & Apples",
+                                0 /* flags */, 0 /* targetSdkVersion */),
+                        ApplicationTestUtils.buildInfo(0 /* uid */, "Apple pie", 0 /* flags */,
+                                0 /* targetSdkVersion */),
+                        ApplicationTestUtils.buildInfo(0 /* uid */, "Pineapple", 0 /* flags */,
+                                0 /* targetSdkVersion */)));
+
+        assertThat(getPackageNames(mIndex.findEntries("app")))
+                .containsExactly("Bananas & Apples", "Apple pie").inOrder();
+        assertThat(getPackageNames(mIndex.findEntries("APPLE P"))).containsExactly("Apple pie");
+        assertThat(getPackageNames(mIndex.findEntries("nan"))).isEmpty();
+    }
+
+    private List<String> getPackageNames() {
+        return getPackageNames(mIndex.getEntries());
+    }
+
+    private static List<String> getPackageNames(List<InstalledAppIndex.AppEntry> entries) {
+        final List<String> packageNames = new ArrayList<>();
+        for (InstalledAppIndex.AppEntry entry : entries) {
+            packageNames.add(entry.packageName);
+        }
+        return packageNames;
+    }
+}
@@ -76,4 +76,9 @@ public class SearchFeatureProviderImplTest {
         assertThat(loader.mQuery).isEqualTo(query.trim());
     }
 
+    @Test
+    public void isSmartSearchRankingEnabled_isTrue() {
+        assertThat(mProvider.isSmartSearchRankingEnabled(mActivity)).isTrue();
+    }
+
 }
@@ -19,6 +19,7 @@ package com.android.settings.search;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -404,6 +405,27 @@ public class SearchResultsAdapterTest {
         assertThat(results.get(5).title).isEqualTo(TITLES[5]); // appCharlie
     }
 
+    @Test
+    public void testDoSmartRanking_equalScores_shouldKeepAllResultsInStaticOrder() {
+        when(mSearchFeatureProvider.isSmartSearchRankingEnabled(any())).thenReturn(true);
+
+        List<SearchResult> dbResults = getDummyDbResults();
+        mAdapter.initializeSearch("");
+        mAdapter.addSearchResults(
+                new HashSet<>(dbResults), DatabaseResultLoader.class.getName());
+        mAdapter.notifyResultsLoaded();
+        List<Pair<String, Float>> rankingScores = new ArrayList<>();
+        for (SearchResult result : dbResults) {
+            rankingScores.add(new Pair<>(Integer.toString(result.stableId), 1.0f));
+        }
+        mAdapter.onRankingScoresAvailable(rankingScores);
+        List<SearchResult> results = mAdapter.doAsyncRanking();
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).title).isEqualTo(TITLES[0]); // alpha
+        assertThat(results.get(1).title).isEqualTo(TITLES[1]); // bravo
+        assertThat(results.get(2).title).isEqualTo(TITLES[2]); // charlie
+    }
+
     @Test
     public void testGetUnsortedLoadedResults () {
         List<SearchResult> appResults = getDummyAppResults();
@@ -506,6 +528,99 @@ public class SearchResultsAdapterTest {
         }
     }
 
+    @Test
+    public void testPartialResults_postedBeforeAllLoadersFinish() {
+        mAdapter.initializeSearch("");
+        mAdapter.addSearchResults(new HashSet<>(getDummyDbResults()),
+                DatabaseResultLoader.class.getName());
+        mAdapter.notifyPartialResultsLoaded();
+        ShadowLooper.runUiThreadTasks();
+
+        List<SearchResult> results = mAdapter.getSearchResults();
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).title).isEqualTo(TITLES[0]); // alpha
+        verify(mFragment).onSearchResultsDisplayed(3);
+    }
+
+    @Test
+    public void testPartialResults_thenAllLoaded_finalResultsPosted() {
+        mAdapter.initializeSearch("");
+        mAdapter.addSearchResults(new HashSet<>(getDummyDbResults()),
+                DatabaseResultLoader.class.getName());
+        mAdapter.notifyPartialResultsLoaded();
+        ShadowLooper.runUiThreadTasks();
+        mAdapter.addSearchResults(new HashSet<>(getDummyAppResults()),
+                InstalledAppResultLoader.class.getName());
+        mAdapter.notifyResultsLoaded();
+
+        List<SearchResult> results = mAdapter.getSearchResults();
+        assertThat(results).hasSize(6);
+        assertThat(results.get(1).title).isEqualTo(TITLES[3]); // appAlpha
+        verify(mFragment).onSearchResultsDisplayed(6);
+    }
+
+    @Test
+    public void testPartialResults_newQuery_staleResultsNotPosted() {
+        mAdapter.initializeSearch("");
+        ShadowLooper.pauseMainLooper();
+        mAdapter.addSearchResults(new HashSet<>(getDummyDbResults()),
+                DatabaseResultLoader.class.getName());
+        mAdapter.notifyPartialResultsLoaded();
+        mAdapter.initializeSearch("new query");
+        ShadowLooper.unPauseMainLooper();
+
+        assertThat(mAdapter.getSearchResults()).isEmpty();
+        verify(mFragment, never()).onSearchResultsDisplayed(anyInt());
+    }
+
+    @Test
+    public void testPartialResults_smartRankingPending_postedInStaticOrder() {
+        when(mSearchFeatureProvider.isSmartSearchRankingEnabled(any())).thenReturn(true);
+        mAdapter.initializeSearch("");
+        mAdapter.addSearchResults(new HashSet<>(getDummyDbResults()),
+                DatabaseResultLoader.class.getName());
+        mAdapter.notifyPartialResultsLoaded();
+        ShadowLooper.runUiThreadTasks();
+
+        List<SearchResult> results = mAdapter.getSearchResults();
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).title).isEqualTo(TITLES[0]); // alpha
+    }
+
+    @Test
+    public void testPartialResults_rankingScoresAvailable_partialResultsReranked() {
+        when(mSearchFeatureProvider.isSmartSearchRankingEnabled(any())).thenReturn(true);
+        mAdapter.initializeSearch("");
+        mAdapter.addSearchResults(new HashSet<>(getDummyDbResults()),
+                DatabaseResultLoader.class.getName());
+        mAdapter.notifyPartialResultsLoaded();
+        ShadowLooper.runUiThreadTasks();
+
+        mAdapter.onRankingScoresAvailable(getDummyRankingScores());
+        ShadowLooper.runUiThreadTasks();
+
+        List<SearchResult> results = mAdapter.getSearchResults();
+        assertThat(results.get(0).title).isEqualTo(TITLES[2]); // charlie
+        assertThat(results.get(1).title).isEqualTo(TITLES[0]); // alpha
+        assertThat(results.get(2).title).isEqualTo(TITLES[1]); // bravo
+        assertThat(mAdapter.getAsyncRankingState()).isEqualTo(SearchResultsAdapter.SUCCEEDED);
+    }
+
+    @Test
+    public void testGetTopLoadedResults_keepsBestInStaticRankingOrder() {
+        mAdapter.addSearchResults(new HashSet<>(getDummyAppResults()),
+                InstalledAppResultLoader.class.getName());
+        mAdapter.addSearchResults(new HashSet<>(getDummyDbResults()),
+                DatabaseResultLoader.class.getName());
+
+        List<SearchResult> results = mAdapter.getTopLoadedResults(3);
+
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).title).isEqualTo(TITLES[0]); // alpha
+        assertThat(results.get(1).title).isEqualTo(TITLES[3]); // appAlpha
+        assertThat(results.get(2).title).isEqualTo(TITLES[4]); // appBravo
+    }
+
     private List<SearchResult> getDummyDbResults() {
         List<SearchResult> results = new ArrayList<>();
         ResultPayload payload = new ResultPayload(new Intent());
@@ -19,6 +19,7 @@ package com.android.settings.search;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 
@@ -131,6 +132,140 @@ public class SiteMapManagerTest {
         assertThat(breadcrumb.get(0)).isEqualTo(title);
     }
 
+    @Test
+    public void updateDynamicPairs_shouldStoreIaPairs() {
+        final String iaTitle = "ia_title";
+        setUpIaCategory(iaTitle, TITLE_PREFIX + STATIC_DB_DEPTH);
+
+        SiteMapManager.updateDynamicPairs(mContext, mDb, false /* indexChanged */);
+
+        try (Cursor cursor = queryDynamicPairs()) {
+            assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            assertThat(cursor.getString(1)).isEqualTo(iaTitle);
+            assertThat(cursor.getString(2)).isEqualTo(CLASS_PREFIX + STATIC_DB_DEPTH);
+        }
+    }
+
+    @Test
+    public void updateDynamicPairs_sameClassesOtherTitle_shouldStoreBothPairs() {
+        setUpIaCategory("ia_title", TITLE_PREFIX + STATIC_DB_DEPTH);
+        final DashboardCategory category =
+                mFeatureFactory.dashboardFeatureProvider.getAllCategories().get(0);
+        final Tile otherTile = new Tile();
+        otherTile.title = "other_title";
+        otherTile.metaData = category.tiles.get(0).metaData;
+        category.tiles.add(otherTile);
+        // Same pair twice, only stored once.
+        category.tiles.add(category.tiles.get(0));
+
+        SiteMapManager.updateDynamicPairs(mContext, mDb, false /* indexChanged */);
+
+        try (Cursor cursor = queryDynamicPairs()) {
+            assertThat(cursor.getCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void updateDynamicPairs_sameCategories_shouldKeepStoredPairs() {
+        setUpIaCategory("ia_title", TITLE_PREFIX + STATIC_DB_DEPTH);
+        SiteMapManager.updateDynamicPairs(mContext, mDb, false /* indexChanged */);
+        setUpIaCategory("renamed_ia_title", TITLE_PREFIX + STATIC_DB_DEPTH);
+
+        SiteMapManager.updateDynamicPairs(mContext, mDb, false /* indexChanged */);
+        try (Cursor cursor = queryDynamicPairs()) {
+            cursor.moveToFirst();
+            assertThat(cursor.getString(1)).isEqualTo("ia_title");
+        }
+
+        SiteMapManager.updateDynamicPairs(mContext, mDb, true /* indexChanged */);
+        try (Cursor cursor = queryDynamicPairs()) {
+            cursor.moveToFirst();
+            assertThat(cursor.getString(1)).isEqualTo("renamed_ia_title");
+        }
+    }
+
+    @Test
+    public void buildBreadCrumb_fromDashboardProvider_shouldNotStoreIaPairs() {
+        setUpIaCategory("ia_title", TITLE_PREFIX + STATIC_DB_DEPTH);
+
+        final List<String> breadcrumb = mSiteMapManager.buildBreadCrumb(mContext,
+                CLASS_PREFIX + 0, TITLE_PREFIX + 0);
+
+        assertThat(breadcrumb.size()).isEqualTo(STATIC_DB_DEPTH + 2);
+        try (Cursor cursor = queryDynamicPairs()) {
+            assertThat(cursor.getCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void onCategoriesChanged_tileChanged_shouldRebuildBreadCrumb() {
+        setUpIaCategory("ia_title", TITLE_PREFIX + STATIC_DB_DEPTH);
+        assertThat(mSiteMapManager.buildBreadCrumb(mContext,
+                CLASS_PREFIX + 0, TITLE_PREFIX + 0).size()).isEqualTo(STATIC_DB_DEPTH + 2);
+
+        // The tile is renamed, so it no longer links up with the static site map.
+        setUpIaCategory("ia_title", "renamed");
+        mSiteMapManager.onCategoriesChanged(mContext);
+
+        assertThat(mSiteMapManager.buildBreadCrumb(mContext,
+                CLASS_PREFIX + 0, TITLE_PREFIX + 0).size()).isEqualTo(STATIC_DB_DEPTH + 1);
+    }
+
+    @Test
+    public void onCategoriesChanged_sameCategories_shouldKeepBreadCrumb() {
+        setUpIaCategory("ia_title", TITLE_PREFIX + STATIC_DB_DEPTH);
+        mSiteMapManager.buildBreadCrumb(mContext, CLASS_PREFIX + 0, TITLE_PREFIX + 0);
+
+        mSiteMapManager.onCategoriesChanged(mContext);
+        // Changes to the site map table are not picked up while the site map is valid.
+        mDb.delete(IndexDatabaseHelper.Tables.TABLE_SITE_MAP, null, null);
+
+        assertThat(mSiteMapManager.buildBreadCrumb(mContext,
+                CLASS_PREFIX + 0, TITLE_PREFIX + 0).size()).isEqualTo(STATIC_DB_DEPTH + 2);
+    }
+
+    @Test
+    public void buildBreadCrumb_cycleInSiteMap_shouldTerminate() {
+        final ContentValues siteMapPair = new ContentValues();
+        siteMapPair.put(SiteMapColumns.DOCID, STATIC_DB_DEPTH);
+        siteMapPair.put(SiteMapColumns.PARENT_CLASS, CLASS_PREFIX + 0);
+        siteMapPair.put(SiteMapColumns.PARENT_TITLE, TITLE_PREFIX + 0);
+        siteMapPair.put(SiteMapColumns.CHILD_CLASS, CLASS_PREFIX + STATIC_DB_DEPTH);
+        siteMapPair.put(SiteMapColumns.CHILD_TITLE, TITLE_PREFIX + STATIC_DB_DEPTH);
+        mDb.replaceOrThrow(IndexDatabaseHelper.Tables.TABLE_SITE_MAP, null, siteMapPair);
+
+        final List<String> breadcrumb = mSiteMapManager.buildBreadCrumb(mContext,
+                CLASS_PREFIX + 0, TITLE_PREFIX + 0);
+
+        assertThat(breadcrumb.size()).isAtMost(2 * STATIC_DB_DEPTH + 1);
+    }
+
+    private void setUpIaCategory(String parentTitle, String tileTitle) {
+        ContentValues index = new ContentValues();
+        index.put(IndexDatabaseHelper.IndexColumns.CLASS_NAME,
+                SystemDashboardFragment.class.getName());
+        index.put(IndexDatabaseHelper.IndexColumns.SCREEN_TITLE, parentTitle);
+        mDb.replaceOrThrow(IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX, null, index);
+
+        final DashboardCategory category = new DashboardCategory();
+        category.key = CategoryKey.CATEGORY_SYSTEM;
+        category.tiles.add(new Tile());
+        category.tiles.get(0).title = tileTitle;
+        category.tiles.get(0).metaData = new Bundle();
+        category.tiles.get(0).metaData.putString(SettingsActivity.META_DATA_KEY_FRAGMENT_CLASS,
+                CLASS_PREFIX + STATIC_DB_DEPTH);
+        when(mFeatureFactory.dashboardFeatureProvider.getAllCategories())
+                .thenReturn(Arrays.asList(category));
+    }
+
+    private Cursor queryDynamicPairs() {
+        return mDb.query(IndexDatabaseHelper.Tables.TABLE_SITE_MAP,
+                SiteMapManager.SITE_MAP_COLUMNS, SiteMapColumns.DOCID + " >= ?",
+                new String[] {String.valueOf(SiteMapManager.DYNAMIC_PAIR_DOCID_OFFSET)},
+                null, null, null);
+    }
+
     private void buildDb() {
         for (int i = 0; i < STATIC_DB_DEPTH; i++) {
             final ContentValues siteMapPair = new ContentValues();
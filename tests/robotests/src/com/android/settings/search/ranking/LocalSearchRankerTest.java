@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Pair;
+
+import com.android.settings.TestConfig;
+import com.android.settings.search.DatabaseIndexingManager.DatabaseRow;
+import com.android.settings.search.IndexDatabaseHelper;
+import com.android.settings.search.IndexDatabaseWriter;
+import com.android.settings.testutils.DatabaseTestUtils;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class LocalSearchRankerTest {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private Context mContext;
+    private LocalSearchRanker mRanker;
+    private int mBatteryDocId;
+    private int mBatterySaverDocId;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mRanker = new LocalSearchRanker(mContext, SearchRankingModel.getDefault(),
+                Runnable::run);
+        mBatteryDocId = insertRow("Battery");
+        mBatterySaverDocId = insertRow("Battery saver");
+    }
+
+    @After
+    public void cleanUp() {
+        DatabaseTestUtils.clearDb(mContext);
+    }
+
+    @Test
+    public void testComputeScores_scoresEveryMatch() {
+        final List<Pair<String, Float>> scores = mRanker.computeScores("batt",
+                null /* searchIndex */, NO_DEADLINE, new CancellationSignal());
+
+        assertThat(scores).hasSize(2);
+    }
+
+    @Test
+    public void testComputeScores_clickedResultFirst() {
+        mRanker.recordClick("batt", mBatterySaverDocId);
+
+        final List<Pair<String, Float>> scores = mRanker.computeScores("batt",
+                null /* searchIndex */, NO_DEADLINE, new CancellationSignal());
+
+        assertThat(scores.get(0).first).isEqualTo(Integer.toString(mBatterySaverDocId));
+        assertThat(scores.get(1).first).isEqualTo(Integer.toString(mBatteryDocId));
+    }
+
+    @Test
+    public void testComputeScores_clicksArePersisted() {
+        mRanker.recordClick("batt", mBatterySaverDocId);
+
+        final LocalSearchRanker ranker = new LocalSearchRanker(mContext,
+                SearchRankingModel.getDefault(), Runnable::run);
+        final List<Pair<String, Float>> scores = ranker.computeScores("batt",
+                null /* searchIndex */, NO_DEADLINE, new CancellationSignal());
+
+        assertThat(scores.get(0).first).isEqualTo(Integer.toString(mBatterySaverDocId));
+    }
+
+    @Test
+    public void testComputeScores_pastDeadline_returnsNull() {
+        assertThat(mRanker.computeScores("batt", null /* searchIndex */,
+                SystemClock.elapsedRealtime() - 1, new CancellationSignal())).isNull();
+    }
+
+    @Test
+    public void testRank_cancelled_doesNotCallBack() {
+        final SearchResultsRankerCallback callback = mock(SearchResultsRankerCallback.class);
+        mRanker = new LocalSearchRanker(mContext, SearchRankingModel.getDefault(),
+                runnable -> {
+                    // Cancelled before the background work gets to run.
+                    mRanker.cancel();
+                    runnable.run();
+                });
+
+        mRanker.rank("batt", null /* searchIndex */, 1000L /* timeoutMs */, callback);
+
+        verify(callback, never()).onRankingScoresAvailable(anyList());
+        verify(callback, never()).onRankingFailed();
+    }
+
+    private int insertRow(String title) {
+        final DatabaseRow row = new DatabaseRow.Builder()
+                .setLocale("en_US")
+                .setUpdatedTitle(title)
+                .setNormalizedTitle(title)
+                .setClassName("com.android.settings.Battery")
+                .setScreenTitle("Battery")
+                .setKey(title)
+                .setEnabled(true)
+                .build(mContext);
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(
+                IndexDatabaseHelper.getInstance(mContext).getWritableDatabase())) {
+            writer.write(row);
+        }
+        return row.getDocId();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.settings.TestConfig;
+import com.android.settings.search.DatabaseResultLoader;
+import com.android.settings.search.ranking.SearchRankingEvaluator.Candidate;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class SearchRankingEvaluatorTest {
+
+    private static final List<Candidate> CANDIDATES = Arrays.asList(
+            new Candidate(1, "Battery", DatabaseResultLoader.BASE_RANKS[0]),
+            new Candidate(2, "Battery saver", DatabaseResultLoader.BASE_RANKS[0]));
+
+    @Test
+    public void testEvaluate_repeatedClicks_modelLearnsFromPastClicksOnly() {
+        final List<ResultClickLog.Click> clicks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clicks.add(new ResultClickLog.Click("bat", 2 /* docId */, 1000L * i));
+        }
+
+        final SearchRankingEvaluator.Report report = SearchRankingEvaluator.evaluate(clicks,
+                query -> CANDIDATES, SearchRankingModel.getDefault());
+
+        assertThat(report.sessionCount).isEqualTo(4);
+        // Static ranking always shows the clicked result second.
+        assertThat(report.staticMeanReciprocalRank).isWithin(1e-9).of(0.5);
+        assertThat(report.staticTopHitRate).isWithin(1e-9).of(0);
+        // The model has no history for the first click, then ranks it first.
+        assertThat(report.modelMeanReciprocalRank).isWithin(1e-9).of((0.5 + 3) / 4);
+        assertThat(report.modelTopHitRate).isWithin(1e-9).of(0.75);
+    }
+
+    @Test
+    public void testEvaluate_clickNotMatched_isSkipped() {
+        final List<ResultClickLog.Click> clicks = Collections.singletonList(
+                new ResultClickLog.Click("bat", 3 /* docId */, 0L));
+
+        final SearchRankingEvaluator.Report report = SearchRankingEvaluator.evaluate(clicks,
+                query -> CANDIDATES, SearchRankingModel.getDefault());
+
+        assertThat(report.sessionCount).isEqualTo(0);
+    }
+}
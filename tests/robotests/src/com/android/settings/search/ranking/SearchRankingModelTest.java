@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.settings.TestConfig;
+import com.android.settings.search.DatabaseResultLoader;
+import com.android.settings.testutils.SettingsRobolectricTestRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+@RunWith(SettingsRobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class SearchRankingModelTest {
+
+    private static final long NOW = 1000000000000L;
+
+    private final float[] mFeatures = new float[SearchRankingModel.FEATURE_COUNT];
+
+    @Test
+    public void testGetTitleMatchPosition() {
+        assertThat(SearchRankingModel.getTitleMatchPosition("Wi-Fi calling", "wi")).isEqualTo(0);
+        assertThat(SearchRankingModel.getTitleMatchPosition("Wi-Fi calling", "cal"))
+                .isEqualTo(2);
+        assertThat(SearchRankingModel.getTitleMatchPosition("Wi-Fi calling", "all"))
+                .isEqualTo(-1);
+        assertThat(SearchRankingModel.getTitleMatchPosition(null, "wi")).isEqualTo(-1);
+    }
+
+    @Test
+    public void testExtractFeatures_noClicks() {
+        SearchRankingModel.extractFeatures(mFeatures, "cal", "Wi-Fi calling",
+                DatabaseResultLoader.BASE_RANKS[1], 0 /* clickCount */, 0 /* lastClickTime */,
+                NOW);
+
+        assertThat(mFeatures[SearchRankingModel.FEATURE_BIAS]).isEqualTo(1f);
+        assertThat(mFeatures[SearchRankingModel.FEATURE_TIER]).isWithin(1e-6f).of(1f / 3);
+        assertThat(mFeatures[SearchRankingModel.FEATURE_TITLE_MATCH_POSITION])
+                .isWithin(1e-6f).of(1f / 3);
+        assertThat(mFeatures[SearchRankingModel.FEATURE_CLICKS]).isEqualTo(0f);
+        assertThat(mFeatures[SearchRankingModel.FEATURE_RECENCY]).isEqualTo(0f);
+    }
+
+    @Test
+    public void testExtractFeatures_recencyHalvesEveryHalfLife() {
+        SearchRankingModel.extractFeatures(mFeatures, "wi", "Wi-Fi",
+                DatabaseResultLoader.BASE_RANKS[0], 3 /* clickCount */,
+                NOW - SearchRankingModel.RECENCY_HALF_LIFE_MS, NOW);
+
+        assertThat(mFeatures[SearchRankingModel.FEATURE_CLICKS])
+                .isWithin(1e-6f).of((float) Math.log(4));
+        assertThat(mFeatures[SearchRankingModel.FEATURE_RECENCY]).isWithin(1e-6f).of(0.5f);
+    }
+
+    @Test
+    public void testScore_clickedResultOutranksBetterTier() {
+        final SearchRankingModel model = SearchRankingModel.getDefault();
+
+        SearchRankingModel.extractFeatures(mFeatures, "bat", "Battery",
+                DatabaseResultLoader.BASE_RANKS[0], 0 /* clickCount */, 0 /* lastClickTime */,
+                NOW);
+        final float unclicked = model.score(mFeatures);
+        SearchRankingModel.extractFeatures(mFeatures, "bat", "Battery saver",
+                DatabaseResultLoader.BASE_RANKS[1], 5 /* clickCount */, NOW, NOW);
+        final float clicked = model.score(mFeatures);
+
+        assertThat(clicked).isGreaterThan(unclicked);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_wrongWeightCount_throws() {
+        new SearchRankingModel(new float[SearchRankingModel.FEATURE_COUNT + 1]);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.settings.applications;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.settings.TetherService;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the cost of a refresh of the running services for growing numbers of processes, when
+ * nothing changed since the last refresh and when one service changed. Half of the processes
+ * host a service, the others are cached.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RunningStateBenchmark {
+    private static final String TAG = "RunningStateBenchmark";
+
+    private static final int[] PROCESS_COUNTS = {20, 50, 100, 200};
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int ITERATIONS = 100;
+    // Far above the pids in use, so no memory is retrieved for them.
+    private static final int FIRST_PID = 1000000;
+
+    @Test
+    public void benchmarkUpdate() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final RunningState state = RunningState.getInstance(context);
+        final ActivityManager am = mock(ActivityManager.class);
+        final List<ActivityManager.RunningServiceInfo> services = new ArrayList<>();
+        final List<ActivityManager.RunningAppProcessInfo> processes = new ArrayList<>();
+        // The state removes the services it doesn't show from the list it gets.
+        when(am.getRunningServices(anyInt())).thenAnswer(i -> new ArrayList<>(services));
+        when(am.getRunningAppProcesses()).thenAnswer(i -> new ArrayList<>(processes));
+
+        try {
+            for (int count : PROCESS_COUNTS) {
+                fillProcesses(context, count, services, processes);
+
+                for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                    state.update(context, am);
+                }
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    state.update(context, am);
+                }
+                final long unchangedTime = (SystemClock.elapsedRealtimeNanos() - start)
+                        / ITERATIONS;
+
+                final ActivityManager.RunningServiceInfo changing = services.get(0);
+                start = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    changing.activeSince++;
+                    state.update(context, am);
+                }
+                final long changedTime = (SystemClock.elapsedRealtimeNanos() - start)
+                        / ITERATIONS;
+
+                assertEquals(count / 2, state.mServiceProcessesByPid.size());
+                Log.i(TAG, "Refreshing " + count + " processes: " + unchangedTime / 1000
+                        + "us unchanged, " + changedTime / 1000 + "us with a changed service");
+            }
+        } finally {
+            // Go back to the processes of the device.
+            state.update(context, context.getSystemService(ActivityManager.class));
+        }
+    }
+
+    private static void fillProcesses(Context context, int count,
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        services.clear();
+        processes.clear();
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            final String processName = context.getPackageName() + ":benchmark" + i;
+            final ActivityManager.RunningAppProcessInfo process =
+                    new ActivityManager.RunningAppProcessInfo(processName, FIRST_PID + i,
+                            new String[] {context.getPackageName()});
+            process.uid = Process.myUid();
+            process.lru = i;
+            if (i % 2 == 0) {
+                process.importance = ActivityManager.RunningAppProcessInfo.IMPORTANCE_SERVICE;
+                final ActivityManager.RunningServiceInfo service =
+                        new ActivityManager.RunningServiceInfo();
+                service.service = new ComponentName(context, TetherService.class);
+                service.pid = process.pid;
+                service.uid = process.uid;
+                service.process = processName;
+                service.started = true;
+                service.activeSince = now - i * 1000;
+                services.add(service);
+            } else {
+                process.importance = ActivityManager.RunningAppProcessInfo.IMPORTANCE_CACHED;
+            }
+            processes.add(process);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.settings.dashboard.suggestions;
+
+import static junit.framework.Assert.assertEquals;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.settingslib.drawer.Tile;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the cost of ranking 50 suggestions, against featurizing them into maps as the ranker
+ * used to. Only reads the suggestion events of the device.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SuggestionRankerBenchmark {
+    private static final String TAG = "SuggestionRankerBenchmark";
+
+    private static final int SUGGESTION_COUNT = 50;
+    private static final int WARMUP_ITERATIONS = 100;
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void benchmarkRankSuggestions() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SuggestionFeaturizer featurizer =
+                new SuggestionFeaturizer(new EventStore(context));
+        final SuggestionRanker ranker =
+                new SuggestionRanker(featurizer, SuggestionRankingModel.getDefault());
+        final List<String> suggestionIds = new ArrayList<>(SUGGESTION_COUNT);
+        final List<Tile> suggestions = new ArrayList<>(SUGGESTION_COUNT);
+        for (int i = 0; i < SUGGESTION_COUNT; i++) {
+            suggestionIds.add("com.android.settings.benchmark" + i);
+            suggestions.add(new Tile());
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            ranker.rankSuggestions(suggestions, suggestionIds);
+            featurizer.featurize(suggestionIds);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ranker.rankSuggestions(suggestions, suggestionIds);
+        }
+        final long rankTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            featurizer.featurize(suggestionIds);
+        }
+        final long mapTime = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        assertEquals(SUGGESTION_COUNT, suggestions.size());
+        Log.i(TAG, "Ranking " + SUGGESTION_COUNT + " suggestions: " + rankTime / 1000
+                + "us, featurizing into maps alone: " + mapTime / 1000 + "us");
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.settings.search.DatabaseIndexingManager.DatabaseRow;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Set;
+
+/**
+ * Compares typeahead latency of the in-memory index with the FTS query on a synthetic index.
+ * The rows only live in an uncommitted transaction, so the device's index is left untouched.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class InMemorySearchIndexBenchmark {
+    private static final String TAG = "InMemorySearchIndexBenchmark";
+
+    private static final int ROW_COUNT = 10000;
+    private static final int ITERATIONS = 20;
+    private static final String[] WORDS = {"wifi", "bluetooth", "battery", "display", "sound",
+            "storage", "network", "location", "security", "accounts", "language", "backup",
+            "notifications", "apps", "data", "usage", "calling", "brightness", "volume", "sleep"};
+    private static final String[] QUERIES = {"w", "wi", "blu", "batt", "net", "us", "so"};
+
+    @Test
+    public void benchmarkTypeahead() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SQLiteDatabase database =
+                IndexDatabaseHelper.getInstance(context).getWritableDatabase();
+
+        database.beginTransaction();
+        try {
+            insertRows(context, database);
+
+            final long buildStart = SystemClock.elapsedRealtime();
+            final InMemorySearchIndex index = InMemorySearchIndex.build(database,
+                    InMemorySearchIndex.DEFAULT_MEMORY_BUDGET_BYTES);
+            final long buildTime = SystemClock.elapsedRealtime() - buildStart;
+            assertNotNull(index);
+            Log.i(TAG, "Built index of " + index.getDocumentCount() + " rows in " + buildTime
+                    + "ms, ~" + index.getEstimatedSizeBytes() / 1024 + "KB");
+
+            for (String query : QUERIES) {
+                // The in-memory index caps the rows it reads back, so compare with that cap.
+                final int ftsCount = Math.min(DatabaseResultLoader.MAX_IN_MEMORY_HITS,
+                        load(context, query, null).size());
+                assertEquals(ftsCount, load(context, query, index).size());
+
+                final long ftsTime = timeQueries(context, query, null);
+                final long indexTime = timeQueries(context, query, index);
+                Log.i(TAG, "\"" + query + "\": fts " + ftsTime + "us, in-memory " + indexTime
+                        + "us");
+            }
+        } finally {
+            // Never committed, the synthetic rows are rolled back.
+            database.endTransaction();
+        }
+    }
+
+    private static long timeQueries(Context context, String query, InMemorySearchIndex index) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            load(context, query, index);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS / 1000;
+    }
+
+    private static Set<? extends SearchResult> load(Context context, String query,
+            InMemorySearchIndex index) {
+        return new DatabaseResultLoader(context, query, null /* mapManager */, index)
+                .loadInBackground();
+    }
+
+    private static void insertRows(Context context, SQLiteDatabase database) {
+        try (IndexDatabaseWriter writer = new IndexDatabaseWriter(database)) {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                final String title = WORDS[i % WORDS.length] + " "
+                        + WORDS[(i / WORDS.length) % WORDS.length] + " " + i;
+                final String summary = WORDS[(i * 7) % WORDS.length] + " summary";
+                writer.write(new DatabaseRow.Builder()
+                        .setLocale("en_US")
+                        .setUpdatedTitle(title)
+                        .setNormalizedTitle(title)
+                        .setUpdatedSummaryOn(summary)
+                        .setNormalizedSummaryOn(summary)
+                        .setSpaceDelimitedKeywords(WORDS[(i * 3) % WORDS.length])
+                        .setClassName("com.android.settings.Benchmark" + i)
+                        .setScreenTitle("Benchmark")
+                        .setKey("benchmark_" + i)
+                        .setEnabled(true)
+                        .build(context));
+            }
+        }
+    }
+}
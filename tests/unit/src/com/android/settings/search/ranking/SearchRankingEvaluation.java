@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.android.settings.search.ranking;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.settings.search.DatabaseResultLoader;
+import com.android.settings.search.IndexDatabaseHelper;
+import com.android.settings.search.ranking.SearchRankingEvaluator.Candidate;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays the search result clicks recorded on the device against its search index, and logs
+ * how the default {@link SearchRankingModel} compares with static ranking.
+ *
+ * Use settings search for a while before running it, the result is meaningless without clicks.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchRankingEvaluation {
+    private static final String TAG = "SearchRankingEvaluation";
+
+    @Test
+    public void evaluateRecordedClicks() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SQLiteDatabase database =
+                IndexDatabaseHelper.getInstance(context).getReadableDatabase();
+
+        final SearchRankingEvaluator.Report report = SearchRankingEvaluator.evaluate(
+                ResultClickLog.getClicks(database),
+                query -> getCandidates(database, query),
+                SearchRankingModel.getDefault());
+
+        Log.i(TAG, report.toString());
+    }
+
+    private static List<Candidate> getCandidates(SQLiteDatabase database, String query) {
+        final List<Candidate> candidates = new ArrayList<>();
+        final String matchText = DatabaseResultLoader.buildMatchText(query);
+        if (matchText.isEmpty()) {
+            return candidates;
+        }
+        try (Cursor cursor = DatabaseResultLoader.queryMatches(database, matchText,
+                null /* searchIndex */, null /* cancellationSignal */)) {
+            while (cursor != null && cursor.moveToNext()) {
+                candidates.add(new Candidate(
+                        cursor.getInt(DatabaseResultLoader.COLUMN_INDEX_ID),
+                        cursor.getString(DatabaseResultLoader.COLUMN_INDEX_TITLE),
+                        cursor.getInt(DatabaseResultLoader.COLUMN_INDEX_BASE_RANK)));
+            }
+        }
+        return candidates;
+    }
+}